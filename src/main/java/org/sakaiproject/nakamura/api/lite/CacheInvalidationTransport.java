@@ -0,0 +1,56 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.lite;
+
+/**
+ * Carries cache invalidations between the nodes of a cluster that share the
+ * same storage. Invalidations are sent as batches of key hashes, the
+ * {@link String#hashCode()} of each invalidated cache key. A hash may match
+ * more than one key, in which case all are invalidated, which is safe.
+ * Implementations deliver batches sent on one node to the receivers of all
+ * the other nodes, they should not deliver a batch back to the node that sent
+ * it. Delivery is best effort.
+ */
+public interface CacheInvalidationTransport {
+
+    /**
+     * Receives batches of invalidations from other nodes.
+     */
+    public interface Receiver {
+        /**
+         * @param keyHashes
+         *            the hashes of the cache keys that have been invalidated
+         *            on another node.
+         */
+        void invalidate(int[] keyHashes);
+    }
+
+    /**
+     * Send a batch of invalidations to all other nodes.
+     * 
+     * @param keyHashes
+     */
+    void send(int[] keyHashes);
+
+    /**
+     * @param receiver
+     *            the receiver of batches from other nodes, or null to stop
+     *            receiving.
+     */
+    void setReceiver(Receiver receiver);
+}
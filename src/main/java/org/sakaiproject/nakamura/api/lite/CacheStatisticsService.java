@@ -0,0 +1,113 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.lite;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Exposes the statistics of the content, authorizable and access control
+ * caches, aggregated over all sessions, so that caches can be sized.
+ */
+public interface CacheStatisticsService {
+
+    /**
+     * Number of lookups that found a row in the cache.
+     */
+    String HITS = "hits";
+    /**
+     * Number of lookups that found a row marked as deleted in the cache.
+     */
+    String NEGATIVE_HITS = "negativeHits";
+    /**
+     * Number of lookups answered by the negative cache, for rows known not to
+     * exist in storage.
+     */
+    String ABSENT_HITS = "absentHits";
+    /**
+     * Number of lookups that had to load the row from storage.
+     */
+    String MISSES = "misses";
+    /**
+     * Number of lookups that waited for another session loading the same row,
+     * rather than loading it from storage.
+     */
+    String COALESCED = "coalesced";
+    /**
+     * Number of lookups that gave up waiting for another session loading the
+     * same row and loaded it themselves.
+     */
+    String COALESCE_TIMEOUTS = "coalesceTimeouts";
+    /**
+     * Total time spent waiting for other sessions to load rows, in ms.
+     */
+    String COALESCE_WAIT_TIME = "coalesceWaitTime";
+    /**
+     * Entries evicted from the cache, if the cache counts evictions. Where
+     * caches are shared this is the count for the shared cache, see
+     * {@link #SHARED_WITH}.
+     */
+    String EVICTIONS = "evictions";
+    /**
+     * Number of entries in the cache.
+     */
+    String SIZE = "size";
+    /**
+     * Estimated size of the cache in bytes, if the cache is bounded by size.
+     */
+    String WEIGHT = "weight";
+    /**
+     * Total time spent loading rows from storage on a miss, in ms.
+     */
+    String LOAD_TIME = "loadTime";
+    /**
+     * A map of upper bound (eg "<1ms") to the number of loads that took less
+     * time than the bound.
+     */
+    String LOAD_TIME_HISTOGRAM = "loadTimeHistogram";
+    /**
+     * Present when the cache shares its map with another cache, the name of
+     * the cache that reports the size, weight and evictions of the map. The
+     * figures of this cache are then 0, so that the map is counted once.
+     */
+    String SHARED_WITH = "sharedWith";
+
+    /**
+     * The cache names.
+     */
+    String CONTENT_CACHE = "content";
+    String AUTHORIZABLE_CACHE = "authorizable";
+    String ACCESS_CONTROL_CACHE = "accesscontrol";
+
+    /**
+     * @return the names of the caches that have statistics.
+     */
+    Set<String> getCacheNames();
+
+    /**
+     * @param cacheName
+     * @return a snapshot of the statistics for the cache, keyed by the
+     *         constants in this interface, or null if the cache is not known.
+     */
+    Map<String, Object> getStatistics(String cacheName);
+
+    /**
+     * Reset the counters of all caches.
+     */
+    void reset();
+}
@@ -653,9 +653,8 @@ public class StorageClientUtils {
     }
 
     /**
-     * Delete an entire tree starting from the deepest part of the tree and
-     * working back up. Will stop the moment a permission denied is encountered
-     * either for read or for delete.
+     * Delete an entire tree. Nothing is deleted if the user can't delete every
+     * item in the tree, see {@link ContentManager#deleteWithChildren(String)}.
      *
      * @param contentManager
      * @param path
@@ -664,13 +663,7 @@ public class StorageClientUtils {
      */
     public static void deleteTree(ContentManager contentManager, String path)
             throws AccessDeniedException, StorageClientException {
-        Content content = contentManager.get(path);
-        if (content != null) {
-            for (String childPath : content.listChildPaths()) {
-                deleteTree(contentManager, childPath);
-            }
-        }
-        contentManager.delete(path);
+        contentManager.deleteWithChildren(path);
     }
 
     public static String getInternalUuid() {
@@ -38,6 +38,16 @@ public class StorageConstants {
      * Page number to start at, defaults to 0.
      */
     public static final String PAGE = "_page";
+
+    /**
+     * Continuation token of a find, taken from the results of the previous
+     * page. When present the find starts after the row the cursor names
+     * rather than skipping to the page, so deep pages do not scan every
+     * earlier row. An empty cursor starts at the page and asks for results
+     * in cursor order. Cursors are opaque and only valid with the same terms
+     * and sort.
+     */
+    public static final String CURSOR = "_cursor";
     
     /**
      * The column on which to perform a sort.
@@ -94,6 +94,25 @@ public interface AccessControlManager {
     void check(String objectType, String objectPath, Permission permission)
             throws AccessDeniedException, StorageClientException;
 
+    /**
+     * Check the current user has the permission on each of a number of
+     * objects. The ACLs of the objects and of their common parents are read
+     * once, which is cheaper than calling
+     * {@link #check(String, String, Permission)} for each object.
+     * 
+     * @param objectType
+     *            the object type @see {@link Security}
+     * @param objectPaths
+     *            the paths to the objects
+     * @param permission
+     *            the permission (may be aggregated) to check.
+     * @return the paths of the objects the user has the permission on, in the
+     *         order they were given.
+     * @throws StorageClientException
+     */
+    String[] filterPermitted(String objectType, String[] objectPaths, Permission permission)
+            throws StorageClientException;
+
     /**
      * @return the current user ID associated with this AccessControlManager
      */
@@ -61,6 +61,22 @@ public interface AuthorizableManager {
     boolean createGroup(String groupId, String groupName,
             Map<String, Object> properties) throws AccessDeniedException, StorageClientException;
 
+    /**
+     * Get a page of the members of a group, without loading all of them.
+     * 
+     * @param groupId
+     *            the group ID
+     * @param page
+     *            the page, starting at 0.
+     * @param items
+     *            the number of members in each page.
+     * @return the members in the page, or null if groupId is not a group.
+     * @throws AccessDeniedException
+     * @throws StorageClientException
+     */
+    String[] getMembers(String groupId, int page, int items) throws AccessDeniedException,
+            StorageClientException;
+
     /**
      * Create a user
      *
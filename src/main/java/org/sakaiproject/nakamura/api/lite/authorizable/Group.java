@@ -31,9 +31,13 @@ import java.util.Map;
 import java.util.Set;
 
 /**
- * A group has a list of members that is maintained in the group. This is
- * reflected as principals in each member, managed by the AuthorizableManager,
- * only updated on save.
+ * A group has a list of members. This is reflected as principals in each
+ * member, managed by the AuthorizableManager, only updated on save. Only the
+ * members added and removed are kept by the group until it is saved, the
+ * members themselves are loaded the first time they are listed, so that
+ * changing the membership of a large group does not load all of its members.
+ * {@link AuthorizableManager#getMembers(String, int, int)} lists them a page
+ * at a time.
  * 
  * @author ieb
  * 
@@ -56,10 +60,8 @@ public class Group extends Authorizable {
 
     public Group(Map<String, Object> groupMap, Session session) throws StorageClientException, AccessDeniedException {
         super(groupMap, session);
-        this.members = Sets.newLinkedHashSet(Iterables.of(StringUtils.split(
-                (String) authorizableMap.get(MEMBERS_FIELD), ';')));
-        this.membersAdded = Sets.newHashSet();
-        this.membersRemoved = Sets.newHashSet();
+        this.membersAdded = Sets.newLinkedHashSet();
+        this.membersRemoved = Sets.newLinkedHashSet();
         membersModified = true;
     }
 
@@ -82,30 +84,6 @@ public class Group extends Authorizable {
         return true;
     }
 
-    /**
-     * {@inheritDoc}
-     */
-    @Override
-    public Map<String, Object> getPropertiesForUpdate() {
-        if (!readOnly && membersModified) {
-            modifiedMap.put(MEMBERS_FIELD, StringUtils.join(members, ';'));
-        }
-        Map<String, Object> propertiesForUpdate = super.getPropertiesForUpdate();
-        return propertiesForUpdate;
-    }
-
-    /**
-     * {@inheritDoc}
-     */
-    @Override
-    // TODO: Unit test
-    public Map<String, Object> getSafeProperties() {
-        if (!readOnly && membersModified) {
-            modifiedMap.put(MEMBERS_FIELD, StringUtils.join(members, ';'));
-        }
-        return super.getSafeProperties();
-    }
-
     /**
      * {@inheritDoc}
      */
@@ -116,13 +94,28 @@ public class Group extends Authorizable {
     }
 
     public String[] getMembers() {
+        if (members == null) {
+            members = Sets.newLinkedHashSet(Iterables.of(loadMembers()));
+            members.removeAll(membersRemoved);
+            members.addAll(membersAdded);
+        }
         return members.toArray(new String[members.size()]);
     }
 
+    /**
+     * @return the members of the group as stored, without the changes made to
+     *         this object. By default the members property of the group.
+     */
+    protected String[] loadMembers() {
+        return StringUtils.split((String) authorizableMap.get(MEMBERS_FIELD), ';');
+    }
+
     public void addMember(String member) {
-        if (!readOnly && !members.contains(member)) {
-            LOGGER.debug(" {} adding Member {} to {} ", new Object[] { this, member, members });
-            members.add(member);
+        if (!readOnly && (members == null || !members.contains(member))) {
+            LOGGER.debug(" {} adding Member {} ", this, member);
+            if (members != null) {
+                members.add(member);
+            }
             membersAdded.add(member);
             membersRemoved.remove(member);
             membersModified = true;
@@ -133,9 +126,11 @@ public class Group extends Authorizable {
     }
 
     public void removeMember(String member) {
-        if (!readOnly && members.contains(member)) {
-            LOGGER.debug(" {} removing Member {} to {} ", new Object[] { this, member, members });
-            members.remove(member);
+        if (!readOnly && (members == null || members.contains(member))) {
+            LOGGER.debug(" {} removing Member {} ", this, member);
+            if (members != null) {
+                members.remove(member);
+            }
             membersAdded.remove(member);
             membersRemoved.add(member);
             membersModified = true;
@@ -145,6 +140,11 @@ public class Group extends Authorizable {
         }
     }
 
+    /**
+     * @return the members added since the group was loaded or saved, which may
+     *         include members that were already members if the members have not
+     *         been listed.
+     */
     public String[] getMembersAdded() {
         return membersAdded.toArray(new String[membersAdded.size()]);
     }
@@ -157,8 +157,7 @@ public class Group extends Authorizable {
         if (!readOnly) {
             super.reset(newMap);
             LOGGER.debug("{} reset ", new Object[] { this });
-            this.members = Sets.newLinkedHashSet(Iterables.of(StringUtils.split(
-                    (String) authorizableMap.get(MEMBERS_FIELD), ';')));
+            this.members = null;
             membersAdded.clear();
             membersRemoved.clear();
             membersModified = false;
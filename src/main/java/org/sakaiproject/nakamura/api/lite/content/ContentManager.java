@@ -49,7 +49,11 @@ public interface ContentManager {
     Content get(String path) throws StorageClientException, AccessDeniedException;
 
     /**
-     * Perform a search for content matching the given properties
+     * Perform a search for content matching the given properties. Content the
+     * current user can't read is left out, and pages are counted in results the
+     * user can read. When the properties hold a cursor, the iterator is a
+     * {@link org.sakaiproject.nakamura.api.lite.util.CursorIterator} that gives
+     * the cursor of the next page.
      * 
      * @param searchProperties a Map of property names and values. All the properties must match to give a result
      * @return an Iterable of Content items in no guaranteed order
@@ -252,12 +256,53 @@ public interface ContentManager {
    * @return a List of the moves performed (from and to paths). Listed bottom-up,
    *         path-wise.
    * @throws StorageClientException
+   *           a {@link PartialActionException} listing the moves performed
+   *           if the move failed part way through.
    * @throws AccessDeniedException
    */
   List<ActionRecord> moveWithChildren(String from, String to)
       throws AccessDeniedException,
       StorageClientException;
 
+    /**
+     * Copy a content item, and all child items, from to. The user must be able
+     * to read every item under from and write every item under to, or nothing
+     * is copied. Items that exist under to are replaced.
+     * 
+     * @param from
+     *            the path to copy from, must exist
+     * @param to
+     *            the path to copy to
+     * @param withStreams
+     *            if true, a copy is made of all the streams, if false the
+     *            streams are shared but copies are made of the properties.
+     * @return a List of the copies performed (from and to paths). Listed
+     *         bottom-up, path-wise.
+     * @throws StorageClientException
+     *             a {@link PartialActionException} listing the copies
+     *             performed if the copy failed part way through.
+     * @throws AccessDeniedException
+     * @throws IOException
+     */
+    List<ActionRecord> copyWithChildren(String from, String to, boolean withStreams)
+            throws AccessDeniedException, StorageClientException, IOException;
+
+    /**
+     * Delete a content item, and all child items. The user must be able to
+     * delete every item, or nothing is deleted.
+     * 
+     * @param path
+     *            the path of the content object to delete with its children.
+     * @return a List of the deletes performed (from paths, to is null). Listed
+     *         bottom-up, path-wise.
+     * @throws StorageClientException
+     *             a {@link PartialActionException} listing the deletes
+     *             performed if the delete failed part way through.
+     * @throws AccessDeniedException
+     */
+    List<ActionRecord> deleteWithChildren(String path) throws AccessDeniedException,
+            StorageClientException;
+
   /**
    * Create a Link. Links place a pointer to real content located at the to path, in the
    * from path. Modifications to the underlying content are reflected in both locations.
@@ -0,0 +1,46 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.lite.content;
+
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+
+import java.util.List;
+
+/**
+ * Thrown when an action on a subtree fails after part of it has been
+ * written. The items in {@link #getCompleted()} have been moved, copied or
+ * deleted and the rest have not, so the caller can finish or undo the action.
+ */
+public class PartialActionException extends StorageClientException {
+
+    private static final long serialVersionUID = -3290118407765452206L;
+    private final List<ActionRecord> completed;
+
+    public PartialActionException(String message, Throwable t, List<ActionRecord> completed) {
+        super(message, t);
+        this.completed = completed;
+    }
+
+    /**
+     * @return the actions completed before the failure, listed bottom-up,
+     *         path-wise.
+     */
+    public List<ActionRecord> getCompleted() {
+        return completed;
+    }
+}
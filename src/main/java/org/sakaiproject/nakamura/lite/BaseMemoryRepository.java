@@ -24,7 +24,6 @@ import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Configuration;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
-import org.sakaiproject.nakamura.lite.authorizable.AuthorizableActivator;
 import org.sakaiproject.nakamura.lite.content.BlockContentHelper;
 import org.sakaiproject.nakamura.lite.storage.StorageClient;
 import org.sakaiproject.nakamura.lite.storage.StorageClientPool;
@@ -58,16 +57,14 @@ public class BaseMemoryRepository {
         configuration.activate(properties);
         clientPool = getClientPool(configuration);
         client = clientPool.getClient();
-        AuthorizableActivator authorizableActivator = new AuthorizableActivator(client,
-                configuration);
-        authorizableActivator.setup();
-        LOGGER.info("Setup Complete");
         repository = new RepositoryImpl();
         repository.configuration = configuration;
         repository.clientPool = clientPool;
         repository.storeListener = new LoggingStorageListener();
         Map<String, Object> repoProperties = ImmutableMap.of("t", (Object) "x");
+        // the repository sets up the default users, and knows when the store is new.
         repository.activate(repoProperties);
+        LOGGER.info("Setup Complete");
 
     }
 
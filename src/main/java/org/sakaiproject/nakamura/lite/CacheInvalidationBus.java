@@ -0,0 +1,233 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite;
+
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Sets;
+
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.api.lite.CacheInvalidationTransport;
+import org.sakaiproject.nakamura.lite.accesscontrol.CompiledPermissionCache;
+import org.sakaiproject.nakamura.lite.storage.ConcurrentClockMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Sends invalidations of local writes to the other nodes of a cluster, and
+ * applies invalidations received from them to the local caches.
+ * <p>
+ * {@link CachingManager}s report every cache key they write or delete. The
+ * hashes of those keys are collected in a set, so repeated writes to the same
+ * key coalesce, and the set is sent as one batch every flush interval, or
+ * sooner if it reaches the maximum batch size. On receipt, entries whose key
+ * hash is in the batch are removed from every registered cache, its
+ * {@link NegativeCache} and its {@link CacheLoadCoalescer}. A
+ * {@link ConcurrentClockMap} cache removes them through its index by hash, so
+ * the cost is in the size of the batch rather than of the cache; any other
+ * map is scanned once per batch.
+ * </p>
+ * <p>
+ * A bus is attached to the caches it serves, so {@link CachingManager}s find
+ * it from their shared cache. With no transport set, reporting a write costs
+ * one volatile read.
+ * </p>
+ */
+public class CacheInvalidationBus implements CacheInvalidationTransport.Receiver {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CacheInvalidationBus.class);
+    private static final ConcurrentMap<Map<String, CacheHolder>, CacheInvalidationBus> BUSES = new MapMaker()
+            .weakKeys().makeMap();
+
+    private final Set<Map<String, CacheHolder>> caches = Sets.newSetFromMap(new MapMaker()
+            .weakKeys().<Map<String, CacheHolder>, Boolean> makeMap());
+    private final long flushInterval;
+    private final int maxBatch;
+    private volatile CacheInvalidationTransport transport;
+    private Set<Integer> pending = Sets.newHashSet();
+    private final Object pendingLock = new Object();
+    private Timer timer;
+
+    /**
+     * @param flushInterval
+     *            the maximum time in ms local invalidations are held before
+     *            being sent.
+     * @param maxBatch
+     *            the number of distinct keys that cause a batch to be sent
+     *            immediately.
+     */
+    public CacheInvalidationBus(long flushInterval, int maxBatch) {
+        this.flushInterval = Math.max(1L, flushInterval);
+        this.maxBatch = Math.max(1, maxBatch);
+    }
+
+    /**
+     * @param cache
+     * @return the bus serving the cache, or null if there is none.
+     */
+    static CacheInvalidationBus getBus(Map<String, CacheHolder> cache) {
+        if (cache == null) {
+            return null;
+        }
+        return BUSES.get(cache);
+    }
+
+    /**
+     * Serve a cache, invalidations of local writes to the cache are sent to
+     * other nodes, and invalidations from other nodes are applied to it.
+     * 
+     * @param cache
+     */
+    public void register(Map<String, CacheHolder> cache) {
+        if (cache != null && !caches.contains(cache)) {
+            caches.add(cache);
+            BUSES.put(cache, this);
+        }
+    }
+
+    /**
+     * Connect the bus to a transport, replacing any previous transport.
+     * 
+     * @param transport
+     */
+    public synchronized void setTransport(CacheInvalidationTransport transport) {
+        unsetTransport(this.transport);
+        if (transport != null) {
+            transport.setReceiver(this);
+            timer = new Timer("Cache Invalidation Bus", true);
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, flushInterval, flushInterval);
+            this.transport = transport;
+        }
+    }
+
+    /**
+     * Disconnect the bus from the transport if it is the current one, pending
+     * invalidations are sent first.
+     * 
+     * @param transport
+     */
+    public synchronized void unsetTransport(CacheInvalidationTransport transport) {
+        if (transport != null && transport == this.transport) {
+            flush();
+            this.transport = null;
+            transport.setReceiver(null);
+            timer.cancel();
+            timer = null;
+        }
+    }
+
+    /**
+     * Stop serving all caches and disconnect from the transport.
+     */
+    public void close() {
+        unsetTransport(transport);
+        for (Map<String, CacheHolder> cache : caches) {
+            BUSES.remove(cache, this);
+        }
+        caches.clear();
+    }
+
+    /**
+     * Record that a cache key has been written or deleted locally.
+     * 
+     * @param cacheKey
+     */
+    void invalidate(String cacheKey) {
+        if (transport == null) {
+            return;
+        }
+        boolean full = false;
+        synchronized (pendingLock) {
+            pending.add(cacheKey.hashCode());
+            full = pending.size() >= maxBatch;
+        }
+        if (full) {
+            flush();
+        }
+    }
+
+    /**
+     * Send any pending invalidations now.
+     */
+    public void flush() {
+        Set<Integer> toSend = null;
+        synchronized (pendingLock) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            toSend = pending;
+            pending = Sets.newHashSet();
+        }
+        CacheInvalidationTransport t = transport;
+        if (t != null) {
+            int[] keyHashes = new int[toSend.size()];
+            int i = 0;
+            for (Integer h : toSend) {
+                keyHashes[i++] = h;
+            }
+            try {
+                t.send(keyHashes);
+            } catch (Exception e) {
+                LOGGER.warn("Failed to send {} cache invalidations {} ", keyHashes.length,
+                        e.getMessage());
+            }
+        }
+    }
+
+    public void invalidate(int[] keyHashes) {
+        Set<Integer> hashes = Sets.newHashSetWithExpectedSize(keyHashes.length);
+        for (int h : keyHashes) {
+            hashes.add(h);
+        }
+        int removed = 0;
+        for (Map<String, CacheHolder> cache : caches) {
+            if (cache instanceof ConcurrentClockMap<?, ?>) {
+                removed += ((ConcurrentClockMap<?, ?>) cache).removeByHash(hashes);
+            } else {
+                for (String key : cache.keySet()) {
+                    if (hashes.contains(key.hashCode())) {
+                        cache.remove(key);
+                        removed++;
+                    }
+                }
+            }
+            NegativeCache negativeCache = NegativeCache.getNegativeCache(cache);
+            if (negativeCache != null) {
+                negativeCache.invalidate(hashes);
+            }
+            CacheLoadCoalescer loadCoalescer = CacheLoadCoalescer.getCoalescer(cache);
+            if (loadCoalescer != null) {
+                loadCoalescer.invalidate(hashes);
+            }
+            CompiledPermissionCache.invalidate(cache, hashes);
+        }
+        LOGGER.debug("Received {} invalidations, removed {} cached entries ", keyHashes.length,
+                removed);
+    }
+
+}
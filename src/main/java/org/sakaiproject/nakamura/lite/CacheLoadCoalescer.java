@@ -0,0 +1,205 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite;
+
+import com.google.common.collect.MapMaker;
+
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces concurrent loads of the same key, so that when a popular row is not
+ * in the shared cache only one session loads it from storage while the others
+ * wait for that load. There is one coalescer for each shared cache, shared by
+ * all the {@link CachingManager}s that use the shared cache.
+ * <p>
+ * A waiting session gives up after a timeout, or if the load fails, and loads
+ * the row itself. Invalidating a key detaches the load in flight so that
+ * lookups made after a write do not wait for a row read before it.
+ * </p>
+ */
+public class CacheLoadCoalescer {
+
+    private static final ConcurrentMap<Map<String, CacheHolder>, CacheLoadCoalescer> COALESCERS = new MapMaker()
+            .weakKeys().makeMap();
+    private static volatile long defaultTimeout = 5000L;
+
+    private final ConcurrentMap<String, Load> loads = new ConcurrentHashMap<String, Load>();
+    private final long timeout;
+
+    CacheLoadCoalescer(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Set the wait timeout of coalescers created from now on.
+     * 
+     * @param timeout
+     *            the longest time, in ms, a session waits for another to load
+     *            a row, 0 to disable coalescing.
+     */
+    public static void configure(long timeout) {
+        defaultTimeout = timeout;
+    }
+
+    /**
+     * @param sharedCache
+     * @return the coalescer for the shared cache, or null if there is no shared
+     *         cache or coalescing is disabled.
+     */
+    static CacheLoadCoalescer getCoalescer(Map<String, CacheHolder> sharedCache) {
+        if (sharedCache == null || defaultTimeout <= 0) {
+            return null;
+        }
+        CacheLoadCoalescer coalescer = COALESCERS.get(sharedCache);
+        if (coalescer == null) {
+            coalescer = new CacheLoadCoalescer(defaultTimeout);
+            CacheLoadCoalescer existing = COALESCERS.putIfAbsent(sharedCache, coalescer);
+            if (existing != null) {
+                coalescer = existing;
+            }
+        }
+        return coalescer;
+    }
+
+    /**
+     * Join the load of a key.
+     * 
+     * @param cacheKey
+     * @return the load in flight for the key. If the load was started by this
+     *         call the caller must load the row and then call
+     *         {@link Load#done(Map)} or {@link Load#failed()}, otherwise the
+     *         caller should {@link Load#await()} it.
+     */
+    Load join(String cacheKey) {
+        Load load = new Load(cacheKey);
+        Load inFlight = loads.putIfAbsent(cacheKey, load);
+        if (inFlight != null) {
+            return inFlight;
+        }
+        return load;
+    }
+
+    /**
+     * Detach the load in flight for the key, later lookups start a new load.
+     * 
+     * @param cacheKey
+     */
+    void invalidate(String cacheKey) {
+        loads.remove(cacheKey);
+    }
+
+    /**
+     * Detach the loads in flight for keys with any of the hashes.
+     * 
+     * @param keyHashes
+     */
+    void invalidate(Set<Integer> keyHashes) {
+        for (String key : loads.keySet()) {
+            if (keyHashes.contains(key.hashCode())) {
+                loads.remove(key);
+            }
+        }
+    }
+
+    int size() {
+        return loads.size();
+    }
+
+    /**
+     * A load of one key, started by one session and awaited by others.
+     */
+    final class Load {
+
+        private final String cacheKey;
+        private final Thread loader = Thread.currentThread();
+        private final CountDownLatch complete = new CountDownLatch(1);
+        private volatile Map<String, Object> row;
+        private volatile boolean loaded;
+
+        private Load(String cacheKey) {
+            this.cacheKey = cacheKey;
+        }
+
+        /**
+         * @return true if the current thread started this load and must
+         *         complete it.
+         */
+        boolean isLoader() {
+            return loader == Thread.currentThread();
+        }
+
+        /**
+         * Complete the load, waking the sessions waiting for it.
+         * 
+         * @param row
+         *            the row as loaded from storage.
+         */
+        void done(Map<String, Object> row) {
+            this.row = row;
+            this.loaded = true;
+            finish();
+        }
+
+        /**
+         * Abandon the load, the sessions waiting for it will load the row
+         * themselves.
+         */
+        void failed() {
+            finish();
+        }
+
+        private void finish() {
+            loads.remove(cacheKey, this);
+            complete.countDown();
+        }
+
+        /**
+         * Wait for the load to complete.
+         * 
+         * @return true if the row was loaded, false if the load failed or the
+         *         wait timed out.
+         */
+        boolean await() {
+            try {
+                return complete.await(timeout, TimeUnit.MILLISECONDS) && loaded;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        /**
+         * @return the row loaded, once {@link #await()} has returned true.
+         */
+        Map<String, Object> getRow() {
+            return row;
+        }
+
+        @Override
+        public String toString() {
+            return cacheKey;
+        }
+    }
+}
@@ -0,0 +1,318 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableMap.Builder;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.MapMaker;
+
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.api.lite.CacheStatisticsService;
+import org.sakaiproject.nakamura.lite.storage.ConcurrentClockMap;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters for one of the caches used by the {@link CachingManager}s, shared
+ * by all the sessions that use the cache. The counters are held in a static
+ * registry as managers are created for every session, from many places.
+ * Where several caches share one map, the size, weight and evictions of the
+ * map are reported by the first of them only, so that they are not counted
+ * once for each cache.
+ */
+public class CacheStatistics implements CacheStatisticsMBean {
+
+    private static final ConcurrentMap<String, CacheStatistics> REGISTRY = new ConcurrentHashMap<String, CacheStatistics>();
+    /**
+     * The name of the cache that reports the figures of each map.
+     */
+    private static final ConcurrentMap<Map<String, CacheHolder>, String> MAP_OWNERS = new MapMaker()
+            .weakKeys().makeMap();
+    private static final long[] LOAD_TIME_BOUNDS_NS = new long[] { 100000L, 1000000L,
+            10000000L, 100000000L, 1000000000L, Long.MAX_VALUE };
+    private static final String[] LOAD_TIME_BUCKETS = new String[] { "<100us", "<1ms", "<10ms",
+            "<100ms", "<1s", ">=1s" };
+
+    private final String name;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+    private final AtomicLong absentHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong loadTime = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong coalesceTimeouts = new AtomicLong();
+    private final AtomicLong coalesceWaitTime = new AtomicLong();
+    private final AtomicLongArray loadTimeHistogram = new AtomicLongArray(
+            LOAD_TIME_BOUNDS_NS.length);
+    private volatile WeakReference<Map<String, CacheHolder>> cache = new WeakReference<Map<String, CacheHolder>>(
+            null);
+
+    CacheStatistics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @param name
+     *            the name of the cache.
+     * @param cache
+     *            the cache the statistics are for, may be null.
+     * @return the statistics for the named cache, created if necessary.
+     */
+    public static CacheStatistics getStatistics(String name, Map<String, CacheHolder> cache) {
+        CacheStatistics stats = REGISTRY.get(name);
+        if (stats == null) {
+            stats = new CacheStatistics(name);
+            CacheStatistics existing = REGISTRY.putIfAbsent(name, stats);
+            if (existing != null) {
+                stats = existing;
+            }
+        }
+        Map<String, CacheHolder> current = stats.cache.get();
+        if (cache != null && current != cache) {
+            if (current != null) {
+                MAP_OWNERS.remove(current, name);
+            }
+            stats.cache = new WeakReference<Map<String, CacheHolder>>(cache);
+            MAP_OWNERS.putIfAbsent(cache, name);
+        }
+        return stats;
+    }
+
+    /**
+     * @param name
+     * @return the statistics of the named cache or null if the cache has not
+     *         been used.
+     */
+    public static CacheStatistics getStatistics(String name) {
+        return REGISTRY.get(name);
+    }
+
+    /**
+     * @return the names of all caches that have been used.
+     */
+    public static Set<String> getCacheNames() {
+        return ImmutableSet.copyOf(REGISTRY.keySet());
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    void hit() {
+        hits.incrementAndGet();
+    }
+
+    void negativeHit() {
+        negativeHits.incrementAndGet();
+    }
+
+    void absentHit() {
+        absentHits.incrementAndGet();
+    }
+
+    /**
+     * Record a miss, and the time taken to load the row from storage.
+     * 
+     * @param loadTimeNanos
+     */
+    void miss(long loadTimeNanos) {
+        misses.incrementAndGet();
+        loadTime.addAndGet(loadTimeNanos);
+        for (int i = 0; i < LOAD_TIME_BOUNDS_NS.length; i++) {
+            if (loadTimeNanos < LOAD_TIME_BOUNDS_NS[i]) {
+                loadTimeHistogram.incrementAndGet(i);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Record a lookup that waited for another session to load the row.
+     * 
+     * @param waitTimeNanos
+     */
+    void coalesced(long waitTimeNanos) {
+        coalesced.incrementAndGet();
+        coalesceWaitTime.addAndGet(waitTimeNanos);
+    }
+
+    /**
+     * Record a lookup that gave up waiting for another session to load the row.
+     */
+    void coalesceTimeout() {
+        coalesceTimeouts.incrementAndGet();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getNegativeHits() {
+        return negativeHits.get();
+    }
+
+    public long getAbsentHits() {
+        return absentHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public long getCoalesceTimeouts() {
+        return coalesceTimeouts.get();
+    }
+
+    public long getCoalesceWaitTime() {
+        return coalesceWaitTime.get() / 1000000L;
+    }
+
+    public long getEvictions() {
+        Map<String, CacheHolder> m = cache.get();
+        if (getSharedWith(m) != null) {
+            return 0;
+        }
+        if (m instanceof ConcurrentClockMap<?, ?>) {
+            return ((ConcurrentClockMap<?, ?>) m).evictions();
+        }
+        return -1;
+    }
+
+    public long getSize() {
+        Map<String, CacheHolder> m = cache.get();
+        if (m == null || getSharedWith(m) != null) {
+            return 0;
+        }
+        return m.size();
+    }
+
+    public long getWeight() {
+        Map<String, CacheHolder> m = cache.get();
+        if (getSharedWith(m) != null) {
+            return 0;
+        }
+        if (m instanceof ConcurrentClockMap<?, ?>) {
+            return ((ConcurrentClockMap<?, ?>) m).weight();
+        }
+        return -1;
+    }
+
+    public String getSharedWith() {
+        return getSharedWith(cache.get());
+    }
+
+    /**
+     * @return the name of the cache that reports the figures of the map, if it
+     *         is not this one.
+     */
+    private String getSharedWith(Map<String, CacheHolder> m) {
+        if (m == null) {
+            return null;
+        }
+        String owner = MAP_OWNERS.putIfAbsent(m, name);
+        if (owner == null || owner.equals(name)) {
+            return null;
+        }
+        return owner;
+    }
+
+    public double getHitPercentage() {
+        long h = hits.get() + negativeHits.get() + absentHits.get();
+        long total = h + misses.get();
+        if (total == 0) {
+            return 0.0;
+        }
+        return (100.0 * h) / total;
+    }
+
+    public long getLoadTime() {
+        return loadTime.get() / 1000000L;
+    }
+
+    public String[] getLoadTimeBuckets() {
+        return LOAD_TIME_BUCKETS.clone();
+    }
+
+    public long[] getLoadTimeHistogram() {
+        long[] histogram = new long[loadTimeHistogram.length()];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = loadTimeHistogram.get(i);
+        }
+        return histogram;
+    }
+
+    public void reset() {
+        hits.set(0);
+        negativeHits.set(0);
+        absentHits.set(0);
+        misses.set(0);
+        loadTime.set(0);
+        coalesced.set(0);
+        coalesceTimeouts.set(0);
+        coalesceWaitTime.set(0);
+        for (int i = 0; i < loadTimeHistogram.length(); i++) {
+            loadTimeHistogram.set(i, 0);
+        }
+    }
+
+    /**
+     * @return a snapshot of the statistics keyed by the
+     *         {@link CacheStatisticsService} constants.
+     */
+    public Map<String, Object> toMap() {
+        Builder<String, Long> histogram = ImmutableMap.builder();
+        long[] counts = getLoadTimeHistogram();
+        for (int i = 0; i < counts.length; i++) {
+            histogram.put(LOAD_TIME_BUCKETS[i], counts[i]);
+        }
+        Builder<String, Object> b = ImmutableMap.builder();
+        b.put(CacheStatisticsService.HITS, getHits());
+        b.put(CacheStatisticsService.NEGATIVE_HITS, getNegativeHits());
+        b.put(CacheStatisticsService.ABSENT_HITS, getAbsentHits());
+        b.put(CacheStatisticsService.MISSES, getMisses());
+        b.put(CacheStatisticsService.COALESCED, getCoalesced());
+        b.put(CacheStatisticsService.COALESCE_TIMEOUTS, getCoalesceTimeouts());
+        b.put(CacheStatisticsService.COALESCE_WAIT_TIME, getCoalesceWaitTime());
+        b.put(CacheStatisticsService.EVICTIONS, getEvictions());
+        b.put(CacheStatisticsService.SIZE, getSize());
+        b.put(CacheStatisticsService.WEIGHT, getWeight());
+        b.put(CacheStatisticsService.LOAD_TIME, getLoadTime());
+        b.put(CacheStatisticsService.LOAD_TIME_HISTOGRAM, histogram.build());
+        String sharedWith = getSharedWith();
+        if (sharedWith != null) {
+            b.put(CacheStatisticsService.SHARED_WITH, sharedWith);
+        }
+        return b.build();
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + toMap();
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite;
+
+/**
+ * JMX view of the statistics of one cache.
+ */
+public interface CacheStatisticsMBean {
+
+    long getHits();
+
+    long getNegativeHits();
+
+    long getAbsentHits();
+
+    long getMisses();
+
+    /**
+     * @return lookups that waited for another session to load the row.
+     */
+    long getCoalesced();
+
+    /**
+     * @return lookups that gave up waiting for another session and loaded the
+     *         row themselves.
+     */
+    long getCoalesceTimeouts();
+
+    /**
+     * @return total time spent waiting for other sessions to load rows, in ms.
+     */
+    long getCoalesceWaitTime();
+
+    long getEvictions();
+
+    long getSize();
+
+    long getWeight();
+
+    /**
+     * @return the name of the cache that shares its map with this one and
+     *         reports the size, weight and evictions of the map, or null if
+     *         this cache reports them.
+     */
+    String getSharedWith();
+
+    /**
+     * @return hits, including negative and absent hits, as a percentage of all
+     *         lookups.
+     */
+    double getHitPercentage();
+
+    /**
+     * @return total time spent loading rows on a miss, in ms.
+     */
+    long getLoadTime();
+
+    /**
+     * @return the upper bounds of the load time histogram buckets.
+     */
+    String[] getLoadTimeBuckets();
+
+    /**
+     * @return the number of loads in each bucket of
+     *         {@link #getLoadTimeBuckets()}.
+     */
+    long[] getLoadTimeHistogram();
+
+    void reset();
+}
@@ -0,0 +1,102 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Service;
+import org.sakaiproject.nakamura.api.lite.CacheStatisticsService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+
+/**
+ * Provides the {@link CacheStatisticsService} and registers the statistics of
+ * each cache as an MBean named
+ * org.sakaiproject.nakamura.lite:type=Cache,name=&lt;cache name&gt;
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = CacheStatisticsService.class)
+public class CacheStatisticsServiceImpl implements CacheStatisticsService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CacheStatisticsServiceImpl.class);
+    private static final Set<String> CACHE_NAMES = ImmutableSet.of(CONTENT_CACHE,
+            AUTHORIZABLE_CACHE, ACCESS_CONTROL_CACHE);
+    private Set<ObjectName> registered = Sets.newHashSet();
+
+    @Activate
+    public void activate(Map<String, Object> properties) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (String name : CACHE_NAMES) {
+            try {
+                ObjectName objectName = new ObjectName(
+                        "org.sakaiproject.nakamura.lite:type=Cache,name=" + name);
+                if (!server.isRegistered(objectName)) {
+                    server.registerMBean(CacheStatistics.getStatistics(name, null), objectName);
+                    registered.add(objectName);
+                }
+            } catch (JMException e) {
+                LOGGER.warn("Failed to register cache statistics for {} {} ", name,
+                        e.getMessage());
+            }
+        }
+    }
+
+    @Deactivate
+    public void deactivate(Map<String, Object> properties) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName objectName : registered) {
+            try {
+                server.unregisterMBean(objectName);
+            } catch (JMException e) {
+                LOGGER.debug("Failed to unregister {} {} ", objectName, e.getMessage());
+            }
+        }
+        registered.clear();
+    }
+
+    public Set<String> getCacheNames() {
+        return Sets.union(CACHE_NAMES, CacheStatistics.getCacheNames()).immutableCopy();
+    }
+
+    public Map<String, Object> getStatistics(String cacheName) {
+        CacheStatistics stats = CacheStatistics.getStatistics(cacheName);
+        if (stats == null) {
+            return null;
+        }
+        return stats.toMap();
+    }
+
+    public void reset() {
+        for (String name : CacheStatistics.getCacheNames()) {
+            CacheStatistics.getStatistics(name).reset();
+        }
+    }
+
+}
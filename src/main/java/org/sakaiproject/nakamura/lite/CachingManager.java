@@ -18,12 +18,18 @@
 package org.sakaiproject.nakamura.lite;
 
 import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.api.lite.CacheStatisticsService;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.lite.storage.RowResolver;
 import org.sakaiproject.nakamura.lite.storage.StorageClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.Maps;
+
+import java.util.Collection;
 import java.util.Map;
+import java.util.Map.Entry;
 
 /**
  * Extend this class to add caching to a Manager class.
@@ -33,8 +39,10 @@ public abstract class CachingManager {
     private static final Logger LOGGER = LoggerFactory.getLogger(CachingManager.class);
     private Map<String, CacheHolder> sharedCache;
     private StorageClient client;
-    private int hit;
-    private int miss;
+    private CacheStatistics statistics;
+    private NegativeCache negativeCache;
+    private CacheInvalidationBus invalidationBus;
+    private CacheLoadCoalescer loadCoalescer;
     private long calls;
 
     /**
@@ -45,6 +53,9 @@ public abstract class CachingManager {
     public CachingManager(StorageClient client, Map<String, CacheHolder> sharedCache) {
         this.client = client;
         this.sharedCache = sharedCache;
+        this.negativeCache = NegativeCache.getNegativeCache(sharedCache);
+        this.invalidationBus = CacheInvalidationBus.getBus(sharedCache);
+        this.loadCoalescer = CacheLoadCoalescer.getCoalescer(sharedCache);
     }
 
     /**
@@ -62,37 +73,274 @@ public abstract class CachingManager {
         String cacheKey = getCacheKey(keySpace, columnFamily, key);
 
 
+        CacheStatistics stats = getStatistics();
         if (sharedCache != null && sharedCache.containsKey(cacheKey)) {
             CacheHolder cacheHolder = sharedCache.get(cacheKey);
             if (cacheHolder != null) {
                 if (cacheHolder instanceof DeletedCacheMarker) {
+                  stats.negativeHit();
                   return null;
                 }
                 m = cacheHolder.get();
                 LOGGER.debug("Cache Hit {} {} {} ",new Object[]{cacheKey, cacheHolder, m});
-                hit++;
+                if (m != null) {
+                    stats.hit();
+                }
             }
         }
         if (m == null) {
+            if (negativeCache != null && negativeCache.isAbsent(cacheKey)) {
+                stats.absentHit();
+                return Maps.newHashMap();
+            }
+            m = load(keySpace, columnFamily, key, cacheKey, stats);
+        }
+        logStats(stats);
+        return m;
+    }
+
+    /**
+     * Load an object that is not cached, waiting for another session if it is
+     * already loading the same object.
+     */
+    private Map<String, Object> load(String keySpace, String columnFamily, String key,
+            String cacheKey, CacheStatistics stats) throws StorageClientException {
+        CacheLoadCoalescer.Load load = null;
+        if (loadCoalescer != null) {
+            load = loadCoalescer.join(cacheKey);
+            if (!load.isLoader()) {
+                Map<String, Object> m = awaitLoad(load, stats);
+                if (m != null) {
+                    return m;
+                }
+                load = null;
+            }
+        }
+        boolean loaded = false;
+        Map<String, Object> m = null;
+        try {
+            long lookupToken = 0;
+            if (negativeCache != null) {
+                lookupToken = negativeCache.startLookup(cacheKey);
+            }
+            long loadStart = System.nanoTime();
             m = client.get(keySpace, columnFamily, key);
-            miss++;
+            stats.miss(System.nanoTime() - loadStart);
+            loaded(cacheKey, m, lookupToken);
+            loaded = true;
+        } finally {
+            completeLoad(load, m, loaded);
+        }
+        return m;
+    }
+
+    /**
+     * @return the object loaded by another session, or null if the load did not
+     *         complete in time and this session must load the object itself.
+     */
+    private Map<String, Object> awaitLoad(CacheLoadCoalescer.Load load, CacheStatistics stats) {
+        long waitStart = System.nanoTime();
+        if (load.await()) {
+            stats.coalesced(System.nanoTime() - waitStart);
+            Map<String, Object> m = load.getRow();
+            if (m != null && m.isEmpty()) {
+                // dont share a row that the caller may fill in.
+                return Maps.newHashMap();
+            }
+            return m;
+        }
+        stats.coalesceTimeout();
+        LOGGER.debug("Gave up waiting for load of {} ", load);
+        return null;
+    }
+
+    private void completeLoad(CacheLoadCoalescer.Load load, Map<String, Object> m, boolean loaded) {
+        if (load != null) {
+            if (loaded) {
+                load.done(m);
+            } else {
+                load.failed();
+            }
+        }
+    }
+
+    /**
+     * Retrieve many objects, serving those that are cached from the cache and
+     * loading the others from the underlying storage in one call.
+     * @param keySpace the key space we're operating in.
+     * @param columnFamily the column family for the objects
+     * @param keys the object keys
+     * @return a map of key to object, in the order of the keys, with the same
+     *         value {@link #getCached(String, String, String)} would give for
+     *         each key.
+     * @throws StorageClientException
+     */
+    protected Map<String, Map<String, Object>> getCached(String keySpace, String columnFamily,
+            Collection<String> keys) throws StorageClientException {
+        Map<String, Map<String, Object>> result = Maps.newLinkedHashMap();
+        Map<String, Long> misses = Maps.newLinkedHashMap();
+        Map<String, CacheLoadCoalescer.Load> loads = Maps.newHashMap();
+        Map<String, CacheLoadCoalescer.Load> waits = Maps.newLinkedHashMap();
+        CacheStatistics stats = getStatistics();
+        for (String key : keys) {
+            if (result.containsKey(key)) {
+                continue;
+            }
+            String cacheKey = getCacheKey(keySpace, columnFamily, key);
             if (sharedCache != null) {
-                if (m != null) {
-                    LOGGER.debug("Cache Miss, Found Map {} {}", cacheKey, m);
+                CacheHolder cacheHolder = sharedCache.get(cacheKey);
+                if (cacheHolder instanceof DeletedCacheMarker) {
+                    stats.negativeHit();
+                    result.put(key, null);
+                    continue;
+                }
+                if (cacheHolder != null && cacheHolder.get() != null) {
+                    stats.hit();
+                    result.put(key, cacheHolder.get());
+                    continue;
+                }
+            }
+            if (negativeCache != null && negativeCache.isAbsent(cacheKey)) {
+                stats.absentHit();
+                result.put(key, Maps.<String, Object> newHashMap());
+                continue;
+            }
+            // keep the position of the key in the result.
+            result.put(key, null);
+            if (loadCoalescer != null) {
+                CacheLoadCoalescer.Load load = loadCoalescer.join(cacheKey);
+                if (!load.isLoader()) {
+                    waits.put(key, load);
+                    continue;
+                }
+                loads.put(key, load);
+            }
+            long lookupToken = 0;
+            if (negativeCache != null) {
+                lookupToken = negativeCache.startLookup(cacheKey);
+            }
+            misses.put(key, lookupToken);
+        }
+        if (!misses.isEmpty()) {
+            Map<String, Map<String, Object>> loaded = null;
+            try {
+                long loadStart = System.nanoTime();
+                loaded = client.get(keySpace, columnFamily, misses.keySet());
+                long loadTime = (System.nanoTime() - loadStart) / misses.size();
+                for (Entry<String, Long> miss : misses.entrySet()) {
+                    String key = miss.getKey();
+                    Map<String, Object> m = loaded.get(key);
+                    stats.miss(loadTime);
+                    loaded(getCacheKey(keySpace, columnFamily, key), m, miss.getValue());
+                    result.put(key, m);
+                }
+            } finally {
+                // the loads of this session are completed before waiting for others.
+                for (Entry<String, CacheLoadCoalescer.Load> e : loads.entrySet()) {
+                    completeLoad(e.getValue(), result.get(e.getKey()), loaded != null);
                 }
-                sharedCache.put(cacheKey, new CacheHolder(m));
             }
         }
+        for (Entry<String, CacheLoadCoalescer.Load> wait : waits.entrySet()) {
+            String key = wait.getKey();
+            Map<String, Object> m = awaitLoad(wait.getValue(), stats);
+            if (m == null) {
+                m = load(keySpace, columnFamily, key, getCacheKey(keySpace, columnFamily, key),
+                        stats);
+            }
+            result.put(key, m);
+        }
+        logStats(stats);
+        return result;
+    }
+
+    /**
+     * Retrieve a content structure object and the content object it refers to,
+     * loading both in one call to the underlying storage when neither is cached
+     * and the storage can.
+     * @param keySpace the key space we're operating in.
+     * @param columnFamily the column family for the objects
+     * @param key the key of the structure object
+     * @return a map containing the structure object, with the same value
+     *         {@link #getCached(String, String, String)} would give, and the
+     *         content object under its id if it was loaded with the structure.
+     * @throws StorageClientException
+     */
+    protected Map<String, Map<String, Object>> getCachedResolved(String keySpace,
+            String columnFamily, String key) throws StorageClientException {
+        Map<String, Map<String, Object>> result = Maps.newHashMap();
+        String cacheKey = getCacheKey(keySpace, columnFamily, key);
+        if (!(client instanceof RowResolver)
+                || (sharedCache != null && sharedCache.get(cacheKey) != null)
+                || (negativeCache != null && negativeCache.isAbsent(cacheKey))) {
+            result.put(key, getCached(keySpace, columnFamily, key));
+            return result;
+        }
+        CacheStatistics stats = getStatistics();
+        long lookupToken = 0;
+        if (negativeCache != null) {
+            lookupToken = negativeCache.startLookup(cacheKey);
+        }
+        long loadStart = System.nanoTime();
+        Map<String, Map<String, Object>> loaded = ((RowResolver) client).resolve(keySpace,
+                columnFamily, key);
+        stats.miss(System.nanoTime() - loadStart);
+        for (Entry<String, Map<String, Object>> e : loaded.entrySet()) {
+            if (key.equals(e.getKey())) {
+                loaded(cacheKey, e.getValue(), lookupToken);
+                result.put(key, e.getValue());
+            } else {
+                String referencedKey = getCacheKey(keySpace, columnFamily, e.getKey());
+                // whatever the cache already holds, including a deleted
+                // marker, is newer than the object just loaded.
+                if (sharedCache == null) {
+                    result.put(e.getKey(), e.getValue());
+                } else if (sharedCache.get(referencedKey) == null) {
+                    sharedCache.put(referencedKey, new CacheHolder(e.getValue()));
+                    result.put(e.getKey(), e.getValue());
+                }
+            }
+        }
+        logStats(stats);
+        return result;
+    }
+
+    private void loaded(String cacheKey, Map<String, Object> m, long lookupToken) {
+        if (negativeCache != null && m != null && m.isEmpty()) {
+            // not found, remember that for a while, but dont use space in the shared cache.
+            LOGGER.debug("Cache Miss, Not Found {} ", cacheKey);
+            negativeCache.markAbsent(cacheKey, lookupToken);
+        } else if (sharedCache != null) {
+            if (m != null) {
+                LOGGER.debug("Cache Miss, Found Map {} {}", cacheKey, m);
+            }
+            sharedCache.put(cacheKey, new CacheHolder(m));
+        }
+    }
+
+    private void logStats(CacheStatistics stats) {
         calls++;
         if ((calls % 1000) == 0) {
-            getLogger().info("Cache Stats Hits {} Misses {}  hit% {}", new Object[] { hit, miss,
-                    ((100 * hit) / (hit + miss)) });
+            getLogger().info("Cache Stats {} ", stats);
         }
-        return m;
     }
 
     protected abstract Logger getLogger();
 
+    /**
+     * @return the name of the cache used by this manager, used to aggregate
+     *         statistics over all instances of the manager, see
+     *         {@link CacheStatisticsService}.
+     */
+    protected abstract String getCacheName();
+
+    private CacheStatistics getStatistics() {
+        if (statistics == null) {
+            statistics = CacheStatistics.getStatistics(getCacheName(), sharedCache);
+        }
+        return statistics;
+    }
+
     /**
      * Combine the parameters into a key suitable for storage and lookup in the cache.
      * @param keySpace
@@ -100,7 +348,7 @@ public abstract class CachingManager {
      * @param key
      * @return the cache key
      */
-    private String getCacheKey(String keySpace, String columnFamily, String key) {
+    protected String getCacheKey(String keySpace, String columnFamily, String key) {
         return keySpace + ":" + columnFamily + ":" + key;
     }
 
@@ -112,7 +360,17 @@ public abstract class CachingManager {
      */
     protected void removeFromCache(String keySpace, String columnFamily, String key) {
         if (sharedCache != null) {
-            sharedCache.remove(getCacheKey(keySpace, columnFamily, key));
+            String cacheKey = getCacheKey(keySpace, columnFamily, key);
+            sharedCache.remove(cacheKey);
+            if (negativeCache != null) {
+                negativeCache.invalidate(cacheKey);
+            }
+            if (loadCoalescer != null) {
+                loadCoalescer.invalidate(cacheKey);
+            }
+            if (invalidationBus != null) {
+                invalidationBus.invalidate(cacheKey);
+            }
         }
     }
     
@@ -129,21 +387,32 @@ public abstract class CachingManager {
     protected void putCached(String keySpace, String columnFamily, String key,
             Map<String, Object> encodedProperties, boolean probablyNew)
             throws StorageClientException {
-        if (!wasDeleted(keySpace, columnFamily, key)) {
-            LOGGER.debug("Saving {} {} {} {} ", new Object[] { keySpace, columnFamily, key, encodedProperties});
-            client.insert(keySpace, columnFamily, key, encodedProperties, probablyNew);
-            removeFromCache(keySpace, columnFamily, key);
+        Map<String, Object> currentRow = null;
+        if (sharedCache != null) {
+            CacheHolder cacheHolder = sharedCache.get(getCacheKey(keySpace, columnFamily, key));
+            if (cacheHolder instanceof DeletedCacheMarker) {
+                return;
+            }
+            if (cacheHolder != null) {
+                // the cached row is passed down so the client can avoid reading the row before writing.
+                currentRow = cacheHolder.get();
+            }
         }
-    }
-
-    private boolean wasDeleted(String keySpace, String columnFamily, String key) {
-        return (sharedCache != null && sharedCache.get(getCacheKey(keySpace, columnFamily, key)) instanceof DeletedCacheMarker);
+        LOGGER.debug("Saving {} {} {} {} ", new Object[] { keySpace, columnFamily, key, encodedProperties});
+        client.insert(keySpace, columnFamily, key, encodedProperties, probablyNew, currentRow);
+        removeFromCache(keySpace, columnFamily, key);
     }
 
     protected void markDeleted(String keySpace, String columnFamily, String key) {
         if (sharedCache != null) {
           String cacheKey = getCacheKey(keySpace, columnFamily, key);
           sharedCache.put(cacheKey, new DeletedCacheMarker());
+          if (loadCoalescer != null) {
+              loadCoalescer.invalidate(cacheKey);
+          }
+          if (invalidationBus != null) {
+              invalidationBus.invalidate(cacheKey);
+          }
         }
     }
 
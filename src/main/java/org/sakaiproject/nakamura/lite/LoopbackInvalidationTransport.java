@@ -0,0 +1,71 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite;
+
+import org.sakaiproject.nakamura.api.lite.CacheInvalidationTransport;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A {@link CacheInvalidationTransport} that delivers batches directly, in
+ * process, to the other transports it has been connected to. Used to test
+ * invalidation between several caches in one JVM.
+ */
+public class LoopbackInvalidationTransport implements CacheInvalidationTransport {
+
+    private final CopyOnWriteArrayList<LoopbackInvalidationTransport> peers = new CopyOnWriteArrayList<LoopbackInvalidationTransport>();
+    private volatile Receiver receiver;
+    private volatile long batchesSent;
+    private volatile long hashesSent;
+
+    /**
+     * Connect this transport and another so that each receives what the
+     * other sends.
+     * 
+     * @param peer
+     */
+    public void connect(LoopbackInvalidationTransport peer) {
+        if (peer != this) {
+            peers.addIfAbsent(peer);
+            peer.peers.addIfAbsent(this);
+        }
+    }
+
+    public synchronized void send(int[] keyHashes) {
+        batchesSent++;
+        hashesSent += keyHashes.length;
+        for (LoopbackInvalidationTransport peer : peers) {
+            Receiver r = peer.receiver;
+            if (r != null) {
+                r.invalidate(keyHashes.clone());
+            }
+        }
+    }
+
+    public void setReceiver(Receiver receiver) {
+        this.receiver = receiver;
+    }
+
+    public long getBatchesSent() {
+        return batchesSent;
+    }
+
+    public long getHashesSent() {
+        return hashesSent;
+    }
+}
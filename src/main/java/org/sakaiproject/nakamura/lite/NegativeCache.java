@@ -0,0 +1,164 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite;
+
+import com.google.common.collect.MapMaker;
+
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.lite.storage.ConcurrentClockMap;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Remembers keys that were not found in storage, for a limited time, so that
+ * repeated lookups of rows that do not exist do not reach storage. Negative
+ * entries are kept apart from the shared cache so that they have their own
+ * size budget and do not displace real rows. There is one negative cache for
+ * each shared cache, shared by all the {@link CachingManager}s that use the
+ * shared cache.
+ * <p>
+ * An entry is only recorded if no write has invalidated keys in the same
+ * stripe since the lookup started, which stops a lookup that raced with a
+ * write from recording a row as absent after it was written. Writes made by
+ * other JVMs are only seen once the entry has expired.
+ * </p>
+ */
+public class NegativeCache {
+
+    private static final int STRIPES = 64;
+    private static final ConcurrentMap<Map<String, CacheHolder>, NegativeCache> NEGATIVE_CACHES = new MapMaker()
+            .weakKeys().makeMap();
+    private static volatile int defaultMaxEntries = 10000;
+    private static volatile long defaultTtl = 60000L;
+
+    private final ConcurrentClockMap<String, Long> absent;
+    private final AtomicLongArray generations = new AtomicLongArray(STRIPES);
+    private final long ttl;
+
+    NegativeCache(int maxEntries, long ttl) {
+        this.absent = new ConcurrentClockMap<String, Long>(maxEntries);
+        this.ttl = ttl;
+    }
+
+    /**
+     * Set the size and time to live of negative caches created from now on.
+     * 
+     * @param maxEntries
+     *            the maximum number of absent keys remembered for each shared
+     *            cache.
+     * @param ttl
+     *            how long a key is remembered as absent, in ms, 0 to disable
+     *            negative caching.
+     */
+    public static void configure(int maxEntries, long ttl) {
+        defaultMaxEntries = maxEntries;
+        defaultTtl = ttl;
+    }
+
+    /**
+     * @param sharedCache
+     * @return the negative cache for the shared cache, or null if there is no
+     *         shared cache or negative caching is disabled.
+     */
+    static NegativeCache getNegativeCache(Map<String, CacheHolder> sharedCache) {
+        if (sharedCache == null || defaultTtl <= 0 || defaultMaxEntries <= 0) {
+            return null;
+        }
+        NegativeCache negativeCache = NEGATIVE_CACHES.get(sharedCache);
+        if (negativeCache == null) {
+            negativeCache = new NegativeCache(defaultMaxEntries, defaultTtl);
+            NegativeCache existing = NEGATIVE_CACHES.putIfAbsent(sharedCache, negativeCache);
+            if (existing != null) {
+                negativeCache = existing;
+            }
+        }
+        return negativeCache;
+    }
+
+    /**
+     * @param key
+     * @return true if the key is known to be absent from storage.
+     */
+    boolean isAbsent(String key) {
+        Long expires = absent.get(key);
+        return expires != null && expires > System.currentTimeMillis();
+    }
+
+    /**
+     * @param key
+     * @return a token to pass to {@link #markAbsent(String, long)}, taken
+     *         before the key is looked up in storage.
+     */
+    long startLookup(String key) {
+        return generations.get(stripe(key));
+    }
+
+    /**
+     * Record that the key was not found, unless it has been invalidated since
+     * the lookup started.
+     * 
+     * @param key
+     * @param lookupToken
+     *            from {@link #startLookup(String)}
+     */
+    void markAbsent(String key, long lookupToken) {
+        if (generations.get(stripe(key)) == lookupToken) {
+            absent.put(key, System.currentTimeMillis() + ttl);
+        }
+    }
+
+    /**
+     * The key may now exist.
+     * 
+     * @param key
+     */
+    void invalidate(String key) {
+        generations.incrementAndGet(stripe(key));
+        absent.remove(key);
+    }
+
+    /**
+     * Keys with these hashes may now exist, used for invalidations from other
+     * nodes.
+     * 
+     * @param keyHashes
+     */
+    void invalidate(Set<Integer> keyHashes) {
+        for (Integer h : keyHashes) {
+            generations.incrementAndGet(stripe(h));
+        }
+        absent.removeByHash(keyHashes);
+    }
+
+    int size() {
+        return absent.size();
+    }
+
+    private int stripe(String key) {
+        return stripe(key.hashCode());
+    }
+
+    private int stripe(int h) {
+        h ^= (h >>> 16);
+        return h & (STRIPES - 1);
+    }
+
+}
@@ -33,8 +33,10 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.PrincipalValidatorResolv
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.lite.accesscontrol.AuthenticatorImpl;
 import org.sakaiproject.nakamura.lite.authorizable.AuthorizableActivator;
+import org.sakaiproject.nakamura.lite.content.ChildNameIndexMigrator;
 import org.sakaiproject.nakamura.lite.storage.StorageClient;
 import org.sakaiproject.nakamura.lite.storage.StorageClientPool;
+import org.sakaiproject.nakamura.lite.storage.jdbc.migrate.MigrationLogger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -73,11 +75,13 @@ public class RepositoryImpl implements Repository {
     public void activate(Map<String, Object> properties) throws ClientPoolException,
             StorageClientException, AccessDeniedException {
         StorageClient client = null;
+        boolean newStore = false;
         try {
             client = clientPool.getClient();
             AuthorizableActivator authorizableActivator = new AuthorizableActivator(client,
                     configuration);
             authorizableActivator.setup();
+            newStore = authorizableActivator.isNewStore();
         } finally {
             if ( client != null ) {
               client.close();
@@ -85,6 +89,11 @@ public class RepositoryImpl implements Repository {
                 LOGGER.error("Failed to actvate repository, probably failed to create default users");
             }
         }
+        if (newStore) {
+            // every row of a new store is indexed as it is written, there is
+            // nothing for the reindex to do.
+            MigrationLogger.logNewStore(this, ChildNameIndexMigrator.class);
+        }
     }
 
     @Deactivate
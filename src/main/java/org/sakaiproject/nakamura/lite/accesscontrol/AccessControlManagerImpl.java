@@ -20,6 +20,7 @@ package org.sakaiproject.nakamura.lite.accesscontrol;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -30,6 +31,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang.StringUtils;
 import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.api.lite.CacheStatisticsService;
 import org.sakaiproject.nakamura.api.lite.Configuration;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
@@ -48,10 +50,12 @@ import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.lite.CachingManager;
+import org.sakaiproject.nakamura.lite.authorizable.AuthorizableManagerImpl;
 import org.sakaiproject.nakamura.lite.storage.StorageClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -60,16 +64,34 @@ import com.google.common.collect.Sets;
 public class AccessControlManagerImpl extends CachingManager implements AccessControlManager {
 
     private static final String _SECRET_KEY = "_secretKey";
-    private static final String _PATH = "_aclPath";
-    private static final String _OBJECT_TYPE = "_aclType";
+    static final String _PATH = "_aclPath";
+    static final String _OBJECT_TYPE = "_aclType";
     public static final String _KEY = "_aclKey";
+    /**
+     * The path of the nearest ancestor that carries an ACL.
+     */
+    static final String _PARENT = "_aclParent";
+    /**
+     * The epoch of the nearest ancestor when {@link #_PARENT} was set.
+     */
+    static final String _PARENT_EPOCH = "_aclParentEpoch";
+    /**
+     * Changes when an ACL is created below this one, which invalidates the
+     * {@link #_PARENT} pointers that skip over the new ACL.
+     */
+    private static final String _EPOCH = "_aclEpoch";
     private static final Logger LOGGER = LoggerFactory.getLogger(AccessControlManagerImpl.class);
-    private static final Set<String> PROTECTED_PROPERTIES = ImmutableSet.of(_SECRET_KEY);
-    private static final Set<String> READ_ONLY_PROPERTIES = ImmutableSet.of(_SECRET_KEY, _PATH, _OBJECT_TYPE, _KEY);
+    private static final Set<String> PROTECTED_PROPERTIES = ImmutableSet.of(_SECRET_KEY, _PARENT, _PARENT_EPOCH, _EPOCH);
+    private static final Set<String> READ_ONLY_PROPERTIES = ImmutableSet.of(_SECRET_KEY, _PATH, _OBJECT_TYPE, _KEY, _PARENT, _PARENT_EPOCH, _EPOCH);
     private User user;
     private String keySpace;
     private String aclColumnFamily;
+    /**
+     * Permissions that depend on principal tokens, which are only valid for the
+     * current request.
+     */
     private Map<String, int[]> cache = new ConcurrentHashMap<String, int[]>();
+    private CompiledPermissionCache permissionCache;
     private boolean closed;
     private StoreListener storeListener;
     private PrincipalTokenValidator principalTokenValidator;
@@ -77,6 +99,7 @@ public class AccessControlManagerImpl extends CachingManager implements AccessCo
     private SecureRandom secureRandom;
     private AuthorizableManager authorizableManager;
     private Map<String, String[]> principalCache = new ConcurrentHashMap<String, String[]>();
+    private Map<String, String> fingerprintCache = new ConcurrentHashMap<String, String>();
     private ThreadLocal<String> principalRecursionLock = new ThreadLocal<String>();
     private ThreadBoundStackReferenceCounter compilingPermissions = new ThreadBoundStackReferenceCounter();
 
@@ -90,6 +113,7 @@ public class AccessControlManagerImpl extends CachingManager implements AccessCo
         this.storeListener = storeListener;
         principalTokenValidator = new PrincipalTokenValidator(principalValidatorResolver);
         secureRandom = new SecureRandom();
+        permissionCache = CompiledPermissionCache.getCache(sharedCache);
     }
 
     public Map<String, Object> getAcl(String objectType, String objectPath)
@@ -244,8 +268,32 @@ public class AccessControlManagerImpl extends CachingManager implements AccessCo
                 }
             }
         }
+        // point to the nearest ancestor with an ACL, so that compiling
+        // permissions can skip the ancestors in between.
+        boolean newAcl = (currentAcl == null || currentAcl.size() == 0);
+        if (newAcl || !currentAcl.containsKey(_EPOCH)) {
+            modifications.put(_EPOCH, newAclEpoch());
+        }
+        String[] aclParent = findAclParent(objectType, objectPath);
+        if (aclParent != null) {
+            if (newAcl) {
+                // pointers from below that skip over this ACL are now wrong.
+                aclParent[1] = newAclEpoch();
+                putCached(keySpace, aclColumnFamily, getAclKey(objectType, aclParent[0]),
+                        ImmutableMap.of(_EPOCH, (Object) aclParent[1]), false);
+            }
+            modifications.put(_PARENT, aclParent[0]);
+            modifications.put(_PARENT_EPOCH, aclParent[1]);
+        } else if (currentAcl.containsKey(_PARENT)) {
+            modifications.put(_PARENT, null);
+            modifications.put(_PARENT_EPOCH, null);
+        }
         LOGGER.debug("Updating ACL {} {} ", key, modifications);
-        putCached(keySpace, aclColumnFamily, key, modifications, (currentAcl == null || currentAcl.size() == 0));
+        putCached(keySpace, aclColumnFamily, key, modifications, newAcl);
+        if (permissionCache != null) {
+            permissionCache.invalidate(key);
+        }
+        cache.clear();
         storeListener.onUpdate(objectType, objectPath,  getCurrentUserId(), false, null, "op:acl");
     }
     
@@ -290,28 +338,213 @@ public class AccessControlManagerImpl extends CachingManager implements AccessCo
         if (Security.ZONE_AUTHORIZABLES.equals(objectType) && user.getId().equals(objectPath)) {
             return;
         }
-        int[] privileges = compilePermission(user, objectType, objectPath, 0);
+        int[] privileges = compilePermission(user, objectType, objectPath, 0, null);
         if (!((permission.getPermission() & privileges[0]) == permission.getPermission())) {
             throw new AccessDeniedException(objectType, objectPath, permission.getName(),
                     user.getId());
         }
     }
 
+    public String[] filterPermitted(String objectType, String[] objectPaths,
+            Permission permission) throws StorageClientException {
+        if (user.isAdmin() || compilingPermissions.isSet()) {
+            return objectPaths;
+        }
+        PermissionBatch batch = new PermissionBatch();
+        // read the ACLs of the objects and their ancestors that are not
+        // compiled already in one call, siblings share their ancestors.
+        String fingerprint = null;
+        if (permissionCache != null) {
+            fingerprint = getPrincipalFingerprint(user);
+            batch.compileToken = permissionCache.startCompile();
+        }
+        Set<String> aclKeys = Sets.newLinkedHashSet();
+        for (String objectPath : objectPaths) {
+            String path = objectPath;
+            for (int recursion = 0; recursion <= 20; recursion++) {
+                String key = getAclKey(objectType, path);
+                if ((fingerprint != null && permissionCache.get(fingerprint, key) != null)
+                        || !aclKeys.add(key)) {
+                    break;
+                }
+                if (permissionCache != null) {
+                    permissionCache.dependsOn(getCacheKey(keySpace, aclColumnFamily, key)
+                            .hashCode(), key);
+                }
+                if (StorageClientUtils.isRoot(path)) {
+                    break;
+                }
+                path = StorageClientUtils.getParentObjectPath(path);
+            }
+        }
+        batch.acls = getCached(keySpace, aclColumnFamily, aclKeys);
+        List<String> permitted = Lists.newArrayListWithCapacity(objectPaths.length);
+        for (String objectPath : objectPaths) {
+            if (Security.ZONE_AUTHORIZABLES.equals(objectType) && user.getId().equals(objectPath)) {
+                permitted.add(objectPath);
+                continue;
+            }
+            int[] privileges = compilePermission(user, objectType, objectPath, 0, batch);
+            if ((permission.getPermission() & privileges[0]) == permission.getPermission()) {
+                permitted.add(objectPath);
+            }
+        }
+        LOGGER.debug("Permitted {} of {} objects, compiled {} ", new Object[] {
+                permitted.size(), objectPaths.length, batch.compiled.size() });
+        return permitted.toArray(new String[permitted.size()]);
+    }
+
 
     private String getAclKey(String objectType, String objectPath) {
         return objectType + ";" + objectPath;
     }
 
+    private String newAclEpoch() {
+        return Long.toString(secureRandom.nextLong(), 36);
+    }
+
+    private String getAclEpoch(Map<String, Object> acl) {
+        // ACLs stored before epochs existed share the empty epoch.
+        Object epoch = acl.get(_EPOCH);
+        return (epoch == null) ? "" : String.valueOf(epoch);
+    }
+
+    /**
+     * Find the nearest ancestor of an object that carries an ACL, looking no
+     * further than compiling permissions would.
+     * 
+     * @param objectType
+     * @param objectPath
+     * @return the path and epoch of the ancestor, or null if there is none.
+     * @throws StorageClientException
+     */
+    String[] findAclParent(String objectType, String objectPath) throws StorageClientException {
+        String path = objectPath;
+        for (int recursion = 0; recursion < 20 && !StorageClientUtils.isRoot(path); recursion++) {
+            path = StorageClientUtils.getParentObjectPath(path);
+            Map<String, Object> acl = getCached(keySpace, aclColumnFamily,
+                    getAclKey(objectType, path));
+            if (acl != null && acl.size() > 0) {
+                return new String[] { path, getAclEpoch(acl) };
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Follow the pointer an ACL keeps to its nearest ancestor with an ACL, if
+     * the pointer is still valid.
+     * 
+     * @return the number of ancestors without an ACL that can be skipped, 0 if
+     *         there is no valid pointer.
+     * @throws StorageClientException
+     */
+    private int getAncestorsWithoutAcl(String objectType, String objectPath,
+            Map<String, Object> acl, int maxLevels, PermissionBatch batch)
+            throws StorageClientException {
+        Object aclParent = acl.get(_PARENT);
+        if (!(aclParent instanceof String)) {
+            return 0;
+        }
+        List<String> skipped = Lists.newArrayList();
+        String path = StorageClientUtils.getParentObjectPath(objectPath);
+        while (!aclParent.equals(path)) {
+            if (skipped.size() >= maxLevels) {
+                return 0;
+            }
+            if (StorageClientUtils.isRoot(path)) {
+                repointAclParent(objectType, objectPath);
+                return 0;
+            }
+            skipped.add(getAclKey(objectType, path));
+            path = StorageClientUtils.getParentObjectPath(path);
+        }
+        if (skipped.size() == 0) {
+            return 0;
+        }
+        if (permissionCache != null) {
+            // an ACL created on a skipped object must still invalidate.
+            for (String key : skipped) {
+                permissionCache.dependsOn(getCacheKey(keySpace, aclColumnFamily, key).hashCode(), key);
+            }
+        }
+        String parentKey = getAclKey(objectType, path);
+        Map<String, Object> parentAcl = null;
+        if (batch != null && batch.acls.containsKey(parentKey)) {
+            parentAcl = batch.acls.get(parentKey);
+        } else {
+            parentAcl = getCached(keySpace, aclColumnFamily, parentKey);
+        }
+        if (parentAcl == null || parentAcl.size() == 0
+                || !getAclEpoch(parentAcl).equals(acl.get(_PARENT_EPOCH))) {
+            repointAclParent(objectType, objectPath);
+            return 0;
+        }
+        return skipped.size();
+    }
+
+    /**
+     * Point an ACL whose pointer is no longer valid at its nearest ancestor
+     * with an ACL again, so that later compiles can skip. A new ACL changes
+     * the epoch of the ACL above it, which invalidates every pointer to that
+     * ACL, so each is rewritten the first time a compile finds it stale. The
+     * pointer is only a shortcut, failing to rewrite it is not an error.
+     */
+    private void repointAclParent(String objectType, String objectPath) {
+        try {
+            Map<String, Object> modifications = Maps.newHashMap();
+            String[] aclParent = findAclParent(objectType, objectPath);
+            if (aclParent != null) {
+                modifications.put(_PARENT, aclParent[0]);
+                modifications.put(_PARENT_EPOCH, aclParent[1]);
+            } else {
+                modifications.put(_PARENT, null);
+                modifications.put(_PARENT_EPOCH, null);
+            }
+            LOGGER.debug("Repointing ACL {} {} ", objectPath, modifications);
+            putCached(keySpace, aclColumnFamily, getAclKey(objectType, objectPath),
+                    modifications, false);
+        } catch (StorageClientException e) {
+            LOGGER.debug("Unable to repoint ACL {} {} ", objectPath, e.getMessage());
+        }
+    }
+
     public void setRequestPrincipalResolver(PrincipalTokenResolver principalTokenResolver ) {
         this.principalTokenResolver = principalTokenResolver;
+        cache.clear();
     }
     public void clearRequestPrincipalResolver() {
         principalTokenResolver = null;
+        cache.clear();
+    }
+
+    /**
+     * The ACLs read, and permissions compiled, while checking many objects at
+     * once.
+     */
+    private static final class PermissionBatch {
+        private Map<String, Map<String, Object>> acls;
+        private Map<String, int[]> compiled = Maps.newHashMap();
+        private long compileToken;
     }
 
     private int[] compilePermission(Authorizable authorizable, String objectType,
-            String objectPath, int recursion) throws StorageClientException {
+            String objectPath, int recursion, PermissionBatch batch) throws StorageClientException {
         String key = getAclKey(objectType, objectPath);
+        if (batch != null && batch.compiled.containsKey(key)) {
+            return batch.compiled.get(key);
+        }
+        String fingerprint = null;
+        long compileToken = 0;
+        if (permissionCache != null) {
+            fingerprint = getPrincipalFingerprint(authorizable);
+            int[] compiled = permissionCache.get(fingerprint, key);
+            if (compiled != null) {
+                return compiled;
+            }
+            // a batch read its ACLs before this compile started.
+            compileToken = (batch != null) ? batch.compileToken : permissionCache.startCompile();
+        }
         if (user.getId().equals(authorizable.getId()) && cache.containsKey(key)) {
             return cache.get(key);
         } else {
@@ -320,11 +553,20 @@ public class AccessControlManagerImpl extends CachingManager implements AccessCo
         try {
             // we need to allow the permissions compile to bypass access control as it needs to see everything.
             compilingPermissions.inc();
-            Map<String, Object> acl = getCached(keySpace, aclColumnFamily, key);
+            if (permissionCache != null) {
+                permissionCache.dependsOn(getCacheKey(keySpace, aclColumnFamily, key).hashCode(), key);
+            }
+            Map<String, Object> acl = null;
+            if (batch != null && batch.acls.containsKey(key)) {
+                acl = batch.acls.get(key);
+            } else {
+                acl = getCached(keySpace, aclColumnFamily, key);
+            }
             LOGGER.debug("ACL on {} is {} ", key, acl);
     
             int grants = 0;
             int denies = 0;
+            boolean tokenDependent = false;
             if (acl != null) {
     
                 {
@@ -345,6 +587,13 @@ public class AccessControlManagerImpl extends CachingManager implements AccessCo
                 /*
                  * Deal with any proxy principals, these override groups 
                  */
+                for (String k : acl.keySet()) {
+                    if (k.startsWith(DYNAMIC_PRINCIPAL_STEM)) {
+                        // the result depends on the tokens of the request.
+                        tokenDependent = true;
+                        break;
+                    }
+                }
                 if (principalTokenResolver != null) {
                     Set<String> inspected = Sets.newHashSet();
                     if ( acl.containsKey(_SECRET_KEY)) {
@@ -439,8 +688,15 @@ public class AccessControlManagerImpl extends CachingManager implements AccessCo
                 if (recursion < 20 && !StorageClientUtils.isRoot(objectPath)
                         && (granted != 0xffff || denied != 0xffff)) {
                     recursion++;
+                    String parentPath = StorageClientUtils.getParentObjectPath(objectPath);
+                    int skip = getAncestorsWithoutAcl(objectType, objectPath, acl,
+                            20 - recursion, batch);
+                    for (int i = 0; i < skip; i++) {
+                        parentPath = StorageClientUtils.getParentObjectPath(parentPath);
+                        recursion++;
+                    }
                     int[] parentPriv = compilePermission(authorizable, objectType,
-                            StorageClientUtils.getParentObjectPath(objectPath), recursion);
+                            parentPath, recursion, batch);
                     if (parentPriv != null) {
                         /*
                          * Grant permission not denied at this level parentPriv[0]
@@ -455,6 +711,7 @@ public class AccessControlManagerImpl extends CachingManager implements AccessCo
                          * Deny permissions not granted at this level
                          */
                         denied = denies | (parentPriv[1] & ~grants);
+                        tokenDependent = tokenDependent || parentPriv[2] != 0;
                     }
                 }
                 // If not denied all users and groups can read other users and
@@ -471,20 +728,29 @@ public class AccessControlManagerImpl extends CachingManager implements AccessCo
                 LOGGER.debug("Permissions on {} for {} is {} {} ",new
                    Object[]{key,user.getId(),granted,denied});
                 /*
-                 * Keep a cached copy
+                 * Keep a cached copy, the third element marks permissions that
+                 * depend on principal tokens and so cant be shared.
                  */
-                if (user.getId().equals(authorizable.getId())) {
-                    cache.put(key, new int[] { granted, denied });
+                int[] permissions = new int[] { granted, denied, tokenDependent ? 1 : 0 };
+                if (tokenDependent) {
+                    if (user.getId().equals(authorizable.getId())) {
+                        cache.put(key, permissions);
+                    }
+                } else if (permissionCache != null) {
+                    permissionCache.put(fingerprint, key, permissions, compileToken);
+                }
+                if (batch != null) {
+                    batch.compiled.put(key, permissions);
                 }
-                return new int[] { granted, denied };
+                return permissions;
     
             }
             if (Security.ZONE_AUTHORIZABLES.equals(objectType)
                     || Security.ZONE_CONTENT.equals(objectType)) {
                 // unless explicitly denied all users can read other users.
-                return new int[] { Permissions.CAN_READ.getPermission(), 0 };
+                return new int[] { Permissions.CAN_READ.getPermission(), 0, 0 };
             }
-            return new int[] { 0, 0 };
+            return new int[] { 0, 0, 0 };
         } finally {
             // decrement the counter from here.
             compilingPermissions.dec();
@@ -503,8 +769,22 @@ public class AccessControlManagerImpl extends CachingManager implements AccessCo
             if ( principalRecursionLock.get() == null ) {
                 principalRecursionLock.set("l");
                 try {
-                    for ( Iterator<Group> gi = authorizable.memberOf(authorizableManager); gi.hasNext(); ) {
-                        memberOfSet.add(gi.next().getId());
+                    String[] closure = null;
+                    if (authorizableManager instanceof AuthorizableManagerImpl) {
+                        // the transitive membership is indexed, avoiding a read per group.
+                        try {
+                            closure = ((AuthorizableManagerImpl) authorizableManager)
+                                    .getMembershipClosure(authorizable);
+                        } catch (StorageClientException e) {
+                            LOGGER.warn(e.getMessage(), e);
+                        }
+                    }
+                    if (closure != null) {
+                        Collections.addAll(memberOfSet, closure);
+                    } else {
+                        for ( Iterator<Group> gi = authorizable.memberOf(authorizableManager); gi.hasNext(); ) {
+                            memberOfSet.add(gi.next().getId());
+                        }
                     }
                 } finally {
                     principalRecursionLock.set(null);
@@ -518,6 +798,27 @@ public class AccessControlManagerImpl extends CachingManager implements AccessCo
     }
 
 
+    /**
+     * @param authorizable
+     * @return a fingerprint of the principals permissions are compiled for,
+     *         used to share compiled permissions between sessions.
+     */
+    private String getPrincipalFingerprint(Authorizable authorizable) {
+        String k = authorizable.getId();
+        String fingerprint = fingerprintCache.get(k);
+        if (fingerprint == null) {
+            Set<String> principals = Sets.newTreeSet();
+            for (String principal : getPrincipals(authorizable)) {
+                principals.add(principal);
+            }
+            // the id is a principal, and determines if everyone applies.
+            fingerprint = StorageClientUtils.insecureHash(k + ";"
+                    + StringUtils.join(principals, ";"));
+            fingerprintCache.put(k, fingerprint);
+        }
+        return fingerprint;
+    }
+
     private int toInt(Object object) {
         if ( object instanceof Integer ) {
             return ((Integer) object).intValue();
@@ -554,7 +855,7 @@ public class AccessControlManagerImpl extends CachingManager implements AccessCo
             return true;
         }
         try {
-            int[] privileges = compilePermission(authorizable, objectType, objectPath, 0);
+            int[] privileges = compilePermission(authorizable, objectType, objectPath, 0, null);
             if (!((permission.getPermission() & privileges[0]) == permission.getPermission())) {
                 return false;
             }
@@ -566,7 +867,7 @@ public class AccessControlManagerImpl extends CachingManager implements AccessCo
     }
 
     public Permission[] getPermissions(String objectType, String path) throws StorageClientException {
-        int[] perms = compilePermission(this.user, objectType, path, 0);
+        int[] perms = compilePermission(this.user, objectType, path, 0, null);
         List<Permission> permissions = Lists.newArrayList();
         for (Permission p : Permissions.PRIMARY_PERMISSIONS) {
             if ((perms[0] & p.getPermission()) == p.getPermission()) {
@@ -692,6 +993,11 @@ public class AccessControlManagerImpl extends CachingManager implements AccessCo
         return LOGGER;
     }
 
+    @Override
+    protected String getCacheName() {
+        return CacheStatisticsService.ACCESS_CONTROL_CACHE;
+    }
+
     public void setAuthorizableManager(AuthorizableManager authorizableManager) {
         this.authorizableManager = authorizableManager;
     }
@@ -0,0 +1,126 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.accesscontrol;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.PropertyMigrator;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Sets the pointer from each ACL to the nearest ancestor that carries an ACL,
+ * for ACLs stored before the pointers were maintained. ACLs without a valid
+ * pointer still work, compiling permissions just visits every ancestor.
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = PropertyMigrator.class)
+public class AclParentMigrator implements PropertyMigrator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AclParentMigrator.class);
+
+    @Reference
+    private Repository repository;
+
+    private Session session;
+
+    public AclParentMigrator() {
+    }
+
+    AclParentMigrator(Repository repository) {
+        this.repository = repository;
+    }
+
+    @Deactivate
+    public synchronized void deactivate(Map<String, Object> properties) {
+        if (session != null) {
+            try {
+                session.logout();
+            } catch (ClientPoolException e) {
+                LOGGER.error("Error logging out of admin session", e);
+            }
+            session = null;
+        }
+    }
+
+    public synchronized boolean migrate(String rowID, Map<String, Object> properties) {
+        Object objectType = properties.get(AccessControlManagerImpl._OBJECT_TYPE);
+        Object objectPath = properties.get(AccessControlManagerImpl._PATH);
+        if (!(objectType instanceof String) || !(objectPath instanceof String)) {
+            return false;
+        }
+        try {
+            if (session == null) {
+                session = repository.loginAdministrative();
+            }
+            String[] aclParent = ((AccessControlManagerImpl) session.getAccessControlManager())
+                    .findAclParent((String) objectType, (String) objectPath);
+            String[] current = new String[] {
+                    (String) properties.get(AccessControlManagerImpl._PARENT),
+                    (String) properties.get(AccessControlManagerImpl._PARENT_EPOCH) };
+            if (aclParent == null) {
+                if (current[0] == null) {
+                    return false;
+                }
+                aclParent = new String[2];
+            } else if (Arrays.equals(aclParent, current)) {
+                return false;
+            }
+            properties.put(AccessControlManagerImpl._PARENT, aclParent[0]);
+            properties.put(AccessControlManagerImpl._PARENT_EPOCH, aclParent[1]);
+            return true;
+        } catch (StorageClientException e) {
+            LOGGER.warn("Failed to find the parent ACL of {} {} ", objectPath, e.getMessage());
+        } catch (AccessDeniedException e) {
+            LOGGER.warn("Failed to find the parent ACL of {} {} ", objectPath, e.getMessage());
+        }
+        return false;
+    }
+
+    public boolean verify(String rowID, Map<String, Object> beforeProperties,
+            Map<String, Object> afterProperties) {
+        // only the pointer may change.
+        for (String k : afterProperties.keySet()) {
+            if (AccessControlManagerImpl._PARENT.equals(k)
+                    || AccessControlManagerImpl._PARENT_EPOCH.equals(k)) {
+                continue;
+            }
+            Object after = afterProperties.get(k);
+            if (after == null ? beforeProperties.get(k) != null : !after.equals(beforeProperties
+                    .get(k))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public Integer getOrder() {
+        return null;
+    }
+
+}
@@ -0,0 +1,249 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.accesscontrol;
+
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Sets;
+
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.lite.storage.ConcurrentClockMap;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds compiled permissions, the granted and denied bitmaps of a set of
+ * principals on an object, for all sessions. There is one cache for each
+ * shared ACL cache, so that a new session does not recompile permissions by
+ * walking the ACLs of every ancestor of the objects it checks.
+ * <p>
+ * Entries are keyed by a fingerprint of the principals and the ACL key of the
+ * object, and indexed in ACL key order, so changing the ACL of an object
+ * removes the entries for the object and all its descendants without looking
+ * at any others. To apply invalidations received from other nodes, which only
+ * carry the hash of the ACL row cache key, the cache remembers the ACL rows
+ * each entry was compiled from, all the ACL keys with a hash are invalidated.
+ * A compile that races with an invalidation does not record its result.
+ * </p>
+ */
+public class CompiledPermissionCache {
+
+    private static final ConcurrentMap<Map<String, CacheHolder>, CompiledPermissionCache> CACHES = new MapMaker()
+            .weakKeys().makeMap();
+    private static volatile int defaultMaxEntries = 10000;
+
+    private final ConcurrentClockMap<String, int[]> compiled;
+    private final ConcurrentSkipListMap<String, Set<String>> fingerprints = new ConcurrentSkipListMap<String, Set<String>>();
+    private final ConcurrentMap<Integer, Set<String>> dependencies = new ConcurrentHashMap<Integer, Set<String>>();
+    private final AtomicInteger indexed = new AtomicInteger();
+    private final int maxIndexed;
+    private final AtomicLong generation = new AtomicLong();
+
+    CompiledPermissionCache(int maxEntries) {
+        this.compiled = new ConcurrentClockMap<String, int[]>(maxEntries);
+        this.maxIndexed = maxEntries * 4;
+    }
+
+    /**
+     * Set the size of compiled permission caches created from now on.
+     * 
+     * @param maxEntries
+     *            the maximum number of compiled permissions held for each
+     *            shared cache, 0 to disable the cache.
+     */
+    public static void configure(int maxEntries) {
+        defaultMaxEntries = maxEntries;
+    }
+
+    /**
+     * @param sharedCache
+     * @return the compiled permission cache for the shared ACL cache, a new
+     *         cache if there is no shared cache, or null if the cache is
+     *         disabled.
+     */
+    static CompiledPermissionCache getCache(Map<String, CacheHolder> sharedCache) {
+        if (defaultMaxEntries <= 0) {
+            return null;
+        }
+        if (sharedCache == null) {
+            return new CompiledPermissionCache(defaultMaxEntries);
+        }
+        CompiledPermissionCache cache = CACHES.get(sharedCache);
+        if (cache == null) {
+            cache = new CompiledPermissionCache(defaultMaxEntries);
+            CompiledPermissionCache existing = CACHES.putIfAbsent(sharedCache, cache);
+            if (existing != null) {
+                cache = existing;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Remove the compiled permissions that depend on any of the cache keys.
+     * 
+     * @param sharedCache
+     *            the shared cache the keys were invalidated in.
+     * @param keyHashes
+     *            the hashes of the invalidated cache keys.
+     */
+    public static void invalidate(Map<String, CacheHolder> sharedCache, Set<Integer> keyHashes) {
+        CompiledPermissionCache cache = CACHES.get(sharedCache);
+        if (cache != null) {
+            cache.invalidate(keyHashes);
+        }
+    }
+
+    /**
+     * @param fingerprint
+     *            of the principals.
+     * @param aclKey
+     * @return the compiled permissions, or null if not cached.
+     */
+    int[] get(String fingerprint, String aclKey) {
+        return compiled.get(fingerprint + ";" + aclKey);
+    }
+
+    /**
+     * @return a token to pass to {@link #put(String, String, int[], long)},
+     *         taken before the ACLs are read.
+     */
+    long startCompile() {
+        return generation.get();
+    }
+
+    /**
+     * Record that compiled permissions on the object depend on an ACL row.
+     * 
+     * @param cacheKeyHash
+     *            the hash of the cache key of the ACL row.
+     * @param aclKey
+     *            the ACL key of the object.
+     */
+    void dependsOn(int cacheKeyHash, String aclKey) {
+        if (index(dependencies, cacheKeyHash, aclKey)) {
+            checkIndexed();
+        }
+    }
+
+    private <K> boolean index(ConcurrentMap<K, Set<String>> index, K key, String value) {
+        Set<String> values = index.get(key);
+        if (values == null) {
+            values = Sets.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            Set<String> existing = index.putIfAbsent(key, values);
+            if (existing != null) {
+                values = existing;
+            }
+        }
+        if (values.add(value)) {
+            indexed.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    private void checkIndexed() {
+        if (indexed.get() > maxIndexed) {
+            // evicted entries and forgotten dependencies stay indexed, and
+            // forgetting a dependency would leave entries that cant be
+            // invalidated, so start again.
+            generation.incrementAndGet();
+            compiled.clear();
+            fingerprints.clear();
+            dependencies.clear();
+            indexed.set(0);
+        }
+    }
+
+    /**
+     * Record compiled permissions, unless an ACL has changed since the
+     * compile started.
+     * 
+     * @param fingerprint
+     * @param aclKey
+     * @param permissions
+     * @param compileToken
+     *            from {@link #startCompile()}
+     */
+    void put(String fingerprint, String aclKey, int[] permissions, long compileToken) {
+        if (generation.get() != compileToken) {
+            return;
+        }
+        String key = fingerprint + ";" + aclKey;
+        // indexed first, so an invalidation that misses the index has already
+        // moved the generation on.
+        if (index(fingerprints, aclKey, fingerprint)) {
+            checkIndexed();
+        }
+        compiled.put(key, permissions);
+        if (generation.get() != compileToken) {
+            compiled.remove(key);
+        }
+    }
+
+    /**
+     * Remove the compiled permissions of the object and all its descendants.
+     * 
+     * @param aclKey
+     */
+    void invalidate(String aclKey) {
+        generation.incrementAndGet();
+        // every key that starts with the ACL key sorts between it and the key
+        // followed by the highest char.
+        for (Map.Entry<String, Set<String>> e : fingerprints.subMap(aclKey, true,
+                aclKey + Character.MAX_VALUE, false).entrySet()) {
+            String entryAclKey = e.getKey();
+            if (entryAclKey.length() == aclKey.length() || aclKey.endsWith("/")
+                    || entryAclKey.charAt(aclKey.length()) == '/') {
+                if (fingerprints.remove(entryAclKey, e.getValue())) {
+                    for (String fingerprint : e.getValue()) {
+                        compiled.remove(fingerprint + ";" + entryAclKey);
+                        indexed.decrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove the compiled permissions that depend on ACL rows with any of the
+     * cache key hashes.
+     * 
+     * @param keyHashes
+     */
+    void invalidate(Set<Integer> keyHashes) {
+        for (Integer h : keyHashes) {
+            Set<String> aclKeys = dependencies.remove(h);
+            if (aclKeys != null) {
+                indexed.addAndGet(-aclKeys.size());
+                for (String aclKey : aclKeys) {
+                    invalidate(aclKey);
+                }
+            }
+        }
+    }
+
+    int size() {
+        return compiled.size();
+    }
+}
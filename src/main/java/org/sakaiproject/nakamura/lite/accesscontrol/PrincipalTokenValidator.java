@@ -19,9 +19,11 @@ package org.sakaiproject.nakamura.lite.accesscontrol;
 
 import org.apache.commons.codec.binary.Base64;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.PrincipalValidatorPlugin;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.PrincipalValidatorResolver;
 import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.lite.storage.ConcurrentClockMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -29,6 +31,7 @@ import java.io.UnsupportedEncodingException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Map;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
@@ -40,6 +43,19 @@ public class PrincipalTokenValidator {
     public static final String _ACLTOKEN = "_acltoken";
     private static final String HMAC_SHA512 = "HmacSHA512";
     private static final Logger LOGGER = LoggerFactory.getLogger(PrincipalTokenValidator.class);
+    /**
+     * The result of checking the signature of saved tokens, keyed by token id,
+     * modification time, signature, plugin and a hash of the secret key. Updating a
+     * token changes its modification time, so stale results are never used
+     * and are evicted in time.
+     */
+    private static final Map<String, Boolean> CHECKED_SIGNATURES = new ConcurrentClockMap<String, Boolean>(
+            10000);
+    /**
+     * A Mac can be reused once initialized with a new key, but not by two
+     * threads at once.
+     */
+    private static final ThreadLocal<Mac> MACS = new ThreadLocal<Mac>();
     private PrincipalValidatorPlugin defaultPrincipalValidator = new DefaultPrincipalValidator();
     private PrincipalValidatorResolver principalValidatorResolver;
 
@@ -66,20 +82,47 @@ public class PrincipalTokenValidator {
             LOGGER.debug("Failed to Validate Token at {} no plugin ");
             return false;
         }
-        String hmac = signToken(proxyPrincipalToken, sharedKey, plugin);
-        if ( hmac == null || !hmac.equals(proxyPrincipalToken.getProperty(_ACLTOKEN)) ) {
-            LOGGER.debug("Failed to Validate Token at {} as {}, does not match ",proxyPrincipalToken.getPath(), hmac);
+        String checkedKey = getCheckedKey(proxyPrincipalToken, sharedKey, plugin);
+        Boolean signed = (checkedKey == null) ? null : CHECKED_SIGNATURES.get(checkedKey);
+        if ( signed == null ) {
+            String hmac = signToken(proxyPrincipalToken, sharedKey, plugin);
+            if ( hmac == null ) {
+                LOGGER.debug("Failed to Validate Token at {}, cant sign ",proxyPrincipalToken.getPath());
+                return false;
+            }
+            signed = hmac.equals(proxyPrincipalToken.getProperty(_ACLTOKEN));
+            if ( checkedKey != null ) {
+                CHECKED_SIGNATURES.put(checkedKey, signed);
+            }
+        }
+        if ( !signed ) {
+            LOGGER.debug("Failed to Validate Token at {}, does not match ",proxyPrincipalToken.getPath());
             return false;
         }
+        // the plugin may depend on more than the token, eg the time, so always ask it.
         boolean validate = plugin.validate(proxyPrincipalToken);
         if ( validate ) {
-            LOGGER.debug("Validated Token at {} as {}  using plugin {} ",new Object[] { proxyPrincipalToken.getPath(), hmac, plugin});
+            LOGGER.debug("Validated Token at {} using plugin {} ",proxyPrincipalToken.getPath(), plugin);
         } else {
-            LOGGER.debug("Invalid Token at {} as {}  using plugin {} ",new Object[] { proxyPrincipalToken.getPath(), hmac, plugin});
+            LOGGER.debug("Invalid Token at {} using plugin {} ",proxyPrincipalToken.getPath(), plugin);
         }
         return validate;
     }
 
+    /**
+     * @return the key of the signature check of a saved token, or null if the
+     *         token has not been saved as it is.
+     */
+    private String getCheckedKey(Content token, String sharedKey, PrincipalValidatorPlugin plugin) {
+        Object id = token.getProperty(Content.getUuidField());
+        Object lastModified = token.getProperty(Content.LASTMODIFIED_FIELD);
+        if ( id == null || lastModified == null || token.isNew() || token.isUpdated() ) {
+            return null;
+        }
+        return id + "@" + lastModified + "@" + token.getProperty(_ACLTOKEN) + "@"
+                + plugin.getClass().getName() + "@" + StorageClientUtils.insecureHash(sharedKey);
+    }
+
     public void signToken(Content token, String sharedKey ) throws StorageClientException {
         PrincipalValidatorPlugin plugin = null;
         if ( token.hasProperty(VALIDATORPLUGIN) ) {
@@ -133,7 +176,12 @@ public class PrincipalTokenValidator {
                 sb.append("null").append("@");
             }
         }
-        Mac m = Mac.getInstance(HMAC_SHA512);
+        Mac m = MACS.get();
+        if ( m == null ) {
+            m = Mac.getInstance(HMAC_SHA512);
+            MACS.set(m);
+        }
+        // init resets any state left by a failed use.
         m.init(key);
         String message = sb.toString();
         LOGGER.debug("Signing {} ", message);
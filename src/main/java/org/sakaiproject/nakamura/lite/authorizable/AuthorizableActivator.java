@@ -37,6 +37,7 @@ public class AuthorizableActivator {
     private StorageClient client;
     private String keySpace;
     private String authorizableColumnFamily;
+    private boolean newStore;
 
     public AuthorizableActivator(StorageClient client, Configuration configuration)
             throws StorageClientException, AccessDeniedException {
@@ -52,6 +53,14 @@ public class AuthorizableActivator {
         createAdministratorsGroup();
     }
 
+    /**
+     * @return true if {@link #setup()} found no admin user, so the store was
+     *         empty.
+     */
+    public boolean isNewStore() {
+        return newStore;
+    }
+
     private void createAdministratorsGroup() throws StorageClientException {
         Map<String, Object> authorizableMap = client.get(keySpace, authorizableColumnFamily,
                 Authorizable.ADMINISTRATORS_GROUP);
@@ -100,6 +109,7 @@ public class AuthorizableActivator {
                     Authorizable.AUTHORIZABLE_TYPE_FIELD, Authorizable.USER_VALUE);
             LOGGER.info("Creating Admin User user as {} with {} ", User.ADMIN_USER, user);
             client.insert(keySpace, authorizableColumnFamily, User.ADMIN_USER, user, true);
+            newStore = true;
         } else {
             LOGGER.info("Admin User user exists as {} with {} ", User.ADMIN_USER, authorizableMap);
         }
@@ -17,16 +17,20 @@
  */
 package org.sakaiproject.nakamura.lite.authorizable;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.lang.StringUtils;
 import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.api.lite.CacheStatisticsService;
 import org.sakaiproject.nakamura.api.lite.Configuration;
+import org.sakaiproject.nakamura.api.lite.RemoveProperty;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.StorageConstants;
 import org.sakaiproject.nakamura.api.lite.StoreListener;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
@@ -41,7 +45,10 @@ import org.sakaiproject.nakamura.api.lite.util.PreemptiveIterator;
 import org.sakaiproject.nakamura.lite.CachingManager;
 import org.sakaiproject.nakamura.lite.accesscontrol.AccessControlManagerImpl;
 import org.sakaiproject.nakamura.lite.accesscontrol.AuthenticatorImpl;
+import org.sakaiproject.nakamura.lite.content.InternalContent;
 import org.sakaiproject.nakamura.lite.storage.DisposableIterator;
+import org.sakaiproject.nakamura.lite.storage.PagedFindIterator;
+import org.sakaiproject.nakamura.lite.storage.RowHasher;
 import org.sakaiproject.nakamura.lite.storage.SparseRow;
 import org.sakaiproject.nakamura.lite.storage.StorageClient;
 import org.slf4j.Logger;
@@ -52,6 +59,7 @@ import com.google.common.collect.ImmutableMap.Builder;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 /**
  * An Authourizable Manager bound to a user, on creation the user ID specified
@@ -68,6 +76,40 @@ public class AuthorizableManagerImpl extends CachingManager implements Authoriza
     private static final Set<String> FILTER_ON_CREATE = ImmutableSet.of(Authorizable.ID_FIELD,
             Authorizable.PASSWORD_FIELD);
     private static final Logger LOGGER = LoggerFactory.getLogger(AuthorizableManagerImpl.class);
+    /**
+     * The transitive group membership of each authorizable is kept in the
+     * authorizable column family under this prefix, which is not a valid
+     * authorizable id.
+     */
+    static final String CLOSURE_KEY_PREFIX = "_closure:";
+    private static final String CLOSURE_FIELD = "closure";
+    private static final String CLOSURE_SOURCE_FIELD = "source";
+    /**
+     * The generation of the membership closures, which changes when a
+     * membership change reaches too many authorizables to update all of their
+     * closures at once. Closures of an older generation are rebuilt when next
+     * read.
+     */
+    static final String CLOSURE_GENERATION_KEY = "_closuregeneration";
+    private static final String CLOSURE_GENERATION_FIELD = "generation";
+    private static final int MAX_CLOSURE_UPDATES = 100;
+    /**
+     * Each member of a group has a row of its own, a child of this prefix and
+     * the group id, so that members can be added, removed and paged through
+     * without loading all of them. The rows are the members of the group, the
+     * members property of groups stored before the rows existed is removed
+     * when the rows are built from it and the group is saved.
+     */
+    static final String MEMBER_KEY_PREFIX = "_member:";
+    /**
+     * Marks a group whose member rows have been built, groups stored before
+     * the member rows existed are indexed when first listed, saved or
+     * migrated.
+     */
+    static final String MEMBER_INDEX_KEY_PREFIX = "_memberindex:";
+    private static final String MEMBER_GROUP_FIELD = "group";
+    private static final String MEMBER_ID_FIELD = "member";
+    private static final int MEMBER_PAGE_SIZE = 100;
     private String currentUserId;
     private StorageClient client;
     private AccessControlManager accessControlManager;
@@ -135,7 +177,7 @@ public class AuthorizableManagerImpl extends CachingManager implements Authoriza
         if (isAUser(authorizableMap)) {
             return new UserInternal(authorizableMap, session, false);
         } else if (isAGroup(authorizableMap)) {
-            return new GroupInternal(authorizableMap, session, false);
+            return new GroupInternal(authorizableMap, session, false, this);
         }
         return null;
     }
@@ -174,8 +216,10 @@ public class AuthorizableManagerImpl extends CachingManager implements Authoriza
          */
         String type = "type:user";
         List<String> attributes = Lists.newArrayList();
+        List<String> membershipChanged = null;
         String[] membersAdded = null;
         String[] membersRemoved = null;
+        List<String> indexedMembersAdded = null;
 
         if (authorizable instanceof Group) {
             type = "type:group";
@@ -190,7 +234,7 @@ public class AuthorizableManagerImpl extends CachingManager implements Authoriza
                     if (newMembers[i] == null) {
                         LOGGER.warn("===================== Added member {} does not exist, and had been removed from the list to be added",newMember );
                         group.removeMember(newMember);
-                    } else if (isCyclicMembership(id, newMembers[i])) {
+                    } else if (isCyclicMembership(group, newMembers[i])) {
                         LOGGER.warn("Member {} would create circular group membership and has been removed from the list to be added", newMember);
                         newMembers[i] = null;
                         group.removeMember(newMember);
@@ -224,9 +268,12 @@ public class AuthorizableManagerImpl extends CachingManager implements Authoriza
             String membersRemovedCsv = StringUtils.join(membersRemoved, ',');
             LOGGER.debug("Membership Change added [{}] removed [{}] ", membersAddedCsv, membersRemovedCsv);
             int changes = 0;
+            membershipChanged = Lists.newArrayList();
+            indexedMembersAdded = Lists.newArrayList();
             // there is now a sparse list of authorizables, that need changing
             for (Authorizable newMember : newMembers) {
                 if (newMember != null) {
+                    indexedMembersAdded.add(newMember.getId());
                     newMember.addPrincipal(group.getId());
                     if (newMember.isModified()) {
                         Map<String, Object> encodedProperties = StorageClientUtils
@@ -237,6 +284,7 @@ public class AuthorizableManagerImpl extends CachingManager implements Authoriza
                                 encodedProperties, newMember.isNew());
                         LOGGER.debug("Updated {} with principal {} {} ",new Object[]{newMember.getId(), group.getId(), encodedProperties});
                         findAuthorizable(newMember.getId());
+                        membershipChanged.add(newMember.getId());
                         changes++;
                     } else {
                         LOGGER.debug("New Member {} already had group principal {} ",
@@ -254,6 +302,7 @@ public class AuthorizableManagerImpl extends CachingManager implements Authoriza
                         encodedProperties.put(Authorizable.ID_FIELD, retiredMember.getId());
                         putCached(keySpace, authorizableColumnFamily, retiredMember.getId(),
                                 encodedProperties, retiredMember.isNew());
+                        membershipChanged.add(retiredMember.getId());
                         changes++;
                         LOGGER.debug("Update {} and removed principal {} ",retiredMember.getId(), group.getId());
                     } else {
@@ -279,13 +328,42 @@ public class AuthorizableManagerImpl extends CachingManager implements Authoriza
 
         Map<String, Object> encodedProperties = StorageClientUtils.getFilteredAndEcodedMap(
                 authorizable.getPropertiesForUpdate(), FILTER_ON_UPDATE);
+        if (indexedMembersAdded != null) {
+            // the member rows replace the members property, which is removed
+            // once they have been built from it.
+            Map<String, Object> stored = getCached(keySpace, authorizableColumnFamily, id);
+            if (!hasMemberIndex(id)) {
+                storeMemberIndex(id, stored);
+            }
+            if (stored != null && stored.containsKey(Authorizable.MEMBERS_FIELD)) {
+                encodedProperties.put(Authorizable.MEMBERS_FIELD, new RemoveProperty());
+            }
+        }
         // in maintenance mode, these fields will not be overwritten if they already exist
         setField(encodedProperties, Authorizable.LASTMODIFIED_FIELD, System.currentTimeMillis());
         setField(encodedProperties, Authorizable.LASTMODIFIED_BY_FIELD, accessControlManager.getCurrentUserId());
         setField(encodedProperties, Authorizable.ID_FIELD, id);
         putCached(keySpace, authorizableColumnFamily, id, encodedProperties, authorizable.isNew());
 
-        authorizable.reset(getCached(keySpace, authorizableColumnFamily, id));
+        Map<String, Object> updated = getCached(keySpace, authorizableColumnFamily, id);
+        authorizable.reset(updated);
+
+        if (indexedMembersAdded != null) {
+            addMemberRows(id, indexedMembersAdded);
+            removeMemberRows(id, Lists.newArrayList(membersRemoved));
+        }
+
+        // the members whose groups changed, and the authorizable if its own
+        // principals were changed, need their membership closures updating.
+        if (!getClosureSource(beforeUpdateProperties).equals(getClosureSource(updated))) {
+            if (membershipChanged == null) {
+                membershipChanged = Lists.newArrayList();
+            }
+            membershipChanged.add(id);
+        }
+        if (membershipChanged != null && membershipChanged.size() > 0) {
+            updateMembershipClosures(membershipChanged);
+        }
 
         String[] attrs = attributes.toArray(new String[attributes.size()]);
         storeListener.onUpdate(Security.ZONE_AUTHORIZABLES, id, accessControlManager.getCurrentUserId(), wasNew, beforeUpdateProperties, attrs);
@@ -350,6 +428,11 @@ public class AuthorizableManagerImpl extends CachingManager implements Authoriza
                 System.currentTimeMillis());
         encodedProperties.put(Authorizable.CREATED_BY_FIELD,
                 accessControlManager.getCurrentUserId());
+        if (isAGroup(properties)) {
+            // initial members are stored as member rows, not as a property.
+            storeMemberIndex(authorizableId, encodedProperties);
+            encodedProperties.remove(Authorizable.MEMBERS_FIELD);
+        }
         putCached(keySpace, authorizableColumnFamily, authorizableId, encodedProperties, true);
         return true;
     }
@@ -403,8 +486,22 @@ public class AuthorizableManagerImpl extends CachingManager implements Authoriza
         accessControlManager.check(Security.ZONE_ADMIN, authorizableId, Permissions.CAN_DELETE);
         Authorizable authorizable = findAuthorizable(authorizableId);
         if (authorizable != null){
+            // the members are read from the rows of the group before it goes.
+            List<String> members = null;
+            if (authorizable instanceof Group) {
+                members = Lists.newArrayList(((Group) authorizable).getMembers());
+            }
             markDeleted(keySpace, authorizableColumnFamily, authorizableId);
             client.remove(keySpace, authorizableColumnFamily, authorizableId);
+            removeFromCache(keySpace, authorizableColumnFamily, CLOSURE_KEY_PREFIX + authorizableId);
+            client.remove(keySpace, authorizableColumnFamily, CLOSURE_KEY_PREFIX + authorizableId);
+            if (members != null) {
+                removeMemberRows(authorizableId, members);
+                removeFromCache(keySpace, authorizableColumnFamily, MEMBER_INDEX_KEY_PREFIX + authorizableId);
+                client.remove(keySpace, authorizableColumnFamily, MEMBER_INDEX_KEY_PREFIX + authorizableId);
+                // the members no longer inherit the groups of the deleted group.
+                updateMembershipClosures(members);
+            }
             storeListener.onDelete(Security.ZONE_AUTHORIZABLES, authorizableId, accessControlManager.getCurrentUserId(), authorizable.getOriginalProperties());
         }
     }
@@ -463,9 +560,20 @@ public class AuthorizableManagerImpl extends CachingManager implements Authoriza
         } else if (authorizableType.equals(Group.class)) {
             builder.put(Authorizable.AUTHORIZABLE_TYPE_FIELD, Authorizable.GROUP_VALUE);
         }
-        final DisposableIterator<Map<String, Object>> authMaps = client.find(keySpace,
-                authorizableColumnFamily, builder.build());
+        // unreadable authorizables are filtered from each page, and further
+        // pages found as the results are used, so they never run short.
+        return new PagedFindIterator<Authorizable>(client, keySpace, authorizableColumnFamily,
+                builder.build(), -1) {
+            @Override
+            protected DisposableIterator<Authorizable> getResults(
+                    DisposableIterator<Map<String, Object>> rows) {
+                return getReadable(rows);
+            }
+        };
+    }
 
+    private DisposableIterator<Authorizable> getReadable(
+            final DisposableIterator<Map<String, Object>> authMaps) {
         return new PreemptiveIterator<Authorizable>() {
 
             private Authorizable authorizable;
@@ -477,10 +585,7 @@ public class AuthorizableManagerImpl extends CachingManager implements Authoriza
                     if (authMap != null) {
                         try {
                             // filter any authorizables from the list that user
-                            // cant
-                            // see, this is not the way we want to do it as it
-                            // will generate a sparse search problem.
-                            // FIXME: put this in the query.
+                            // cant see.
                             accessControlManager
                                     .check(Security.ZONE_AUTHORIZABLES, (String) authMap.get(Authorizable.ID_FIELD),
                                             Permissions.CAN_READ);
@@ -488,7 +593,8 @@ public class AuthorizableManagerImpl extends CachingManager implements Authoriza
                                 authorizable = new UserInternal(authMap, session, false);
                                 return true;
                             } else if (isAGroup(authMap))
-                                authorizable = new GroupInternal(authMap, session, false);
+                                authorizable = new GroupInternal(authMap, session, false,
+                                        AuthorizableManagerImpl.this);
                             return true;
                         } catch (AccessDeniedException e) {
                             LOGGER.debug("Search result filtered ", e.getMessage());
@@ -520,6 +626,362 @@ public class AuthorizableManagerImpl extends CachingManager implements Authoriza
     }
 
 
+    /**
+     * Get the transitive group membership of an authorizable from the closure
+     * index, rebuilding the entry if it is missing, was built from different
+     * principals or belongs to an older generation.
+     * 
+     * @param authorizable
+     * @return the ids of the groups the authorizable is a member of, directly
+     *         or through other groups, with its other direct principals, or
+     *         null if the authorizable is not stored.
+     * @throws StorageClientException
+     */
+    public String[] getMembershipClosure(Authorizable authorizable) throws StorageClientException {
+        String id = authorizable.getId();
+        Map<String, Object> authorizableMap = getCached(keySpace, authorizableColumnFamily, id);
+        if (authorizableMap == null || authorizableMap.isEmpty()) {
+            return null;
+        }
+        Map<String, Object> closure = getCached(keySpace, authorizableColumnFamily,
+                CLOSURE_KEY_PREFIX + id);
+        String generation = getClosureGeneration();
+        if (closure != null
+                && getClosureSource(authorizableMap).equals(closure.get(CLOSURE_SOURCE_FIELD))
+                && generation.equals(getClosureGeneration(closure))) {
+            return StringUtils.split((String) closure.get(CLOSURE_FIELD), ';');
+        }
+        LOGGER.debug("Membership closure of {} missing or stale, rebuilding ", id);
+        return storeMembershipClosure(id, authorizableMap, generation);
+    }
+
+    /**
+     * Rebuild the membership closure index for all authorizables, repairing any
+     * entries that are out of date. Only an admin session can do this.
+     * 
+     * @return the number of entries rebuilt.
+     * @throws StorageClientException
+     */
+    public int rebuildMembershipClosures() throws StorageClientException {
+        int rebuilt = 0;
+        if (User.ADMIN_USER.equals(accessControlManager.getCurrentUserId())) {
+            String generation = getClosureGeneration();
+            DisposableIterator<SparseRow> all = client.listAll(keySpace, authorizableColumnFamily);
+            try {
+                while (all.hasNext()) {
+                    Map<String, Object> authorizableMap = all.next().getProperties();
+                    if (isAUser(authorizableMap) || isAGroup(authorizableMap)) {
+                        storeMembershipClosure((String) authorizableMap.get(Authorizable.ID_FIELD),
+                                authorizableMap, generation);
+                        rebuilt++;
+                    }
+                }
+            } finally {
+                all.close();
+            }
+            LOGGER.info("Rebuilt {} membership closures ", rebuilt);
+        }
+        return rebuilt;
+    }
+
+    /**
+     * Rebuild the membership closure of one authorizable, as the migration
+     * service visits it. Only an admin session can do this.
+     * 
+     * @param id
+     * @return true if the authorizable exists and its closure was rebuilt.
+     * @throws StorageClientException
+     */
+    boolean rebuildMembershipClosure(String id) throws StorageClientException {
+        if (!User.ADMIN_USER.equals(accessControlManager.getCurrentUserId())) {
+            return false;
+        }
+        String generation = getClosureGeneration();
+        Map<String, Object> authorizableMap = getCached(keySpace, authorizableColumnFamily, id);
+        if (!isAUser(authorizableMap) && !isAGroup(authorizableMap)) {
+            return false;
+        }
+        storeMembershipClosure(id, authorizableMap, generation);
+        return true;
+    }
+
+    /**
+     * Rebuild the membership closures of the authorizables and everything that
+     * is a member of them, directly or through other groups. If that is more
+     * than {@link #MAX_CLOSURE_UPDATES} authorizables, none are rebuilt here,
+     * a new generation makes every closure rebuild itself when next read.
+     */
+    private void updateMembershipClosures(Collection<String> ids) throws StorageClientException {
+        List<String> queue = Lists.newArrayList(ids);
+        Set<String> seen = Sets.newHashSet(ids);
+        for (int i = 0; i < queue.size() && queue.size() <= MAX_CLOSURE_UPDATES; i++) {
+            Map<String, Object> authorizableMap = getCached(keySpace, authorizableColumnFamily,
+                    queue.get(i));
+            if (isAGroup(authorizableMap)) {
+                // no more members than are needed to exceed the limit are read.
+                String groupId = queue.get(i);
+                if (!hasMemberIndex(groupId)) {
+                    storeMemberIndex(groupId, authorizableMap);
+                }
+                for (String member : findMembers(groupId, 0, MAX_CLOSURE_UPDATES + 1)) {
+                    if (seen.add(member)) {
+                        queue.add(member);
+                    }
+                }
+            }
+        }
+        if (queue.size() > MAX_CLOSURE_UPDATES) {
+            putCached(keySpace, authorizableColumnFamily, CLOSURE_GENERATION_KEY,
+                    ImmutableMap.of(CLOSURE_GENERATION_FIELD, (Object) StorageClientUtils.getUuid()),
+                    false);
+            LOGGER.debug("Membership change reaches more than {} closures, new generation ",
+                    MAX_CLOSURE_UPDATES);
+            return;
+        }
+        String generation = getClosureGeneration();
+        for (String id : queue) {
+            Map<String, Object> authorizableMap = getCached(keySpace, authorizableColumnFamily, id);
+            if (authorizableMap != null && !authorizableMap.isEmpty()) {
+                storeMembershipClosure(id, authorizableMap, generation);
+            }
+        }
+        LOGGER.debug("Updated {} membership closures ", queue.size());
+    }
+
+    private String getClosureGeneration() throws StorageClientException {
+        return getClosureGeneration(getCached(keySpace, authorizableColumnFamily,
+                CLOSURE_GENERATION_KEY));
+    }
+
+    private String getClosureGeneration(Map<String, Object> map) {
+        // closures built before there were generations share the empty one.
+        Object generation = (map == null) ? null : map.get(CLOSURE_GENERATION_FIELD);
+        return (generation == null) ? "" : String.valueOf(generation);
+    }
+
+    /**
+     * @param generation
+     *            the generation read before the groups were, so that a closure
+     *            built while the generation changes is rebuilt.
+     */
+    private String[] storeMembershipClosure(String id, Map<String, Object> authorizableMap,
+            String generation) throws StorageClientException {
+        String[] principals = split(authorizableMap.get(Authorizable.PRINCIPALS_FIELD));
+        // direct principals are always included, as they would be without the
+        // index, indirect ones only if they are groups that still exist.
+        Set<String> closure = Sets.newTreeSet();
+        List<String> queue = Lists.newArrayList(principals);
+        Set<String> seen = Sets.newHashSet(principals);
+        for (int i = 0; i < queue.size(); i++) {
+            String principal = queue.get(i);
+            if (Group.EVERYONE.equals(principal)) {
+                continue;
+            }
+            Map<String, Object> groupMap = getCached(keySpace, authorizableColumnFamily, principal);
+            if (isAGroup(groupMap)) {
+                closure.add(principal);
+                for (String parent : split(groupMap.get(Authorizable.PRINCIPALS_FIELD))) {
+                    if (seen.add(parent)) {
+                        queue.add(parent);
+                    }
+                }
+            } else if (i < principals.length) {
+                closure.add(principal);
+            }
+        }
+        putCached(keySpace, authorizableColumnFamily, CLOSURE_KEY_PREFIX + id, ImmutableMap.of(
+                CLOSURE_FIELD, (Object) StringUtils.join(closure, ';'), CLOSURE_SOURCE_FIELD,
+                getClosureSource(authorizableMap), CLOSURE_GENERATION_FIELD, generation), false);
+        return closure.toArray(new String[closure.size()]);
+    }
+
+    /**
+     * @return the direct principals of an authorizable in a stable form, to
+     *         detect membership closures built from other principals.
+     */
+    private String getClosureSource(Map<String, Object> authorizableMap) {
+        if (authorizableMap == null) {
+            return "";
+        }
+        Set<String> principals = Sets.newTreeSet();
+        for (String principal : split(authorizableMap.get(Authorizable.PRINCIPALS_FIELD))) {
+            principals.add(principal);
+        }
+        return StringUtils.join(principals, ';');
+    }
+
+    /**
+     * {@inheritDoc} The members are read from the member rows of the group,
+     * groups stored before member rows existed are indexed on the first call.
+     * The order of members is the order of the storage, but stable from one
+     * page to the next.
+     */
+    public String[] getMembers(String groupId, int page, int items)
+            throws StorageClientException, AccessDeniedException {
+        checkOpen();
+        accessControlManager.check(Security.ZONE_AUTHORIZABLES, groupId, Permissions.CAN_READ);
+        Map<String, Object> groupMap = getCached(keySpace, authorizableColumnFamily, groupId);
+        if (!isAGroup(groupMap)) {
+            return null;
+        }
+        if (!hasMemberIndex(groupId)) {
+            LOGGER.debug("Group {} has no member rows, building them ", groupId);
+            storeMemberIndex(groupId, groupMap);
+        }
+        List<String> members = findMembers(groupId, page, items);
+        return members.toArray(new String[members.size()]);
+    }
+
+    /**
+     * Load all of the members of a group that has already been read, for
+     * {@link Group#getMembers()}.
+     * 
+     * @return the members in id order, none if groupId is not a group.
+     * @throws StorageClientException
+     */
+    String[] loadMembers(String groupId) throws StorageClientException {
+        checkOpen();
+        Map<String, Object> groupMap = getCached(keySpace, authorizableColumnFamily, groupId);
+        if (!isAGroup(groupMap)) {
+            return new String[0];
+        }
+        if (!hasMemberIndex(groupId)) {
+            storeMemberIndex(groupId, groupMap);
+        }
+        Set<String> members = Sets.newTreeSet();
+        for (int page = 0;; page++) {
+            List<String> indexed = findMembers(groupId, page, MEMBER_PAGE_SIZE);
+            members.addAll(indexed);
+            if (indexed.size() < MEMBER_PAGE_SIZE) {
+                break;
+            }
+        }
+        return members.toArray(new String[members.size()]);
+    }
+
+    /**
+     * Rebuild the member rows of a group that still has a members property
+     * from that property, removing any rows that are no longer members. The
+     * property is kept in step with the rows until the group is next saved,
+     * which removes it. Only an admin session can do this.
+     * 
+     * @param groupId
+     * @return true if groupId is a group with a members property, and its
+     *         member rows were rebuilt from it, so the property can be removed.
+     * @throws StorageClientException
+     */
+    public boolean rebuildMemberIndex(String groupId) throws StorageClientException {
+        checkOpen();
+        if (!User.ADMIN_USER.equals(accessControlManager.getCurrentUserId())) {
+            return false;
+        }
+        Map<String, Object> groupMap = getCached(keySpace, authorizableColumnFamily, groupId);
+        if (!isAGroup(groupMap)) {
+            return false;
+        }
+        if (!groupMap.containsKey(Authorizable.MEMBERS_FIELD)) {
+            if (!hasMemberIndex(groupId)) {
+                storeMemberIndex(groupId, groupMap);
+            }
+            return false;
+        }
+        Set<String> members = Sets.newHashSet(split(groupMap.get(Authorizable.MEMBERS_FIELD)));
+        List<String> retired = Lists.newArrayList();
+        for (int page = 0;; page++) {
+            List<String> indexed = findMembers(groupId, page, MEMBER_PAGE_SIZE);
+            for (String member : indexed) {
+                if (!members.contains(member)) {
+                    retired.add(member);
+                }
+            }
+            if (indexed.size() < MEMBER_PAGE_SIZE) {
+                break;
+            }
+        }
+        removeMemberRows(groupId, retired);
+        storeMemberIndex(groupId, groupMap);
+        return true;
+    }
+
+    private List<String> findMembers(String groupId, int page, int items)
+            throws StorageClientException {
+        List<String> members = Lists.newArrayList();
+        String parent = MEMBER_KEY_PREFIX + groupId;
+        DisposableIterator<Map<String, Object>> rows = null;
+        int skip = 0;
+        if (client instanceof RowHasher) {
+            // the parent hash is the auto index behind listChildren, querying
+            // it with a paged find lets the store do the paging.
+            String hash = ((RowHasher) client).rowHash(keySpace, authorizableColumnFamily, parent);
+            rows = client.find(keySpace, authorizableColumnFamily, ImmutableMap.of(
+                    InternalContent.PARENT_HASH_FIELD, (Object) hash, StorageConstants.PAGE,
+                    page, StorageConstants.ITEMS, items));
+        } else {
+            rows = client.listChildren(keySpace, authorizableColumnFamily, parent);
+            skip = page * items;
+        }
+        try {
+            while (rows.hasNext() && members.size() < items) {
+                Map<String, Object> row = rows.next();
+                if (row != null && row.get(MEMBER_ID_FIELD) instanceof String) {
+                    if (skip > 0) {
+                        skip--;
+                    } else {
+                        members.add((String) row.get(MEMBER_ID_FIELD));
+                    }
+                }
+            }
+        } finally {
+            rows.close();
+        }
+        return members;
+    }
+
+    private boolean hasMemberIndex(String groupId) throws StorageClientException {
+        Map<String, Object> index = getCached(keySpace, authorizableColumnFamily,
+                MEMBER_INDEX_KEY_PREFIX + groupId);
+        return index != null && !index.isEmpty();
+    }
+
+    private void storeMemberIndex(String groupId, Map<String, Object> groupMap)
+            throws StorageClientException {
+        addMemberRows(groupId, Lists.newArrayList(split(groupMap.get(Authorizable.MEMBERS_FIELD))));
+        putCached(keySpace, authorizableColumnFamily, MEMBER_INDEX_KEY_PREFIX + groupId,
+                ImmutableMap.of(MEMBER_GROUP_FIELD, (Object) groupId), false);
+    }
+
+    private void addMemberRows(String groupId, Collection<String> members)
+            throws StorageClientException {
+        // member rows are only read by listing, so they bypass the cache.
+        for (String member : members) {
+            client.insert(keySpace, authorizableColumnFamily, getMemberKey(groupId, member),
+                    ImmutableMap.of(MEMBER_GROUP_FIELD, (Object) groupId, MEMBER_ID_FIELD,
+                            member), false);
+        }
+    }
+
+    private void removeMemberRows(String groupId, Collection<String> members)
+            throws StorageClientException {
+        for (String member : members) {
+            client.remove(keySpace, authorizableColumnFamily, getMemberKey(groupId, member));
+        }
+    }
+
+    /**
+     * The member id is hashed so that the row is always a direct child of the
+     * group, whatever characters the id contains.
+     */
+    private String getMemberKey(String groupId, String member) {
+        return MEMBER_KEY_PREFIX + groupId + "/" + StorageClientUtils.insecureHash(member);
+    }
+
+    private String[] split(Object value) {
+        if (value instanceof String) {
+            return StringUtils.split((String) value, ';');
+        }
+        return new String[0];
+    }
+
     private boolean isAGroup(Map<String, Object> authProperties) {
         return (authProperties != null)
                 && Authorizable.GROUP_VALUE.equals(authProperties
@@ -532,11 +994,12 @@ public class AuthorizableManagerImpl extends CachingManager implements Authoriza
                         .get(Authorizable.AUTHORIZABLE_TYPE_FIELD));
     }
 
-    private boolean isCyclicMembership(String groupId, Authorizable newMember) {
+    private boolean isCyclicMembership(Group group, Authorizable newMember) {
+        // the group is a member of the new member if it has it as a principal,
+        // which avoids loading the members of the new member.
         if (newMember.isGroup()) {
-            Group newGroupMember = (Group) newMember;
-            for (String memberOfNewMember : newGroupMember.getMembers()) {
-                if (groupId.equals(memberOfNewMember)) {
+            for (String principal : group.getPrincipals()) {
+                if (principal.equals(newMember.getId())) {
                     return true;
                 }
             }
@@ -549,6 +1012,11 @@ public class AuthorizableManagerImpl extends CachingManager implements Authoriza
         return LOGGER;
     }
 
+    @Override
+    protected String getCacheName() {
+        return CacheStatisticsService.AUTHORIZABLE_CACHE;
+    }
+
     public void disablePassword(Authorizable authorizable) throws StorageClientException,
             AccessDeniedException {
         String id = authorizable.getId();
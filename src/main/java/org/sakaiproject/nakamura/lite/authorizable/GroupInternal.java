@@ -23,15 +23,23 @@ import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.Map;
 
 public class GroupInternal extends Group {
 
-    public GroupInternal(Map<String, Object> groupMap, Session session, boolean objectIsNew)
-            throws StorageClientException, AccessDeniedException {
+    private static final Logger LOGGER = LoggerFactory.getLogger(GroupInternal.class);
+
+    private AuthorizableManagerImpl authorizableManager;
+
+    public GroupInternal(Map<String, Object> groupMap, Session session, boolean objectIsNew,
+            AuthorizableManagerImpl authorizableManager) throws StorageClientException,
+            AccessDeniedException {
         super(groupMap, session);
         setObjectNew(objectIsNew);
+        this.authorizableManager = authorizableManager;
     }
 
     public GroupInternal(ImmutableMap<String, Object> groupMap, Session session,
@@ -42,5 +50,21 @@ public class GroupInternal extends Group {
         setReadOnly(readOnly);
     }
 
+    /**
+     * {@inheritDoc} The members are read from the member rows of the group.
+     */
+    @Override
+    protected String[] loadMembers() {
+        if (authorizableManager == null) {
+            return super.loadMembers();
+        }
+        try {
+            return authorizableManager.loadMembers(getId());
+        } catch (StorageClientException e) {
+            LOGGER.warn("Failed to load the members of {} {} ", getId(), e.getMessage());
+            return new String[0];
+        }
+    }
+
 
 }
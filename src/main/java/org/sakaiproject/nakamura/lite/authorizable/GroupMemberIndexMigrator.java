@@ -0,0 +1,117 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.authorizable;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.PropertyMigrator;
+import org.sakaiproject.nakamura.api.lite.RemoveProperty;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+
+/**
+ * Builds the member rows of groups that were stored with a members property,
+ * and removes the property. The member rows are written as each group is seen,
+ * so they are also written on a dry run, where the property is left in step
+ * with them. Groups that are not migrated are indexed the first time their
+ * members are listed or the group is saved.
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = PropertyMigrator.class)
+public class GroupMemberIndexMigrator implements PropertyMigrator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(GroupMemberIndexMigrator.class);
+
+    @Reference
+    private Repository repository;
+
+    private Session session;
+
+    public GroupMemberIndexMigrator() {
+    }
+
+    GroupMemberIndexMigrator(Repository repository) {
+        this.repository = repository;
+    }
+
+    @Deactivate
+    public synchronized void deactivate(Map<String, Object> properties) {
+        if (session != null) {
+            try {
+                session.logout();
+            } catch (ClientPoolException e) {
+                LOGGER.error("Error logging out of admin session", e);
+            }
+            session = null;
+        }
+    }
+
+    public synchronized boolean migrate(String rowID, Map<String, Object> properties) {
+        if (Authorizable.GROUP_VALUE.equals(properties.get(Authorizable.AUTHORIZABLE_TYPE_FIELD))
+                && properties.get(Authorizable.ID_FIELD) instanceof String) {
+            String groupId = (String) properties.get(Authorizable.ID_FIELD);
+            try {
+                if (session == null) {
+                    session = repository.loginAdministrative();
+                }
+                if (((AuthorizableManagerImpl) session.getAuthorizableManager())
+                        .rebuildMemberIndex(groupId)
+                        && properties.containsKey(Authorizable.MEMBERS_FIELD)) {
+                    properties.put(Authorizable.MEMBERS_FIELD, new RemoveProperty());
+                    return true;
+                }
+            } catch (StorageClientException e) {
+                LOGGER.warn("Failed to build member rows of {} {} ", groupId, e.getMessage());
+            } catch (AccessDeniedException e) {
+                LOGGER.warn("Failed to build member rows of {} {} ", groupId, e.getMessage());
+            }
+        }
+        return false;
+    }
+
+    public boolean verify(String rowID, Map<String, Object> beforeProperties,
+            Map<String, Object> afterProperties) {
+        // only the members property may be removed.
+        for (String k : afterProperties.keySet()) {
+            Object after = afterProperties.get(k);
+            if (Authorizable.MEMBERS_FIELD.equals(k) && after instanceof RemoveProperty) {
+                continue;
+            }
+            if (after == null ? beforeProperties.get(k) != null : !after.equals(beforeProperties
+                    .get(k))) {
+                return false;
+            }
+        }
+        return afterProperties.keySet().containsAll(beforeProperties.keySet());
+    }
+
+    public Integer getOrder() {
+        return null;
+    }
+
+}
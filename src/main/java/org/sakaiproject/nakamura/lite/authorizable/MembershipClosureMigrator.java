@@ -0,0 +1,104 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.authorizable;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.PropertyMigrator;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+
+/**
+ * Rebuilds the membership closure of each user and group, repairing closures
+ * that are missing or out of date. The authorizable properties are not
+ * modified, the closures are written as each authorizable is seen, so they are
+ * also written on a dry run. Closures that are not rebuilt here are rebuilt
+ * the first time they are read.
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = PropertyMigrator.class)
+public class MembershipClosureMigrator implements PropertyMigrator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MembershipClosureMigrator.class);
+
+    @Reference
+    private Repository repository;
+
+    private Session session;
+
+    public MembershipClosureMigrator() {
+    }
+
+    MembershipClosureMigrator(Repository repository) {
+        this.repository = repository;
+    }
+
+    @Deactivate
+    public synchronized void deactivate(Map<String, Object> properties) {
+        if (session != null) {
+            try {
+                session.logout();
+            } catch (ClientPoolException e) {
+                LOGGER.error("Error logging out of admin session", e);
+            }
+            session = null;
+        }
+    }
+
+    public synchronized boolean migrate(String rowID, Map<String, Object> properties) {
+        Object type = properties.get(Authorizable.AUTHORIZABLE_TYPE_FIELD);
+        if ((Authorizable.USER_VALUE.equals(type) || Authorizable.GROUP_VALUE.equals(type))
+                && properties.get(Authorizable.ID_FIELD) instanceof String) {
+            String id = (String) properties.get(Authorizable.ID_FIELD);
+            try {
+                if (session == null) {
+                    session = repository.loginAdministrative();
+                }
+                ((AuthorizableManagerImpl) session.getAuthorizableManager())
+                        .rebuildMembershipClosure(id);
+            } catch (StorageClientException e) {
+                LOGGER.warn("Failed to rebuild the membership closure of {} {} ", id,
+                        e.getMessage());
+            } catch (AccessDeniedException e) {
+                LOGGER.warn("Failed to rebuild the membership closure of {} {} ", id,
+                        e.getMessage());
+            }
+        }
+        return false;
+    }
+
+    public boolean verify(String rowID, Map<String, Object> beforeProperties,
+            Map<String, Object> afterProperties) {
+        return beforeProperties.equals(afterProperties);
+    }
+
+    public Integer getOrder() {
+        return null;
+    }
+
+}
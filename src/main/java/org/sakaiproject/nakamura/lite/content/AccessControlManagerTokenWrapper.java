@@ -81,6 +81,16 @@ public class AccessControlManagerTokenWrapper implements AccessControlManager {
         }
     }
 
+    public String[] filterPermitted(String objectType, String[] objectPaths,
+            Permission permission) throws StorageClientException {
+        try {
+            delegate.setRequestPrincipalResolver(principalTokenResovler);
+            return delegate.filterPermitted(objectType, objectPaths, permission);
+        } finally {
+            delegate.clearRequestPrincipalResolver();
+        }
+    }
+
     public String getCurrentUserId() {
         return delegate.getCurrentUserId();
     }
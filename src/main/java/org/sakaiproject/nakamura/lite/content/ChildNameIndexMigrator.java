@@ -0,0 +1,52 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.content;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Service;
+import org.sakaiproject.nakamura.api.lite.PropertyMigrator;
+
+import java.util.Map;
+
+/**
+ * Indexes the name of each content row, for rows stored before the names were
+ * indexed. No properties are changed, the migration service reindexes every
+ * row it does not change. Until this migrator is recorded in the migration log
+ * the paths of children are listed by loading the children, since the index
+ * would leave out children that were stored before. A new store indexes every
+ * row from the start, so the repository records it as run when it creates the
+ * store.
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = PropertyMigrator.class)
+public class ChildNameIndexMigrator implements PropertyMigrator {
+
+    public boolean migrate(String rowID, Map<String, Object> properties) {
+        return false;
+    }
+
+    public boolean verify(String rowID, Map<String, Object> beforeProperties,
+            Map<String, Object> afterProperties) {
+        return beforeProperties.equals(afterProperties);
+    }
+
+    public Integer getOrder() {
+        return null;
+    }
+
+}
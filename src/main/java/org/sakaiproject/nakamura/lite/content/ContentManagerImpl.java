@@ -45,6 +45,7 @@ import static org.sakaiproject.nakamura.lite.content.InternalContent.VERSION_NUM
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
@@ -55,6 +56,7 @@ import java.util.Set;
 
 import com.google.common.collect.Ordering;
 import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.api.lite.CacheStatisticsService;
 import org.sakaiproject.nakamura.api.lite.Configuration;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
@@ -62,6 +64,7 @@ import org.sakaiproject.nakamura.api.lite.StorageConstants;
 import org.sakaiproject.nakamura.api.lite.StoreListener;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permission;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.PrincipalTokenResolver;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
@@ -69,17 +72,25 @@ import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.lite.content.ActionRecord;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.lite.content.PartialActionException;
 import org.sakaiproject.nakamura.api.lite.util.PreemptiveIterator;
 import org.sakaiproject.nakamura.lite.CachingManager;
+import org.sakaiproject.nakamura.lite.storage.ChildPathLister;
 import org.sakaiproject.nakamura.lite.storage.DisposableIterator;
+import org.sakaiproject.nakamura.lite.storage.PagedFindIterator;
+import org.sakaiproject.nakamura.lite.storage.RowHasher;
 import org.sakaiproject.nakamura.lite.storage.SparseRow;
 import org.sakaiproject.nakamura.lite.storage.StorageClient;
+import org.sakaiproject.nakamura.lite.storage.Transactional;
+import org.sakaiproject.nakamura.lite.storage.jdbc.migrate.MigrationLogger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
@@ -154,6 +165,23 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
                                                                         Content.getUuidField(),
                                                                         PATH_FIELD);
 
+    /**
+     * The number of children or search results loaded from storage together.
+     */
+    private static final int RESULT_BATCH_SIZE = 25;
+
+    /**
+     * The number of items written in each transaction of an operation on a
+     * subtree.
+     */
+    private static final int SUBTREE_BATCH_SIZE = 100;
+
+    /**
+     * The number of items listed or checked together in an operation on a
+     * subtree.
+     */
+    private static final int SUBTREE_PAGE_SIZE = 500;
+
 
     /**
      * Storage Client
@@ -184,6 +212,11 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
 
     private PathPrincipalTokenResolver pathPrincipalResolver;
 
+    /**
+     * Set once the names of all content rows are known to be in the index.
+     */
+    private boolean childNamesIndexed;
+
     public ContentManagerImpl(StorageClient client, AccessControlManager accessControlManager,
             Configuration config,  Map<String, CacheHolder> sharedCache, StoreListener eventListener) {
         super(client, sharedCache);
@@ -209,10 +242,11 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
         try {
             checkOpen();
             accessControlManager.check(Security.ZONE_CONTENT, path, Permissions.CAN_READ);
-            Map<String, Object> structure = getCached(keySpace, contentColumnFamily, path);
+            Map<String, Map<String, Object>> rows = resolve(path);
+            Map<String, Object> structure = rows.get(path);
             if (structure != null && structure.size() > 0) {
                 String contentId = (String)structure.get(STRUCTURE_UUID_FIELD);
-                Map<String, Object> content = getCached(keySpace, contentColumnFamily, contentId);
+                Map<String, Object> content = rows.get(contentId);
                 if (content != null && content.size() > 0) {
                     return true;
                 }
@@ -228,10 +262,11 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
     public Content get(String path) throws StorageClientException, AccessDeniedException {
         checkOpen();
         accessControlManager.check(Security.ZONE_CONTENT, path, Permissions.CAN_READ);
-        Map<String, Object> structure = getCached(keySpace, contentColumnFamily, path);
+        Map<String, Map<String, Object>> rows = resolve(path);
+        Map<String, Object> structure = rows.get(path);
         if (structure != null && structure.size() > 0) {
             String contentId = (String)structure.get(STRUCTURE_UUID_FIELD);
-            Map<String, Object> content = getCached(keySpace, contentColumnFamily, contentId);
+            Map<String, Object> content = rows.get(contentId);
             if (content != null && content.size() > 0) {
                 Content contentObject = new Content(path, content);
                 ((InternalContent) contentObject).internalize(this, false);
@@ -242,37 +277,143 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
 
     }
 
+    /**
+     * Load the structure at a path and the content it refers to, in one call
+     * to storage when neither is cached.
+     * @return a map containing the structure under the path and, if the
+     *         structure exists, the content under its id.
+     */
+    private Map<String, Map<String, Object>> resolve(String path) throws StorageClientException {
+        Map<String, Map<String, Object>> rows = getCachedResolved(keySpace, contentColumnFamily,
+                path);
+        Map<String, Object> structure = rows.get(path);
+        if (structure != null && structure.size() > 0) {
+            String contentId = (String) structure.get(STRUCTURE_UUID_FIELD);
+            if (!rows.containsKey(contentId)) {
+                rows.put(contentId, getCached(keySpace, contentColumnFamily, contentId));
+            }
+        }
+        return rows;
+    }
 
-    public Iterator<Content> listChildren(String path) throws StorageClientException {
-        final DisposableIterator<Map<String, Object>> childContent = client.listChildren(keySpace,
-                contentColumnFamily, path);
+
+    /**
+     * Get many content items, checking read permission on each and loading the
+     * items that are not cached in as few calls to storage as possible.
+     * @param paths
+     * @return the readable items that exist, in the order of the paths.
+     * @throws StorageClientException
+     */
+    private List<Content> get(List<String> paths) throws StorageClientException {
+        checkOpen();
+        String[] readable = accessControlManager.filterPermitted(Security.ZONE_CONTENT,
+                paths.toArray(new String[paths.size()]), Permissions.CAN_READ);
+        Map<String, Map<String, Object>> structures = getCached(keySpace, contentColumnFamily,
+                Arrays.asList(readable));
+        Map<String, String> contentIds = Maps.newLinkedHashMap();
+        for (Entry<String, Map<String, Object>> e : structures.entrySet()) {
+            Map<String, Object> structure = e.getValue();
+            if (structure != null && structure.size() > 0) {
+                contentIds.put(e.getKey(), (String) structure.get(STRUCTURE_UUID_FIELD));
+            }
+        }
+        Map<String, Map<String, Object>> contents = getCached(keySpace, contentColumnFamily,
+                contentIds.values());
+        List<Content> result = Lists.newArrayListWithCapacity(contentIds.size());
+        for (Entry<String, String> e : contentIds.entrySet()) {
+            Map<String, Object> content = contents.get(e.getValue());
+            if (content != null && content.size() > 0) {
+                Content contentObject = new Content(e.getKey(), content);
+                ((InternalContent) contentObject).internalize(this, false);
+                result.add(contentObject);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the content items for rows returned by the storage client. A row that
+     * is the current version of a content item is used as it is, saving the two
+     * lookups needed to resolve any other row by its path.
+     * @param rows
+     * @return the readable items, in the order of the rows.
+     * @throws StorageClientException
+     */
+    private List<Content> getFromRows(List<Map<String, Object>> rows)
+            throws StorageClientException {
+        Map<String, Content> found = Maps.newLinkedHashMap();
+        Map<String, Map<String, Object>> currentRows = Maps.newHashMap();
+        List<String> paths = Lists.newArrayList();
+        for (Map<String, Object> row : rows) {
+            String path = (String) row.get(PATH_FIELD);
+            if (path == null || found.containsKey(path)) {
+                continue;
+            }
+            found.put(path, null);
+            if (row.containsKey(Content.getUuidField()) && !row.containsKey(STRUCTURE_UUID_FIELD)
+                    && !row.containsKey(NEXT_VERSION_FIELD) && !row.containsKey(DELETED_FIELD)) {
+                currentRows.put(path, row);
+            } else {
+                paths.add(path);
+            }
+        }
+        if (currentRows.size() > 0) {
+            for (String path : accessControlManager.filterPermitted(Security.ZONE_CONTENT,
+                    currentRows.keySet().toArray(new String[currentRows.size()]),
+                    Permissions.CAN_READ)) {
+                Content contentObject = new Content(path, currentRows.get(path));
+                ((InternalContent) contentObject).internalize(this, false);
+                found.put(path, contentObject);
+            }
+        }
+        if (paths.size() > 0) {
+            for (Content content : get(paths)) {
+                found.put(content.getPath(), content);
+            }
+        }
+        List<Content> result = Lists.newArrayListWithCapacity(found.size());
+        for (Content content : found.values()) {
+            if (content != null) {
+                result.add(content);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param structureRows
+     * @return the content items for the structure rows, loaded in batches.
+     */
+    private PreemptiveIterator<Content> getBatched(
+            final DisposableIterator<Map<String, Object>> structureRows) {
         return new PreemptiveIterator<Content>() {
 
+            private Iterator<Content> batch = Iterators.emptyIterator();
             private Content content;
 
             @Override
             protected boolean internalHasNext() {
                 content = null;
-                while(content == null && childContent.hasNext()) {
-                    try {
-                        Map<String, Object> structureMap = childContent.next();
+                while (!batch.hasNext() && structureRows.hasNext()) {
+                    List<Map<String, Object>> rows = Lists.newArrayListWithCapacity(RESULT_BATCH_SIZE);
+                    while (rows.size() < RESULT_BATCH_SIZE && structureRows.hasNext()) {
+                        Map<String, Object> structureMap = structureRows.next();
                         LOGGER.debug("Loaded Next as {} ", structureMap);
-                        if ( structureMap != null && structureMap.size() > 0 ) {
-                            String path = (String) structureMap.get(PATH_FIELD);
-                            content = get(path);
+                        if (structureMap != null && structureMap.size() > 0) {
+                            rows.add(structureMap);
                         }
-                    } catch (AccessDeniedException e) {
-                        LOGGER.debug(e.getMessage(),e);
+                    }
+                    try {
+                        batch = getFromRows(rows).iterator();
                     } catch (StorageClientException e) {
-                        LOGGER.debug(e.getMessage(),e);
+                        LOGGER.debug(e.getMessage(), e);
                     }
                 }
-                if  (content == null) {
-                    // this is over the top as a disposable iterator should close auto
-                    childContent.close();
+                if (!batch.hasNext()) {
                     close();
                     return false;
                 }
+                content = batch.next();
                 return true;
             }
 
@@ -280,38 +421,49 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
             protected Content internalNext() {
                 return content;
             }
+
+            @Override
+            public void close() {
+                structureRows.close();
+                super.close();
+            }
         };
     }
 
+    public Iterator<Content> listChildren(String path) throws StorageClientException {
+        return getBatched(client.listChildren(keySpace, contentColumnFamily, path));
+    }
+
     public Iterator<String> listChildPaths(final String path) throws StorageClientException {
-        final Iterator<Map<String, Object>> childContent = client.listChildren(keySpace,
-                contentColumnFamily, path);
+        final Iterator<String> childPaths = listAllChildPaths(path);
         return new PreemptiveIterator<String>() {
 
+            private Iterator<String> batch = Iterators.emptyIterator();
             private String childPath;
 
             @Override
             protected boolean internalHasNext() {
-                while(childContent.hasNext()) {
+                // read permissions are checked a batch of children at a time
+                // so that the children share the ACL lookups of their parents.
+                while (!batch.hasNext() && childPaths.hasNext()) {
+                    List<String> testChildPaths = Lists.newArrayListWithCapacity(RESULT_BATCH_SIZE);
+                    while (testChildPaths.size() < RESULT_BATCH_SIZE && childPaths.hasNext()) {
+                        testChildPaths.add(childPaths.next());
+                    }
                     try {
-                        Map<String, Object> structureMap = childContent.next();
-                        LOGGER.debug("Loaded Next child of {} as {} ", path, structureMap);
-                        if ( structureMap != null && structureMap.size() > 0 ) {
-                            String testChildPath = (String) structureMap.get(PATH_FIELD);
-                                accessControlManager.check(Security.ZONE_CONTENT, testChildPath, Permissions.CAN_READ);
-                                childPath = testChildPath;
-                                // this is not that efficient since it requires the map is
-                                // loaded, at the moment I dont have a way round this with the
-                                // underlying index strucutre.
-                                LOGGER.debug("Got Next Child of {} as {} ", path, childPath);
-                                return true;
-                        }
-                    } catch (AccessDeniedException e) {
-                        LOGGER.debug(e.getMessage(),e);
+                        batch = Iterators.forArray(accessControlManager.filterPermitted(
+                                Security.ZONE_CONTENT,
+                                testChildPaths.toArray(new String[testChildPaths.size()]),
+                                Permissions.CAN_READ));
                     } catch (StorageClientException e) {
                         LOGGER.debug(e.getMessage(),e);
                     }
                 }
+                if (batch.hasNext()) {
+                    childPath = batch.next();
+                    LOGGER.debug("Got Next Child of {} as {} ", path, childPath);
+                    return true;
+                }
                 LOGGER.debug("No more");
                 childPath = null;
                 close();
@@ -325,6 +477,96 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
         };
     }
     
+    /**
+     * @return true if the migration that indexes the names of rows stored
+     *         before the names were indexed has been run.
+     */
+    private boolean isChildNameIndexed() throws StorageClientException {
+        if (!childNamesIndexed) {
+            Map<String, Object> log = getCached(keySpace, contentColumnFamily,
+                    StorageClientUtils.newPath(MigrationLogger.LOG_ROOT_PATH,
+                            ChildNameIndexMigrator.class.getName()));
+            childNamesIndexed = log != null && log.size() > 0;
+        }
+        return childNamesIndexed;
+    }
+
+    /**
+     * @return the paths of all the children of the path, unchecked, read a page
+     *         at a time from the index where the client can, otherwise from the
+     *         child structure rows.
+     */
+    private Iterator<String> listAllChildPaths(final String path) throws StorageClientException {
+        if (client instanceof ChildPathLister && isChildNameIndexed()) {
+            final ChildPathLister lister = (ChildPathLister) client;
+            final List<String> firstPage = lister.listChildPaths(keySpace, contentColumnFamily,
+                    path, null, RESULT_BATCH_SIZE);
+            if (firstPage != null) {
+                return new PreemptiveIterator<String>() {
+
+                    private List<String> page = firstPage;
+                    private Iterator<String> paths = firstPage.iterator();
+                    private String childPath;
+
+                    @Override
+                    protected boolean internalHasNext() {
+                        if (!paths.hasNext() && page.size() == RESULT_BATCH_SIZE) {
+                            try {
+                                page = lister.listChildPaths(keySpace, contentColumnFamily,
+                                        path, page.get(page.size() - 1), RESULT_BATCH_SIZE);
+                            } catch (StorageClientException e) {
+                                LOGGER.debug(e.getMessage(), e);
+                                page = null;
+                            }
+                            if (page == null) {
+                                page = ImmutableList.of();
+                            }
+                            paths = page.iterator();
+                        }
+                        if (paths.hasNext()) {
+                            childPath = paths.next();
+                            return true;
+                        }
+                        childPath = null;
+                        close();
+                        return false;
+                    }
+
+                    @Override
+                    protected String internalNext() {
+                        return childPath;
+                    }
+                };
+            }
+        }
+        final Iterator<Map<String, Object>> childContent = client.listChildren(keySpace,
+                contentColumnFamily, path);
+        return new PreemptiveIterator<String>() {
+
+            private String childPath;
+
+            @Override
+            protected boolean internalHasNext() {
+                while (childContent.hasNext()) {
+                    Map<String, Object> structureMap = childContent.next();
+                    LOGGER.debug("Loaded Next child of {} as {} ", path, structureMap);
+                    if (structureMap != null && structureMap.size() > 0) {
+                        childPath = (String) structureMap.get(PATH_FIELD);
+                        return true;
+                    }
+                }
+                childPath = null;
+                close();
+                return false;
+            }
+
+            @Override
+            protected String internalNext() {
+                return childPath;
+            }
+        };
+    }
+
     public void triggerRefresh(String path) throws StorageClientException, AccessDeniedException {
         Content c = get(path);
         if ( c != null ) {
@@ -382,14 +624,7 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
             }
             toSave =  Maps.newHashMap(content.getPropertiesForUpdate());
             id = StorageClientUtils.getInternalUuid();
-            // if the user is admin we allow overwriting of protected fields. This should allow content migration.
-            setField(toSave, Content.getUuidField(), id);
-            toSave.put(PATH_FIELD, path);
-            setField(toSave, CREATED_FIELD, System.currentTimeMillis());
-            setField(toSave, CREATED_BY_FIELD, accessControlManager.getCurrentUserId());
-            setField(toSave, LASTMODIFIED_FIELD, System.currentTimeMillis());
-            setField(toSave, LASTMODIFIED_BY_FIELD,
-                    accessControlManager.getCurrentUserId());
+            setNewContentFields(toSave, id, path);
             LOGGER.debug("New Content with {} {} ", id, toSave);
         } else if (content.isUpdated()) {
             originalProperties = content.getOriginalProperties();
@@ -431,6 +666,17 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
     }
     
 
+    private void setNewContentFields(Map<String, Object> toSave, String id, String path) {
+        // if the user is admin we allow overwriting of protected fields. This should allow content migration.
+        setField(toSave, Content.getUuidField(), id);
+        toSave.put(PATH_FIELD, path);
+        setField(toSave, CREATED_FIELD, System.currentTimeMillis());
+        setField(toSave, CREATED_BY_FIELD, accessControlManager.getCurrentUserId());
+        setField(toSave, LASTMODIFIED_FIELD, System.currentTimeMillis());
+        setField(toSave, LASTMODIFIED_BY_FIELD,
+                accessControlManager.getCurrentUserId());
+    }
+
     private void setField(Map<String, Object> toSave, String field, Object value) {
         if ( maintanenceMode && toSave.containsKey(field)) {
             return;
@@ -469,14 +715,23 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
             throws StorageClientException, AccessDeniedException, IOException {
         checkOpen();
         accessControlManager.check(Security.ZONE_CONTENT, path, Permissions.CAN_WRITE);
-        Map<String, Object> structure = getCached(keySpace, contentColumnFamily, path);
+        long length = writeBodyInternal(path, in, streamId);
+        eventListener.onUpdate(Security.ZONE_CONTENT, path, accessControlManager.getCurrentUserId(), false, null, "stream", streamId);
+        return length;
+    }
+
+    private long writeBodyInternal(String path, InputStream in, String streamId)
+            throws StorageClientException, AccessDeniedException, IOException {
+        Map<String, Map<String, Object>> rows = resolve(path);
+        Map<String, Object> structure = rows.get(path);
         if ( structure == null || structure.size() == 0 ) {
             Content content = new Content(path,null);
             update(content);
-            structure = getCached(keySpace, contentColumnFamily, path);
+            rows = resolve(path);
+            structure = rows.get(path);
         }
         String contentId = (String)structure.get(STRUCTURE_UUID_FIELD);
-        Map<String, Object> content = getCached(keySpace, contentColumnFamily, contentId);
+        Map<String, Object> content = rows.get(contentId);
         boolean isnew = true;
         String blockIdField = StorageClientUtils.getAltField(BLOCKID_FIELD, streamId);
         if (content.containsKey(blockIdField)) {
@@ -502,7 +757,6 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
         if (metadata.containsKey(lengthFieldName)) {
           length = (Long) metadata.get(lengthFieldName);
         }
-        eventListener.onUpdate(Security.ZONE_CONTENT, path, accessControlManager.getCurrentUserId(), false, null, "stream", streamId);
         return length;
 
     }
@@ -516,15 +770,21 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
             AccessDeniedException, IOException {
         checkOpen();
         accessControlManager.check(Security.ZONE_CONTENT, path, Permissions.CAN_READ);
-        Map<String, Object> structure = getCached(keySpace, contentColumnFamily, path);
+        Map<String, Map<String, Object>> rows = resolve(path);
+        Map<String, Object> structure = rows.get(path);
         LOGGER.debug("Structure Loaded {} {} ", path, structure);
         String contentId = (String)structure.get(STRUCTURE_UUID_FIELD);
-        return internalGetInputStream(contentId, streamId);
+        return internalGetInputStream(contentId, rows.get(contentId), streamId);
     }
 
     private InputStream internalGetInputStream(String contentId, String streamId)
             throws StorageClientException, AccessDeniedException, IOException {
-        Map<String, Object> content = getCached(keySpace, contentColumnFamily, contentId);
+        return internalGetInputStream(contentId,
+                getCached(keySpace, contentColumnFamily, contentId), streamId);
+    }
+
+    private InputStream internalGetInputStream(String contentId, Map<String, Object> content,
+            String streamId) throws StorageClientException, AccessDeniedException, IOException {
         String contentBlockId = (String)content.get(StorageClientUtils
                 .getAltField(BLOCKID_FIELD, streamId));
         return client.streamBodyOut(keySpace, contentColumnFamily, contentId, contentBlockId, streamId,
@@ -564,9 +824,41 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
            delete(to);
         }
         Set<String> streams = Sets.newHashSet();
+        Map<String, Object> copyProperties = getCopyProperties(from, f.getProperties(),
+                withStreams, streams);
+        t = new Content(to, copyProperties);
+        update(t);
+        LOGGER.debug("Copy Updated {} {} ",to,t);
+
+        for (String stream : streams) {
+            String streamId = null;
+            if (stream.length() > BLOCKID_FIELD.length()) {
+                streamId = stream.substring(BLOCKID_FIELD.length() + 1);
+            }
+            InputStream fromStream = getInputStream(from, streamId);
+            writeBody(to, fromStream);
+            fromStream.close();
+        }
+        eventListener.onUpdate(Security.ZONE_CONTENT, to, accessControlManager.getCurrentUserId(), true, null, "op:copy");
+
+    }
+
+    /**
+     * @param from
+     *            the path copied from.
+     * @param properties
+     *            the properties of the content copied.
+     * @param withStreams
+     *            true if the streams are copied rather than shared.
+     * @param streams
+     *            the stream block fields to copy are added to this set.
+     * @return the properties of the copy.
+     */
+    private Map<String, Object> getCopyProperties(String from, Map<String, Object> properties,
+            boolean withStreams, Set<String> streams) {
         Map<String, Object> copyProperties = Maps.newHashMap();
         if (withStreams) {
-            for (Entry<String, Object> p : f.getProperties().entrySet()) {
+            for (Entry<String, Object> p : properties.entrySet()) {
                 // Protected fields (such as ID and path) will differ between
                 // the source and destination, so don't copy them.
                 if (!PROTECTED_FIELDS.contains(p.getKey())) {
@@ -578,26 +870,12 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
                 }
             }
         } else {
-            copyProperties.putAll(f.getProperties());
+            copyProperties.putAll(properties);
         }
         copyProperties.put(COPIED_FROM_PATH_FIELD, from);
-        copyProperties.put(COPIED_FROM_ID_FIELD, f.getProperty(Content.getUuidField()));
+        copyProperties.put(COPIED_FROM_ID_FIELD, properties.get(Content.getUuidField()));
         copyProperties.put(COPIED_DEEP_FIELD, withStreams);
-        t = new Content(to, copyProperties);
-        update(t);
-        LOGGER.debug("Copy Updated {} {} ",to,t);
-
-        for (String stream : streams) {
-            String streamId = null;
-            if (stream.length() > BLOCKID_FIELD.length()) {
-                streamId = stream.substring(BLOCKID_FIELD.length() + 1);
-            }
-            InputStream fromStream = getInputStream(from, streamId);
-            writeBody(to, fromStream);
-            fromStream.close();
-        }
-        eventListener.onUpdate(Security.ZONE_CONTENT, to, accessControlManager.getCurrentUserId(), true, null, "op:copy");
-
+        return copyProperties;
     }
 
     // TODO: Unit test
@@ -621,19 +899,7 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
         String idStore = (String) fromStructure.get(STRUCTURE_UUID_FIELD);
 
         // move the conent to the new location, then delete the old.
-        if (!StorageClientUtils.isRoot(to)) {
-            // if not a root, modify the new parent location, creating the
-            // structured if necessary
-            String parent = StorageClientUtils.getParentObjectPath(to);
-            Map<String, Object> parentToStructure = getCached(keySpace, contentColumnFamily,
-                    parent);
-            if (parentToStructure == null || parentToStructure.size() == 0) {
-                // create a new parent
-                Content content = new Content(parent, null);
-                update(content);
-            }
-
-        }
+        createParent(to);
         // update the content data to reflect the new primary location.
         putCached(keySpace, contentColumnFamily, idStore,
                 ImmutableMap.of(PATH_FIELD, (Object)to), false);
@@ -650,26 +916,396 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
 
     }
 
-  public List<ActionRecord> moveWithChildren(String from, String to)
-      throws AccessDeniedException,
-      StorageClientException {
-    List<ActionRecord> record = Lists.newArrayList();
+    private void createParent(String path) throws AccessDeniedException,
+            StorageClientException {
+        if (!StorageClientUtils.isRoot(path)) {
+            // if not a root, modify the new parent location, creating the
+            // structured if necessary
+            String parent = StorageClientUtils.getParentObjectPath(path);
+            Map<String, Object> parentStructure = getCached(keySpace, contentColumnFamily,
+                    parent);
+            if (parentStructure == null || parentStructure.size() == 0) {
+                // create a new parent
+                Content content = new Content(parent, null);
+                update(content);
+            }
+        }
+    }
+
+    public List<ActionRecord> moveWithChildren(final String from, final String to)
+            throws AccessDeniedException, StorageClientException {
+        checkOpen();
+        List<String> paths = listSubtree(from);
+        if (paths.size() == 0) {
+            throw new StorageClientException("The source content to move from " + from
+                    + " does not exist, move operation failed");
+        }
+        List<String> targets = getTargets(paths, from, to);
+        checkAll(paths, Permissions.CAN_ANYTHING);
+        checkAll(targets, Permissions.CAN_READ.combine(Permissions.CAN_WRITE));
+        for (Entry<String, Map<String, Object>> e : getCached(keySpace, contentColumnFamily,
+                targets).entrySet()) {
+            if (e.getValue() != null && e.getValue().size() > 0) {
+                throw new StorageClientException("The destination content to move to "
+                        + e.getKey() + "  exists, move operation failed");
+            }
+        }
+        createParent(to);
+        return writeSubtree(paths, targets, new SubtreeWriter() {
+            public void write(List<String> paths, List<String> targets, Set<String> written)
+                    throws StorageClientException {
+                Map<String, Map<String, Object>> structures = getCached(keySpace,
+                        contentColumnFamily, paths);
+                for (int i = 0; i < paths.size(); i++) {
+                    String path = paths.get(i);
+                    String target = targets.get(i);
+                    if (structures.get(path) == null || structures.get(path).size() == 0) {
+                        throw new StorageClientException("The source content to move from "
+                                + path + " does not exist, move operation failed");
+                    }
+                    Map<String, Object> structure = Maps.newHashMap(structures.get(path));
+                    String idStore = (String) structure.get(STRUCTURE_UUID_FIELD);
+                    written.add(idStore);
+                    putCached(keySpace, contentColumnFamily, idStore,
+                            ImmutableMap.of(PATH_FIELD, (Object) target), false);
+                    structure.put(PATH_FIELD, target);
+                    putCached(keySpace, contentColumnFamily, target, structure, true);
+                    removeFromCache(keySpace, contentColumnFamily, path);
+                    client.remove(keySpace, contentColumnFamily, path);
+                }
+            }
+
+            public void done(List<ActionRecord> records) {
+                // one event for the whole subtree.
+                eventListener.onUpdate(Security.ZONE_CONTENT, to, accessControlManager
+                        .getCurrentUserId(), true, null, "op:move", "from:" + from, "items:"
+                        + records.size());
+            }
+        });
+    }
+
+    public List<ActionRecord> copyWithChildren(final String from, final String to,
+            final boolean withStreams) throws AccessDeniedException, StorageClientException,
+            IOException {
+        checkOpen();
+        List<String> paths = listSubtree(from);
+        if (paths.size() == 0) {
+            throw new StorageClientException(" Source content " + from + " does not exist");
+        }
+        List<String> targets = getTargets(paths, from, to);
+        checkAll(paths, Permissions.CAN_READ);
+        checkAll(targets, Permissions.CAN_WRITE);
+        createParent(to);
+        return writeSubtree(paths, targets, new SubtreeWriter() {
+            public void write(List<String> paths, List<String> targets, Set<String> written)
+                    throws StorageClientException, AccessDeniedException, IOException {
+                Map<String, Map<String, Object>> structures = getCached(keySpace,
+                        contentColumnFamily, paths);
+                Map<String, Map<String, Object>> contents = getCached(keySpace,
+                        contentColumnFamily, getContentIds(structures));
+                Map<String, Map<String, Object>> replaced = getCached(keySpace,
+                        contentColumnFamily, targets);
+                deleteStructures(replaced, written);
+                for (int i = 0; i < paths.size(); i++) {
+                    String path = paths.get(i);
+                    String target = targets.get(i);
+                    Map<String, Object> structure = structures.get(path);
+                    Map<String, Object> content = (structure == null) ? null : contents
+                            .get(structure.get(STRUCTURE_UUID_FIELD));
+                    if (content == null || content.get(Content.getUuidField()) == null) {
+                        LOGGER.warn("Bad Content item with no ID cant be copied {} ", path);
+                        continue;
+                    }
+                    Set<String> streams = Sets.newHashSet();
+                    Map<String, Object> toSave = getCopyProperties(path, content, withStreams,
+                            streams);
+                    String id = StorageClientUtils.getInternalUuid();
+                    setNewContentFields(toSave, id, target);
+                    written.add(id);
+                    putCached(keySpace, contentColumnFamily, target, ImmutableMap.of(
+                            STRUCTURE_UUID_FIELD, (Object) id, PATH_FIELD, target), true);
+                    putCached(keySpace, contentColumnFamily, id, toSave, true);
+                    for (String stream : streams) {
+                        String streamId = null;
+                        if (stream.length() > BLOCKID_FIELD.length()) {
+                            streamId = stream.substring(BLOCKID_FIELD.length() + 1);
+                        }
+                        InputStream fromStream = getInputStream(path, streamId);
+                        try {
+                            writeBodyInternal(target, fromStream, streamId);
+                        } finally {
+                            fromStream.close();
+                        }
+                    }
+                }
+            }
+
+            public void done(List<ActionRecord> records) {
+                eventListener.onUpdate(Security.ZONE_CONTENT, to, accessControlManager
+                        .getCurrentUserId(), true, null, "op:copy", "from:" + from, "items:"
+                        + records.size());
+            }
+        });
+    }
+
+    public List<ActionRecord> deleteWithChildren(final String path) throws AccessDeniedException,
+            StorageClientException {
+        checkOpen();
+        List<String> paths = listSubtree(path);
+        if (paths.size() == 0) {
+            return Lists.newArrayList();
+        }
+        checkAll(paths, Permissions.CAN_DELETE);
+        Map<String, Object> content = getCached(keySpace, contentColumnFamily,
+                (String) getCached(keySpace, contentColumnFamily, path).get(STRUCTURE_UUID_FIELD));
+        final Map<String, Object> contentBeforeDelete = (content == null) ? null : ImmutableMap
+                .copyOf(content);
+        final String resourceType = (content == null) ? null : (String) content
+                .get("sling:resourceType");
+        return writeSubtree(paths, null, new SubtreeWriter() {
+            public void write(List<String> paths, List<String> targets, Set<String> written)
+                    throws StorageClientException {
+                deleteStructures(getCached(keySpace, contentColumnFamily, paths), written);
+            }
+
+            public void done(List<ActionRecord> records) {
+                // one event for the whole subtree, typed like the event of a single delete.
+                if (resourceType != null) {
+                    eventListener.onDelete(Security.ZONE_CONTENT, path, accessControlManager
+                            .getCurrentUserId(), contentBeforeDelete, "resourceType:"
+                            + resourceType, "op:delete", "items:" + records.size());
+                } else {
+                    eventListener.onDelete(Security.ZONE_CONTENT, path, accessControlManager
+                            .getCurrentUserId(), contentBeforeDelete, "op:delete", "items:"
+                            + records.size());
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes part of a subtree.
+     */
+    private interface SubtreeWriter {
+        /**
+         * @param paths
+         *            the paths of the items to write.
+         * @param targets
+         *            the paths the items are written to, or null.
+         * @param written
+         *            the keys of any rows written other than the paths and
+         *            targets are added to this set.
+         */
+        void write(List<String> paths, List<String> targets, Set<String> written)
+                throws StorageClientException, AccessDeniedException, IOException;
+
+        /**
+         * Called once the subtree, or the part of it written before a
+         * failure, has been written.
+         * 
+         * @param records
+         *            a record of each item written, bottom up.
+         */
+        void done(List<ActionRecord> records);
+    }
 
-    move(from, to);
+    /**
+     * Write a subtree a batch of items at a time, each batch in a transaction,
+     * or an item at a time where the store has no transactions. A failure
+     * leaves the batches already written in place, and once any batch has been
+     * written is reported with a {@link PartialActionException} that lists
+     * them.
+     * 
+     * @return a record of each item written, bottom up.
+     */
+    private List<ActionRecord> writeSubtree(List<String> paths, List<String> targets,
+            SubtreeWriter writer) throws StorageClientException, AccessDeniedException {
+        List<ActionRecord> records = Lists.newArrayListWithCapacity(paths.size());
+        try {
+            writeBatches(paths, targets, writer, records);
+        } catch (StorageClientException e) {
+            if (records.isEmpty()) {
+                throw e;
+            }
+            throw partialFailure(paths, writer, records, e);
+        } catch (AccessDeniedException e) {
+            if (records.isEmpty()) {
+                throw e;
+            }
+            throw partialFailure(paths, writer, records, e);
+        }
+        // children before their parents.
+        Collections.reverse(records);
+        writer.done(records);
+        return records;
+    }
 
-    PreemptiveIterator<String> iter = (PreemptiveIterator<String>) listChildPaths(from);
-    while (iter.hasNext()) {
-      String childPath = iter.next();
+    private PartialActionException partialFailure(List<String> paths, SubtreeWriter writer,
+            List<ActionRecord> records, Exception e) {
+        LOGGER.warn("Failed after {} of {} items under {} ", new Object[] { records.size(),
+                paths.size(), paths.get(0) });
+        Collections.reverse(records);
+        writer.done(records);
+        return new PartialActionException("Failed after " + records.size() + " of "
+                + paths.size() + " items under " + paths.get(0) + ": " + e.getMessage(), e,
+                records);
+    }
 
-      // Since this is a direct child of the previous from, only the last token needs to
-      // be appended to "to"
-      record.addAll(moveWithChildren(childPath,
-          to.concat(childPath.substring(childPath.lastIndexOf("/")))));
+    private void writeBatches(List<String> paths, List<String> targets, SubtreeWriter writer,
+            List<ActionRecord> records) throws StorageClientException, AccessDeniedException {
+        // without transactions a failed batch would be partly written, so
+        // write an item at a time to know exactly what was done.
+        int batchSize = (client instanceof Transactional) ? SUBTREE_BATCH_SIZE : 1;
+        for (int start = 0; start < paths.size(); start += batchSize) {
+            int end = Math.min(paths.size(), start + batchSize);
+            List<String> batchPaths = paths.subList(start, end);
+            List<String> batchTargets = (targets == null) ? null : targets.subList(start, end);
+            Set<String> written = Sets.newHashSet();
+            boolean committed = false;
+            if (client instanceof Transactional) {
+                ((Transactional) client).begin();
+            }
+            try {
+                writer.write(batchPaths, batchTargets, written);
+                if (client instanceof Transactional) {
+                    ((Transactional) client).commit();
+                }
+                committed = true;
+            } catch (IOException e) {
+                throw new StorageClientException(e.getMessage(), e);
+            } finally {
+                if (!committed && client instanceof Transactional) {
+                    ((Transactional) client).rollback();
+                }
+                // until the batch was committed or rolled back, readers here and on other
+                // nodes could cache the rows as they were before, so clear them now.
+                written.addAll(batchPaths);
+                if (batchTargets != null) {
+                    written.addAll(batchTargets);
+                }
+                for (String key : written) {
+                    removeFromCache(keySpace, contentColumnFamily, key);
+                }
+            }
+            for (int i = 0; i < batchPaths.size(); i++) {
+                records.add(new ActionRecord(batchPaths.get(i), (batchTargets == null) ? null
+                        : batchTargets.get(i)));
+            }
+            LOGGER.debug("Written {} of {} items under {} ", new Object[] { end, paths.size(),
+                    paths.get(0) });
+        }
     }
 
-    record.add(new ActionRecord(from, to));
-    return record;
-  }
+    private void deleteStructures(Map<String, Map<String, Object>> structures, Set<String> written)
+            throws StorageClientException {
+        for (Entry<String, Map<String, Object>> e : structures.entrySet()) {
+            Map<String, Object> structure = e.getValue();
+            if (structure != null && structure.size() > 0) {
+                String uuid = (String) structure.get(STRUCTURE_UUID_FIELD);
+                written.add(uuid);
+                markDeleted(keySpace, contentColumnFamily, e.getKey());
+                client.remove(keySpace, contentColumnFamily, e.getKey());
+                putCached(keySpace, contentColumnFamily, uuid,
+                        ImmutableMap.of(DELETED_FIELD, (Object) TRUE), false);
+            }
+        }
+    }
+
+    private List<String> getContentIds(Map<String, Map<String, Object>> structures) {
+        List<String> contentIds = Lists.newArrayListWithCapacity(structures.size());
+        for (Map<String, Object> structure : structures.values()) {
+            if (structure != null && structure.get(STRUCTURE_UUID_FIELD) != null) {
+                contentIds.add((String) structure.get(STRUCTURE_UUID_FIELD));
+            }
+        }
+        return contentIds;
+    }
+
+    /**
+     * @return the paths of the content in the subtree, parents before their
+     *         children, or an empty list if there is no content at the path.
+     */
+    private List<String> listSubtree(String path) throws StorageClientException {
+        List<String> paths = Lists.newArrayList();
+        Map<String, Object> structure = getCached(keySpace, contentColumnFamily, path);
+        if (structure == null || structure.size() == 0) {
+            return paths;
+        }
+        paths.add(path);
+        for (int i = 0; i < paths.size(); i++) {
+            DisposableIterator<Map<String, Object>> children = listAllChildren(paths.get(i));
+            try {
+                while (children.hasNext()) {
+                    Map<String, Object> child = children.next();
+                    if (child != null && child.containsKey(STRUCTURE_UUID_FIELD)
+                            && child.get(PATH_FIELD) instanceof String) {
+                        paths.add((String) child.get(PATH_FIELD));
+                    }
+                }
+            } finally {
+                children.close();
+            }
+        }
+        return paths;
+    }
+
+    private DisposableIterator<Map<String, Object>> listAllChildren(String path)
+            throws StorageClientException {
+        if (client instanceof RowHasher) {
+            // the parent hash is the auto index behind listChildren, finding
+            // on it pages through all the children.
+            String hash = ((RowHasher) client).rowHash(keySpace, contentColumnFamily, path);
+            return new PagedFindIterator<Map<String, Object>>(client, keySpace,
+                    contentColumnFamily, ImmutableMap.of(InternalContent.PARENT_HASH_FIELD,
+                            (Object) hash, StorageConstants.ITEMS, SUBTREE_PAGE_SIZE), -1) {
+                @Override
+                protected DisposableIterator<Map<String, Object>> getResults(
+                        DisposableIterator<Map<String, Object>> rows) {
+                    return rows;
+                }
+            };
+        }
+        return client.listChildren(keySpace, contentColumnFamily, path);
+    }
+
+    private List<String> getTargets(List<String> paths, String from, String to)
+            throws StorageClientException {
+        if (to.startsWith(from + "/")) {
+            throw new StorageClientException("Cant copy or move " + from + " into itself at "
+                    + to);
+        }
+        List<String> targets = Lists.newArrayListWithCapacity(paths.size());
+        for (String path : paths) {
+            targets.add(to + path.substring(from.length()));
+        }
+        return targets;
+    }
+
+    /**
+     * Check the user has the permission on every path.
+     * 
+     * @throws AccessDeniedException
+     *             for the first path the user does not have the permission
+     *             on.
+     */
+    private void checkAll(List<String> paths, Permission permission)
+            throws AccessDeniedException, StorageClientException {
+        for (int start = 0; start < paths.size(); start += SUBTREE_PAGE_SIZE) {
+            List<String> batch = paths.subList(start, Math.min(paths.size(), start
+                    + SUBTREE_PAGE_SIZE));
+            String[] permitted = accessControlManager.filterPermitted(Security.ZONE_CONTENT,
+                    batch.toArray(new String[batch.size()]), permission);
+            if (permitted.length != batch.size()) {
+                Set<String> permittedPaths = ImmutableSet.copyOf(permitted);
+                for (String path : batch) {
+                    if (!permittedPaths.contains(path)) {
+                        throw new AccessDeniedException(Security.ZONE_CONTENT, path,
+                                permission.getName(), accessControlManager.getCurrentUserId());
+                    }
+                }
+            }
+        }
+    }
 
     // TODO: Unit test
     public void link(String from, String to) throws AccessDeniedException, StorageClientException {
@@ -877,6 +1513,11 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
         return LOGGER;
     }
 
+    @Override
+    protected String getCacheName() {
+        return CacheStatisticsService.CONTENT_CACHE;
+    }
+
     public Iterable<Content> find(Map<String, Object> searchProperties) throws StorageClientException,
         AccessDeniedException {
       checkOpen();
@@ -884,49 +1525,20 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
       return new Iterable<Content>() {
 
         public Iterator<Content> iterator() {
-            Iterator<Content> contentResultsIterator = null;
-            try {
-              final DisposableIterator<Map<String,Object>> clientSearchKeysIterator = client.find(keySpace, contentColumnFamily, finalSearchProperties);
-              contentResultsIterator = new PreemptiveIterator<Content>() {
-                  Content contentResult;
-
-                  protected boolean internalHasNext() {
-                      contentResult = null;
-                      while (contentResult == null && clientSearchKeysIterator.hasNext()) {
-                          try {
-                              Map<String, Object> structureMap = clientSearchKeysIterator.next();
-                              LOGGER.debug("Loaded Next as {} ", structureMap);
-                              if ( structureMap != null && structureMap.size() > 0 ) {
-                                  String path = (String) structureMap.get(PATH_FIELD);
-                                  contentResult = get(path);
-                              }
-                          } catch (AccessDeniedException e) {
-                              LOGGER.debug(e.getMessage(),e);
-                          } catch (StorageClientException e) {
-                              LOGGER.debug(e.getMessage(),e);
-                          }
-                      }
-                      if (contentResult == null) {
-                          close();
-                          return false;
-                      }
-                      return true;
-                  }
-
-                  protected Content internalNext() {
-                      return contentResult;
-                  }
-                  
-                  @Override
-                  public void close() {
-                      clientSearchKeysIterator.close();
-                      super.close();
-                  };
-              };
-            } catch (StorageClientException e) {
-              LOGGER.error("Unable to iterate over sparsemap search results.", e);
-            }
-            return contentResultsIterator;
+            // content that cant be read is filtered from each page, and the
+            // page filled from the rows that follow.
+            long items = PagedFindIterator.DEFAULT_ITEMS;
+            if (finalSearchProperties.containsKey(StorageConstants.ITEMS)) {
+              items = Long.valueOf(String.valueOf(finalSearchProperties.get(StorageConstants.ITEMS)));
+            }
+            return new PagedFindIterator<Content>(client, keySpace, contentColumnFamily,
+                    finalSearchProperties, items) {
+              @Override
+              protected DisposableIterator<Content> getResults(
+                      DisposableIterator<Map<String, Object>> rows) {
+                return getBatched(rows);
+              }
+            };
         }
     };
     }
@@ -62,11 +62,21 @@ public class InternalContent {
      * The parent path (
      */
     public static final String PARENT_HASH_FIELD = INTERNAL_FIELD_PREFIX + "parenthash";
+    /**
+     * The name of the row within its parent, indexed alongside the parent hash
+     * so that child paths can be listed from the index.
+     */
+    public static final String CHILD_NAME_FIELD = INTERNAL_FIELD_PREFIX + "childname";
 
     /**
      * content item ID referenced by a Structure item
      */
     public static final String STRUCTURE_UUID_FIELD = INTERNAL_FIELD_PREFIX + "cid";
+    /**
+     * The row hash of the content item referenced by a Structure item, indexed
+     * so that both can be loaded together.
+     */
+    public static final String STRUCTURE_UUID_HASH_FIELD = INTERNAL_FIELD_PREFIX + "cidhash";
     /**
      * Where a structure object is a link, this field contains the location of
      * the target of the link
@@ -26,10 +26,20 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.api.lite.CacheInvalidationTransport;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Configuration;
+import org.sakaiproject.nakamura.api.lite.StorageCacheManager;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.lite.CacheInvalidationBus;
+import org.sakaiproject.nakamura.lite.CacheLoadCoalescer;
+import org.sakaiproject.nakamura.lite.NegativeCache;
+import org.sakaiproject.nakamura.lite.accesscontrol.CompiledPermissionCache;
 import org.sakaiproject.nakamura.lite.types.StringType;
+import org.sakaiproject.nakamura.lite.types.Types;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -64,6 +74,61 @@ public abstract class AbstractClientConnectionPool implements StorageClientPool
     private static final String WHEN_EHAUSTED = "when-exhausted-action";
     @Property(intValue = 0)
     private static final String LONG_STRING_SIZE = "long-string-size";
+    /**
+     * The format rows are written in, 1 while nodes running older versions
+     * still need to read them, otherwise 2. Both formats are always read.
+     */
+    @Property(intValue = 2)
+    private static final String ROW_FORMAT_VERSION = "row-format-version";
+    /**
+     * The maximum number of entries in the default shared cache.
+     */
+    @Property(intValue = 10000)
+    private static final String CACHE_MAX_ENTRIES = "cache-max-entries";
+    /**
+     * The maximum estimated size in bytes of all the rows in the default shared cache.
+     */
+    @Property(longValue = 67108864)
+    private static final String CACHE_MAX_WEIGHT = "cache-max-weight";
+    /**
+     * The estimated size in bytes above which a row will not be cached.
+     */
+    @Property(longValue = 1048576)
+    private static final String CACHE_MAX_ROW_SIZE = "cache-max-row-size";
+    /**
+     * The maximum number of keys remembered as not found, for each shared cache.
+     */
+    @Property(intValue = 10000)
+    private static final String NEGATIVE_CACHE_MAX_ENTRIES = "negative-cache-max-entries";
+    /**
+     * How long, in ms, a key is remembered as not found, 0 disables negative caching.
+     */
+    @Property(longValue = 60000)
+    private static final String NEGATIVE_CACHE_TTL = "negative-cache-ttl";
+    /**
+     * The maximum number of compiled permissions shared by all sessions, 0
+     * disables the cache.
+     */
+    @Property(intValue = 10000)
+    private static final String PERMISSION_CACHE_MAX_ENTRIES = "permission-cache-max-entries";
+    /**
+     * The longest time, in ms, a session waits for another session loading the
+     * same row before loading it itself, 0 disables coalescing of loads.
+     */
+    @Property(longValue = 5000)
+    private static final String CACHE_LOAD_WAIT = "cache-load-wait";
+    /**
+     * The maximum time, in ms, local cache invalidations are held before being
+     * sent to other nodes.
+     */
+    @Property(longValue = 50)
+    private static final String INVALIDATION_FLUSH_INTERVAL = "invalidation-flush-interval";
+    /**
+     * The number of distinct local cache invalidations that are sent to other
+     * nodes immediately.
+     */
+    @Property(intValue = 1000)
+    private static final String INVALIDATION_MAX_BATCH = "invalidation-max-batch";
 
     public  static final String DEFAULT_FILE_STORE = "store";
     @Property(value = "store")
@@ -72,6 +137,11 @@ public abstract class AbstractClientConnectionPool implements StorageClientPool
     @Reference
     private Configuration configuration;
 
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC, bind = "bindInvalidationTransport", unbind = "unbindInvalidationTransport")
+    private CacheInvalidationTransport invalidationTransport;
+
+    private CacheInvalidationBus invalidationBus;
+
     private Set<String> indexColumns;
 
 
@@ -80,6 +150,12 @@ public abstract class AbstractClientConnectionPool implements StorageClientPool
 
     private Set<String> indexColumnsTypes;
 
+    private int cacheMaxEntries;
+
+    private long cacheMaxWeight;
+
+    private long cacheMaxRowSize;
+
 
     public AbstractClientConnectionPool() {
     }
@@ -119,7 +195,41 @@ public abstract class AbstractClientConnectionPool implements StorageClientPool
         
         // set the maximum size of a string, if this is not 0, strings over this size will become files.
         StringType.setLengthLimit(StorageClientUtils.getSetting(properties.get(LONG_STRING_SIZE),0));
+        Types.setFormatVersion(StorageClientUtils.getSetting(properties.get(ROW_FORMAT_VERSION), Types.FORMAT_V2));
+
+        cacheMaxEntries = StorageClientUtils.getSetting(properties.get(CACHE_MAX_ENTRIES), 10000);
+        cacheMaxWeight = StorageClientUtils.getSetting(properties.get(CACHE_MAX_WEIGHT), 67108864L);
+        cacheMaxRowSize = StorageClientUtils.getSetting(properties.get(CACHE_MAX_ROW_SIZE), 1048576L);
+        NegativeCache.configure(
+                StorageClientUtils.getSetting(properties.get(NEGATIVE_CACHE_MAX_ENTRIES), 10000),
+                StorageClientUtils.getSetting(properties.get(NEGATIVE_CACHE_TTL), 60000L));
+        CacheLoadCoalescer.configure(StorageClientUtils.getSetting(
+                properties.get(CACHE_LOAD_WAIT), 5000L));
+        CompiledPermissionCache.configure(StorageClientUtils.getSetting(
+                properties.get(PERMISSION_CACHE_MAX_ENTRIES), 10000));
 
+        synchronized (this) {
+            invalidationBus = new CacheInvalidationBus(StorageClientUtils.getSetting(
+                    properties.get(INVALIDATION_FLUSH_INTERVAL), 50L),
+                    StorageClientUtils.getSetting(properties.get(INVALIDATION_MAX_BATCH), 1000));
+            invalidationBus.setTransport(invalidationTransport);
+        }
+    }
+
+    protected synchronized void bindInvalidationTransport(CacheInvalidationTransport transport) {
+        invalidationTransport = transport;
+        if (invalidationBus != null) {
+            invalidationBus.setTransport(transport);
+        }
+    }
+
+    protected synchronized void unbindInvalidationTransport(CacheInvalidationTransport transport) {
+        if (invalidationTransport == transport) {
+            invalidationTransport = null;
+        }
+        if (invalidationBus != null) {
+            invalidationBus.unsetTransport(transport);
+        }
     }
 
 
@@ -127,6 +237,12 @@ public abstract class AbstractClientConnectionPool implements StorageClientPool
 
     @Deactivate
     public void deactivate(Map<String, Object> properties) {
+        synchronized (this) {
+            if (invalidationBus != null) {
+                invalidationBus.close();
+                invalidationBus = null;
+            }
+        }
         try {
             pool.clear();
             pool.close();
@@ -136,6 +252,34 @@ public abstract class AbstractClientConnectionPool implements StorageClientPool
         }
     }
 
+    /**
+     * @return a new cache, bounded by entries and by the estimated size of the
+     *         rows, for use where no {@link StorageCacheManager} has been
+     *         provided.
+     */
+    protected Map<String, CacheHolder> newSharedCache() {
+        return new ConcurrentClockMap<String, CacheHolder>(cacheMaxEntries, cacheMaxWeight,
+                cacheMaxRowSize, new CacheHolderWeigher());
+    }
+
+    /**
+     * Attach the caches of a {@link StorageCacheManager} to the cache
+     * invalidation bus of this pool, so that writes through them are seen by
+     * other nodes.
+     * 
+     * @param storageCacheManager
+     * @return the storageCacheManager
+     */
+    protected StorageCacheManager registerCaches(StorageCacheManager storageCacheManager) {
+        CacheInvalidationBus bus = invalidationBus;
+        if (bus != null && storageCacheManager != null) {
+            bus.register(storageCacheManager.getAccessControlCache());
+            bus.register(storageCacheManager.getAuthorizableCache());
+            bus.register(storageCacheManager.getContentCache());
+        }
+        return storageCacheManager;
+    }
+
     public Set<String> getIndexColumns() {
         return indexColumns;
     }
@@ -0,0 +1,41 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage;
+
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.lite.types.Types;
+
+/**
+ * Weighs a {@link CacheHolder} by the estimated size in bytes of the row it
+ * holds, so that caches can be bounded by memory rather than by the number of
+ * rows.
+ */
+public class CacheHolderWeigher implements ConcurrentClockMap.Weigher<CacheHolder> {
+
+    /**
+     * The estimated size of the holder itself and its cache key, which is also
+     * the weight of a holder for a missing or deleted row.
+     */
+    private static final int HOLDER_OVERHEAD = 128;
+
+    public int weigh(CacheHolder value) {
+        long size = HOLDER_OVERHEAD + Types.estimateSize(value.get());
+        return (int) Math.min(Integer.MAX_VALUE, size);
+    }
+
+}
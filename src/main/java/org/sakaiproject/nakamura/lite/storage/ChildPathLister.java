@@ -0,0 +1,50 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage;
+
+import java.util.List;
+
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+
+/**
+ * Implemented by storage clients that hold the names of the children of a row
+ * in their indexes, so that the paths of the children can be listed without
+ * loading the children.
+ */
+public interface ChildPathLister {
+
+    /**
+     * List a page of the paths of the children of a row, in name order.
+     * 
+     * @param keySpace
+     * @param columnFamily
+     * @param key
+     *            the key of the parent row.
+     * @param after
+     *            the last path of the previous page, or null for the first
+     *            page.
+     * @param limit
+     *            the maximum number of paths in the page.
+     * @return the paths, fewer than the limit on the last page, or null if the
+     *         children can only be listed by loading them.
+     * @throws StorageClientException
+     */
+    List<String> listChildPaths(String keySpace, String columnFamily, String key, String after,
+            int limit) throws StorageClientException;
+
+}
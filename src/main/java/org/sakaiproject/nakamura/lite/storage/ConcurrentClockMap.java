@@ -0,0 +1,495 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage;
+
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.collect.Sets;
+
+/**
+ * A bounded concurrent map that evicts using the CLOCK (second chance)
+ * algorithm, which approximates LRU.
+ * <p>
+ * The map is split into segments by key hash. Reads go straight to a
+ * {@link ConcurrentHashMap} and take no locks; they only set a referenced flag
+ * on the entry, and only when it is not already set. Writes lock their own
+ * segment and, if the segment is over its limits, advance the segment's clock
+ * hand, clearing referenced flags until an unreferenced entry is found and
+ * evicted. Every entry is passed over at most twice, so eviction is O(1)
+ * amortized and never sorts or copies the map.
+ * </p>
+ * <p>
+ * The map can be bounded by the number of entries and by the total weight of
+ * the values, as measured by a {@link Weigher}. Values heavier than the
+ * maximum entry weight, or than a whole segment, are not stored and any
+ * previous value for the key is removed. The {@link #entrySet()}, {@link #keySet()} and
+ * {@link #values()} views are snapshots.
+ * </p>
+ * <p>
+ * Each segment also indexes its entries by key hash, so entries can be
+ * removed knowing only the hash of their key, see {@link #removeByHash(int)},
+ * without scanning the map.
+ * </p>
+ * 
+ * @param <K>
+ * @param <V>
+ */
+public class ConcurrentClockMap<K, V> extends AbstractMap<K, V> {
+
+    /**
+     * Measures the weight of a value stored in the map.
+     * 
+     * @param <V>
+     */
+    public interface Weigher<V> {
+        /**
+         * @param value
+         * @return the weight of the value, must be 1 or more.
+         */
+        int weigh(V value);
+    }
+
+    private static final Weigher<Object> UNIT_WEIGHER = new Weigher<Object>() {
+        public int weigh(Object value) {
+            return 1;
+        }
+    };
+
+    private static final int MAX_SEGMENTS = 16;
+    private static final int MIN_SEGMENT_SIZE = 8;
+
+    private final Segment<K, V>[] segments;
+    private final Weigher<? super V> weigher;
+    private final int segmentMask;
+    private final long maxEntryWeight;
+
+    /**
+     * @param maxEntries
+     *            the maximum number of entries in the map.
+     */
+    public ConcurrentClockMap(int maxEntries) {
+        this(maxEntries, 0, UNIT_WEIGHER);
+    }
+
+    /**
+     * @param maxEntries
+     *            the maximum number of entries in the map.
+     * @param maxWeight
+     *            the maximum total weight of the values in the map, 0 for no
+     *            limit.
+     * @param weigher
+     *            used to weigh the values.
+     */
+    public ConcurrentClockMap(int maxEntries, long maxWeight, Weigher<? super V> weigher) {
+        this(maxEntries, maxWeight, 0, weigher);
+    }
+
+    /**
+     * @param maxEntries
+     *            the maximum number of entries in the map.
+     * @param maxWeight
+     *            the maximum total weight of the values in the map, 0 for no
+     *            limit.
+     * @param maxEntryWeight
+     *            the maximum weight of a single value, heavier values are not
+     *            stored, 0 for no limit other than the weight of a segment.
+     * @param weigher
+     *            used to weigh the values.
+     */
+    @SuppressWarnings("unchecked")
+    public ConcurrentClockMap(int maxEntries, long maxWeight, long maxEntryWeight,
+            Weigher<? super V> weigher) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Max entries must be at least 1, was " + maxEntries);
+        }
+        int nsegments = MAX_SEGMENTS;
+        // a segment must be able to hold the heaviest value allowed.
+        while (nsegments > 1
+                && (maxEntries / nsegments < MIN_SEGMENT_SIZE || (maxWeight > 0 && maxWeight
+                        / nsegments < maxEntryWeight))) {
+            nsegments = nsegments >> 1;
+        }
+        this.weigher = weigher;
+        this.segmentMask = nsegments - 1;
+        this.segments = new Segment[nsegments];
+        int segmentEntries = Math.max(1, maxEntries / nsegments);
+        long segmentWeight = (maxWeight <= 0) ? Long.MAX_VALUE : Math.max(1L, maxWeight
+                / nsegments);
+        this.maxEntryWeight = (maxEntryWeight <= 0) ? segmentWeight : Math.min(maxEntryWeight,
+                segmentWeight);
+        for (int i = 0; i < nsegments; i++) {
+            segments[i] = new Segment<K, V>(segmentEntries, segmentWeight);
+        }
+    }
+
+    private Segment<K, V> segmentFor(Object key) {
+        return segmentForHash(key.hashCode());
+    }
+
+    private Segment<K, V> segmentForHash(int h) {
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return segments[h & segmentMask];
+    }
+
+    @Override
+    public V get(Object key) {
+        if (key == null) {
+            return null;
+        }
+        Node<K, V> n = segmentFor(key).map.get(key);
+        if (n == null) {
+            return null;
+        }
+        if (!n.referenced) {
+            n.referenced = true;
+        }
+        return n.value;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key != null && segmentFor(key).map.containsKey(key);
+    }
+
+    @Override
+    public V put(K key, V value) {
+        if (key == null) {
+            throw new NullPointerException("Null keys are not supported");
+        }
+        int weight = (value == null) ? 1 : weigher.weigh(value);
+        if (weight > maxEntryWeight) {
+            return segmentFor(key).remove(key);
+        }
+        return segmentFor(key).put(key, value, weight);
+    }
+
+    @Override
+    public V remove(Object key) {
+        if (key == null) {
+            return null;
+        }
+        return segmentFor(key).remove(key);
+    }
+
+    /**
+     * Remove every entry whose key has the hash.
+     * 
+     * @param keyHash
+     * @return the number of entries removed.
+     */
+    public int removeByHash(int keyHash) {
+        return segmentForHash(keyHash).removeByHash(keyHash);
+    }
+
+    /**
+     * Remove every entry whose key has any of the hashes.
+     * 
+     * @param keyHashes
+     * @return the number of entries removed.
+     */
+    public int removeByHash(Collection<Integer> keyHashes) {
+        int removed = 0;
+        for (Integer h : keyHashes) {
+            removed += removeByHash(h);
+        }
+        return removed;
+    }
+
+    @Override
+    public void clear() {
+        for (Segment<K, V> s : segments) {
+            s.clear();
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Segment<K, V> s : segments) {
+            size += s.map.size();
+        }
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (Segment<K, V> s : segments) {
+            if (!s.map.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the total weight of the values in the map.
+     */
+    public long weight() {
+        long weight = 0;
+        for (Segment<K, V> s : segments) {
+            weight += s.weight;
+        }
+        return weight;
+    }
+
+    /**
+     * @return the number of entries evicted to keep the map within its
+     *         limits.
+     */
+    public long evictions() {
+        long evictions = 0;
+        for (Segment<K, V> s : segments) {
+            evictions += s.evictions;
+        }
+        return evictions;
+    }
+
+    @Override
+    public Set<K> keySet() {
+        Set<K> keys = Sets.newHashSetWithExpectedSize(size());
+        for (Segment<K, V> s : segments) {
+            keys.addAll(s.map.keySet());
+        }
+        return keys;
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        Set<Map.Entry<K, V>> entries = Sets.newHashSet();
+        for (Segment<K, V> s : segments) {
+            for (Node<K, V> n : s.map.values()) {
+                entries.add(new SimpleImmutableEntry<K, V>(n.key, n.value));
+            }
+        }
+        return entries;
+    }
+
+    private static final class Node<K, V> {
+        private final K key;
+        private final int hash;
+        private volatile V value;
+        private volatile boolean referenced;
+        private int weight;
+        private Node<K, V> next;
+        private Node<K, V> prev;
+        private Node<K, V> sameHash;
+
+        Node(K key, V value, int weight) {
+            this.key = key;
+            this.hash = key.hashCode();
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * A segment holds its entries in a map for lookups and in a circular list
+     * for the clock. Entries with the same key hash are chained from an index
+     * by hash. The list, the index and the weight are guarded by the lock.
+     */
+    private static final class Segment<K, V> extends ReentrantLock {
+
+        private static final long serialVersionUID = -6862150716226659616L;
+        private final ConcurrentHashMap<K, Node<K, V>> map = new ConcurrentHashMap<K, Node<K, V>>();
+        private final Map<Integer, Node<K, V>> byHash = new HashMap<Integer, Node<K, V>>();
+        private final int maxEntries;
+        private final long maxWeight;
+        private Node<K, V> hand;
+        private volatile long weight;
+        private volatile long evictions;
+
+        Segment(int maxEntries, long maxWeight) {
+            this.maxEntries = maxEntries;
+            this.maxWeight = maxWeight;
+        }
+
+        V put(K key, V value, int nodeWeight) {
+            lock();
+            try {
+                Node<K, V> existing = map.get(key);
+                V previous = null;
+                if (existing != null) {
+                    previous = existing.value;
+                    if (nodeWeight > maxWeight) {
+                        map.remove(key);
+                        unlink(existing);
+                        return previous;
+                    }
+                    weight += nodeWeight - existing.weight;
+                    existing.weight = nodeWeight;
+                    existing.value = value;
+                    existing.referenced = true;
+                    evict(existing);
+                    return previous;
+                }
+                if (nodeWeight > maxWeight) {
+                    return null;
+                }
+                Node<K, V> n = new Node<K, V>(key, value, nodeWeight);
+                while (map.size() >= maxEntries || weight + nodeWeight > maxWeight) {
+                    if (!evictOne(null)) {
+                        break;
+                    }
+                }
+                link(n);
+                map.put(key, n);
+                return null;
+            } finally {
+                unlock();
+            }
+        }
+
+        V remove(Object key) {
+            lock();
+            try {
+                Node<K, V> n = map.remove(key);
+                if (n == null) {
+                    return null;
+                }
+                unlink(n);
+                return n.value;
+            } finally {
+                unlock();
+            }
+        }
+
+        int removeByHash(int keyHash) {
+            lock();
+            try {
+                int removed = 0;
+                Node<K, V> n = byHash.get(keyHash);
+                while (n != null) {
+                    Node<K, V> next = n.sameHash;
+                    map.remove(n.key);
+                    unlink(n);
+                    removed++;
+                    n = next;
+                }
+                return removed;
+            } finally {
+                unlock();
+            }
+        }
+
+        void clear() {
+            lock();
+            try {
+                map.clear();
+                byHash.clear();
+                hand = null;
+                weight = 0;
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Evict until the segment is within its weight, keeping the protected
+         * node.
+         */
+        private void evict(Node<K, V> keep) {
+            while (weight > maxWeight) {
+                if (!evictOne(keep)) {
+                    break;
+                }
+            }
+        }
+
+        /**
+         * Advance the clock hand until an unreferenced node is found and evict
+         * it.
+         * 
+         * @return false if there was nothing that could be evicted.
+         */
+        private boolean evictOne(Node<K, V> keep) {
+            if (hand == null || (hand == keep && hand.next == hand)) {
+                return false;
+            }
+            while (true) {
+                Node<K, V> n = hand;
+                hand = n.next;
+                if (n == keep) {
+                    continue;
+                }
+                if (n.referenced) {
+                    n.referenced = false;
+                } else {
+                    map.remove(n.key);
+                    unlink(n);
+                    evictions++;
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * New nodes are linked in just behind the hand, so they are the last
+         * to be considered by the current sweep.
+         */
+        private void link(Node<K, V> n) {
+            if (hand == null) {
+                n.next = n;
+                n.prev = n;
+                hand = n;
+            } else {
+                n.next = hand;
+                n.prev = hand.prev;
+                hand.prev.next = n;
+                hand.prev = n;
+            }
+            n.sameHash = byHash.put(n.hash, n);
+            weight += n.weight;
+        }
+
+        private void unlink(Node<K, V> n) {
+            if (n.next == n) {
+                hand = null;
+            } else {
+                n.prev.next = n.next;
+                n.next.prev = n.prev;
+                if (hand == n) {
+                    hand = n.next;
+                }
+            }
+            Node<K, V> first = byHash.get(n.hash);
+            if (first == n) {
+                if (n.sameHash == null) {
+                    byHash.remove(n.hash);
+                } else {
+                    byHash.put(n.hash, n.sameHash);
+                }
+            } else {
+                while (first.sameHash != n) {
+                    first = first.sameHash;
+                }
+                first.sameHash = n.sameHash;
+            }
+            n.next = null;
+            n.prev = null;
+            n.sameHash = null;
+            weight -= n.weight;
+        }
+    }
+}
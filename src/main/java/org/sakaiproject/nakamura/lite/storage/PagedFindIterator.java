@@ -0,0 +1,233 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageConstants;
+import org.sakaiproject.nakamura.api.lite.util.CursorIterator;
+import org.sakaiproject.nakamura.api.lite.util.PreemptiveIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Maps;
+
+/**
+ * Iterates over the results of a find that are filtered after the query, eg
+ * by access control. Pages of rows are found one at a time, and while fewer
+ * results than were asked for have been returned, and the last page was full,
+ * the next page is found, so that filtered rows do not leave pages short.
+ * A page number given to the find counts results rather than rows, the
+ * results of the earlier pages are found and skipped, so pages that have been
+ * filled from the rows that follow do not share results. When the find was
+ * given a cursor and the store returns one, each page is found after the last
+ * row read, only as many rows as are still needed are read, and
+ * {@link #getCursor()} continues the find after the last result.
+ * 
+ * @param <T>
+ */
+public abstract class PagedFindIterator<T> extends PreemptiveIterator<T> implements
+        CursorIterator<T> {
+
+    /**
+     * The number of items in a page when the find does not say.
+     */
+    public static final long DEFAULT_ITEMS = 25;
+    private static final Logger LOGGER = LoggerFactory.getLogger(PagedFindIterator.class);
+    private StorageClient client;
+    private String keySpace;
+    private String columnFamily;
+    private Map<String, Object> properties;
+    private long page;
+    private long items;
+    private long maxResults;
+    private long results;
+    private long skip;
+    private long rows;
+    private long pageRows;
+    private String cursor;
+    private boolean cursorPaging;
+    private DisposableIterator<T> pageResults;
+    private T next;
+
+    /**
+     * @param maxResults
+     *            the number of results to return before stopping, or -1 to
+     *            continue until the rows run out.
+     */
+    public PagedFindIterator(StorageClient client, String keySpace, String columnFamily,
+            Map<String, Object> properties, long maxResults) {
+        this.client = client;
+        this.keySpace = keySpace;
+        this.columnFamily = columnFamily;
+        this.properties = properties;
+        this.items = getSetting(properties, StorageConstants.ITEMS, DEFAULT_ITEMS);
+        if (properties != null && properties.get(StorageConstants.CURSOR) != null) {
+            this.cursor = String.valueOf(properties.get(StorageConstants.CURSOR));
+            this.page = getSetting(properties, StorageConstants.PAGE, 0);
+        } else {
+            // rows are read from the start, and the results of earlier pages skipped.
+            this.skip = getSetting(properties, StorageConstants.PAGE, 0) * items;
+        }
+        this.maxResults = maxResults;
+    }
+
+    /**
+     * @param rows
+     *            a page of rows.
+     * @return the results for the rows that pass the filter.
+     */
+    protected abstract DisposableIterator<T> getResults(DisposableIterator<Map<String, Object>> rows)
+            throws StorageClientException;
+
+    @Override
+    protected boolean internalHasNext() {
+        try {
+            while (maxResults < 0 || results < maxResults) {
+                if (pageResults == null) {
+                    pageResults = getResults(findPage());
+                }
+                if (pageResults.hasNext()) {
+                    next = pageResults.next();
+                    if (skip > 0) {
+                        skip--;
+                        continue;
+                    }
+                    results++;
+                    return true;
+                }
+                pageResults.close();
+                pageResults = null;
+                if (rows != pageRows) {
+                    // short, or more than a page if the store does not page.
+                    break;
+                }
+                if (cursorPaging) {
+                    page = 0;
+                } else {
+                    page++;
+                }
+                LOGGER.debug("Page filled with {} of {} results, finding page {} ",
+                        new Object[] { results, maxResults, page });
+            }
+        } catch (StorageClientException e) {
+            LOGGER.error("Unable to find page {} {} ", page, e.getMessage());
+        }
+        close();
+        return false;
+    }
+
+    @Override
+    protected T internalNext() {
+        return next;
+    }
+
+    /**
+     * @return the cursor that continues the find after the last result, or
+     *         null if the find was not given a cursor or the store does not
+     *         return them.
+     */
+    public String getCursor() {
+        return cursorPaging ? cursor : null;
+    }
+
+    @Override
+    public void close() {
+        if (pageResults != null) {
+            pageResults.close();
+            pageResults = null;
+        }
+        super.close();
+    }
+
+    private DisposableIterator<Map<String, Object>> findPage() throws StorageClientException {
+        Map<String, Object> pageProperties = Maps.newHashMap(properties);
+        pageRows = items;
+        if (cursorPaging && maxResults >= 0) {
+            // no more rows than results still needed, so no readable row is read and
+            // left unreturned, and the cursor of the last row read continues after the
+            // last result.
+            pageRows = Math.min(items, maxResults - results);
+        }
+        pageProperties.put(StorageConstants.PAGE, page);
+        pageProperties.put(StorageConstants.ITEMS, pageRows);
+        // only finds that were given a cursor are found in cursor order, others keep the order
+        // and statements of an ordinary find.
+        if (cursor != null) {
+            pageProperties.put(StorageConstants.CURSOR, cursor);
+        }
+        rows = 0;
+        final DisposableIterator<Map<String, Object>> found = client.find(keySpace,
+                columnFamily, pageProperties);
+        return new PreemptiveIterator<Map<String, Object>>() {
+
+            private Map<String, Object> row;
+
+            @Override
+            protected boolean internalHasNext() {
+                if (found.hasNext()) {
+                    row = found.next();
+                    rows++;
+                    if (found instanceof CursorIterator<?>
+                            && ((CursorIterator<?>) found).getCursor() != null) {
+                        cursor = ((CursorIterator<?>) found).getCursor();
+                        cursorPaging = true;
+                    }
+                    return true;
+                }
+                return false;
+            }
+
+            @Override
+            protected Map<String, Object> internalNext() {
+                return row;
+            }
+
+            @Override
+            public void close() {
+                found.close();
+                super.close();
+            }
+        };
+    }
+
+    /**
+     * Apply the paging properties of a find to the results of a store that
+     * finds all the matching rows at once.
+     */
+    public static <V> Iterator<V> page(Iterator<V> results, Map<String, Object> properties) {
+        if (properties == null
+                || !(properties.containsKey(StorageConstants.PAGE) || properties
+                        .containsKey(StorageConstants.ITEMS))) {
+            return results;
+        }
+        long items = getSetting(properties, StorageConstants.ITEMS, DEFAULT_ITEMS);
+        Iterators.skip(results, (int) (getSetting(properties, StorageConstants.PAGE, 0) * items));
+        return Iterators.limit(results, (int) items);
+    }
+
+    private static long getSetting(Map<String, Object> properties, String name, long defaultValue) {
+        if (properties != null && properties.containsKey(name)) {
+            return Long.valueOf(String.valueOf(properties.get(name)));
+        }
+        return defaultValue;
+    }
+}
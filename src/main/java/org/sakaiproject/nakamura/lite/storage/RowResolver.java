@@ -0,0 +1,46 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage;
+
+import java.util.Map;
+
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+
+/**
+ * Implemented by storage clients that can load a content structure row
+ * together with the content row it refers to in one round trip.
+ */
+public interface RowResolver {
+
+    /**
+     * Load a structure row and, where possible, the content row named by its
+     * structure uuid.
+     * 
+     * @param keySpace
+     * @param columnFamily
+     * @param key
+     *            the key of the structure row.
+     * @return a map of key to row, containing the structure row, empty if it
+     *         does not exist, and the content row under its id if it was loaded
+     *         with the structure row.
+     * @throws StorageClientException
+     */
+    Map<String, Map<String, Object>> resolve(String keySpace, String columnFamily, String key)
+            throws StorageClientException;
+
+}
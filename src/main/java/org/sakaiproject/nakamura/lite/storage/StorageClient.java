@@ -19,6 +19,7 @@ package org.sakaiproject.nakamura.lite.storage;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collection;
 import java.util.Map;
 
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
@@ -37,6 +38,20 @@ public interface StorageClient {
     Map<String, Object> get(String keySpace, String columnFamily, String key)
             throws StorageClientException;
 
+    /**
+     * Lookup many objects by key, with as few round trips to the store as the
+     * store allows.
+     * @param keySpace the keyspace to search
+     * @param columnFamily the group of columns we're considering
+     * @param keys the keys of the rows
+     * @return a map of key to the key value pairs in the row, in the order of
+     *         the keys, with the same value as {@link #get(String, String, String)}
+     *         would give for each key.
+     * @throws StorageClientException
+     */
+    Map<String, Map<String, Object>> get(String keySpace, String columnFamily,
+            Collection<String> keys) throws StorageClientException;
+
     /**
      * Insert or update a row in the store.
      * @param keySpace the keyspace to search
@@ -49,6 +64,24 @@ public interface StorageClient {
     void insert(String keySpace, String columnFamily, String key, Map<String, Object> values, boolean probablyNew)
             throws StorageClientException;
 
+    /**
+     * Insert or update a row in the store, where the caller already holds the
+     * current state of the row (eg from a cache). Implementations that would
+     * otherwise have to read the row before writing it may use the current
+     * row and merge the changed values into it, avoiding the read.
+     * @param keySpace the keyspace to search
+     * @param columnFamily the group of columns we're considering
+     * @param key the key of the row
+     * @param values the Map of column values to associate with this key
+     * @param probablyNew whether or not the row is probably new
+     * @param currentRow the current state of the row as known to the caller,
+     *            or null if unknown, in which case the row will be read if
+     *            required.
+     * @throws StorageClientException
+     */
+    void insert(String keySpace, String columnFamily, String key, Map<String, Object> values,
+            boolean probablyNew, Map<String, Object> currentRow) throws StorageClientException;
+
     /**
      * Remove a row in the store.
      * @param keySpace the keyspace to search
@@ -0,0 +1,48 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage;
+
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+
+/**
+ * Implemented by storage clients that can group many writes into one
+ * transaction, so that operations on many rows do not commit each row.
+ */
+public interface Transactional {
+
+    /**
+     * Start a transaction, the writes that follow are not committed until
+     * {@link #commit()} is called.
+     * 
+     * @throws StorageClientException
+     */
+    void begin() throws StorageClientException;
+
+    /**
+     * Commit the writes since {@link #begin()}.
+     * 
+     * @throws StorageClientException
+     */
+    void commit() throws StorageClientException;
+
+    /**
+     * Discard the writes since {@link #begin()}.
+     */
+    void rollback();
+
+}
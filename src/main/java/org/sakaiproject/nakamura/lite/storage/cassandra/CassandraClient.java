@@ -50,6 +50,7 @@ import org.sakaiproject.nakamura.lite.content.BlockSetContentHelper;
 import org.sakaiproject.nakamura.lite.storage.Disposable;
 import org.sakaiproject.nakamura.lite.storage.DisposableIterator;
 import org.sakaiproject.nakamura.lite.storage.Disposer;
+import org.sakaiproject.nakamura.lite.storage.PagedFindIterator;
 import org.sakaiproject.nakamura.lite.storage.SparseRow;
 import org.sakaiproject.nakamura.lite.storage.StorageClient;
 import org.slf4j.Logger;
@@ -59,6 +60,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -131,32 +133,42 @@ public class CassandraClient extends Client implements StorageClient {
 
     public Map<String, Object> get(String keySpace, String columnFamily, String key)
         throws StorageClientException {
-        Map<String, Object> row = new HashMap<String, Object>();
         try {
-            SlicePredicate predicate = new SlicePredicate();
-            SliceRange sliceRange = new SliceRange();
-            sliceRange.setStart(new byte[0]);
-            sliceRange.setFinish(new byte[0]);
-            predicate.setSlice_range(sliceRange);
-
             ColumnParent parent = new ColumnParent(columnFamily);
-            List<ColumnOrSuperColumn> results = get_slice(keySpace, key, parent, predicate,ConsistencyLevel.ONE);
-
-            for (ColumnOrSuperColumn result : results) {
-                if (result.isSetSuper_column()) {
-                    Map<String, Object> sc = new HashMap<String, Object>();
+            List<ColumnOrSuperColumn> results = get_slice(keySpace, key, parent, allColumns(),ConsistencyLevel.ONE);
+            return toRow(results);
+        } catch (InvalidRequestException e) {
+            throw new StorageClientException(e.getMessage(), e);
+        } catch (UnavailableException e) {
+            throw new StorageClientException(e.getMessage(), e);
+        } catch (TimedOutException e) {
+            throw new StorageClientException(e.getMessage(), e);
+        } catch (TException e) {
+            throw new StorageClientException(e.getMessage(), e);
+        } catch (IOException e) {
+            LOGGER.debug(e.getMessage());
+        }
+        return new HashMap<String, Object>();
+    }
 
-                    for (Column column : result.super_column.columns) {
-                        Object columnValue = Types.toObject(column.value);
-                        sc.put(new String(column.name, "UTF-8"), columnValue);
-                    }
-                    row.put(new String(result.super_column.name, "UTF-8"), sc);
-                } else {
-                    row.put(new String(result.column.name, "UTF-8"),
-                            Types.toObject(result.column.value));
+    public Map<String, Map<String, Object>> get(String keySpace, String columnFamily,
+            Collection<String> keys) throws StorageClientException {
+        Map<String, Map<String, Object>> rows = Maps.newLinkedHashMap();
+        for (String key : keys) {
+            rows.put(key, new HashMap<String, Object>());
+        }
+        if (rows.isEmpty()) {
+            return rows;
+        }
+        try {
+            ColumnParent parent = new ColumnParent(columnFamily);
+            Map<String, List<ColumnOrSuperColumn>> results = multiget_slice(keySpace,
+                    Lists.newArrayList(rows.keySet()), parent, allColumns(), ConsistencyLevel.ONE);
+            for (Entry<String, List<ColumnOrSuperColumn>> e : results.entrySet()) {
+                if (rows.containsKey(e.getKey()) && e.getValue() != null) {
+                    rows.put(e.getKey(), toRow(e.getValue()));
                 }
             }
-
         } catch (InvalidRequestException e) {
             throw new StorageClientException(e.getMessage(), e);
         } catch (UnavailableException e) {
@@ -168,6 +180,34 @@ public class CassandraClient extends Client implements StorageClient {
         } catch (IOException e) {
             LOGGER.debug(e.getMessage());
         }
+        return rows;
+    }
+
+    private SlicePredicate allColumns() {
+        SlicePredicate predicate = new SlicePredicate();
+        SliceRange sliceRange = new SliceRange();
+        sliceRange.setStart(new byte[0]);
+        sliceRange.setFinish(new byte[0]);
+        predicate.setSlice_range(sliceRange);
+        return predicate;
+    }
+
+    private Map<String, Object> toRow(List<ColumnOrSuperColumn> results) throws IOException {
+        Map<String, Object> row = new HashMap<String, Object>();
+        for (ColumnOrSuperColumn result : results) {
+            if (result.isSetSuper_column()) {
+                Map<String, Object> sc = new HashMap<String, Object>();
+
+                for (Column column : result.super_column.columns) {
+                    Object columnValue = Types.toObject(column.value);
+                    sc.put(new String(column.name, "UTF-8"), columnValue);
+                }
+                row.put(new String(result.super_column.name, "UTF-8"), sc);
+            } else {
+                row.put(new String(result.column.name, "UTF-8"),
+                        Types.toObject(result.column.value));
+            }
+        }
         return row;
     }
 
@@ -234,6 +274,13 @@ public class CassandraClient extends Client implements StorageClient {
         }
     }
 
+    public void insert(String keySpace, String columnFamily, String key,
+            Map<String, Object> values, boolean probablyNew, Map<String, Object> currentRow)
+            throws StorageClientException {
+        // mutations are per column, so only the changed columns are ever written.
+        insert(keySpace, columnFamily, key, values, probablyNew);
+    }
+
     public void remove(String keySpace, String columnFamily, String key)
             throws StorageClientException {
       if(!columnFamily.equals(INDEX_COLUMN_FAMILY)){
@@ -380,7 +427,7 @@ public class CassandraClient extends Client implements StorageClient {
     }
 
     tResultRows = resultRows;
-    final Iterator<String> fIterator = andResultSet.iterator();
+    final Iterator<String> fIterator = PagedFindIterator.page(andResultSet.iterator(), properties);
 
     if (tResultRows.isEmpty()) {
       return new DisposableIterator<Map<String, Object>>() {
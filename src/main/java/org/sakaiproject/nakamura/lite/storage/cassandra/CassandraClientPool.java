@@ -41,7 +41,6 @@ import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.lite.ConfigurationImpl;
 import org.sakaiproject.nakamura.lite.storage.AbstractClientConnectionPool;
-import org.sakaiproject.nakamura.lite.storage.ConcurrentLRUMap;
 import org.sakaiproject.nakamura.lite.storage.StorageClientPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -213,7 +212,7 @@ public class CassandraClientPool extends AbstractClientConnectionPool {
              } 
    
      
-      sharedCache = new ConcurrentLRUMap<String, CacheHolder>(10000);
+      sharedCache = newSharedCache();
       defaultStorageManagerCache = new StorageCacheManager() {
           
           public Map<String, CacheHolder> getContentCache() {
@@ -246,8 +245,8 @@ public class CassandraClientPool extends AbstractClientConnectionPool {
             if ( sharedCache.size() > 0 ) {
                 sharedCache.clear(); // dump any memory consumed by the default cache.
             }
-            return storageManagerCache ;
+            return registerCaches(storageManagerCache);
         }
-        return defaultStorageManagerCache;
+        return registerCaches(defaultStorageManagerCache);
     }
 }
\ No newline at end of file
@@ -35,6 +35,7 @@ import org.sakaiproject.nakamura.lite.content.BlockSetContentHelper;
 import org.sakaiproject.nakamura.lite.storage.Disposable;
 import org.sakaiproject.nakamura.lite.storage.DisposableIterator;
 import org.sakaiproject.nakamura.lite.storage.Disposer;
+import org.sakaiproject.nakamura.lite.storage.PagedFindIterator;
 import org.sakaiproject.nakamura.lite.storage.SparseRow;
 import org.sakaiproject.nakamura.lite.storage.StorageClient;
 import org.sakaiproject.nakamura.lite.types.Types;
@@ -51,6 +52,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -130,6 +132,13 @@ public class HBaseStorageClient implements StorageClient {
 
   }
 
+  public void insert(String keySpace, String columnFamily, String key,
+      Map<String, Object> values, boolean probablyNew, Map<String, Object> currentRow)
+      throws StorageClientException {
+    // columns are written individually, so only the changed columns are ever written.
+    insert(keySpace, columnFamily, key, values, probablyNew);
+  }
+
   public Map<String, Object> get(String keySpace, String columnFamily, String key)
       throws StorageClientException {
     NavigableMap<byte[], byte[]> row;
@@ -163,6 +172,50 @@ public class HBaseStorageClient implements StorageClient {
     return resultRow;
   }
 
+  public Map<String, Map<String, Object>> get(String keySpace, String columnFamily,
+      Collection<String> keys) throws StorageClientException {
+    Map<String, Map<String, Object>> rows = Maps.newLinkedHashMap();
+    List<String> keyList = Lists.newArrayList(keys);
+    for (String key : keyList) {
+      rows.put(key, new HashMap<String, Object>());
+    }
+    if (keyList.isEmpty()) {
+      return rows;
+    }
+    HTableInterface table = null;
+    try {
+      table = htab.getTable(columnFamily);
+      byte[] family = columnFamily.getBytes("UTF-8");
+      List<Get> gets = Lists.newArrayListWithCapacity(keyList.size());
+      for (String key : keyList) {
+        gets.add(new Get(key.getBytes("UTF-8")));
+      }
+      // one batched call, results are in the order of the gets.
+      Result[] results = table.get(gets);
+      for (int i = 0; i < results.length; i++) {
+        NavigableMap<byte[], byte[]> row = (results[i] == null) ? null : results[i]
+            .getFamilyMap(family);
+        if (row != null) {
+          Map<String, Object> resultRow = rows.get(keyList.get(i));
+          for (Entry<byte[], byte[]> value : row.entrySet()) {
+            resultRow.put(new String(value.getKey()), Types.toObject(value.getValue()));
+          }
+        }
+      }
+    } catch (UnsupportedEncodingException e1) {
+      LOGGER.debug(e1.getMessage());
+    } catch (IOException e1) {
+      LOGGER.debug(e1.getMessage());
+    } catch (Exception e) {
+      LOGGER.debug(e.getMessage());
+    } finally {
+      if (htab != null) {
+        htab.putTable(table);
+      }
+    }
+    return rows;
+  }
+
   public void remove(String keySpace, String columnFamily, String key)
       throws StorageClientException {
     HTableInterface indexTable = null;
@@ -350,7 +403,7 @@ public class HBaseStorageClient implements StorageClient {
     }
 
     tResultRows = resultRows;
-    final Iterator<String> fIterator = andResultSet.iterator();
+    final Iterator<String> fIterator = PagedFindIterator.page(andResultSet.iterator(), properties);
 
     if (tResultRows.isEmpty()) {
       return new DisposableIterator<Map<String, Object>>() {
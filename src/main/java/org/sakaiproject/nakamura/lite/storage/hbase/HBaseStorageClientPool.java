@@ -30,7 +30,6 @@ import org.sakaiproject.nakamura.api.lite.CacheHolder;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.StorageCacheManager;
 import org.sakaiproject.nakamura.lite.storage.AbstractClientConnectionPool;
-import org.sakaiproject.nakamura.lite.storage.ConcurrentLRUMap;
 import org.sakaiproject.nakamura.lite.storage.hbase.HBaseStorageClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -134,7 +133,7 @@ public class HBaseStorageClientPool extends AbstractClientConnectionPool {
       }
     }
 
-    sharedCache = new ConcurrentLRUMap<String, CacheHolder>(10000);
+    sharedCache = newSharedCache();
     defaultStorageManagerCache = new StorageCacheManager() {
 
       public Map<String, CacheHolder> getContentCache() {
@@ -162,8 +161,8 @@ public class HBaseStorageClientPool extends AbstractClientConnectionPool {
       if (sharedCache.size() > 0) {
         sharedCache.clear(); // dump any memory consumed by the default cache.
       }
-      return storageManagerCache;
+      return registerCaches(storageManagerCache);
     }
-    return defaultStorageManagerCache;
+    return registerCaches(defaultStorageManagerCache);
   }
 }
\ No newline at end of file
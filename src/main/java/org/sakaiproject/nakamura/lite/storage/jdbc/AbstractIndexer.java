@@ -17,11 +17,24 @@
  */
 package org.sakaiproject.nakamura.lite.storage.jdbc;
 
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.lite.storage.DisposableIterator;
+import org.sakaiproject.nakamura.lite.storage.Disposer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+
 public abstract class AbstractIndexer implements Indexer {
     private static final Logger LOGGER = LoggerFactory.getLogger(AbstractIndexer.class);
     private Set<String> indexColumns;
@@ -50,4 +63,260 @@ public abstract class AbstractIndexer implements Indexer {
         }
     }
 
+    /**
+     * Describe the terms of a find, adding their parameters. The description
+     * names the terms in order, with their OR groups and the number of values
+     * of multi valued terms, which is all of the terms that the SQL of a find
+     * depends on.
+     */
+    String getTermShape(String keySpace, String columnFamily, Map<String, Object> properties,
+            List<Object> parameters) {
+        StringBuilder shape = new StringBuilder();
+        for (Entry<String, Object> e : properties.entrySet()) {
+            Object v = e.getValue();
+            String k = e.getKey();
+            if ( shouldFind(keySpace, columnFamily, k) || (v instanceof Map)) {
+                if (v instanceof Map) {
+                    shape.append('(');
+                    @SuppressWarnings("unchecked")
+                    Set<Entry<String, Object>> subterms = ((Map<String, Object>) v).entrySet();
+                    for (Entry<String, Object> subterm : subterms) {
+                        if (shouldFind(keySpace, columnFamily, subterm.getKey())) {
+                            appendTerm(shape, subterm.getKey(), subterm.getValue());
+                            addTermParameters(parameters, keySpace, columnFamily,
+                                    subterm.getKey(), subterm.getValue());
+                        } else {
+                            shape.append('!');
+                        }
+                    }
+                    shape.append(')');
+                } else if (v instanceof Iterable<?>) {
+                    for (Object vo : (Iterable<?>) v) {
+                        appendTerm(shape, k, vo);
+                        addTermParameters(parameters, keySpace, columnFamily, k, vo);
+                    }
+                } else if (v != null) {
+                    appendTerm(shape, k, v);
+                    addTermParameters(parameters, keySpace, columnFamily, k, v);
+                } else if (!k.startsWith("_")) {
+                    LOGGER.debug("Search on {}:{} filter dropped due to null value.", columnFamily, k);
+                }
+            } else if (!k.startsWith("_")) {
+                LOGGER.warn("Search on {}:{} is not supported, filter dropped ", columnFamily, k);
+            }
+        }
+        return shape.toString();
+    }
+
+    private void appendTerm(StringBuilder shape, String k, Object v) {
+        shape.append(k);
+        if (v instanceof Iterable<?>) {
+            shape.append('[').append(Iterables.size((Iterable<?>) v)).append(']');
+        }
+        shape.append('\0');
+    }
+
+    /**
+     * Add the parameters of a term of a find, in the order they appear in the
+     * SQL made for the term.
+     */
+    abstract void addTermParameters(List<Object> parameters, String keySpace,
+            String columnFamily, String k, Object v);
+
+    /**
+     * Run the SQL of a find, passing the result set to a {@link FindIterator}
+     * that is registered with the client. A cursor, if not empty, adds the
+     * parameters that seek past its row, and the page adds the items and
+     * offset, all after the parameters already collected.
+     */
+    DisposableIterator<Map<String, Object>> executeFind(JDBCStorageClient client,
+            String keySpace, String columnFamily, FindPlanCache.Plan plan,
+            List<Object> parameters, boolean cursors, String cursor, long items, long offset,
+            boolean rawResults) throws StorageClientException {
+        // there was no where clause generated
+        // to avoid returning everything, we wont return anything.
+        if (plan.isEmpty()) {
+            return new DisposableIterator<Map<String,Object>>() {
+
+                private Disposer disposer;
+                public boolean hasNext() {
+                    return false;
+                }
+
+                public Map<String, Object> next() {
+                    return null;
+                }
+
+                public void remove() {
+                }
+
+                public void close() {
+                    if ( disposer != null ) {
+                        disposer.unregisterDisposable(this);
+                    }
+                }
+                public void setDisposer(Disposer disposer) {
+                    this.disposer = disposer;
+                }
+
+            };
+        }
+
+        parameters.addAll(plan.getParameters());
+
+        // seek past the row of the cursor, on the sort value and the rid when sorted.
+        final boolean sorted = plan.isSorted();
+        if (cursors && cursor.length() > 0) {
+            String[] cursorValues = parseCursor(cursor, sorted);
+            if (sorted) {
+                parameters.add(cursorValues[1]);
+                parameters.add(cursorValues[1]);
+                parameters.add(cursorValues[0]);
+            } else {
+                parameters.add(cursorValues[0]);
+            }
+        }
+        plan.addPaging(parameters, items, offset);
+
+        final String sqlStatement = plan.getSql();
+
+        PreparedStatement tpst = null;
+        ResultSet trs = null;
+        try {
+            LOGGER.debug("Preparing {} ", sqlStatement);
+            tpst = client.getFindStatement(sqlStatement);
+            client.inc("iterator");
+            tpst.clearParameters();
+            if (cursors) {
+                tpst.setMaxRows((int) items);
+            }
+            int i = 1;
+            for (Object params : parameters) {
+                tpst.setObject(i, params);
+                LOGGER.debug("Setting {} ", params);
+                i++;
+            }
+
+            long qtime = System.currentTimeMillis();
+            trs = tpst.executeQuery();
+            qtime = System.currentTimeMillis() - qtime;
+            if ( qtime > client.getSlowQueryThreshold() && qtime < client.getVerySlowQueryThreshold()) {
+                JDBCStorageClient.SQL_LOGGER.warn("Slow Query {}ms {} params:[{}]",new Object[]{qtime,sqlStatement,Arrays.toString(parameters.toArray())});
+            } else if ( qtime > client.getVerySlowQueryThreshold() ) {
+                JDBCStorageClient.SQL_LOGGER.error("Very Slow Query {}ms {} params:[{}]",new Object[]{qtime,sqlStatement,Arrays.toString(parameters.toArray())});
+            }
+            client.inc("iterator r");
+            LOGGER.debug("Executed ");
+
+            // pass control to the iterator.
+            FindIterator found = new FindIterator(this, client, keySpace, columnFamily, tpst,
+                    trs, rawResults, cursors, sorted);
+            tpst = null;
+            trs = null;
+            return client.registerDisposable(found);
+        } catch (SQLException e) {
+            LOGGER.error(e.getMessage(), e);
+            throw new StorageClientException(e.getMessage() + " SQL Statement was " + sqlStatement,
+                    e);
+        } finally {
+            // trs and tpst will only be non null if control has not been passed
+            // to the iterator.
+            try {
+                if (trs != null) {
+                    trs.close();
+                    client.dec("iterator r");
+                }
+            } catch (SQLException e) {
+                LOGGER.warn(e.getMessage(), e);
+            }
+            if (tpst != null) {
+                client.releaseFindStatement(tpst);
+                client.dec("iterator");
+            }
+        }
+    }
+
+    /**
+     * Run a statement whose first column is a name, reading at most limit names.
+     */
+    List<String> loadNames(PreparedStatement listNames, int limit) throws SQLException {
+        List<String> names = Lists.newArrayList();
+        listNames.setMaxRows(limit);
+        ResultSet rs = listNames.executeQuery();
+        try {
+            while (rs.next()) {
+                names.add(rs.getString(1));
+            }
+        } finally {
+            rs.close();
+        }
+        return names;
+    }
+
+    /**
+     * Read the next batch of rids from the result set of a find and load their
+     * rows with one statement.
+     * @return the rows in the order of the result set, fewer than the batch size
+     *         once the result set is exhausted.
+     */
+    List<Map<String, Object>> loadRows(JDBCStorageClient client, String keySpace,
+            String columnFamily, ResultSet rs) throws SQLException, StorageClientException {
+        return loadRows(client, keySpace, columnFamily, rs, null, false);
+    }
+
+    /**
+     * As {@link #loadRows(JDBCStorageClient, String, String, ResultSet)},
+     * adding the cursor of each row to cursors, if not null.
+     */
+    List<Map<String, Object>> loadRows(JDBCStorageClient client, String keySpace,
+            String columnFamily, ResultSet rs, List<String> cursors, boolean sorted)
+            throws SQLException, StorageClientException {
+        int batchSize = client.getFindBatchSize();
+        List<String> rids = Lists.newArrayListWithCapacity(batchSize);
+        while (rids.size() < batchSize && rs.next()) {
+            rids.add(rs.getString(1));
+            if (cursors != null) {
+                cursors.add(getCursor(rs, sorted));
+            }
+        }
+        List<Map<String, Object>> rows = Lists.newArrayListWithCapacity(rids.size());
+        if (rids.size() > 0) {
+            Map<String, Map<String, Object>> loaded = client.internalGet(keySpace, columnFamily,
+                    rids);
+            for (String rid : rids) {
+                rows.add(loaded.get(rid));
+            }
+            LOGGER.debug("Loaded {} rows for {} ", rows.size(), rids);
+        }
+        return rows;
+    }
+
+    /**
+     * The cursor of the current row of a find, the rid, followed by the sort
+     * value when sorted. Rids never contain ':'.
+     */
+    static String getCursor(ResultSet rs, boolean sorted) throws SQLException {
+        if (sorted) {
+            String sortValue = rs.getString(2);
+            return rs.getString(1) + ":" + (sortValue == null ? "" : sortValue);
+        }
+        return rs.getString(1);
+    }
+
+    /**
+     * @return the rid and, when sorted, the sort value of a cursor.
+     * @throws StorageClientException
+     *             if the cursor was not made by a find with the same sort.
+     */
+    static String[] parseCursor(String cursor, boolean sorted) throws StorageClientException {
+        int i = cursor.indexOf(':');
+        if (sorted && i > 0) {
+            return new String[] { cursor.substring(0, i), cursor.substring(i + 1) };
+        } else if (!sorted && i < 0) {
+            return new String[] { cursor };
+        }
+        throw new StorageClientException("Cursor " + cursor
+                + " does not continue a find with the same sort ");
+    }
+
 }
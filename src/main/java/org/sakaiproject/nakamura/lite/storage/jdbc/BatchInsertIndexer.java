@@ -31,7 +31,6 @@ import org.sakaiproject.nakamura.lite.content.InternalContent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
@@ -99,7 +98,15 @@ public class BatchInsertIndexer extends KeyValueIndexer {
 
         if ( !StorageClientUtils.isRoot(key)) {
             // create a holding map containing a rowhash of the parent and then process the entry to generate a update operation.
-            Map<String, Object> autoIndexMap = ImmutableMap.of(InternalContent.PARENT_HASH_FIELD, (Object)client.rowHash(keySpace, columnFamily, StorageClientUtils.getParentObjectPath(key)));
+            Map<String, Object> autoIndexMap = Maps.newHashMap();
+            autoIndexMap.put(InternalContent.PARENT_HASH_FIELD, client.rowHash(keySpace, columnFamily, StorageClientUtils.getParentObjectPath(key)));
+            if (shouldIndex(keySpace, columnFamily, InternalContent.CHILD_NAME_FIELD)) {
+                autoIndexMap.put(InternalContent.CHILD_NAME_FIELD, StorageClientUtils.getObjectName(key));
+            }
+            Object contentId = values.get(InternalContent.STRUCTURE_UUID_FIELD);
+            if (contentId instanceof String && shouldIndex(keySpace, columnFamily, InternalContent.STRUCTURE_UUID_HASH_FIELD)) {
+                autoIndexMap.put(InternalContent.STRUCTURE_UUID_HASH_FIELD, client.rowHash(keySpace, columnFamily, (String) contentId));
+            }
             for ( Entry<String, Object> e : autoIndexMap.entrySet()) {
                 // remove all previous values
                 PreparedStatement removeStringColumn = client.getStatement(keySpace,
@@ -0,0 +1,174 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage.jdbc;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.util.CursorIterator;
+import org.sakaiproject.nakamura.api.lite.util.PreemptiveIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableMap.Builder;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Iterates over the rows of the rids a find statement returns, releasing the
+ * statement when done. The first column of the result set is the rid, and
+ * when the find was made with a cursor, the second column of a sorted find is
+ * the sort value, from which the cursor of each row is made.
+ */
+class FindIterator extends PreemptiveIterator<Map<String, Object>> implements
+        CursorIterator<Map<String, Object>> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FindIterator.class);
+    private AbstractIndexer indexer;
+    private JDBCStorageClient client;
+    private String keySpace;
+    private String columnFamily;
+    private PreparedStatement pst;
+    private ResultSet rs;
+    private ResultSetMetaData rsmd;
+    private boolean rawResults;
+    private boolean cursors;
+    private boolean sorted;
+    private Map<String, Object> nextValue = Maps.newHashMap();
+    private String nextCursor;
+    private String cursor;
+    private boolean open = true;
+    private Iterator<Map<String, Object>> rows = Iterators.emptyIterator();
+    private Iterator<String> rowCursors = Iterators.emptyIterator();
+    private boolean moreRows = true;
+
+    /**
+     * @param cursors
+     *            true if the find was made with a cursor, so the results have
+     *            cursors.
+     * @param sorted
+     *            true if the results are sorted on the second column.
+     */
+    FindIterator(AbstractIndexer indexer, JDBCStorageClient client, String keySpace,
+            String columnFamily, PreparedStatement pst, ResultSet rs, boolean rawResults,
+            boolean cursors, boolean sorted) throws SQLException {
+        this.indexer = indexer;
+        this.client = client;
+        this.keySpace = keySpace;
+        this.columnFamily = columnFamily;
+        this.pst = pst;
+        this.rs = rs;
+        this.rsmd = rs.getMetaData();
+        this.rawResults = rawResults;
+        this.cursors = cursors;
+        this.sorted = sorted;
+    }
+
+    @Override
+    protected Map<String, Object> internalNext() {
+        cursor = nextCursor;
+        return nextValue;
+    }
+
+    @Override
+    protected boolean internalHasNext() {
+        try {
+            if (open && rawResults && rs.next()) {
+                Builder<String, Object> b = ImmutableMap.builder();
+                for  (int i = 1; i <= rsmd.getColumnCount(); i++ ) {
+                    b.put(String.valueOf(i), rs.getObject(i));
+                }
+                nextValue = b.build();
+                if (cursors) {
+                    nextCursor = AbstractIndexer.getCursor(rs, sorted);
+                }
+                return true;
+            }
+            if (open && !rawResults) {
+                if (!rows.hasNext() && moreRows) {
+                    // rows are loaded a batch at a time rather than one per rid.
+                    List<String> batchCursors = null;
+                    if (cursors) {
+                        batchCursors = Lists.newArrayList();
+                    }
+                    List<Map<String, Object>> batch = indexer.loadRows(client, keySpace,
+                            columnFamily, rs, batchCursors, sorted);
+                    moreRows = batch.size() == client.getFindBatchSize();
+                    rows = batch.iterator();
+                    if (cursors) {
+                        rowCursors = batchCursors.iterator();
+                    }
+                }
+                if (rows.hasNext()) {
+                    nextValue = rows.next();
+                    if (cursors) {
+                        nextCursor = rowCursors.next();
+                    }
+                    return true;
+                }
+            }
+            close();
+            nextValue = null;
+            LOGGER.debug("End of Set ");
+            return false;
+        } catch (SQLException e) {
+            LOGGER.error(e.getMessage(), e);
+            close();
+            nextValue = null;
+            return false;
+        } catch (StorageClientException e) {
+            LOGGER.error(e.getMessage(), e);
+            close();
+            nextValue = null;
+            return false;
+        }
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    @Override
+    public void close() {
+        if (open) {
+            open = false;
+            try {
+                if (rs != null) {
+                    rs.close();
+                    client.dec("iterator r");
+                }
+            } catch (SQLException e) {
+                LOGGER.warn(e.getMessage(), e);
+            }
+            if (pst != null) {
+                client.releaseFindStatement(pst);
+                client.dec("iterator");
+            }
+            super.close();
+        }
+
+    }
+}
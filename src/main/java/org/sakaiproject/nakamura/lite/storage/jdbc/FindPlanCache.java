@@ -0,0 +1,203 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage.jdbc;
+
+import java.text.MessageFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.sakaiproject.nakamura.lite.storage.ConcurrentClockMap;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+
+/**
+ * The SQL generated for finds, keyed by the shape of the find: the column
+ * family, the statements, the terms in order with their OR groups, the sort
+ * and the cursor. Finds of the same shape differ only in their parameters,
+ * which include the paging, so the SQL is generated once per shape rather than
+ * once per find.
+ * There is one cache for each SQL configuration, which is shared by the
+ * clients of a pool, so the dialect is part of the shape. The number of
+ * distinct shapes seen shows how much the cache, and the database plan cache,
+ * churns.
+ */
+class FindPlanCache {
+
+    private static final int MAX_PLANS = 1000;
+    private static final ConcurrentMap<Map<String, Object>, FindPlanCache> CACHES = new MapMaker()
+            .weakKeys().makeMap();
+
+    private final ConcurrentClockMap<String, Plan> plans = new ConcurrentClockMap<String, Plan>(
+            MAX_PLANS);
+    private final AtomicLong shapes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * @param sqlConfig
+     * @return the cache for the finds made with the SQL configuration.
+     */
+    static FindPlanCache getCache(Map<String, Object> sqlConfig) {
+        FindPlanCache cache = CACHES.get(sqlConfig);
+        if (cache == null) {
+            cache = new FindPlanCache();
+            FindPlanCache existing = CACHES.putIfAbsent(sqlConfig, cache);
+            if (existing != null) {
+                cache = existing;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * @param shape
+     * @return the plan for the shape, or null if there is none yet.
+     */
+    Plan get(String shape) {
+        Plan plan = plans.get(shape);
+        if (plan != null) {
+            hits.incrementAndGet();
+        }
+        return plan;
+    }
+
+    void put(String shape, Plan plan) {
+        shapes.incrementAndGet();
+        plans.put(shape, plan);
+    }
+
+    /**
+     * @return the number of plans that have been made, one for each shape
+     *         seen, and again for each shape seen after it was evicted.
+     */
+    long getShapes() {
+        return shapes.get();
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getEvictions() {
+        return plans.evictions();
+    }
+
+    int size() {
+        return plans.size();
+    }
+
+    /**
+     * The SQL of a find, and the parameters that follow those of the terms. The
+     * items and offset of the page are bound as parameters after those, rather
+     * than formatted into the SQL, so that every page of a shape is the same
+     * statement to the find statement cache and to the database.
+     */
+    static class Plan {
+
+        /**
+         * The plan of a find with no terms, which finds nothing.
+         */
+        static final Plan EMPTY = new Plan(null, null, 0, 0, ImmutableList.<Object> of(), false);
+
+        private static final Pattern ARGUMENT = Pattern.compile("\\{(\\d+)[^}]*\\}");
+
+        private final String sql;
+        private final boolean[] paging;
+        private final List<Object> parameters;
+        private final boolean sorted;
+
+        /**
+         * @param template
+         *            the base statement, with the items and offset arguments,
+         *            if any, after all of the other parameters.
+         * @param arguments
+         *            the arguments of the base statement, except for the items
+         *            and offset.
+         * @param itemsArgument
+         *            the index of the items argument.
+         * @param offsetArgument
+         *            the index of the offset argument.
+         * @param parameters
+         *            the parameters that follow the parameters of the terms.
+         * @param sorted
+         *            true if the find is sorted on a column.
+         */
+        Plan(String template, Object[] arguments, int itemsArgument, int offsetArgument,
+                List<Object> parameters, boolean sorted) {
+            List<Boolean> paging = Lists.newArrayList();
+            if (template == null) {
+                this.sql = null;
+            } else {
+                // replace each items or offset argument with a parameter,
+                // remembering which it was.
+                StringBuffer bound = new StringBuffer();
+                Matcher m = ARGUMENT.matcher(template);
+                while (m.find()) {
+                    int argument = Integer.parseInt(m.group(1));
+                    if (argument == itemsArgument || argument == offsetArgument) {
+                        paging.add(argument == itemsArgument);
+                        m.appendReplacement(bound, "?");
+                    } else {
+                        m.appendReplacement(bound, Matcher.quoteReplacement(m.group()));
+                    }
+                }
+                m.appendTail(bound);
+                this.sql = MessageFormat.format(bound.toString(), arguments);
+            }
+            this.paging = new boolean[paging.size()];
+            for (int i = 0; i < this.paging.length; i++) {
+                this.paging[i] = paging.get(i);
+            }
+            this.parameters = ImmutableList.copyOf(parameters);
+            this.sorted = sorted;
+        }
+
+        boolean isEmpty() {
+            return sql == null;
+        }
+
+        boolean isSorted() {
+            return sorted;
+        }
+
+        List<Object> getParameters() {
+            return parameters;
+        }
+
+        /**
+         * @return the SQL for every page of the find.
+         */
+        String getSql() {
+            return sql;
+        }
+
+        /**
+         * Add the items and offset of a page, in the order the SQL binds them.
+         */
+        void addPaging(List<Object> parameters, long items, long offset) {
+            for (boolean isItems : paging) {
+                parameters.add(isItems ? items : offset);
+            }
+        }
+    }
+}
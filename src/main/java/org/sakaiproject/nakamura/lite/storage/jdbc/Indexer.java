@@ -19,6 +19,7 @@ package org.sakaiproject.nakamura.lite.storage.jdbc;
 
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.List;
 import java.util.Map;
 
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
@@ -30,6 +31,43 @@ public interface Indexer {
             String keySpace, String columnFamily, String key, String rid, Map<String, Object> values)
             throws StorageClientException, SQLException;
 
+    /**
+     * Remove any index entries held apart from the row, called when the row is
+     * removed.
+     */
+    void remove(Map<String, PreparedStatement> statementCache, String keySpace,
+            String columnFamily, String rid) throws StorageClientException, SQLException;
+
+    /**
+     * List the names of the children of a row from the index alone, in name
+     * order.
+     * 
+     * @param parentHash
+     *            the row hash of the parent.
+     * @param after
+     *            the names listed sort after this name.
+     * @param limit
+     *            the maximum number of names to list.
+     * @return the names, or null if the SQL configuration has no statement to
+     *         list them.
+     */
+    List<String> listChildNames(Map<String, PreparedStatement> statementCache, String keySpace,
+            String columnFamily, String parentHash, String after, int limit)
+            throws StorageClientException, SQLException;
+
+    /**
+     * Prepare the statement that loads a structure row together with the
+     * content row it refers to, selecting the body of the structure row and
+     * then the rid and body of the content row.
+     * 
+     * @param rid
+     *            the rid of the structure row.
+     * @return the statement with its parameters set, or null if the SQL
+     *         configuration has no statement to load both rows.
+     */
+    PreparedStatement getResolveStatement(Map<String, PreparedStatement> statementCache,
+            String keySpace, String columnFamily, String rid) throws SQLException;
+
     DisposableIterator<Map<String, Object>> find(String keySpace, String columnFamily,
             Map<String, Object> properties) throws StorageClientException;
 
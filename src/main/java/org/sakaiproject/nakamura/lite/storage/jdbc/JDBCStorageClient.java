@@ -32,6 +32,7 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.text.MessageFormat;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -50,13 +51,17 @@ import org.sakaiproject.nakamura.api.lite.util.PreemptiveIterator;
 import org.sakaiproject.nakamura.lite.content.FileStreamContentHelper;
 import org.sakaiproject.nakamura.lite.content.InternalContent;
 import org.sakaiproject.nakamura.lite.content.StreamedContentHelper;
+import org.sakaiproject.nakamura.lite.storage.ChildPathLister;
 import org.sakaiproject.nakamura.lite.storage.Disposable;
 import org.sakaiproject.nakamura.lite.storage.DisposableIterator;
 import org.sakaiproject.nakamura.lite.storage.Disposer;
 import org.sakaiproject.nakamura.lite.storage.RowHasher;
+import org.sakaiproject.nakamura.lite.storage.RowResolver;
 import org.sakaiproject.nakamura.lite.storage.SparseMapRow;
 import org.sakaiproject.nakamura.lite.storage.SparseRow;
 import org.sakaiproject.nakamura.lite.storage.StorageClient;
+import org.sakaiproject.nakamura.lite.storage.Transactional;
+import org.sakaiproject.nakamura.lite.types.RowBuffer;
 import org.sakaiproject.nakamura.lite.types.Types;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -68,7 +73,8 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
-public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
+public class JDBCStorageClient implements StorageClient, RowHasher, RowResolver, ChildPathLister, Transactional,
+        Disposer {
 
     public class SlowQueryLogger {
         // only used to define the logger.
@@ -89,6 +95,12 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
 
     static final String SQL_BLOCK_DELETE_ROW = "block-delete-row";
     static final String SQL_BLOCK_SELECT_ROW = "block-select-row";
+    static final String SQL_BLOCK_SELECT_ROWS = "block-select-rows";
+    /**
+     * The largest number of rows selected by one multi row get, smaller gets
+     * are padded to a power of 2 so there are few distinct statements to cache.
+     */
+    private static final int MAX_ROWS_PER_SELECT = 64;
     static final String SQL_BLOCK_INSERT_ROW = "block-insert-row";
     static final String SQL_BLOCK_UPDATE_ROW = "block-update-row";
 
@@ -104,13 +116,17 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
      */
     static final Set<String> AUTO_INDEX_COLUMNS_TYPES = ImmutableSet.of(
             "cn:_:parenthash=String",
+            "cn:_:childname=String",
+            "cn:_:cidhash=String",
             "au:_:parenthash=String",
             "ac:_:parenthash=String");
     static final Set<String> AUTO_INDEX_COLUMNS = ImmutableSet.of(
             "cn:_:parenthash",
+            "cn:_:childname",
+            "cn:_:cidhash",
             "au:_:parenthash",
             "ac:_:parenthash");
-    private static final Map<String, String> COLUMN_NAME_MAPPING = ImmutableMap.of("_:parenthash","parenthash");
+    private static final Map<String, String> COLUMN_NAME_MAPPING = ImmutableMap.of("_:parenthash","parenthash", "_:childname", "childname", "_:cidhash", "cidhash");
 
     private JDBCStorageClientPool jcbcStorageClientConnection;
     private Map<String, Object> sqlConfig;
@@ -125,6 +141,11 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
     private Indexer indexer;
     private long slowQueryThreshold;
     private long verySlowQueryThreshold;
+    private boolean deltaWrites;
+    private PreparedStatementCache statementCache;
+    private PreparedStatementCache findStatementCache;
+    private RowBuffer rowBuffer;
+    private int findBatchSize;
 
     public JDBCStorageClient(JDBCStorageClientPool jdbcStorageClientConnectionPool,
             Map<String, Object> properties, Map<String, Object> sqlConfig, Set<String> indexColumns, Set<String> indexColumnTypes, Map<String, String> indexColumnsNames) throws SQLException,
@@ -167,6 +188,16 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
         if (sqlConfig.containsKey(VERY_SLOW_QUERY_THRESHOLD)) {
             verySlowQueryThreshold = Long.parseLong((String)sqlConfig.get(VERY_SLOW_QUERY_THRESHOLD));
         }
+        deltaWrites = StorageClientUtils.getSetting(properties.get(JDBCStorageClientPool.DELTA_WRITES), false);
+        statementCache = new PreparedStatementCache(StorageClientUtils.getSetting(
+                properties.get(JDBCStorageClientPool.STATEMENT_CACHE_SIZE), 50));
+        // finds have a cache of their own so they do not evict the row statements.
+        findStatementCache = new PreparedStatementCache(StorageClientUtils.getSetting(
+                properties.get(JDBCStorageClientPool.STATEMENT_CACHE_SIZE), 50));
+        rowBuffer = new RowBuffer(StorageClientUtils.getSetting(
+                properties.get(JDBCStorageClientPool.ROW_BUFFER_SIZE), 65536));
+        findBatchSize = Math.max(1, StorageClientUtils.getSetting(
+                properties.get(JDBCStorageClientPool.FIND_BATCH_SIZE), 50));
 
     }
 
@@ -178,18 +209,20 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
     }
     Map<String, Object> internalGet(String keySpace, String columnFamily, String rid) throws StorageClientException {
         ResultSet body = null;
-        Map<String, Object> result = Maps.newHashMap();
+        Map<String, Object> result = null;
         PreparedStatement selectStringRow = null;
         try {
-            selectStringRow = getStatement(keySpace, columnFamily, SQL_BLOCK_SELECT_ROW, rid, null);
-            inc("A");
+            selectStringRow = getStatement(keySpace, columnFamily, SQL_BLOCK_SELECT_ROW, rid, statementCache);
             selectStringRow.clearWarnings();
             selectStringRow.clearParameters();
             selectStringRow.setString(1, rid);
             body = selectStringRow.executeQuery();
             inc("B");
             if (body.next()) {
-                Types.loadFromStream(rid, result, body.getBinaryStream(1), columnFamily);
+                // values are decoded as they are accessed.
+                result = Types.loadFromStream(rid, body.getBinaryStream(1), columnFamily);
+            } else {
+                result = Maps.newHashMap();
             }
         } catch (SQLException e) {
             LOGGER.warn("Failed to perform get operation on  " + keySpace + ":" + columnFamily
@@ -213,11 +246,133 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
             throw new StorageClientException(e.getMessage(), e);
         } finally {
             close(body, "B");
-            close(selectStringRow, "A");
         }
         return result;
     }
 
+    public Map<String, Map<String, Object>> get(String keySpace, String columnFamily,
+            Collection<String> keys) throws StorageClientException {
+        checkClosed();
+        Map<String, String> rids = Maps.newLinkedHashMap();
+        for (String key : keys) {
+            if (!rids.containsKey(key)) {
+                rids.put(key, rowHash(keySpace, columnFamily, key));
+            }
+        }
+        Map<String, Map<String, Object>> rowsByRid = internalGet(keySpace, columnFamily,
+                rids.values());
+        Map<String, Map<String, Object>> rows = Maps.newLinkedHashMap();
+        for (Entry<String, String> e : rids.entrySet()) {
+            rows.put(e.getKey(), rowsByRid.get(e.getValue()));
+        }
+        return rows;
+    }
+
+    public Map<String, Map<String, Object>> resolve(String keySpace, String columnFamily,
+            String key) throws StorageClientException {
+        checkClosed();
+        String rid = rowHash(keySpace, columnFamily, key);
+        Map<String, Map<String, Object>> rows = Maps.newHashMap();
+        ResultSet body = null;
+        try {
+            PreparedStatement selectResolved = indexer.getResolveStatement(statementCache,
+                    keySpace, columnFamily, rid);
+            if (selectResolved == null) {
+                rows.put(key, internalGet(keySpace, columnFamily, rid));
+                return rows;
+            }
+            body = selectResolved.executeQuery();
+            inc("B");
+            if (!body.next()) {
+                rows.put(key, Maps.<String, Object> newHashMap());
+                return rows;
+            }
+            Map<String, Object> structure = Types.loadFromStream(rid, body.getBinaryStream(1),
+                    columnFamily);
+            rows.put(key, structure);
+            Object contentId = structure.get(InternalContent.STRUCTURE_UUID_FIELD);
+            String contentRid = body.getString(2);
+            // the index may be older than the structure row, in which case the
+            // content is loaded by the caller.
+            if (contentId instanceof String && contentRid != null
+                    && contentRid.equals(rowHash(keySpace, columnFamily, (String) contentId))) {
+                rows.put((String) contentId, Types.loadFromStream(contentRid,
+                        body.getBinaryStream(3), columnFamily));
+            }
+            return rows;
+        } catch (SQLException e) {
+            LOGGER.warn("Failed to perform resolve operation on  " + keySpace + ":"
+                    + columnFamily + ":" + key, e);
+            throw new StorageClientException(e.getMessage(), e);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to perform resolve operation on  " + keySpace + ":"
+                    + columnFamily + ":" + key, e);
+            throw new StorageClientException(e.getMessage(), e);
+        } finally {
+            close(body, "B");
+        }
+    }
+
+    /**
+     * Load many rows by rid, in as few statements as possible.
+     * @return a map of rid to row, with an empty row for each rid that does not exist.
+     */
+    Map<String, Map<String, Object>> internalGet(String keySpace, String columnFamily,
+            Collection<String> rids) throws StorageClientException {
+        Map<String, Map<String, Object>> rows = Maps.newLinkedHashMap();
+        String selectRows = getSql(keySpace, columnFamily, SQL_BLOCK_SELECT_ROWS);
+        if (selectRows == null) {
+            for (String rid : rids) {
+                if (!rows.containsKey(rid)) {
+                    rows.put(rid, internalGet(keySpace, columnFamily, rid));
+                }
+            }
+            return rows;
+        }
+        for (String rid : rids) {
+            rows.put(rid, Maps.<String, Object> newHashMap());
+        }
+        List<String> unique = Lists.newArrayList(rows.keySet());
+        for (int start = 0; start < unique.size(); start += MAX_ROWS_PER_SELECT) {
+            List<String> chunk = unique.subList(start,
+                    Math.min(unique.size(), start + MAX_ROWS_PER_SELECT));
+            int n = 1;
+            while (n < chunk.size()) {
+                n = n << 1;
+            }
+            ResultSet body = null;
+            try {
+                PreparedStatement selectBlockRows = getStatement(MessageFormat.format(selectRows,
+                        StringUtils.repeat("?", ", ", n)), statementCache);
+                selectBlockRows.clearWarnings();
+                selectBlockRows.clearParameters();
+                for (int i = 0; i < n; i++) {
+                    // pad with the last rid, it can only match once.
+                    selectBlockRows.setString(i + 1, chunk.get(Math.min(i, chunk.size() - 1)));
+                }
+                body = selectBlockRows.executeQuery();
+                inc("B");
+                while (body.next()) {
+                    String rid = body.getString(1);
+                    if (rows.containsKey(rid)) {
+                        rows.put(rid, Types.loadFromStream(rid, body.getBinaryStream(2), columnFamily));
+                    }
+                }
+            } catch (SQLException e) {
+                LOGGER.warn("Failed to perform multi get operation on  " + keySpace + ":"
+                        + columnFamily + " " + chunk, e);
+                throw new StorageClientException(e.getMessage(), e);
+            } catch (IOException e) {
+                LOGGER.warn("Failed to perform multi get operation on  " + keySpace + ":"
+                        + columnFamily + " " + chunk, e);
+                throw new StorageClientException(e.getMessage(), e);
+            } finally {
+                close(body, "B");
+            }
+        }
+        return rows;
+    }
+
     public String rowHash(String keySpace, String columnFamily, String key)
             throws StorageClientException {
         MessageDigest hasher;
@@ -238,9 +393,13 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
 
     public void insert(String keySpace, String columnFamily, String key, Map<String, Object> values, boolean probablyNew)
             throws StorageClientException {
+        insert(keySpace, columnFamily, key, values, probablyNew, null);
+    }
+
+    public void insert(String keySpace, String columnFamily, String key, Map<String, Object> values, boolean probablyNew, Map<String, Object> currentRow)
+            throws StorageClientException {
         checkClosed();
 
-        Map<String, PreparedStatement> statementCache = Maps.newHashMap();
         boolean autoCommit = true;
         try {
             autoCommit = startBlock();
@@ -254,7 +413,15 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
                 }
             }
 
-            Map<String, Object> m = get(keySpace, columnFamily, key);
+            Map<String, Object> m = null;
+            if (deltaWrites && currentRow != null) {
+                // the caller already has the current row, so there is no need to read it
+                // again, merge the changes into a copy so the callers row is not modified.
+                m = Maps.newHashMap(currentRow);
+                LOGGER.debug("Delta Write {} {} ", key, rid);
+            } else {
+                m = get(keySpace, columnFamily, key);
+            }
             for (Entry<String, Object> e : values.entrySet()) {
                 String k = e.getKey();
                 Object o = e.getValue();
@@ -266,18 +433,19 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
                 }
             }
             LOGGER.debug("Saving {} {} {} ", new Object[]{key, rid, m});
+            // encode once, each statement gets its own stream over the same buffer.
+            try {
+                Types.storeMapToStream(rid, m, columnFamily, rowBuffer);
+            } catch (UTFDataFormatException e) {
+                throw new DataFormatException(INVALID_DATA_ERROR, e);
+            }
             if ( probablyNew && !UPDATE_FIRST_SEQUENCE.equals(getSql(SQL_STATEMENT_SEQUENCE))) {
                 PreparedStatement insertBlockRow = getStatement(keySpace, columnFamily,
                         SQL_BLOCK_INSERT_ROW, rid, statementCache);
                 insertBlockRow.clearWarnings();
                 insertBlockRow.clearParameters();
                 insertBlockRow.setString(1, rid);
-                InputStream insertStream = null;
-                try {
-                  insertStream = Types.storeMapToStream(rid, m, columnFamily);
-                } catch (UTFDataFormatException e) {
-                  throw new DataFormatException(INVALID_DATA_ERROR, e);
-                }
+                InputStream insertStream = rowBuffer.toInputStream();
               if ("1.5".equals(getSql(JDBC_SUPPORT_LEVEL))) {
                   insertBlockRow.setBinaryStream(2, insertStream, insertStream.available());
                 } else {
@@ -295,11 +463,7 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
                     updateBlockRow.clearWarnings();
                     updateBlockRow.clearParameters();
                     updateBlockRow.setString(2, rid);
-                  try {
-                    insertStream = Types.storeMapToStream(rid, m, columnFamily);
-                  } catch (UTFDataFormatException e) {
-                    throw new DataFormatException(INVALID_DATA_ERROR, e);
-                  }
+                    insertStream = rowBuffer.toInputStream();
                   if ("1.5".equals(getSql(JDBC_SUPPORT_LEVEL))) {
                       updateBlockRow.setBinaryStream(1, insertStream, insertStream.available());
                     } else {
@@ -319,12 +483,7 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
                 updateBlockRow.clearWarnings();
                 updateBlockRow.clearParameters();
                 updateBlockRow.setString(2, rid);
-              InputStream updateStream = null;
-              try {
-                updateStream = Types.storeMapToStream(rid, m, columnFamily);
-              } catch (UTFDataFormatException e) {
-                  throw new DataFormatException(INVALID_DATA_ERROR, e);
-              }
+              InputStream updateStream = rowBuffer.toInputStream();
               if ("1.5".equals(getSql(JDBC_SUPPORT_LEVEL))) {
                   updateBlockRow.setBinaryStream(1, updateStream, updateStream.available());
                 } else {
@@ -336,11 +495,7 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
                     insertBlockRow.clearWarnings();
                     insertBlockRow.clearParameters();
                     insertBlockRow.setString(1, rid);
-                  try {
-                    updateStream = Types.storeMapToStream(rid, m, columnFamily);
-                  } catch (UTFDataFormatException e) {
-                    throw new DataFormatException(INVALID_DATA_ERROR, e);
-                  }
+                    updateStream = rowBuffer.toInputStream();
                   if ("1.5".equals(getSql(JDBC_SUPPORT_LEVEL))) {
                       insertBlockRow.setBinaryStream(2, updateStream, updateStream.available());
                     } else {
@@ -356,22 +511,26 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
                 }
             }
             
+            // the driver has read the row by now, dont hold on to a large buffer.
+            rowBuffer.reset();
+
             // Indexing ---------------------------------------------------------------------------
             indexer.index(statementCache, keySpace, columnFamily, key, rid, values);
             
             endBlock(autoCommit);
         } catch (SQLException e) {
             abandonBlock(autoCommit);
+            // the cached statements may have been left with pending batches, start again.
+            statementCache.clear();
             LOGGER.warn("Failed to perform insert/update operation on {}:{}:{} ", new Object[] {
                     keySpace, columnFamily, key }, e);
             throw new StorageClientException(e.getMessage(), e);
         } catch (IOException e) {
             abandonBlock(autoCommit);
+            statementCache.clear();
             LOGGER.warn("Failed to perform insert/update operation on {}:{}:{} ", new Object[] {
                     keySpace, columnFamily, key }, e);
             throw new StorageClientException(e.getMessage(), e);
-        } finally {
-            close(statementCache);
         }
     }
 
@@ -403,6 +562,36 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
         }
     }
 
+    public void begin() throws StorageClientException {
+        checkClosed();
+        try {
+            // writes join the transaction, as their own blocks see autocommit off.
+            jcbcStorageClientConnection.getConnection().setAutoCommit(false);
+        } catch (SQLException e) {
+            throw new StorageClientException(e.getMessage(), e);
+        }
+    }
+
+    public void commit() throws StorageClientException {
+        try {
+            Connection connection = jcbcStorageClientConnection.getConnection();
+            connection.commit();
+            connection.setAutoCommit(true);
+        } catch (SQLException e) {
+            throw new StorageClientException(e.getMessage(), e);
+        }
+    }
+
+    public void rollback() {
+        try {
+            Connection connection = jcbcStorageClientConnection.getConnection();
+            connection.rollback();
+            connection.setAutoCommit(true);
+        } catch (SQLException e) {
+            LOGGER.warn(e.getMessage(), e);
+        }
+    }
+
     private boolean startBlock() throws SQLException {
         Connection connection = jcbcStorageClientConnection.getConnection();
         boolean autoCommit = connection.getAutoCommit();
@@ -424,15 +613,14 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
         boolean autoCommit = false;
         try {
             autoCommit = startBlock();
-            deleteStringRow = getStatement(keySpace, columnFamily, SQL_DELETE_STRING_ROW, rid, null);
-            inc("deleteStringRow");
+            deleteStringRow = getStatement(keySpace, columnFamily, SQL_DELETE_STRING_ROW, rid, statementCache);
             deleteStringRow.clearWarnings();
             deleteStringRow.clearParameters();
             deleteStringRow.setString(1, rid);
             deleteStringRow.executeUpdate();
+            indexer.remove(statementCache, keySpace, columnFamily, rid);
 
-            deleteBlockRow = getStatement(keySpace, columnFamily, SQL_BLOCK_DELETE_ROW, rid, null);
-            inc("deleteBlockRow");
+            deleteBlockRow = getStatement(keySpace, columnFamily, SQL_BLOCK_DELETE_ROW, rid, statementCache);
             deleteBlockRow.clearWarnings();
             deleteBlockRow.clearParameters();
             deleteBlockRow.setString(1, rid);
@@ -440,12 +628,11 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
             endBlock(autoCommit);
         } catch (SQLException e) {
             abandonBlock(autoCommit);
+            // the cached statements may have been left with pending batches, start again.
+            statementCache.clear();
             LOGGER.warn("Failed to perform delete operation on {}:{}:{} ", new Object[] { keySpace,
                     columnFamily, key }, e);
             throw new StorageClientException(e.getMessage(), e);
-        } finally {
-            close(deleteStringRow, "deleteStringRow");
-            close(deleteBlockRow, "deleteBlockRow");
         }
     }
 
@@ -453,7 +640,9 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
         if (closed == null) {
             try {
                 closed = new Exception("Connection Closed Traceback");
+                statementCache.clear();
                 shutdownConnection();
+                findStatementCache.clear();
                 jcbcStorageClientConnection.releaseClient(this);
             } catch (Throwable t) {
                 LOGGER.error("Failed to close connection ", t);
@@ -469,7 +658,9 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
     }
 
     /**
-     * Get a prepared statement, potentially optimized and sharded.
+     * Get a prepared statement, potentially optimized and sharded. Statements
+     * from the clients own statement cache stay open for the life of the
+     * client (until passivated or closed) and must not be closed by the caller.
      * 
      * @param keySpace
      * @param columnFamily
@@ -494,18 +685,7 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
         for (String k : keys) {
             if (sqlConfig.containsKey(k)) {
                 LOGGER.debug("Using Statement {} ",sqlConfig.get(k));
-                if (statementCache != null && statementCache.containsKey(k)) {
-                    return statementCache.get(k);
-                } else {
-                    
-                    PreparedStatement pst = jcbcStorageClientConnection.getConnection()
-                            .prepareStatement((String) sqlConfig.get(k));
-                    if (statementCache != null) {
-                        inc("cachedStatement");
-                        statementCache.put(k, pst);
-                    }
-                    return pst;
-                }
+                return getStatement((String) sqlConfig.get(k), statementCache);
             }
         }
         return null;
@@ -513,7 +693,10 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
     
     PreparedStatement getStatement(String sql,   Map<String, PreparedStatement> statementCache) throws SQLException {
         PreparedStatement pst = null;
-        if ( statementCache != null ) {
+        if ( statementCache instanceof PreparedStatementCache ) {
+            pst = ((PreparedStatementCache) statementCache).getStatement(
+                    jcbcStorageClientConnection.getConnection(), sql);
+        } else if ( statementCache != null ) {
             if ( statementCache.containsKey(sql)) {
                 pst =  statementCache.get(sql);
             } else {
@@ -527,6 +710,21 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
         return pst;
     }
 
+    /**
+     * Get a prepared statement for a find, reusing the statement prepared on
+     * this client's connection for the same SQL unless an open find is still
+     * using it. The statement must be released with
+     * {@link #releaseFindStatement(PreparedStatement)} rather than closed.
+     */
+    PreparedStatement getFindStatement(String sql) throws SQLException {
+        return findStatementCache.borrowStatement(jcbcStorageClientConnection.getConnection(),
+                sql);
+    }
+
+    void releaseFindStatement(PreparedStatement pst) {
+        findStatementCache.releaseStatement(pst);
+    }
+
     public void shutdownConnection() {
         if (active) {
             disposeDisposables();
@@ -689,6 +887,8 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
 
     public void passivate() {
         disposeDisposables();
+        statementCache.clear();
+        findStatementCache.clear();
     }
 
     public Map<String, Object> streamBodyIn(String keySpace, String columnFamily, String contentId,
@@ -749,6 +949,30 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
         return find(keySpace, columnFamily, ImmutableMap.of(InternalContent.PARENT_HASH_FIELD, (Object)hash, StorageConstants.CUSTOM_STATEMENT_SET, "listchildren"));
     }
 
+    public List<String> listChildPaths(String keySpace, String columnFamily, String key,
+            String after, int limit) throws StorageClientException {
+        checkClosed();
+        String hash = rowHash(keySpace, columnFamily, key);
+        try {
+            // names are unique within a parent, so the last name is enough to
+            // seek to the next page.
+            List<String> names = indexer.listChildNames(statementCache, keySpace, columnFamily,
+                    hash, after == null ? "" : StorageClientUtils.getObjectName(after), limit);
+            if (names == null) {
+                return null;
+            }
+            List<String> paths = Lists.newArrayListWithCapacity(names.size());
+            for (String name : names) {
+                paths.add(StorageClientUtils.newPath(key, name));
+            }
+            return paths;
+        } catch (SQLException e) {
+            LOGGER.warn("Failed to list children of " + keySpace + ":" + columnFamily + ":" + key,
+                    e);
+            throw new StorageClientException(e.getMessage(), e);
+        }
+    }
+
     public DisposableIterator<Map<String,Object>> find(final String keySpace, final String columnFamily,
             Map<String, Object> properties) throws StorageClientException {
         checkClosed();
@@ -810,9 +1034,8 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
                     try {
                         while (open && rs.next()) {
                             try {
-                                Map<String, Object> values = Maps.newHashMap();
                                 String rid = rs.getString(1);
-                                Types.loadFromStream(rid, values, rs.getBinaryStream(2), columnFamily);
+                                Map<String, Object> values = Types.loadFromStream(rid, rs.getBinaryStream(2), columnFamily);
                                 nextValue = new SparseMapRow(rid,values);
                                 return true;
                             } catch (IOException e) {
@@ -907,6 +1130,31 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
         }
     }
 
+    /**
+     * @return a snapshot of the open statement and result set counters, along
+     *         with the hits, misses and size of the prepared statement caches,
+     *         and the distinct shapes, hits, evictions and size of the find plan
+     *         cache shared by the clients of the pool.
+     */
+    public Map<String, Long> getCounters() {
+        Builder<String, Long> b = ImmutableMap.builder();
+        for (Entry<String, AtomicInteger> e : counters.entrySet()) {
+            b.put(e.getKey(), e.getValue().longValue());
+        }
+        b.put("statementCacheHits", statementCache.getHits());
+        b.put("statementCacheMisses", statementCache.getMisses());
+        b.put("statementCacheSize", (long) statementCache.size());
+        b.put("findStatementCacheHits", findStatementCache.getHits());
+        b.put("findStatementCacheMisses", findStatementCache.getMisses());
+        b.put("findStatementCacheSize", (long) findStatementCache.size());
+        FindPlanCache findPlanCache = FindPlanCache.getCache(sqlConfig);
+        b.put("findPlanShapes", findPlanCache.getShapes());
+        b.put("findPlanHits", findPlanCache.getHits());
+        b.put("findPlanEvictions", findPlanCache.getEvictions());
+        b.put("findPlanCacheSize", (long) findPlanCache.size());
+        return b.build();
+    }
+
     private void close(ResultSet rs, String name) {
         try {
             if (rs != null) {
@@ -918,30 +1166,6 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
         }
     }
 
-    private void close(PreparedStatement pst, String name) {
-        try {
-            if (pst != null) {
-                pst.close();
-                dec(name);
-            }
-        } catch (Throwable e) {
-            LOGGER.debug("Failed to close prepared set, ok to ignore this message ", e);
-        }
-    }
-
-    private void close(Map<String, PreparedStatement> statementCache) {
-        for (PreparedStatement pst : statementCache.values()) {
-            if (pst != null) {
-                try {
-                    pst.close();
-                    dec("cachedStatement");
-                } catch (SQLException e) {
-                    LOGGER.debug(e.getMessage(), e);
-                }
-            }
-        }
-    }
-
     public Map<String, String> syncIndexColumns() throws StorageClientException, SQLException {
         checkClosed();
         String selectColumns = getSql(SQL_INDEX_COLUMN_NAME_SELECT);
@@ -1078,6 +1302,13 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
         return verySlowQueryThreshold;
     }
 
+    /**
+     * @return the number of rows a finder loads at a time.
+     */
+    public int getFindBatchSize() {
+        return findBatchSize;
+    }
+
     public Indexer getIndexer() {
         return indexer;
     }
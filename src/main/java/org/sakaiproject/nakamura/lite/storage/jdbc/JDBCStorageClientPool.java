@@ -48,7 +48,6 @@ import org.sakaiproject.nakamura.api.lite.StorageCacheManager;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.lite.storage.AbstractClientConnectionPool;
-import org.sakaiproject.nakamura.lite.storage.ConcurrentLRUMap;
 import org.sakaiproject.nakamura.lite.storage.StorageClientPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -73,6 +72,34 @@ public class JDBCStorageClientPool extends AbstractClientConnectionPool {
     private static final String USERNAME = "username";
     @Property(value = { "" })
     private static final String PASSWORD = "password";
+
+    /**
+     * If true, rows already held by the caller (eg in the cache) are used as the base of an
+     * update in place of reading the row from the database before writing it. The cached row
+     * is not checked against the stored row, so this is only safe where nothing else writes
+     * to the store (eg a single node with no other writers), otherwise a stale cached row
+     * will overwrite newer data. Off by default.
+     */
+    @Property(boolValue = false)
+    public static final String DELTA_WRITES = "delta-writes";
+
+    /**
+     * The maximum number of prepared statements each client keeps open between calls.
+     */
+    @Property(intValue = 50)
+    public static final String STATEMENT_CACHE_SIZE = "statement-cache-size";
+
+    /**
+     * The largest buffer, in bytes, each client keeps for encoding rows between writes.
+     */
+    @Property(intValue = 65536)
+    public static final String ROW_BUFFER_SIZE = "row-buffer-size";
+
+    /**
+     * The number of rows each finder loads with one statement as its results are iterated.
+     */
+    @Property(intValue = 50)
+    public static final String FIND_BATCH_SIZE = "find-batch-size";
  
     @Reference(cardinality=ReferenceCardinality.OPTIONAL_UNARY, policy=ReferencePolicy.DYNAMIC)
     private StorageCacheManager storageManagerCache;
@@ -151,7 +178,7 @@ public class JDBCStorageClientPool extends AbstractClientConnectionPool {
         timer = new Timer();
         timer.schedule(connectionManager, 30000L, 30000L);
 
-        sharedCache = new ConcurrentLRUMap<String, CacheHolder>(10000);
+        sharedCache = newSharedCache();
         // this is a default cache used where none has been provided.
         defaultStorageManagerCache = new StorageCacheManager() {
             
@@ -364,9 +391,9 @@ public class JDBCStorageClientPool extends AbstractClientConnectionPool {
             if ( sharedCache.size() > 0 ) {
                 sharedCache.clear(); // dump any memory consumed by the default cache.
             }
-            return storageManagerCache ;
+            return registerCaches(storageManagerCache);
         }
-        return defaultStorageManagerCache;
+        return registerCaches(defaultStorageManagerCache);
     }
 
     public Connection getConnection() throws SQLException {
@@ -18,8 +18,6 @@
 package org.sakaiproject.nakamura.lite.storage.jdbc;
 
 import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.text.MessageFormat;
 import java.util.Arrays;
@@ -32,16 +30,12 @@ import java.util.Map.Entry;
 import org.apache.commons.lang.StringUtils;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageConstants;
-import org.sakaiproject.nakamura.api.lite.util.PreemptiveIterator;
+import org.sakaiproject.nakamura.lite.content.InternalContent;
 import org.sakaiproject.nakamura.lite.storage.DisposableIterator;
-import org.sakaiproject.nakamura.lite.storage.Disposer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
-import com.google.common.collect.ImmutableMap.Builder;
 
 public abstract class KeyValueIndexer extends AbstractIndexer {
 
@@ -51,20 +45,85 @@ public abstract class KeyValueIndexer extends AbstractIndexer {
     private static final int STMT_WHERE_SORT = 3;
     private static final int STMT_ORDER = 4;
     private static final int STMT_EXTRA_COLUMNS = 5;
+    private static final int STMT_CURSOR_WHERE = 6;
+    private static final int STMT_CURSOR_WHERE_SORT_ASC = 7;
+    private static final int STMT_CURSOR_WHERE_SORT_DESC = 8;
+    private static final int STMT_CURSOR_ORDER = 9;
+    private static final String SQL_FIND_CURSOR_SUFFIX = "-cursor";
+    private static final String SQL_LIST_CHILD_NAMES = "listchildpaths";
+    private static final String SQL_SELECT_RESOLVED = "block-select-resolved";
 
     private static final Logger LOGGER = LoggerFactory.getLogger(KeyValueIndexer.class);
     protected JDBCStorageClient client;
+    private FindPlanCache planCache;
 
     public KeyValueIndexer(JDBCStorageClient jdbcStorageClient, Set<String> indexColumns, Map<String, Object> sqlConfig) {
         super(indexColumns);
         this.client = jdbcStorageClient;
+        this.planCache = FindPlanCache.getCache(sqlConfig);
+    }
+
+    public void remove(Map<String, PreparedStatement> statementCache, String keySpace,
+            String columnFamily, String rid) {
+        // the key value index is the row table, already removed with the row.
+    }
+
+    public List<String> listChildNames(Map<String, PreparedStatement> statementCache,
+            String keySpace, String columnFamily, String parentHash, String after, int limit)
+            throws SQLException {
+        PreparedStatement listChildNames = client.getStatement(keySpace, columnFamily,
+                SQL_LIST_CHILD_NAMES, parentHash, statementCache);
+        if (listChildNames == null) {
+            return null;
+        }
+        listChildNames.clearWarnings();
+        listChildNames.clearParameters();
+        listChildNames.setString(1, InternalContent.PARENT_HASH_FIELD);
+        listChildNames.setString(2, parentHash);
+        listChildNames.setString(3, InternalContent.CHILD_NAME_FIELD);
+        listChildNames.setString(4, after);
+        return loadNames(listChildNames, limit);
+    }
+
+    public PreparedStatement getResolveStatement(Map<String, PreparedStatement> statementCache,
+            String keySpace, String columnFamily, String rid) throws SQLException {
+        PreparedStatement selectResolved = client.getStatement(keySpace, columnFamily,
+                SQL_SELECT_RESOLVED, rid, statementCache);
+        if (selectResolved == null) {
+            return null;
+        }
+        selectResolved.clearWarnings();
+        selectResolved.clearParameters();
+        selectResolved.setString(1, InternalContent.STRUCTURE_UUID_HASH_FIELD);
+        selectResolved.setString(2, rid);
+        return selectResolved;
+    }
+
+    void addTermParameters(List<Object> parameters, String keySpace, String columnFamily,
+            String k, Object v) {
+        if (v instanceof Iterable<?>) {
+            for (Object vo : (Iterable<?>) v) {
+                parameters.add(k);
+                parameters.add(vo);
+            }
+        } else {
+            parameters.add(k);
+            parameters.add(v);
+        }
     }
 
     public DisposableIterator<Map<String, Object>> find(final String keySpace, final String columnFamily,
             Map<String, Object> properties) throws StorageClientException {
         String[] keys = null;
+        String[] cursorKeys = null;
         if ( properties != null  && properties.containsKey(StorageConstants.CUSTOM_STATEMENT_SET)) {
             String customStatement = (String) properties.get(StorageConstants.CUSTOM_STATEMENT_SET);
+            // a custom set is only continued from a cursor by its own cursor statements.
+            cursorKeys = new String[] {
+                    customStatement + SQL_FIND_CURSOR_SUFFIX + "." + keySpace + "." + columnFamily,
+                    customStatement + SQL_FIND_CURSOR_SUFFIX + "." + columnFamily,
+                    customStatement + SQL_FIND_CURSOR_SUFFIX
+            };
             keys = new String[] { 
                     customStatement+ "." + keySpace + "." + columnFamily,
                     customStatement +  "." + columnFamily, 
@@ -76,23 +135,33 @@ public abstract class KeyValueIndexer extends AbstractIndexer {
         } else {
             keys = new String[] { "block-find." + keySpace + "." + columnFamily,
                     "block-find." + columnFamily, "block-find" };            
+            cursorKeys = new String[] { "block-find-cursor." + keySpace + "." + columnFamily,
+                    "block-find-cursor." + columnFamily, "block-find-cursor" };
         }
         
         final boolean rawResults = properties != null && properties.containsKey(StorageConstants.RAWRESULTS);
 
-        String sql = client.getSql(keys);
+        // a cursor selects statements that order by rid and can start after a row.
+        String cursor = null;
+        String sql = null;
+        if (properties != null && properties.get(StorageConstants.CURSOR) != null) {
+            cursor = String.valueOf(properties.get(StorageConstants.CURSOR));
+            sql = client.getSql(cursorKeys);
+            if (sql == null && cursor.length() > 0) {
+                throw new StorageClientException(
+                        "Failed to locate SQL statement to continue from a cursor for any of  "
+                                + Arrays.toString(cursorKeys));
+            }
+        }
+        final boolean cursors = sql != null;
+        if (sql == null) {
+            sql = client.getSql(keys);
+        }
         if (sql == null) {
             throw new StorageClientException("Failed to locate SQL statement for any of  "
                     + Arrays.toString(keys));
         }
 
-        String[] statementParts = StringUtils.split(sql, ';');
-
-        StringBuilder tables = new StringBuilder();
-        StringBuilder where = new StringBuilder();
-        StringBuilder order = new StringBuilder();
-        StringBuilder extraColumns = new StringBuilder();
-
         // collect information on paging
         long page = 0;
         long items = 25;
@@ -107,7 +176,8 @@ public abstract class KeyValueIndexer extends AbstractIndexer {
         long offset = page * items;
 
         // collect information on sorting
-        String[] sorts = new String[] { null, "asc" };
+        // the sort column, the direction, and the table alias of the sort column once joined.
+        String[] sorts = new String[] { null, "asc", null };
         String _sortProp = (String) properties.get(StorageConstants.SORT);
         if (_sortProp != null) {
           String[] _sorts = StringUtils.split(_sortProp);
@@ -119,6 +189,37 @@ public abstract class KeyValueIndexer extends AbstractIndexer {
           }
         }
 
+        // the SQL depends on the shape of the find, not the values of its terms.
+        List<Object> parameters = Lists.newArrayList();
+        String shape = new StringBuilder("kv:").append(keySpace).append(':')
+                .append(columnFamily).append(':')
+                .append(properties.get(StorageConstants.CUSTOM_STATEMENT_SET)).append(':')
+                .append(_sortProp).append(':')
+                .append(cursors ? (cursor.length() > 0 ? "after" : "first") : "page").append(':')
+                .append(getTermShape(keySpace, columnFamily, properties, parameters)).toString();
+        FindPlanCache.Plan plan = planCache.get(shape);
+        if (plan == null) {
+            plan = createPlan(sql, keySpace, columnFamily, properties, sorts, cursors,
+                    cursors && cursor.length() > 0);
+            planCache.put(shape, plan);
+        }
+        return executeFind(client, keySpace, columnFamily, plan, parameters, cursors, cursor,
+                items, offset, rawResults);
+    }
+
+
+    /**
+     * Generate the SQL of a find from its terms, sort and cursor.
+     */
+    private FindPlanCache.Plan createPlan(String sql, String keySpace, String columnFamily,
+            Map<String, Object> properties, String[] sorts, boolean cursors, boolean seek) {
+        String[] statementParts = StringUtils.split(sql, ';');
+
+        StringBuilder tables = new StringBuilder();
+        StringBuilder where = new StringBuilder();
+        StringBuilder order = new StringBuilder();
+        StringBuilder extraColumns = new StringBuilder();
+
         List<Object> parameters = Lists.newArrayList();
         int set = 0;
         for (Entry<String, Object> e : properties.entrySet()) {
@@ -161,42 +262,14 @@ public abstract class KeyValueIndexer extends AbstractIndexer {
                           where.append(" AND");
                       }
                   }
-                } else if (!k.startsWith("_")) {
-                  LOGGER.debug("Search on {}:{} filter dropped due to null value.", columnFamily, k);
                 }
-            } else {
-              if (!k.startsWith("_")) {
-                  LOGGER.warn("Search on {}:{} is not supported, filter dropped ",columnFamily,k);
-              }
             }
         }
         if (where.length() == 0) {
-            return new DisposableIterator<Map<String,Object>>() {
-
-                private Disposer disposer;
-                public boolean hasNext() {
-                    return false;
-                }
-
-                public Map<String, Object> next() {
-                    return null;
-                }
-
-                public void remove() {
-                }
-
-                public void close() {
-                    if ( disposer != null ) {
-                        disposer.unregisterDisposable(this);
-                    }
-                }
-                public void setDisposer(Disposer disposer) {
-                    this.disposer = disposer;
-                }
-
-            };
+            return FindPlanCache.Plan.EMPTY;
         }
 
+        int termParameters = parameters.size();
         if (sorts[0] != null && order.length() == 0) {
           if (shouldFind(keySpace, columnFamily, sorts[0])) {
             String t = "a"+set;
@@ -207,141 +280,34 @@ public abstract class KeyValueIndexer extends AbstractIndexer {
             parameters.add(sorts[0]);
             where.append(MessageFormat.format(statementParts[STMT_WHERE_SORT], t)).append(" AND");
             order.append(MessageFormat.format(statementParts[STMT_ORDER], t, sorts[1]));
+            sorts[2] = t;
           } else {
             LOGGER.warn("Sort on {}:{} is not supported, sort dropped", columnFamily,
                 sorts[0]);
           }
         }
 
-
-        final String sqlStatement = MessageFormat.format(statementParts[STMT_BASE],
-            tables.toString(), where.toString(), order.toString(), items, offset, extraColumns.toString());
-
-        PreparedStatement tpst = null;
-        ResultSet trs = null;
-        try {
-            LOGGER.debug("Preparing {} ", sqlStatement);
-            tpst = client.getConnection().prepareStatement(sqlStatement);
-            client.inc("iterator");
-            tpst.clearParameters();
-            int i = 1;
-            for (Object params : parameters) {
-                tpst.setObject(i, params);
-                LOGGER.debug("Setting {} ", params);
-
-                i++;
-            }
-
-            long qtime = System.currentTimeMillis();
-            trs = tpst.executeQuery();
-            qtime = System.currentTimeMillis() - qtime;
-            if ( qtime > client.getSlowQueryThreshold() && qtime < client.getVerySlowQueryThreshold()) {
-                JDBCStorageClient.SQL_LOGGER.warn("Slow Query {}ms {} params:[{}]",new Object[]{qtime,sqlStatement,Arrays.toString(parameters.toArray(new String[parameters.size()]))});
-            } else if ( qtime > client.getVerySlowQueryThreshold() ) {
-                JDBCStorageClient.SQL_LOGGER.error("Very Slow Query {}ms {} params:[{}]",new Object[]{qtime,sqlStatement,Arrays.toString(parameters.toArray(new String[parameters.size()]))});
-            }
-            client.inc("iterator r");
-            LOGGER.debug("Executed ");
-
-            // pass control to the iterator.
-            final PreparedStatement pst = tpst;
-            final ResultSet rs = trs;
-            final ResultSetMetaData rsmd = rs.getMetaData();
-            tpst = null;
-            trs = null;
-            return client.registerDisposable(new PreemptiveIterator<Map<String, Object>>() {
-
-                private Map<String, Object> nextValue = Maps.newHashMap();
-                private boolean open = true;
-
-                @Override
-                protected Map<String, Object> internalNext() {
-                    return nextValue;
-                }
-
-                @Override
-                protected boolean internalHasNext() {
-                    try {
-                        if (open && rs.next()) {
-                            if ( rawResults ) {
-                                Builder<String, Object> b = ImmutableMap.builder();
-                                for  (int i = 1; i <= rsmd.getColumnCount(); i++ ) {
-                                    b.put(String.valueOf(i), rs.getObject(i));
-                                }
-                                nextValue = b.build();
-                            } else {
-                               String id = rs.getString(1);
-                               nextValue = client.internalGet(keySpace, columnFamily, id);
-                               LOGGER.debug("Got Row ID {} {} ", id, nextValue);
-                            }
-                            return true;
-                        }
-                        close();
-                        nextValue = null;
-                        LOGGER.debug("End of Set ");
-                        return false;
-                    } catch (SQLException e) {
-                        LOGGER.error(e.getMessage(), e);
-                        close();
-                        nextValue = null;
-                        return false;
-                    } catch (StorageClientException e) {
-                        LOGGER.error(e.getMessage(), e);
-                        close();
-                        nextValue = null;
-                        return false;
-                    }
-                }
-
-                @Override
-                public void close() {
-                    if (open) {
-                        open = false;
-                        try {
-                            if (rs != null) {
-                                rs.close();
-                                client.dec("iterator r");
-                            }
-                        } catch (SQLException e) {
-                            LOGGER.warn(e.getMessage(), e);
-                        }
-                        try {
-                            if (pst != null) {
-                                pst.close();
-                                client.dec("iterator");
-                            }
-                        } catch (SQLException e) {
-                            LOGGER.warn(e.getMessage(), e);
-                        }
-                        super.close();
-                    }
-
-                }
-            });
-        } catch (SQLException e) {
-            LOGGER.error(e.getMessage(), e);
-            throw new StorageClientException(e.getMessage() + " SQL Statement was " + sqlStatement,
-                    e);
-        } finally {
-            // trs and tpst will only be non null if control has not been passed
-            // to the iterator.
-            try {
-                if (trs != null) {
-                    trs.close();
-                    client.dec("iterator r");
-                }
-            } catch (SQLException e) {
-                LOGGER.warn(e.getMessage(), e);
+        final boolean sorted = sorts[2] != null;
+        if (cursors) {
+            if (!sorted) {
+                order.append(statementParts[STMT_CURSOR_ORDER]);
             }
-            try {
-                if (tpst != null) {
-                    tpst.close();
-                    client.dec("iterator");
+            if (seek) {
+                if (sorted) {
+                    int part = "desc".equalsIgnoreCase(sorts[1]) ? STMT_CURSOR_WHERE_SORT_DESC
+                            : STMT_CURSOR_WHERE_SORT_ASC;
+                    where.append(" (")
+                            .append(MessageFormat.format(statementParts[part], sorts[2]))
+                            .append(") AND");
+                } else {
+                    where.append(" (").append(statementParts[STMT_CURSOR_WHERE]).append(") AND");
                 }
-            } catch (SQLException e) {
-                LOGGER.warn(e.getMessage(), e);
             }
         }
+        return new FindPlanCache.Plan(statementParts[STMT_BASE], new Object[] {
+                tables.toString(), where.toString(), order.toString(), null, null,
+                extraColumns.toString() }, 3, 4, parameters.subList(termParameters,
+                parameters.size()), sorted);
     }
 
 
@@ -382,6 +348,7 @@ public abstract class KeyValueIndexer extends AbstractIndexer {
       // add in sorting based on the table ref and value
       if (k.equals(sorts[0])) {
         order.append(MessageFormat.format(statementParts[STMT_ORDER], t, sorts[1]));
+        sorts[2] = t;
         if ( statementParts.length > STMT_EXTRA_COLUMNS ) {
             extraColumns.append(MessageFormat.format(statementParts[STMT_EXTRA_COLUMNS], t));
         }
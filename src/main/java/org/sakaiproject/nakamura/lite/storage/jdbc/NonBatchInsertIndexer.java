@@ -30,7 +30,7 @@ import org.sakaiproject.nakamura.lite.content.InternalContent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
 
 public class NonBatchInsertIndexer extends KeyValueIndexer {
 
@@ -110,8 +110,19 @@ public class NonBatchInsertIndexer extends KeyValueIndexer {
             String hash = client.rowHash(keySpace, columnFamily, parent);
             LOGGER.debug("Hash of {}:{}:{} is {} ", new Object[] { keySpace, columnFamily,
                     parent, hash });
-            Map<String, Object> autoIndexMap = ImmutableMap.of(
-                    InternalContent.PARENT_HASH_FIELD, (Object) hash);
+            Map<String, Object> autoIndexMap = Maps.newHashMap();
+            autoIndexMap.put(InternalContent.PARENT_HASH_FIELD, hash);
+            if (shouldIndex(keySpace, columnFamily, InternalContent.CHILD_NAME_FIELD)) {
+                autoIndexMap.put(InternalContent.CHILD_NAME_FIELD,
+                        StorageClientUtils.getObjectName(key));
+            }
+            Object contentId = values.get(InternalContent.STRUCTURE_UUID_FIELD);
+            if (contentId instanceof String
+                    && shouldIndex(keySpace, columnFamily,
+                            InternalContent.STRUCTURE_UUID_HASH_FIELD)) {
+                autoIndexMap.put(InternalContent.STRUCTURE_UUID_HASH_FIELD,
+                        client.rowHash(keySpace, columnFamily, (String) contentId));
+            }
             for (Entry<String, Object> e : autoIndexMap.entrySet()) {
                 String k = e.getKey();
                 Object v = e.getValue();
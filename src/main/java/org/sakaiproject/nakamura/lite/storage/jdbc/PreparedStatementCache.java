@@ -0,0 +1,152 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded, least recently used cache of {@link PreparedStatement}s keyed by
+ * SQL. The cache belongs to a single {@link JDBCStorageClient} and only holds
+ * statements prepared on one connection, if the client is handed a different
+ * connection the cache is emptied. Statements are closed as they are evicted
+ * or when the cache is cleared. Statements that stay in use between calls, by
+ * the result sets of finds, are borrowed and released, and are closed when
+ * released if they have left the cache meanwhile. Not thread safe, a client is
+ * only used by one thread at a time.
+ */
+class PreparedStatementCache extends LinkedHashMap<String, PreparedStatement> {
+
+    private static final long serialVersionUID = -5317362098465380547L;
+    private static final Logger LOGGER = LoggerFactory.getLogger(PreparedStatementCache.class);
+    private int maxSize;
+    private transient Connection connection;
+    private long hits;
+    private long misses;
+    private transient Map<PreparedStatement, String> borrowed = new IdentityHashMap<PreparedStatement, String>();
+
+    PreparedStatementCache(int maxSize) {
+        super(maxSize + 1, 0.75F, true);
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get a statement for the sql, preparing it on the connection if it is not
+     * already in the cache.
+     * 
+     * @param connection
+     *            the connection the client is currently using.
+     * @param sql
+     * @return the statement, which must not be closed by the caller.
+     * @throws SQLException
+     */
+    PreparedStatement getStatement(Connection connection, String sql) throws SQLException {
+        if (this.connection != connection) {
+            clear();
+            this.connection = connection;
+        }
+        PreparedStatement pst = get(sql);
+        if (pst == null) {
+            misses++;
+            pst = connection.prepareStatement(sql);
+            put(sql, pst);
+        } else {
+            hits++;
+        }
+        return pst;
+    }
+
+    /**
+     * Borrow a statement for the sql, which stays in use until it is
+     * released. A statement that is already borrowed is not lent again, a new
+     * statement is prepared instead, and closed when it is released.
+     * 
+     * @param connection
+     *            the connection the client is currently using.
+     * @param sql
+     * @return the statement, which must be released rather than closed.
+     * @throws SQLException
+     */
+    PreparedStatement borrowStatement(Connection connection, String sql) throws SQLException {
+        PreparedStatement pst = getStatement(connection, sql);
+        if (borrowed.containsKey(pst)) {
+            pst = connection.prepareStatement(sql);
+        }
+        borrowed.put(pst, sql);
+        return pst;
+    }
+
+    /**
+     * Release a borrowed statement, closing it if it is not in the cache.
+     * 
+     * @param pst
+     */
+    void releaseStatement(PreparedStatement pst) {
+        String sql = borrowed.remove(pst);
+        if (sql == null || get(sql) != pst) {
+            close(pst);
+        }
+    }
+
+    long getHits() {
+        return hits;
+    }
+
+    long getMisses() {
+        return misses;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+        if (size() > maxSize) {
+            if (!borrowed.containsKey(eldest.getValue())) {
+                close(eldest.getValue());
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void clear() {
+        for (PreparedStatement pst : values()) {
+            if (!borrowed.containsKey(pst)) {
+                close(pst);
+            }
+        }
+        super.clear();
+        connection = null;
+    }
+
+    private void close(PreparedStatement pst) {
+        try {
+            if (pst != null) {
+                pst.close();
+            }
+        } catch (SQLException e) {
+            LOGGER.debug("Failed to close prepared statement, ok to ignore this message ", e);
+        }
+    }
+}
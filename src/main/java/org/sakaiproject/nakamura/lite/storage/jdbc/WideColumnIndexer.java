@@ -19,7 +19,6 @@ package org.sakaiproject.nakamura.lite.storage.jdbc;
 
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Types;
 import java.text.MessageFormat;
@@ -35,13 +34,12 @@ import org.sakaiproject.nakamura.api.lite.RemoveProperty;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.StorageConstants;
-import org.sakaiproject.nakamura.api.lite.util.PreemptiveIterator;
 import org.sakaiproject.nakamura.lite.content.InternalContent;
 import org.sakaiproject.nakamura.lite.storage.DisposableIterator;
-import org.sakaiproject.nakamura.lite.storage.Disposer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
 import com.google.common.collect.Lists;
@@ -54,17 +52,25 @@ public class WideColumnIndexer extends AbstractIndexer {
     private static final String SQL_UPDATE_WIDESTRING_ROW = "update-widestring-row";
     private static final String SQL_DELETE_WIDESTRING_ROW = "delete-widestring-row";
     private static final String SQL_EXISTS_WIDESTRING_ROW = "exists-widestring-row";
+    private static final String SQL_LIST_CHILD_NAMES = "wide-listchildpaths";
+    private static final String SQL_SELECT_RESOLVED = "wide-block-select-resolved";
     private static final int SQL_QUERY_TEMPLATE_PART = 0;
     private static final int SQL_WHERE_PART = 1;
     private static final int SQL_WHERE_ARRAY_PART = 2;
     private static final int SQL_WHERE_ARRAY_WHERE_PART = 3;
     private static final int SQL_SORT_CLAUSE_PART = 4;
     private static final int SQL_SORT_LIST_PART = 5;
+    private static final int SQL_CURSOR_EXTRA_COLUMNS_PART = 6;
+    private static final int SQL_CURSOR_WHERE_PART = 7;
+    private static final int SQL_CURSOR_WHERE_SORT_ASC_PART = 8;
+    private static final int SQL_CURSOR_WHERE_SORT_DESC_PART = 9;
+    private static final int SQL_CURSOR_SORT_CLAUSE_PART = 10;
     
     private static final Logger LOGGER = LoggerFactory.getLogger(WideColumnIndexer.class);
     private JDBCStorageClient client;
     private Map<String, String> indexColumnsNames;
     private Map<String, String> indexColumnsTypes;
+    private FindPlanCache planCache;
 
     public WideColumnIndexer(JDBCStorageClient jdbcStorageClient,
             Map<String, String> indexColumnsNames, Set<String> indexColumnTypes, Map<String, Object> sqlConfig) {
@@ -77,6 +83,17 @@ public class WideColumnIndexer extends AbstractIndexer {
             b.put(type[0], type[1]);
         }
         this.indexColumnsTypes = b.build();
+        this.planCache = FindPlanCache.getCache(sqlConfig);
+    }
+
+    public void remove(Map<String, PreparedStatement> statementCache, String keySpace,
+            String columnFamily, String rid) throws StorageClientException, SQLException {
+        // the wide row would otherwise be found, and load as an empty row.
+        PreparedStatement deleteWideStringColumn = client.getStatement(keySpace, columnFamily,
+                SQL_DELETE_WIDESTRING_ROW, rid, statementCache);
+        deleteWideStringColumn.clearParameters();
+        deleteWideStringColumn.setString(1, rid);
+        deleteWideStringColumn.execute();
     }
 
     public void index(Map<String, PreparedStatement> statementCache, String keySpace,
@@ -118,6 +135,17 @@ public class WideColumnIndexer extends AbstractIndexer {
                 LOGGER.debug("Hash of {}:{}:{} is {} ", new Object[] { keySpace, columnFamily,
                         parent, hash });
                 updateColumns.put(InternalContent.PARENT_HASH_FIELD, hash);
+                if (shouldIndex(keySpace, columnFamily, InternalContent.CHILD_NAME_FIELD)) {
+                    updateColumns.put(InternalContent.CHILD_NAME_FIELD,
+                            StorageClientUtils.getObjectName(key));
+                }
+                Object contentId = values.get(InternalContent.STRUCTURE_UUID_FIELD);
+                if (contentId instanceof String
+                        && shouldIndex(keySpace, columnFamily,
+                                InternalContent.STRUCTURE_UUID_HASH_FIELD)) {
+                    updateColumns.put(InternalContent.STRUCTURE_UUID_HASH_FIELD,
+                            client.rowHash(keySpace, columnFamily, (String) contentId));
+                }
             }
 
             
@@ -282,11 +310,72 @@ public class WideColumnIndexer extends AbstractIndexer {
         return false;
     }
 
+    public List<String> listChildNames(Map<String, PreparedStatement> statementCache,
+            String keySpace, String columnFamily, String parentHash, String after, int limit)
+            throws SQLException {
+        String sql = client.getSql(keySpace, columnFamily, SQL_LIST_CHILD_NAMES);
+        String childNameColumn = getColumnName(keySpace, columnFamily,
+                InternalContent.CHILD_NAME_FIELD);
+        if (sql == null || childNameColumn == null) {
+            return null;
+        }
+        PreparedStatement listChildNames = client.getStatement(MessageFormat.format(sql,
+                getColumnName(keySpace, columnFamily, InternalContent.PARENT_HASH_FIELD),
+                childNameColumn), statementCache);
+        listChildNames.clearWarnings();
+        listChildNames.clearParameters();
+        listChildNames.setString(1, parentHash);
+        listChildNames.setString(2, after);
+        return loadNames(listChildNames, limit);
+    }
+
+    public PreparedStatement getResolveStatement(Map<String, PreparedStatement> statementCache,
+            String keySpace, String columnFamily, String rid) throws SQLException {
+        String sql = client.getSql(keySpace, columnFamily, SQL_SELECT_RESOLVED);
+        String contentHashColumn = getColumnName(keySpace, columnFamily,
+                InternalContent.STRUCTURE_UUID_HASH_FIELD);
+        if (sql == null || contentHashColumn == null) {
+            return null;
+        }
+        PreparedStatement selectResolved = client.getStatement(
+                MessageFormat.format(sql, contentHashColumn), statementCache);
+        selectResolved.clearWarnings();
+        selectResolved.clearParameters();
+        selectResolved.setString(1, rid);
+        return selectResolved;
+    }
+
+    void addTermParameters(List<Object> parameters, String keySpace, String columnFamily,
+            String k, Object v) {
+        // array columns are matched on the key and value, wide columns on the value.
+        boolean array = isColumnArray(keySpace, columnFamily, k);
+        if (v instanceof Iterable<?>) {
+            for (Object vo : (Iterable<?>) v) {
+                if (array) {
+                    parameters.add(k);
+                }
+                parameters.add(vo);
+            }
+        } else {
+            if (array) {
+                parameters.add(k);
+            }
+            parameters.add(v);
+        }
+    }
+
     public DisposableIterator<Map<String, Object>> find(final String keySpace, final String columnFamily,
             Map<String, Object> properties) throws StorageClientException {
         String[] keys = null;
+        String[] cursorKeys = null;
         if ( properties != null  && properties.containsKey(StorageConstants.CUSTOM_STATEMENT_SET)) {
             String customStatement = (String) properties.get(StorageConstants.CUSTOM_STATEMENT_SET);
+            // a custom set is only continued from a cursor by its own cursor statements.
+            cursorKeys = new String[] {
+                    "wide-" + customStatement + "-cursor." + keySpace + "." + columnFamily,
+                    "wide-" + customStatement + "-cursor." + columnFamily,
+                    "wide-" + customStatement + "-cursor"
+            };
             keys = new String[] { 
                     "wide-"+ customStatement+ "." + keySpace + "." + columnFamily,
                     "wide-" + customStatement +  "." + columnFamily, 
@@ -298,11 +387,28 @@ public class WideColumnIndexer extends AbstractIndexer {
         } else {
             keys = new String[] { "wide-block-find." + keySpace + "." + columnFamily,
                     "wide-block-find." + columnFamily, "wide-block-find" };            
+            cursorKeys = new String[] { "wide-block-find-cursor." + keySpace + "." + columnFamily,
+                    "wide-block-find-cursor." + columnFamily, "wide-block-find-cursor" };
         }
         
         final boolean rawResults = properties != null && properties.containsKey(StorageConstants.RAWRESULTS);
 
-        String sql = client.getSql(keys);
+        // a cursor selects statements that order by rid and can start after a row.
+        String cursor = null;
+        String sql = null;
+        if (properties != null && properties.get(StorageConstants.CURSOR) != null) {
+            cursor = String.valueOf(properties.get(StorageConstants.CURSOR));
+            sql = client.getSql(cursorKeys);
+            if (sql == null && cursor.length() > 0) {
+                throw new StorageClientException(
+                        "Failed to locate SQL statement to continue from a cursor for any of  "
+                                + Arrays.toString(cursorKeys));
+            }
+        }
+        final boolean cursors = sql != null;
+        if (sql == null) {
+            sql = client.getSql(keys);
+        }
         if (sql == null) {
             throw new StorageClientException("Failed to locate SQL statement for any of  "
                     + Arrays.toString(keys));
@@ -322,6 +428,31 @@ public class WideColumnIndexer extends AbstractIndexer {
         }
         long offset = page * items;
 
+        // the SQL depends on the shape of the find, not the values of its terms.
+        List<Object> parameters = Lists.newArrayList();
+        String shape = new StringBuilder("wide:").append(keySpace).append(':')
+                .append(columnFamily).append(':')
+                .append(properties.get(StorageConstants.CUSTOM_STATEMENT_SET)).append(':')
+                .append(properties.get(StorageConstants.SORT)).append(':')
+                .append(cursors ? (cursor.length() > 0 ? "after" : "first") : "page").append(':')
+                .append(getTermShape(keySpace, columnFamily, properties, parameters)).toString();
+        FindPlanCache.Plan plan = planCache.get(shape);
+        if (plan == null) {
+            plan = createPlan(sql, keySpace, columnFamily, properties, cursors,
+                    cursors && cursor.length() > 0);
+            planCache.put(shape, plan);
+        }
+        return executeFind(client, keySpace, columnFamily, plan, parameters, cursors, cursor,
+                items, offset, rawResults);
+    }
+
+
+    /**
+     * Generate the SQL of a find from its terms, sort and cursor.
+     */
+    private FindPlanCache.Plan createPlan(String sql, String keySpace, String columnFamily,
+            Map<String, Object> properties, boolean cursors, boolean seek)
+            throws StorageClientException {
         // collect information on sorting
         List<String> sortingList = Lists.newArrayList();
         String sortProp = (String) properties.get(StorageConstants.SORT);
@@ -356,7 +487,17 @@ public class WideColumnIndexer extends AbstractIndexer {
          *   eg sort by {0}
          * Part 4 sort elements, {0} is the column, {1} is the order
          *   eg {0} {1}
-         * Dont include , AND or OR, the code will add those as appropriate. 
+         * Cursor statements also have {4} in part 0, the extra columns, and the sort clause has {1}, the order
+         *   eg order by {0}, a.rid {1}
+         * Part 6 extra column of the sort value, {0} is the column
+         *   eg , a.{0}
+         * Part 7 where clause to start after the rid of the cursor
+         *   eg a.rid > ?
+         * Part 8 and 9 where clauses to start after the sort value and rid of the cursor, ascending and descending, {0} is the column
+         *   eg a.{0} > ? or ( a.{0} = ? and a.rid > ? )
+         * Part 10 sort clause when not sorted
+         *   eg order by a.rid
+         * Dont include , AND or OR, the code will add those as appropriate.
          */
 
         StringBuilder whereClause = new StringBuilder();
@@ -397,46 +538,41 @@ public class WideColumnIndexer extends AbstractIndexer {
                           set = processEntry(statementParts, keySpace, columnFamily, whereClause, parameters, k, v, sorts, set, " AND ");
                       }
                   }
-                } else if (!k.startsWith("_")) {
-                  LOGGER.debug("Search on {}:{} filter dropped due to null value.", columnFamily, k);
                 }
-            } else {
-              if (!k.startsWith("_")) {
-                  LOGGER.warn("Search on {}:{} is not supported, filter dropped ",columnFamily,k);
-              }
             }
         }
         // there was no where clause generated
         // to avoid returneing everything, we wont return anything.
         if (whereClause.length() == 0) {
-            return new DisposableIterator<Map<String,Object>>() {
-
-                private Disposer disposer;
-                public boolean hasNext() {
-                    return false;
-                }
-
-                public Map<String, Object> next() {
-                    return null;
-                }
-
-                public void remove() {
-                }
-
-                public void close() {
-                    if ( disposer != null ) {
-                        disposer.unregisterDisposable(this);
-                    }
-                }
-                public void setDisposer(Disposer disposer) {
-                    this.disposer = disposer;
-                }
-
-            };
+            return FindPlanCache.Plan.EMPTY;
         }
 
         StringBuilder sortClause = new StringBuilder();
-        if ( statementParts.length > SQL_SORT_CLAUSE_PART ) {
+        StringBuilder extraColumns = new StringBuilder();
+        boolean sorted = cursors && sorts.length > 0;
+        if ( cursors ) {
+            // seek past the row of the cursor on the one sort column and the rid.
+            if ( sorts.length > 2 ) {
+                throw new StorageClientException("A find can only be continued from a cursor with one sort column "
+                        + sortProp);
+            }
+            if ( sorted ) {
+                extraColumns.append(MessageFormat.format(statementParts[SQL_CURSOR_EXTRA_COLUMNS_PART], sorts[0]));
+                sortClause.append(MessageFormat.format(statementParts[SQL_SORT_CLAUSE_PART],
+                        MessageFormat.format(statementParts[SQL_SORT_LIST_PART], sorts[0], sorts[1]), sorts[1]));
+            } else {
+                sortClause.append(statementParts[SQL_CURSOR_SORT_CLAUSE_PART]);
+            }
+            if ( seek ) {
+                if ( sorted ) {
+                    int part = "desc".equalsIgnoreCase(sorts[1]) ? SQL_CURSOR_WHERE_SORT_DESC_PART
+                            : SQL_CURSOR_WHERE_SORT_ASC_PART;
+                    join(whereClause, " AND ").append("( ").append(MessageFormat.format(statementParts[part], sorts[0])).append(" )");
+                } else {
+                    join(whereClause, " AND ").append("( ").append(statementParts[SQL_CURSOR_WHERE_PART]).append(" )");
+                }
+            }
+        } else if ( statementParts.length > SQL_SORT_CLAUSE_PART ) {
             StringBuilder sortList = new StringBuilder();
             for ( int i = 0; i < sorts.length; i+= 2) {
                 if (shouldFind(keySpace, columnFamily, sorts[0])) {
@@ -448,138 +584,11 @@ public class WideColumnIndexer extends AbstractIndexer {
             }
         }
 
-        final String sqlStatement = MessageFormat.format(statementParts[SQL_QUERY_TEMPLATE_PART],
-            whereClause.toString(), sortClause.toString(), items, offset);
-
-        PreparedStatement tpst = null;
-        ResultSet trs = null;
-        try {
-
-            LOGGER.debug("Preparing {} ", sqlStatement);
-            tpst = client.getConnection().prepareStatement(sqlStatement);
-            client.inc("iterator");
-            tpst.clearParameters();
-            int i = 1;
-            for (Object params : parameters) {
-                tpst.setObject(i, params);
-                LOGGER.debug("Setting {} ", params);
-                i++;
-            }
-
-            long qtime = System.currentTimeMillis();
-            trs = tpst.executeQuery();
-            qtime = System.currentTimeMillis() - qtime;
-            if ( qtime > client.getSlowQueryThreshold() && qtime < client.getVerySlowQueryThreshold()) {
-                JDBCStorageClient.SQL_LOGGER.warn("Slow Query {}ms {} params:[{}]",new Object[]{qtime,sqlStatement,Arrays.toString(parameters.toArray(new String[parameters.size()]))});
-            } else if ( qtime > client.getVerySlowQueryThreshold() ) {
-                JDBCStorageClient.SQL_LOGGER.error("Very Slow Query {}ms {} params:[{}]",new Object[]{qtime,sqlStatement,Arrays.toString(parameters.toArray(new String[parameters.size()]))});
-            }
-            client.inc("iterator r");
-            LOGGER.debug("Executed ");
-
-            // pass control to the iterator.
-            final PreparedStatement pst = tpst;
-            final ResultSet rs = trs;
-            final ResultSetMetaData rsmd = rs.getMetaData();
-            tpst = null;
-            trs = null;
-            return client.registerDisposable(new PreemptiveIterator<Map<String, Object>>() {
-
-                private Map<String, Object> nextValue = Maps.newHashMap();
-                private boolean open = true;
-
-                @Override
-                protected Map<String, Object> internalNext() {
-                    return nextValue;
-                }
-
-                @Override
-                protected boolean internalHasNext() {
-                    try {
-                        if (open && rs.next()) {
-                            if ( rawResults ) {
-                                Builder<String, Object> b = ImmutableMap.builder();
-                                for  (int i = 1; i <= rsmd.getColumnCount(); i++ ) {
-                                    b.put(String.valueOf(i), rs.getObject(i));
-                                }
-                                nextValue = b.build();
-                            } else {
-                               String id = rs.getString(1);
-                               nextValue = client.internalGet(keySpace, columnFamily, id);
-                               LOGGER.debug("Got Row ID {} {} ", id, nextValue);
-                            }
-                            return true;
-                        }
-                        close();
-                        nextValue = null;
-                        LOGGER.debug("End of Set ");
-                        return false;
-                    } catch (SQLException e) {
-                        LOGGER.error(e.getMessage(), e);
-                        close();
-                        nextValue = null;
-                        return false;
-                    } catch (StorageClientException e) {
-                        LOGGER.error(e.getMessage(), e);
-                        close();
-                        nextValue = null;
-                        return false;
-                    }
-                }
-
-                @Override
-                public void close() {
-                    if (open) {
-                        open = false;
-                        try {
-                            if (rs != null) {
-                                rs.close();
-                                client.dec("iterator r");
-                            }
-                        } catch (SQLException e) {
-                            LOGGER.warn(e.getMessage(), e);
-                        }
-                        try {
-                            if (pst != null) {
-                                pst.close();
-                                client.dec("iterator");
-                            }
-                        } catch (SQLException e) {
-                            LOGGER.warn(e.getMessage(), e);
-                        }
-                        super.close();
-                    }
-
-                }
-            });
-        } catch (SQLException e) {
-            LOGGER.error(e.getMessage(), e);
-            throw new StorageClientException(e.getMessage() + " SQL Statement was " + sqlStatement,
-                    e);
-        } finally {
-            // trs and tpst will only be non null if control has not been passed
-            // to the iterator.
-            try {
-                if (trs != null) {
-                    trs.close();
-                    client.dec("iterator r");
-                }
-            } catch (SQLException e) {
-                LOGGER.warn(e.getMessage(), e);
-            }
-            try {
-                if (tpst != null) {
-                    tpst.close();
-                    client.dec("iterator");
-                }
-            } catch (SQLException e) {
-                LOGGER.warn(e.getMessage(), e);
-            }
-        }
+        return new FindPlanCache.Plan(statementParts[SQL_QUERY_TEMPLATE_PART], new Object[] {
+                whereClause.toString(), sortClause.toString(), null, null,
+                extraColumns.toString() }, 2, 3, ImmutableList.<Object> of(), sorted);
     }
 
-
-
     private StringBuilder join(StringBuilder sb, String joinWord) {
         if ( sb.length() > 0 ) {
             sb.append(joinWord);
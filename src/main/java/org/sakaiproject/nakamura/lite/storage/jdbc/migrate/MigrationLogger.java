@@ -54,17 +54,46 @@ public class MigrationLogger {
         String className = migrator.getClass().getName();
         long currentMS = System.currentTimeMillis();
 
-        Map<String, Object> logData = Maps.newHashMap();
-        logData.put(DATE_READABLE, new Date(currentMS).toString());
-        logData.put(DATE_MS, currentMS);
-
         Content logContent = this.logMap.get(className);
         if (logContent == null) {
-            logContent = new Content(StorageClientUtils.newPath(LOG_ROOT_PATH, className), logData);
-            this.logMap.put(className, logContent);
+            this.logMap.put(className, newLogContent(className, currentMS));
         }
     }
 
+    /**
+     * Record migrators as run without running them. A new store writes every
+     * row in the form the migrators would leave it in, so they have nothing to
+     * do, and code that waits for them to be logged need not wait.
+     * 
+     * @param repository
+     * @param migratorClasses
+     * @throws StorageClientException
+     * @throws AccessDeniedException
+     */
+    public static void logNewStore(Repository repository, Class<?>... migratorClasses)
+            throws StorageClientException, AccessDeniedException {
+        long currentMS = System.currentTimeMillis();
+        SessionImpl session = null;
+        try {
+            session = (SessionImpl) repository.loginAdministrative();
+            for (Class<?> migratorClass : migratorClasses) {
+                session.getContentManager().update(
+                        newLogContent(migratorClass.getName(), currentMS));
+            }
+        } finally {
+            if ( session != null ) {
+                session.logout();
+            }
+        }
+    }
+
+    private static Content newLogContent(String className, long currentMS) {
+        Map<String, Object> logData = Maps.newHashMap();
+        logData.put(DATE_READABLE, new Date(currentMS).toString());
+        logData.put(DATE_MS, currentMS);
+        return new Content(StorageClientUtils.newPath(LOG_ROOT_PATH, className), logData);
+    }
+
     public void write() throws StorageClientException, AccessDeniedException {
         SessionImpl session = null;
         try {
@@ -129,6 +129,17 @@ public class MigrationServiceImpl implements MigrationService {
                 // process acls
                 processColumnFamily(session, keySpace, configuration.getAclColumnFamily(),
                         migratorsToRun, ACL_KEY_EXTRACTOR, indexer, dryRun, verify);
+
+                // log migrators that we ran, only once every column family is done, since
+                // the log is used to tell when a migration is complete.
+                for ( PropertyMigrator migrator : migratorsToRun ) {
+                  this.migrationLogger.log(migrator);
+                }
+
+                // persist migration log
+                if ( ! dryRun ) {
+                    this.migrationLogger.write();
+                }
             }
 
         } finally {
@@ -168,16 +179,6 @@ public class MigrationServiceImpl implements MigrationService {
                     }
                 }
 
-                // log migrators that we ran
-                for ( PropertyMigrator migrator : migrators ) {
-                  this.migrationLogger.log(migrator);
-                }
-
-                // persist migration log
-                if ( ! dryRun ) {
-                    this.migrationLogger.write();
-                }
-
                 LOGGER.info("Finished processing {} total objects in column family {}, {} rows were updated",
                         new Object[]{total, columnFamily, changedRows});
 
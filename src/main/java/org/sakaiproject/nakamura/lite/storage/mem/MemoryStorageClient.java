@@ -27,13 +27,16 @@ import com.google.common.collect.Sets;
 import org.sakaiproject.nakamura.api.lite.RemoveProperty;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.StorageConstants;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.util.CursorIterator;
 import org.sakaiproject.nakamura.api.lite.util.PreemptiveIterator;
 import org.sakaiproject.nakamura.lite.content.BlockContentHelper;
 import org.sakaiproject.nakamura.lite.content.BlockSetContentHelper;
 import org.sakaiproject.nakamura.lite.content.InternalContent;
 import org.sakaiproject.nakamura.lite.storage.DisposableIterator;
+import org.sakaiproject.nakamura.lite.storage.PagedFindIterator;
 import org.sakaiproject.nakamura.lite.storage.SparseMapRow;
 import org.sakaiproject.nakamura.lite.storage.SparseRow;
 import org.sakaiproject.nakamura.lite.storage.StorageClient;
@@ -42,11 +45,13 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class MemoryStorageClient implements StorageClient {
@@ -94,6 +99,15 @@ public class MemoryStorageClient implements StorageClient {
         return (Map<String, Object>) getOrCreateRow(keySpace, columnFamily, key);
     }
 
+    public Map<String, Map<String, Object>> get(String keySpace, String columnFamily,
+            Collection<String> keys) throws StorageClientException {
+        Map<String, Map<String, Object>> rows = Maps.newLinkedHashMap();
+        for (String key : keys) {
+            rows.put(key, getOrCreateRow(keySpace, columnFamily, key));
+        }
+        return rows;
+    }
+
     private Map<String, Object> getOrCreateRow(String keySpace, String columnFamily, String key) {
         String keyName = rowHash(keySpace, columnFamily, key);
 
@@ -141,6 +155,13 @@ public class MemoryStorageClient implements StorageClient {
         LOGGER.debug("Updated {} {} ", key, row);
     }
 
+    public void insert(String keySpace, String columnFamily, String key,
+            Map<String, Object> values, boolean probablyNew, Map<String, Object> currentRow)
+            throws StorageClientException {
+        // rows are updated in place, there is no read to avoid.
+        insert(keySpace, columnFamily, key, values, probablyNew);
+    }
+
 
     private void addIndex(String keySpace, String columnFamily, String key, String columnKey,
             Object value) {
@@ -243,35 +264,65 @@ public class MemoryStorageClient implements StorageClient {
         LOGGER.debug("Matching Rowhashes is {} ", setOfRowHashes);
 
         Iterator<String> iterator = null;
+        boolean cursors = properties.containsKey(StorageConstants.CURSOR);
         if ( setOfRowHashes == null ) {
             iterator = Iterators.emptyIterator();
+        } else if ( cursors ) {
+            // in row hash order, so the find can continue after the last row hash returned.
+            TreeSet<String> orderedRowHashes = Sets.newTreeSet(setOfRowHashes);
+            String cursor = (String) properties.get(StorageConstants.CURSOR);
+            if ( cursor != null && cursor.length() > 0 ) {
+                iterator = PagedFindIterator.page(orderedRowHashes.tailSet(cursor, false).iterator(), properties);
+            } else {
+                iterator = PagedFindIterator.page(orderedRowHashes.iterator(), properties);
+            }
         } else {
-            iterator = setOfRowHashes.iterator();
+            iterator = PagedFindIterator.page(setOfRowHashes.iterator(), properties);
         }
         final Iterator<String> matchedRowIds = iterator;
-         return new PreemptiveIterator<Map<String,Object>>() {
+        return new MemoryFindIterator(matchedRowIds, cursors);
+    }
 
-            private Map<String, Object> nextMap;
+    private final class MemoryFindIterator extends PreemptiveIterator<Map<String, Object>>
+            implements CursorIterator<Map<String, Object>> {
 
-            @SuppressWarnings("unchecked")
-            @Override
-            protected boolean internalHasNext() {
-                while(matchedRowIds.hasNext()) {
-                   nextMap = (Map<String, Object>) store.get(matchedRowIds.next());
-                   if ( nextMap != null ) {
-                       return true;
-                   }
-                }
-                nextMap = null;
-                close();
-                return false;
+        private Iterator<String> matchedRowIds;
+        private Map<String, Object> nextMap;
+        private String nextRowId;
+        private boolean cursors;
+        private String cursor;
+
+        private MemoryFindIterator(Iterator<String> matchedRowIds, boolean cursors) {
+            this.matchedRowIds = matchedRowIds;
+            this.cursors = cursors;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        protected boolean internalHasNext() {
+            while(matchedRowIds.hasNext()) {
+               nextRowId = matchedRowIds.next();
+               nextMap = (Map<String, Object>) store.get(nextRowId);
+               if ( nextMap != null ) {
+                   return true;
+               }
             }
+            nextMap = null;
+            close();
+            return false;
+        }
 
-            @Override
-            protected Map<String, Object> internalNext() {
-                return nextMap;
+        @Override
+        protected Map<String, Object> internalNext() {
+            if ( cursors ) {
+                cursor = nextRowId;
             }
-        };
+            return nextMap;
+        }
+
+        public String getCursor() {
+            return cursor;
+        }
     }
 
     private boolean shouldIndex(String keySpace, String columnFamily, String k) {
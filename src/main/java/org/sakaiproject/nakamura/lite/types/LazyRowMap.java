@@ -0,0 +1,239 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.types;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.Maps;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A row loaded from a format 2 stream that keeps the raw bytes and the offset
+ * of each value, and decodes a value the first time it is accessed. Callers
+ * that only look at a few properties of a row, eg the path when listing, don't
+ * pay for decoding the rest. Values are decoded at most once and may be read
+ * by many threads. The first modification decodes all values into a plain
+ * map, which is used from then on.
+ */
+final class LazyRowMap extends AbstractMap<String, Object> {
+
+    private final byte[] data;
+    private final String[] names;
+    private final Type<?>[] types;
+    private final int[] offsets;
+    private final AtomicReferenceArray<Object> values;
+    private volatile Map<String, Object> materialized;
+
+    LazyRowMap(byte[] data, String[] names, Type<?>[] types, int[] offsets) {
+        this.data = data;
+        this.names = names;
+        this.types = types;
+        this.offsets = offsets;
+        this.values = new AtomicReferenceArray<Object>(names.length);
+    }
+
+    @Override
+    public Object get(Object key) {
+        Map<String, Object> m = materialized;
+        if (m != null) {
+            return m.get(key);
+        }
+        int i = indexOf(key);
+        return (i < 0) ? null : value(i);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        Map<String, Object> m = materialized;
+        if (m != null) {
+            return m.containsKey(key);
+        }
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public int size() {
+        Map<String, Object> m = materialized;
+        if (m != null) {
+            return m.size();
+        }
+        return names.length;
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        return materialize().put(key, value);
+    }
+
+    @Override
+    public Object remove(Object key) {
+        return materialize().remove(key);
+    }
+
+    @Override
+    public void clear() {
+        materialize().clear();
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        Map<String, Object> m = materialized;
+        if (m != null) {
+            return m.entrySet();
+        }
+        return new AbstractSet<Map.Entry<String, Object>>() {
+
+            @Override
+            public Iterator<Map.Entry<String, Object>> iterator() {
+                return new Iterator<Map.Entry<String, Object>>() {
+                    private int i = 0;
+
+                    public boolean hasNext() {
+                        return i < names.length;
+                    }
+
+                    public Map.Entry<String, Object> next() {
+                        if (i >= names.length) {
+                            throw new NoSuchElementException();
+                        }
+                        return new LazyEntry(i++);
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return names.length;
+            }
+        };
+    }
+
+    /**
+     * @return an estimate of the heap used by this row once fully decoded,
+     *         without decoding it.
+     */
+    long estimateSize() {
+        Map<String, Object> m = materialized;
+        if (m != null) {
+            return Types.estimateSize(m);
+        }
+        // decoded values are roughly twice the size of their encoding.
+        return 64 + data.length * 2L + names.length * 32L;
+    }
+
+    private int indexOf(Object key) {
+        if (key == null) {
+            return -1;
+        }
+        // names are shared between rows, so identity usually matches.
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] == key) {
+                return i;
+            }
+        }
+        int h = key.hashCode();
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].hashCode() == h && names[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private Object value(int i) {
+        Object v = values.get(i);
+        if (v == null) {
+            try {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(data,
+                        offsets[i], data.length - offsets[i]));
+                values.compareAndSet(i, null, types[i].load(in));
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to decode property " + names[i] + " "
+                        + e.getMessage(), e);
+            }
+            v = values.get(i);
+        }
+        return v;
+    }
+
+    private synchronized Map<String, Object> materialize() {
+        if (materialized == null) {
+            Map<String, Object> m = Maps.newHashMapWithExpectedSize(names.length);
+            for (int i = 0; i < names.length; i++) {
+                m.put(names[i], value(i));
+            }
+            materialized = m;
+        }
+        return materialized;
+    }
+
+    private final class LazyEntry implements Map.Entry<String, Object> {
+
+        private final int i;
+
+        LazyEntry(int i) {
+            this.i = i;
+        }
+
+        public String getKey() {
+            return names[i];
+        }
+
+        public Object getValue() {
+            return value(i);
+        }
+
+        public Object setValue(Object value) {
+            return put(names[i], value);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            return names[i].equals(e.getKey()) && Objects.equal(getValue(), e.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            // as Map.Entry specifies, so that entries of other maps hash the same.
+            Object value = getValue();
+            return names[i].hashCode() ^ (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return names[i] + "=" + getValue();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.types;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * A reusable buffer that rows are encoded into by
+ * {@link Types#storeMapToStream(String, java.util.Map, String, RowBuffer)}.
+ * The encoded row is read back with {@link #toInputStream()} without copying
+ * the bytes, so one encoding can be handed to several statements. A buffer
+ * that has grown beyond its retained size is dropped on {@link #reset()}, so a
+ * single large row does not hold memory for the life of the buffer. Values are
+ * encoded straight into the row, their length prefix is filled in afterwards,
+ * see {@link #startValue()}. Not thread safe, each storage client has its own.
+ */
+public class RowBuffer extends ByteArrayOutputStream {
+
+    private static final int INITIAL_SIZE = 4096;
+    private final int maxRetained;
+
+    /**
+     * @param maxRetained
+     *            the largest capacity, in bytes, kept between rows.
+     */
+    public RowBuffer(int maxRetained) {
+        super(INITIAL_SIZE);
+        this.maxRetained = Math.max(INITIAL_SIZE, maxRetained);
+    }
+
+    @Override
+    public synchronized void reset() {
+        if (buf.length > maxRetained) {
+            buf = new byte[INITIAL_SIZE];
+        }
+        super.reset();
+    }
+
+    /**
+     * @return a stream over the current contents of the buffer, valid until
+     *         the buffer is next reset or written to.
+     */
+    public synchronized InputStream toInputStream() {
+        return new ByteArrayInputStream(buf, 0, count);
+    }
+
+    /**
+     * Reserve a byte for the length of the value about to be written.
+     * 
+     * @return the position of the length, to pass to
+     *         {@link #endValue(int)} once the value has been written.
+     */
+    synchronized int startValue() {
+        write(0);
+        return count - 1;
+    }
+
+    /**
+     * Fill in the varint length of the value written since
+     * {@link #startValue()}. Only a value of 128 bytes or more needs a longer
+     * length, and is moved up within the buffer to make room for it.
+     * 
+     * @param lengthAt
+     *            the position returned by {@link #startValue()}.
+     */
+    synchronized void endValue(int lengthAt) {
+        int length = count - lengthAt - 1;
+        int extra = 0;
+        for (int v = length >>> 7; v != 0; v >>>= 7) {
+            extra++;
+        }
+        if (extra > 0) {
+            if (count + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length << 1, count + extra));
+            }
+            System.arraycopy(buf, lengthAt + 1, buf, lengthAt + 1 + extra, length);
+            count += extra;
+        }
+        int v = length;
+        int i = lengthAt;
+        while ((v & ~0x7F) != 0) {
+            buf[i++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buf[i] = (byte) v;
+    }
+}
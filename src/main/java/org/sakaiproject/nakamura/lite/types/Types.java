@@ -20,8 +20,12 @@ package org.sakaiproject.nakamura.lite.types;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
+import org.apache.commons.io.IOUtils;
 import org.sakaiproject.nakamura.api.lite.RemoveProperty;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,6 +36,11 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Calendar;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -62,9 +71,83 @@ public class Types {
     private static final Logger LOGGER = LoggerFactory.getLogger(Types.class);
     private static final Type<?> NULL_TYPE = new RemovePropertyType();
     
+    // rough heap sizes used when estimating the size of a map of properties.
+    private static final long MAP_OVERHEAD = 64;
+    private static final long ENTRY_OVERHEAD = 32;
+    private static final long STRING_OVERHEAD = 40;
+    private static final long ARRAY_OVERHEAD = 16;
+    private static final long CALENDAR_SIZE = 448;
+    private static final long DEFAULT_SIZE = 64;
+
     private static final Map<Class<?>,Type<?>> typeMap = Types.getTypeMap();
     private static final Map<Integer, Type<?>> typeByIdMap = Types.getTypeByIdMap();
 
+    /**
+     * Row format 1, key, int count, then for each property the name, an int
+     * type id and the value.
+     */
+    public static final int FORMAT_V1 = 1;
+    /**
+     * Row format 2, a marker that can't start a format 1 row, key, varint
+     * count, then for each property a varint reference into the
+     * {@link #FIELD_DICTIONARY} (0 when the name follows inline), varint type
+     * id, varint length of the value and the value.
+     */
+    public static final int FORMAT_V2 = 2;
+    // a format 1 row starts with the length of the key, which is never 0xFFFF
+    private static final int FORMAT_MARKER = 0xFFFF;
+
+    /**
+     * Property names common to most rows, written as a reference in format 2.
+     * This list is part of the stored data, entries may be appended but never
+     * removed or reordered.
+     */
+    private static final String[] FIELD_DICTIONARY = new String[] {
+        // content
+        "_id", "_path", "_:parenthash", "_:cid", "_:link", "_blockId", "_previousVersion",
+        "_previousBlockId", "_nextVersion", "_readOnly", "_deleted", "_blocksize", "_length",
+        "_nblocks", "_bodyLastModified", "_bodyLastModifiedBy", "_bodyCreated",
+        "_bodyCreatedBy", "_created", "_createdBy", "_lastModified", "_lastModifiedBy",
+        "_copiedFrom", "_copiedFromId", "_copiedDeep", "_mimeType", "_encoding",
+        "_versionHistoryId", "_versionNumber", "_versionSavedBy", "_bodyLocation",
+        "_cblockId", "_numblocks",
+        // authorizables
+        "id", "name", "type", "pwd", "principals", "members", "impersonators", "created",
+        "createdBy", "lastModified", "lastModifiedBy",
+        // access control
+        "_aclKey", "_aclPath", "_aclType", "_secretKey"
+    };
+    private static final Map<String, Integer> FIELD_REFERENCES = getFieldReferences();
+    // names not in the dictionary are shared between rows.
+    private static final Interner<String> FIELD_NAMES = Interners.newWeakInterner();
+
+    private static int formatVersion = FORMAT_V2;
+
+    static Map<String, Integer> getFieldReferences() {
+        Builder<String, Integer> builder = ImmutableMap.builder();
+        for (int i = 0; i < FIELD_DICTIONARY.length; i++) {
+            builder.put(FIELD_DICTIONARY[i], i + 1);
+        }
+        return builder.build();
+    }
+
+    /**
+     * @param version
+     *            the format rows are written in, {@link #FORMAT_V1} allows
+     *            rows to be read by older versions of the code. Both formats
+     *            are always read.
+     */
+    public static void setFormatVersion(int version) {
+        if (version != FORMAT_V1 && version != FORMAT_V2) {
+            throw new IllegalArgumentException("Unknown row format " + version);
+        }
+        Types.formatVersion = version;
+    }
+
+    public static int getFormatVersion() {
+        return formatVersion;
+    }
+
 
     static Map<Class<?>, Type<?>> getTypeMap() {
         check();
@@ -128,18 +211,104 @@ public class Types {
      */
     public static void loadFromStream(String key, Map<String, Object> output, InputStream binaryStream, String type)
             throws IOException {
-        DataInputStream dis = new DataInputStream(binaryStream);
+        PushbackInputStream pin = new PushbackInputStream(binaryStream, 2);
+        DataInputStream dis = new DataInputStream(pin);
+        int b1 = pin.read();
+        int b2 = pin.read();
+        if (b1 == (FORMAT_MARKER >> 8) && b2 == (FORMAT_MARKER & 0xFF)) {
+            int version = dis.readUnsignedByte();
+            if (version != FORMAT_V2) {
+                throw new IOException("Unknown row format " + version + ", unable to read");
+            }
+            checkKey(key, dis);
+            loadV2(dis, output);
+        } else {
+            if (b2 >= 0) {
+                pin.unread(b2);
+            }
+            if (b1 >= 0) {
+                pin.unread(b1);
+            }
+            checkKey(key, dis);
+            loadV1(dis, output);
+        }
+        checkType(dis, type);
+        LOGGER.debug("Finished Reading");
+        dis.close();
+        binaryStream.close();
+    }
+
+    /**
+     * Load a row from a binary stream. Rows in format 2 are returned as a map
+     * that decodes each value the first time it is accessed, rows in format 1
+     * are decoded immediately.
+     * 
+     * @param key
+     * @param binaryStream
+     * @param type
+     * @return the row
+     * @throws IOException
+     */
+    public static Map<String, Object> loadFromStream(String key, InputStream binaryStream,
+            String type) throws IOException {
+        byte[] data;
+        try {
+            data = IOUtils.toByteArray(binaryStream);
+        } finally {
+            binaryStream.close();
+        }
+        ByteArrayInputStream bais = new ByteArrayInputStream(data);
+        if (data.length < 3 || (((data[0] & 0xFF) << 8) | (data[1] & 0xFF)) != FORMAT_MARKER) {
+            Map<String, Object> output = Maps.newHashMap();
+            loadFromStream(key, output, bais, type);
+            return output;
+        }
+        DataInputStream dis = new DataInputStream(bais);
+        dis.skipBytes(2);
+        int version = dis.readUnsignedByte();
+        if (version != FORMAT_V2) {
+            throw new IOException("Unknown row format " + version + ", unable to read");
+        }
+        checkKey(key, dis);
+        int size = readVarInt(dis);
+        String[] names = new String[size];
+        Type<?>[] types = new Type<?>[size];
+        int[] offsets = new int[size];
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            String k = readFieldName(dis);
+            int typeId = readVarInt(dis);
+            int length = readVarInt(dis);
+            Type<?> t = typeByIdMap.get(typeId);
+            if (t == null) {
+                LOGGER.warn("Unknown Type ID {} found for {}, ignored ", typeId, k);
+            } else {
+                names[n] = k;
+                types[n] = t;
+                offsets[n] = data.length - bais.available();
+                n++;
+            }
+            if (dis.skipBytes(length) != length) {
+                throw new IOException("Truncated row, unable to read");
+            }
+        }
+        checkType(dis, type);
+        if (n < size) {
+            names = Arrays.copyOf(names, n);
+            types = Arrays.copyOf(types, n);
+            offsets = Arrays.copyOf(offsets, n);
+        }
+        return new LazyRowMap(data, names, types, offsets);
+    }
+
+    private static void checkKey(String key, DataInputStream dis) throws IOException {
         String ckey = dis.readUTF();
         if (!key.equals(ckey)) {
             throw new IOException("Body Key does not match row key, unable to read");
         }
-        int size = dis.readInt();
-        LOGGER.debug("Reading {} items",size);
-        for (int i = 0; i < size; i++) {            
-            String k = dis.readUTF();
-            LOGGER.debug("Read key {} ",k);
-            output.put(k,lookupTypeById(dis.readInt()).load(dis));
-        }
+    }
+
+    private static void checkType(DataInputStream dis, String type) throws IOException {
         String cftype = null;
         try {
             cftype = dis.readUTF();
@@ -151,9 +320,67 @@ public class Types {
                     "Object is not of expected column family, unable to read expected [" + type
                             + "] was [" + cftype + "]");
         }
-        LOGGER.debug("Finished Reading");
-        dis.close();
-        binaryStream.close();
+    }
+
+    private static void loadV1(DataInputStream dis, Map<String, Object> output)
+            throws IOException {
+        int size = dis.readInt();
+        LOGGER.debug("Reading {} items",size);
+        for (int i = 0; i < size; i++) {
+            String k = dis.readUTF();
+            LOGGER.debug("Read key {} ",k);
+            output.put(k,lookupTypeById(dis.readInt()).load(dis));
+        }
+    }
+
+    private static void loadV2(DataInputStream dis, Map<String, Object> output)
+            throws IOException {
+        int size = readVarInt(dis);
+        LOGGER.debug("Reading {} items", size);
+        for (int i = 0; i < size; i++) {
+            String k = readFieldName(dis);
+            int typeId = readVarInt(dis);
+            int length = readVarInt(dis);
+            Type<?> t = typeByIdMap.get(typeId);
+            if (t == null) {
+                // the value is length prefixed, so an unknown type can be skipped safely.
+                LOGGER.warn("Unknown Type ID {} found for {}, ignored ", typeId, k);
+                dis.skipBytes(length);
+            } else {
+                output.put(k, t.load(dis));
+            }
+        }
+    }
+
+    private static String readFieldName(DataInputStream dis) throws IOException {
+        int ref = readVarInt(dis);
+        if (ref == 0) {
+            return FIELD_NAMES.intern(dis.readUTF());
+        }
+        if (ref > FIELD_DICTIONARY.length) {
+            throw new IOException("Unknown field reference " + ref + ", unable to read");
+        }
+        return FIELD_DICTIONARY[ref - 1];
+    }
+
+    private static void writeVarInt(DataOutputStream dos, int v) throws IOException {
+        while ((v & ~0x7F) != 0) {
+            dos.writeByte((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        dos.writeByte(v);
+    }
+
+    private static int readVarInt(DataInputStream dis) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = dis.readUnsignedByte();
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Malformed varint, unable to read");
     }
 
     /**
@@ -166,17 +393,33 @@ public class Types {
      * @return
      * @throws IOException
      */
+    public static InputStream storeMapToStream(String key, Map<String, Object> m, String type)
+            throws IOException {
+        return storeMapToStream(key, m, type, new RowBuffer(Integer.MAX_VALUE));
+    }
+
+    /**
+     * Save a map into a reusable buffer, the buffer is reset first.
+     * 
+     * @param key
+     * @param m
+     *            expected to be keyed by string, can contain any object that
+     *            has a type.
+     * @param type
+     * @param buffer
+     * @return a stream over the buffer, valid until the buffer is next used.
+     * @throws IOException
+     */
     // IF you change this function you will have to change it in a way that
     // either is self healing for all the data out there
     // or write a migration script. Be warned, there could be billions of
     // records out there, so be very careful
     // Appending to record is possible, if you make the loader fail safe when
     // the data isnt there. See the last writeUTF for an example.
-    public static InputStream storeMapToStream(String key, Map<String, Object> m, String type)
-            throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-        dos.writeUTF(key);
+    public static InputStream storeMapToStream(String key, Map<String, Object> m, String type,
+            RowBuffer buffer) throws IOException {
+        buffer.reset();
+        DataOutputStream dos = new DataOutputStream(buffer);
         int size = 0;
         for (Entry<String, ?> e : m.entrySet()) {
             Object o = e.getValue();
@@ -185,28 +428,53 @@ public class Types {
             }
         }
 
-        dos.writeInt(size);
         LOGGER.debug("Write {} items",size);
-        for (Entry<String, ?> e : m.entrySet()) {
-            Object o = e.getValue();
-            if ( o != null && !(o instanceof RemoveProperty) ) {
-                String k = e.getKey();
-                LOGGER.debug("Write {} ",k);
-                dos.writeUTF(k);
-                Type<?> t = getTypeOfObject(o);
-                dos.writeInt(t.getTypeId());
-                t.save(dos, o);
+        if (formatVersion == FORMAT_V1) {
+            dos.writeUTF(key);
+            dos.writeInt(size);
+            for (Entry<String, ?> e : m.entrySet()) {
+                Object o = e.getValue();
+                if ( o != null && !(o instanceof RemoveProperty) ) {
+                    String k = e.getKey();
+                    LOGGER.debug("Write {} ",k);
+                    dos.writeUTF(k);
+                    Type<?> t = getTypeOfObject(o);
+                    dos.writeInt(t.getTypeId());
+                    t.save(dos, o);
+                }
+            }
+        } else {
+            dos.writeShort(FORMAT_MARKER);
+            dos.writeByte(FORMAT_V2);
+            dos.writeUTF(key);
+            writeVarInt(dos, size);
+            for (Entry<String, ?> e : m.entrySet()) {
+                Object o = e.getValue();
+                if ( o != null && !(o instanceof RemoveProperty) ) {
+                    String k = e.getKey();
+                    LOGGER.debug("Write {} ",k);
+                    Integer ref = FIELD_REFERENCES.get(k);
+                    if (ref == null) {
+                        writeVarInt(dos, 0);
+                        dos.writeUTF(k);
+                    } else {
+                        writeVarInt(dos, ref);
+                    }
+                    Type<?> t = getTypeOfObject(o);
+                    writeVarInt(dos, t.getTypeId());
+                    // the value is encoded in place, its length filled in after.
+                    int lengthAt = buffer.startValue();
+                    t.save(dos, o);
+                    dos.flush();
+                    buffer.endValue(lengthAt);
+                }
             }
         }
         // add the type in
         dos.writeUTF(type);
         LOGGER.debug("Finished Writen {} items",size);
         dos.flush();
-        baos.flush();
-        byte[] b = baos.toByteArray();
-        baos.close();
-        dos.close();
-        return new ByteArrayInputStream(b);
+        return buffer.toInputStream();
     }
     
     
@@ -241,6 +509,67 @@ public class Types {
         return (Type<?>) UNKNOWN_TYPE;
     }
     
+    /**
+     * Estimate the number of bytes of heap used by a map of properties, as
+     * loaded from storage. This is an estimate to allow caches to be bounded
+     * by size, it is not exact and does not serialize the map.
+     * 
+     * @param m
+     * @return the estimated size in bytes, 0 if m is null.
+     */
+    public static long estimateSize(Map<String, Object> m) {
+        if (m == null) {
+            return 0;
+        }
+        if (m instanceof LazyRowMap) {
+            return ((LazyRowMap) m).estimateSize();
+        }
+        long size = MAP_OVERHEAD;
+        for (Entry<String, Object> e : m.entrySet()) {
+            size += ENTRY_OVERHEAD + estimateSize(e.getKey()) + estimateSize(e.getValue());
+        }
+        return size;
+    }
+
+    /**
+     * Estimate the number of bytes of heap used by a single property value of
+     * one of the stored types.
+     * 
+     * @param o
+     * @return the estimated size in bytes.
+     */
+    public static long estimateSize(Object o) {
+        if (o == null || o instanceof RemoveProperty) {
+            return 0;
+        } else if (o instanceof String) {
+            return STRING_OVERHEAD + 2L * ((String) o).length();
+        } else if (o instanceof Integer || o instanceof Boolean) {
+            return 16;
+        } else if (o instanceof Long || o instanceof Double) {
+            return 24;
+        } else if (o instanceof BigDecimal) {
+            return 40 + 2L * ((BigDecimal) o).precision();
+        } else if (o instanceof Calendar) {
+            return CALENDAR_SIZE;
+        } else if (o instanceof LongString) {
+            return 48 + 2L * ((LongString) o).getLocation().length();
+        } else if (o instanceof Object[]) {
+            Object[] a = (Object[]) o;
+            long size = ARRAY_OVERHEAD + 8L * a.length;
+            for (Object ao : a) {
+                size += estimateSize(ao);
+            }
+            return size;
+        } else if (o instanceof byte[]) {
+            return ARRAY_OVERHEAD + ((byte[]) o).length;
+        } else if (o instanceof int[] || o instanceof boolean[]) {
+            return ARRAY_OVERHEAD + 4L * Array.getLength(o);
+        } else if (o instanceof long[] || o instanceof double[]) {
+            return ARRAY_OVERHEAD + 8L * Array.getLength(o);
+        }
+        return DEFAULT_SIZE;
+    }
+
     public static byte[] toByteArray(Object o)throws IOException{
     	ByteArrayOutputStream baos = new ByteArrayOutputStream();
         DataOutputStream dos = new DataOutputStream(baos);
@@ -21,15 +21,16 @@ remove-string-column.n.cn = delete from cn_css where rid = ? and cid = ?
 check-schema = select count(*) from css
 
 # base statement with paging ; table join ; where clause ; where clause for sort field (if needed) ; order by clause
-find.n.au = select TR.rid, TR.cid, TR.v from (select a.rid, a.cid, a.v, ROW_NUMBER() OVER () AS R from au_css a {0} where {1} 1 = 1 {2}) as TR where TR.R > {4,number,#} and TR.R <= {3,number,#}+{4,number,#};, au_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1}
-find.n.ac = select TR.rid, TR.cid, TR.v from (select a.rid, a.cid, a.v, ROW_NUMBER() OVER () AS R from ac_css a {0} where {1} 1 = 1 {2}) as TR where TR.R > {4,number,#} and TR.R <= {3,number,#}+{4,number,#};, ac_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1}
-find.n.cn = select TR.rid, TR.cid, TR.v from (select a.rid, a.cid, a.v, ROW_NUMBER() OVER () AS R from cn_css a {0} where {1} 1 = 1 {2}) as TR where TR.R > {4,number,#} and TR.R <= {3,number,#}+{4,number,#};, cn_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1}
+find.n.au = select a.rid, a.cid, a.v from au_css a {0} where {1} 1 = 1 {2} offset {4,number,#} rows fetch next {3,number,#} rows only;, au_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1}
+find.n.ac = select a.rid, a.cid, a.v from ac_css a {0} where {1} 1 = 1 {2} offset {4,number,#} rows fetch next {3,number,#} rows only;, ac_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1}
+find.n.cn = select a.rid, a.cid, a.v from cn_css a {0} where {1} 1 = 1 {2} offset {4,number,#} rows fetch next {3,number,#} rows only;, cn_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1}
 validate = values(1)
 rowid-hash = SHA1
 
 
 
 block-select-row = select b from css_b where rid = ?
+block-select-rows = select rid, b from css_b where rid in ({0})
 block-delete-row = delete from css_b where rid = ?
 block-insert-row = insert into css_b (rid,b) values (?, ?)
 block-update-row = update css_b set b = ? where rid = ?
@@ -37,6 +38,7 @@ list-all = select rid, b from css_b
 list-all-count = select count(*) from css_b
 
 block-select-row.n.au = select b from au_css_b where rid = ?
+block-select-rows.n.au = select rid, b from au_css_b where rid in ({0})
 block-delete-row.n.au = delete from au_css_b where rid = ?
 block-insert-row.n.au = insert into au_css_b (rid,b) values (?, ?)
 block-update-row.n.au = update au_css_b set b = ? where rid = ?
@@ -44,6 +46,7 @@ list-all.n.au = select rid, b from au_css_b
 list-all-count.n.au = select count(*) from au_css_b
 
 block-select-row.n.ac = select b from ac_css_b where rid = ?
+block-select-rows.n.ac = select rid, b from ac_css_b where rid in ({0})
 block-delete-row.n.ac = delete from ac_css_b where rid = ?
 block-insert-row.n.ac = insert into ac_css_b (rid,b) values (?, ?)
 block-update-row.n.ac = update ac_css_b set b = ? where rid = ?
@@ -51,6 +54,10 @@ list-all.n.ac = select rid, b from ac_css_b
 list-all-count.n.ac = select count(*) from ac_css_b
 
 block-select-row.n.cn = select b from cn_css_b where rid = ?
+block-select-rows.n.cn = select rid, b from cn_css_b where rid in ({0})
+# loads a structure row and the content row it refers to, through the index of the content row hash
+block-select-resolved.n.cn = select a.b, c.rid, c.b from cn_css_b a left outer join cn_css w on w.rid = a.rid and w.cid = ? left outer join cn_css_b c on c.rid = w.v where a.rid = ?
+wide-block-select-resolved.n.cn = select a.b, c.rid, c.b from cn_css_b a left outer join cn_css_w w on w.rid = a.rid left outer join cn_css_b c on c.rid = w.{0} where a.rid = ?
 block-delete-row.n.cn = delete from cn_css_b where rid = ?
 block-insert-row.n.cn = insert into cn_css_b (rid,b) values (?, ?)
 block-update-row.n.cn = update cn_css_b set b = ? where rid = ?
@@ -59,10 +66,18 @@ list-all-count.n.cn = select count(*) from cn_css_b
 
 # base statement with paging ; table join ; where clause ; where clause for sort field (if needed) ; order by clause; sort field column( if needed)
 ## the subselect in the paging statement is required by Derby to do paging. http://db.apache.org/derby/docs/10.6/ref/rreffuncrownumber.html
-block-find = select TR.rid from (select s.rid, ROW_NUMBER() OVER () AS R from (select distinct a.rid {5} from css a {0} where {1} 1 = 1 {2}) as s) as TR where TR.R > {4,number,#} and TR.R <= {3,number,#}+{4,number,#};, css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1} ;, {0}.v
-block-find.n.au = select TR.rid from (select s.rid, ROW_NUMBER() OVER () AS R from (select distinct a.rid  {5} from au_css a {0} where {1} 1 = 1 {2}) as s) as TR where TR.R > {4,number,#} and TR.R <= {3,number,#}+{4,number,#};, au_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1};, {0}.v
-block-find.n.ac = select TR.rid from (select s.rid, ROW_NUMBER() OVER () AS R from (select distinct a.rid  {5} from ac_css a {0} where {1} 1 = 1 {2}) as s) as TR where TR.R > {4,number,#} and TR.R <= {3,number,#}+{4,number,#};, ac_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1};, {0}.v
-block-find.n.cn = select TR.rid from (select s.rid, ROW_NUMBER() OVER () AS R from (select distinct a.rid  {5} from cn_css a {0} where {1} 1 = 1 {2}) as s) as TR where TR.R > {4,number,#} and TR.R <= {3,number,#}+{4,number,#};, cn_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1};, {0}.v
+block-find = select distinct a.rid {5} from css a {0} where {1} 1 = 1 {2} offset {4,number,#} rows fetch next {3,number,#} rows only;, css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1} ;, {0}.v
+block-find.n.au = select distinct a.rid {5} from au_css a {0} where {1} 1 = 1 {2} offset {4,number,#} rows fetch next {3,number,#} rows only;, au_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1};, {0}.v
+block-find.n.ac = select distinct a.rid {5} from ac_css a {0} where {1} 1 = 1 {2} offset {4,number,#} rows fetch next {3,number,#} rows only;, ac_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1};, {0}.v
+block-find.n.cn = select distinct a.rid {5} from cn_css a {0} where {1} 1 = 1 {2} offset {4,number,#} rows fetch next {3,number,#} rows only;, cn_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1};, {0}.v
+
+# Finds that continue from a cursor, ordered by the sort value and rid, or by rid alone. As block-find with
+# 5: extra column of the sort value ; 6: where clause after the rid of the cursor ; 7, 8: where clause after the sort value and rid
+# of the cursor, ascending and descending ; 9: order by clause when not sorted. The number of rows is also limited by the driver.
+block-find-cursor = select distinct a.rid {5} from css a {0} where {1} 1 = 1 {2} offset {4,number,#} rows fetch next {3,number,#} rows only;, css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1}, a.rid {1} ;, {0}.v ; a.rid > ? ; {0}.v > ? or ( {0}.v = ? and a.rid > ? ) ; {0}.v < ? or ( {0}.v = ? and a.rid < ? ) ; order by a.rid
+block-find-cursor.n.au = select distinct a.rid {5} from au_css a {0} where {1} 1 = 1 {2} offset {4,number,#} rows fetch next {3,number,#} rows only;, au_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1}, a.rid {1} ;, {0}.v ; a.rid > ? ; {0}.v > ? or ( {0}.v = ? and a.rid > ? ) ; {0}.v < ? or ( {0}.v = ? and a.rid < ? ) ; order by a.rid
+block-find-cursor.n.ac = select distinct a.rid {5} from ac_css a {0} where {1} 1 = 1 {2} offset {4,number,#} rows fetch next {3,number,#} rows only;, ac_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1}, a.rid {1} ;, {0}.v ; a.rid > ? ; {0}.v > ? or ( {0}.v = ? and a.rid > ? ) ; {0}.v < ? or ( {0}.v = ? and a.rid < ? ) ; order by a.rid
+block-find-cursor.n.cn = select distinct a.rid {5} from cn_css a {0} where {1} 1 = 1 {2} offset {4,number,#} rows fetch next {3,number,#} rows only;, cn_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1}, a.rid {1} ;, {0}.v ; a.rid > ? ; {0}.v > ? or ( {0}.v = ? and a.rid > ? ) ; {0}.v < ? or ( {0}.v = ? and a.rid < ? ) ; order by a.rid
 
 # Optimized queries to find children
 listchildren = select distinct a.rid {5} from css a {0} where {1} 1 = 1 {2};, css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1} ;, {0}.v
@@ -70,6 +85,9 @@ listchildren.n.au = select distinct a.rid  {5} from au_css a {0} where {1} 1 = 1
 listchildren.n.ac = select distinct a.rid  {5} from ac_css a {0} where {1} 1 = 1 {2};, ac_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1};, {0}.v
 listchildren.n.cn = select distinct a.rid  {5} from cn_css a {0} where {1} 1 = 1 {2};, cn_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1};, {0}.v
 
+# Lists the names of the children of a row from the index alone, in name order, a page at a time after the last name
+listchildpaths.n.cn = select b.v from cn_css a, cn_css b where a.cid = ? and a.v = ? and b.rid = a.rid and b.cid = ? and b.v > ? order by b.v
+
 # Optimized queries estimate the count of any query.
 countestimate = select count(*) from (select distinct a.rid {5} from css a {0} where {1} 1 = 1 {2}) as tocount;, css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1} ;, {0}.v
 countestimate.n.au = select count(*) from (select distinct a.rid  {5} from au_css a {0} where {1} 1 = 1 {2}) as tocount;, au_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1};, {0}.v
@@ -125,16 +143,25 @@ insert-widestring-row.n.au = insert into au_css_w ( rid {0} ) values ( ? {1} )
 ##         * Part 4 sort elements, {0} is the column, {1} is the order
 ##         *   eg {0} {1}
 ##         * Dont include , AND or OR, the code will add those as appropriate. 
-wide-block-find = select TR.rid from (select s.rid, ROW_NUMBER() OVER () AS R from (select a.rid from css_w a where {0} {1} ) as s) as TR where TR.R > {3,number,#} and TR.R <= {2,number,#}+{3,number,#};a.{0} = ?;a.rid in ( select {0}.rid from css {0} where {1} );{0}.cid = ? and {0}.v = ?;sort by {0};{0} {1}
-wide-block-find.n.cn = select TR.rid from (select s.rid, ROW_NUMBER() OVER () AS R from (select a.rid from cn_css_w a where {0} {1} ) as s) as TR where TR.R > {3,number,#} and TR.R <= {2,number,#}+{3,number,#};a.{0} = ?;a.rid in ( select {0}.rid from cn_css {0} where {1} );{0}.cid = ? and {0}.v = ?;sort by {0};{0} {1}
-wide-block-find.n.ac = select TR.rid from (select s.rid, ROW_NUMBER() OVER () AS R from (select a.rid from ac_css_w a where {0} {1} ) as s) as TR where TR.R > {3,number,#} and TR.R <= {2,number,#}+{3,number,#};a.{0} = ?;a.rid in ( select {0}.rid from ac_css {0} where {1} );{0}.cid = ? and {0}.v = ?;sort by {0};{0} {1}
-wide-block-find.n.au = select TR.rid from (select s.rid, ROW_NUMBER() OVER () AS R from (select a.rid from au_css_w a where {0} {1} ) as s) as TR where TR.R > {3,number,#} and TR.R <= {2,number,#}+{3,number,#};a.{0} = ?;a.rid in ( select {0}.rid from au_css {0} where {1} );{0}.cid = ? and {0}.v = ?;sort by {0};{0} {1}
+wide-block-find = select a.rid from css_w a where {0} {1} offset {3,number,#} rows fetch next {2,number,#} rows only;a.{0} = ?;a.rid in ( select {0}.rid from css {0} where {1} );{0}.cid = ? and {0}.v = ?;sort by {0};{0} {1}
+wide-block-find.n.cn = select a.rid from cn_css_w a where {0} {1} offset {3,number,#} rows fetch next {2,number,#} rows only;a.{0} = ?;a.rid in ( select {0}.rid from cn_css {0} where {1} );{0}.cid = ? and {0}.v = ?;sort by {0};{0} {1}
+wide-block-find.n.ac = select a.rid from ac_css_w a where {0} {1} offset {3,number,#} rows fetch next {2,number,#} rows only;a.{0} = ?;a.rid in ( select {0}.rid from ac_css {0} where {1} );{0}.cid = ? and {0}.v = ?;sort by {0};{0} {1}
+wide-block-find.n.au = select a.rid from au_css_w a where {0} {1} offset {3,number,#} rows fetch next {2,number,#} rows only;a.{0} = ?;a.rid in ( select {0}.rid from au_css {0} where {1} );{0}.cid = ? and {0}.v = ?;sort by {0};{0} {1}
+# wide finds that continue from a cursor, see block-find-cursor, with {4} the extra columns ; 6: extra column of the sort value ;
+# 7: where clause after the rid of the cursor ; 8, 9: where clause after the sort value and rid of the cursor ; 10: order by clause when not sorted
+wide-block-find-cursor = select a.rid {4} from css_w a where {0} {1} offset {3,number,#} rows fetch next {2,number,#} rows only;a.{0} = ?;a.rid in ( select {0}.rid from css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0}, a.rid {1};{0} {1};, a.{0};a.rid > ?;a.{0} > ? or ( a.{0} = ? and a.rid > ? );a.{0} < ? or ( a.{0} = ? and a.rid < ? );order by a.rid
+wide-block-find-cursor.n.cn = select a.rid {4} from cn_css_w a where {0} {1} offset {3,number,#} rows fetch next {2,number,#} rows only;a.{0} = ?;a.rid in ( select {0}.rid from cn_css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0}, a.rid {1};{0} {1};, a.{0};a.rid > ?;a.{0} > ? or ( a.{0} = ? and a.rid > ? );a.{0} < ? or ( a.{0} = ? and a.rid < ? );order by a.rid
+wide-block-find-cursor.n.ac = select a.rid {4} from ac_css_w a where {0} {1} offset {3,number,#} rows fetch next {2,number,#} rows only;a.{0} = ?;a.rid in ( select {0}.rid from ac_css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0}, a.rid {1};{0} {1};, a.{0};a.rid > ?;a.{0} > ? or ( a.{0} = ? and a.rid > ? );a.{0} < ? or ( a.{0} = ? and a.rid < ? );order by a.rid
+wide-block-find-cursor.n.au = select a.rid {4} from au_css_w a where {0} {1} offset {3,number,#} rows fetch next {2,number,#} rows only;a.{0} = ?;a.rid in ( select {0}.rid from au_css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0}, a.rid {1};{0} {1};, a.{0};a.rid > ?;a.{0} > ? or ( a.{0} = ? and a.rid > ? );a.{0} < ? or ( a.{0} = ? and a.rid < ? );order by a.rid
 
 wide-listchildren = select a.rid from css_w a where {0} {1} ;a.{0} = ?;a.rid in ( select {0}.rid from css {0} where {1} );{0}.cid = ? and {0}.v = ?;sort by {0};{0} {1}
 wide-listchildren.n.cn = select a.rid from cn_css_w a where {0} {1} ;a.{0} = ?;a.rid in ( select {0}.rid from cn_css {0} where {1} );{0}.cid = ? and {0}.v = ?;sort by {0};{0} {1}
 wide-listchildren.n.ac = select a.rid from ac_css_w a where {0} {1} ;a.{0} = ?;a.rid in ( select {0}.rid from ac_css {0} where {1} );{0}.cid = ? and {0}.v = ?;sort by {0};{0} {1}
 wide-listchildren.n.au = select a.rid from au_css_w a where {0} {1} ;a.{0} = ?;a.rid in ( select {0}.rid from au_css {0} where {1} );{0}.cid = ? and {0}.v = ?;sort by {0};{0} {1}
 
+# {0} is the parent hash column, {1} the child name column
+wide-listchildpaths.n.cn = select a.{1} from cn_css_w a where a.{0} = ? and a.{1} > ? order by a.{1}
+
 wide-countestimate = select count(*) from css_w a where {0} {1} ;a.{0} = ?;a.rid in ( select {0}.rid from css {0} where {1} );{0}.cid = ? and {0}.v = ?;sort by {0};{0} {1}
 wide-countestimate.n.cn = select count(*) from cn_css_w a where {0} {1} ;a.{0} = ?;a.rid in ( select {0}.rid from cn_css {0} where {1} );{0}.cid = ? and {0}.v = ?;sort by {0};{0} {1}
 wide-countestimate.n.ac = select count(*) from ac_css_w a where {0} {1} ;a.{0} = ?;a.rid in ( select {0}.rid from ac_css {0} where {1} );{0}.cid = ? and {0}.v = ?;sort by {0};{0} {1}
@@ -33,6 +33,7 @@ find.n.ac = select TR.rid, TR.cid, TR.v from (select a.rid, a.cid, a.v, ROWNUM r
 find.n.cn = select TR.rid, TR.cid, TR.v from (select a.rid, a.cid, a.v, ROWNUM rnum from cn_css where {1} 1 = 1 {2}) TR where rnum > {4,number,#} and rnum <= {3,number,#}+{4,number,#};, cn_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1}
 
 block-select-row = select b from css_b where rid = ?
+block-select-rows = select rid, b from css_b where rid in ({0})
 block-delete-row = delete from css_b where rid = ?
 block-insert-row = insert into css_b (rid,b) values (?, ?)
 block-update-row = update css_b set b = ? where rid = ?
@@ -40,6 +41,7 @@ list-all = select rid, b from css_b
 list-all-count = select count(*) from css_b
 
 block-select-row.n.ac = select b from ac_css_b where rid = ?
+block-select-rows.n.ac = select rid, b from ac_css_b where rid in ({0})
 block-delete-row.n.ac = delete from ac_css_b where rid = ?
 block-insert-row.n.ac = insert into ac_css_b (rid,b) values (?, ?)
 block-update-row.n.ac = update ac_css_b set b = ? where rid = ?
@@ -47,6 +49,9 @@ list-all.n.ac = select rid, b from ac_css_b
 list-all-count.n.ac = select count(*) from ac_css_b
 
 block-select-row.n.cn = select b from cn_css_b where rid = ?
+block-select-rows.n.cn = select rid, b from cn_css_b where rid in ({0})
+# loads a structure row and the content row it refers to, through the index of the content row hash
+block-select-resolved.n.cn = select a.b, c.rid, c.b from cn_css_b a left outer join cn_css w on w.rid = a.rid and w.cid = ? left outer join cn_css_b c on c.rid = w.v where a.rid = ?
 block-delete-row.n.cn = delete from cn_css_b where rid = ?
 block-insert-row.n.cn = insert into cn_css_b (rid,b) values (?, ?)
 block-update-row.n.cn = update cn_css_b set b = ? where rid = ?
@@ -54,6 +59,7 @@ list-all.n.cn = select rid, b from cn_css_b
 list-all-count.n.cn = select count(*) from cn_css_b
 
 block-select-row.n.au = select b from au_css_b where rid = ?
+block-select-rows.n.au = select rid, b from au_css_b where rid in ({0})
 block-delete-row.n.au = delete from au_css_b where rid = ?
 block-insert-row.n.au = insert into au_css_b (rid,b) values (?, ?)
 block-update-row.n.au = update au_css_b set b = ? where rid = ?
@@ -67,11 +73,22 @@ block-find.n.au = select TR.rid from ( select s.rid, ROWNUM rnum from (select di
 block-find.n.cn = select TR.rid from ( select s.rid, ROWNUM rnum from (select distinct a.rid {5} from cn_css a {0} where {1} 1 = 1 {2}) s where ROWNUM <= {3,number,#}+{4,number,#}) TR where rnum  > {4,number,#};, cn_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1} ;, {0}.v
 block-find.n.ac = select TR.rid from ( select s.rid, ROWNUM rnum from (select distinct a.rid {5} from ac_css a {0} where {1} 1 = 1 {2}) s where ROWNUM <= {3,number,#}+{4,number,#}) TR where rnum  > {4,number,#};, ac_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1} ;, {0}.v
 
+# Finds that continue from a cursor, ordered by the sort value and rid, or by rid alone. As block-find with
+# 5: extra column of the sort value ; 6: where clause after the rid of the cursor ; 7, 8: where clause after the sort value and rid
+# of the cursor, ascending and descending ; 9: order by clause when not sorted. The number of rows is also limited by the driver.
+block-find-cursor = select TR.* from ( select s.*, ROWNUM rnum from (select distinct a.rid {5} from css a {0} where {1} 1 = 1 {2}) s where ROWNUM <= {3,number,#}+{4,number,#}) TR where rnum > {4,number,#};, css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1}, a.rid {1} ;, {0}.v ; a.rid > ? ; {0}.v > ? or ( {0}.v = ? and a.rid > ? ) ; {0}.v < ? or ( {0}.v = ? and a.rid < ? ) ; order by a.rid
+block-find-cursor.n.au = select TR.* from ( select s.*, ROWNUM rnum from (select distinct a.rid {5} from au_css a {0} where {1} 1 = 1 {2}) s where ROWNUM <= {3,number,#}+{4,number,#}) TR where rnum > {4,number,#};, au_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1}, a.rid {1} ;, {0}.v ; a.rid > ? ; {0}.v > ? or ( {0}.v = ? and a.rid > ? ) ; {0}.v < ? or ( {0}.v = ? and a.rid < ? ) ; order by a.rid
+block-find-cursor.n.ac = select TR.* from ( select s.*, ROWNUM rnum from (select distinct a.rid {5} from ac_css a {0} where {1} 1 = 1 {2}) s where ROWNUM <= {3,number,#}+{4,number,#}) TR where rnum > {4,number,#};, ac_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1}, a.rid {1} ;, {0}.v ; a.rid > ? ; {0}.v > ? or ( {0}.v = ? and a.rid > ? ) ; {0}.v < ? or ( {0}.v = ? and a.rid < ? ) ; order by a.rid
+block-find-cursor.n.cn = select TR.* from ( select s.*, ROWNUM rnum from (select distinct a.rid {5} from cn_css a {0} where {1} 1 = 1 {2}) s where ROWNUM <= {3,number,#}+{4,number,#}) TR where rnum > {4,number,#};, cn_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1}, a.rid {1} ;, {0}.v ; a.rid > ? ; {0}.v > ? or ( {0}.v = ? and a.rid > ? ) ; {0}.v < ? or ( {0}.v = ? and a.rid < ? ) ; order by a.rid
+
 listchildren = select distinct a.rid {5} from css a {0} where {1} 1 = 1 {2};, css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1} ;, {0}.v
 listchildren.n.au = select distinct a.rid {5} from au_css a {0} where {1} 1 = 1 {2};, au_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1} ;, {0}.v
 listchildren.n.cn = select distinct a.rid {5} from cn_css a {0} where {1} 1 = 1 {2};, cn_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1} ;, {0}.v
 listchildren.n.ac = select distinct a.rid {5} from ac_css a {0} where {1} 1 = 1 {2};, ac_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1} ;, {0}.v
 
+# Lists the names of the children of a row from the index alone, in name order, a page at a time after the last name
+listchildpaths.n.cn = select b.v from cn_css a, cn_css b where a.cid = ? and a.v = ? and b.rid = a.rid and b.cid = ? and b.v > nvl(?, chr(0)) order by b.v
+
 countestimate = select count(*) from (select distinct a.rid {5} from css a {0} where {1} 1 = 1 {2});, css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1} ;, {0}.v
 countestimate.n.au = select count(*) from (select distinct a.rid {5} from au_css a {0} where {1} 1 = 1 {2});, au_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1} ;, {0}.v
 countestimate.n.cn = select count(*) from (select distinct a.rid {5} from cn_css a {0} where {1} 1 = 1 {2});, cn_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1} ;, {0}.v
@@ -0,0 +1,164 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.lite.storage.ConcurrentClockMap;
+import org.sakaiproject.nakamura.lite.storage.StorageClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class CacheInvalidationBusTest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CacheInvalidationBusTest.class);
+
+    private static class TestCachingManager extends CachingManager {
+
+        TestCachingManager(StorageClient client, Map<String, CacheHolder> sharedCache) {
+            super(client, sharedCache);
+        }
+
+        @Override
+        protected Logger getLogger() {
+            return LOGGER;
+        }
+
+        @Override
+        protected String getCacheName() {
+            return "test";
+        }
+
+        Map<String, Object> get(String key) throws StorageClientException {
+            return getCached("n", "cf", key);
+        }
+
+        void delete(String key) {
+            markDeleted("n", "cf", key);
+        }
+
+        void put(String key, Map<String, Object> values) throws StorageClientException {
+            putCached("n", "cf", key, values, true);
+        }
+    }
+
+    private Map<String, CacheHolder> cacheA;
+    private Map<String, CacheHolder> cacheB;
+    private CacheInvalidationBus busA;
+    private CacheInvalidationBus busB;
+    private LoopbackInvalidationTransport transportA;
+
+    @Before
+    public void before() {
+        // two nodes in one jvm, flushed by hand.
+        cacheA = new ConcurrentClockMap<String, CacheHolder>(100);
+        cacheB = new ConcurrentClockMap<String, CacheHolder>(100);
+        busA = new CacheInvalidationBus(60000L, 1000);
+        busB = new CacheInvalidationBus(60000L, 1000);
+        busA.register(cacheA);
+        busB.register(cacheB);
+        transportA = new LoopbackInvalidationTransport();
+        LoopbackInvalidationTransport transportB = new LoopbackInvalidationTransport();
+        transportA.connect(transportB);
+        busA.setTransport(transportA);
+        busB.setTransport(transportB);
+    }
+
+    @After
+    public void after() {
+        busA.close();
+        busB.close();
+    }
+
+    @Test
+    public void testWritesInvalidateOtherNodes() throws StorageClientException {
+        StorageClient client = mock(StorageClient.class);
+        when(client.get("n", "cf", "a")).thenReturn(ImmutableMap.of("k", (Object) "v"));
+        when(client.get("n", "cf", "b")).thenReturn(ImmutableMap.of("k", (Object) "v"));
+        TestCachingManager nodeA = new TestCachingManager(client, cacheA);
+        TestCachingManager nodeB = new TestCachingManager(client, cacheB);
+        nodeB.get("a");
+        nodeB.get("b");
+        Assert.assertEquals(2, cacheB.size());
+
+        nodeA.put("a", ImmutableMap.of("k", (Object) "v2"));
+        Assert.assertEquals(2, cacheB.size());
+        busA.flush();
+        Assert.assertEquals(1, cacheB.size());
+        Assert.assertFalse(cacheB.containsKey("n:cf:a"));
+        nodeB.get("a");
+        verify(client, times(2)).get("n", "cf", "a");
+
+        nodeA.delete("b");
+        busA.flush();
+        Assert.assertFalse(cacheB.containsKey("n:cf:b"));
+    }
+
+    @Test
+    public void testInvalidationsCoalesced() throws StorageClientException {
+        StorageClient client = mock(StorageClient.class);
+        TestCachingManager nodeA = new TestCachingManager(client, cacheA);
+        for (int i = 0; i < 10; i++) {
+            nodeA.put("a", ImmutableMap.of("k", (Object) ("v" + i)));
+        }
+        nodeA.put("b", ImmutableMap.of("k", (Object) "v"));
+        busA.flush();
+        busA.flush();
+        Assert.assertEquals(1, transportA.getBatchesSent());
+        Assert.assertEquals(2, transportA.getHashesSent());
+    }
+
+    @Test
+    public void testAbsentRowsInvalidated() throws StorageClientException {
+        StorageClient client = mock(StorageClient.class);
+        when(client.get("n", "cf", "missing")).thenReturn(new HashMap<String, Object>());
+        TestCachingManager nodeA = new TestCachingManager(client, cacheA);
+        TestCachingManager nodeB = new TestCachingManager(client, cacheB);
+        nodeB.get("missing");
+        nodeB.get("missing");
+        verify(client, times(1)).get("n", "cf", "missing");
+
+        nodeA.put("missing", ImmutableMap.of("k", (Object) "v"));
+        busA.flush();
+        nodeB.get("missing");
+        verify(client, times(2)).get("n", "cf", "missing");
+    }
+
+    @Test
+    public void testNoTransport() throws StorageClientException {
+        busA.unsetTransport(transportA);
+        StorageClient client = mock(StorageClient.class);
+        new TestCachingManager(client, cacheA).put("a", ImmutableMap.of("k", (Object) "v"));
+        busA.flush();
+        Assert.assertEquals(0, transportA.getBatchesSent());
+    }
+}
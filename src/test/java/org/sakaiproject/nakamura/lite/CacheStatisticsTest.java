@@ -0,0 +1,248 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.api.lite.CacheStatisticsService;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.lite.storage.ConcurrentClockMap;
+import org.sakaiproject.nakamura.lite.storage.StorageClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+public class CacheStatisticsTest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CacheStatisticsTest.class);
+
+    private static class TestCachingManager extends CachingManager {
+
+        TestCachingManager(StorageClient client, Map<String, CacheHolder> sharedCache) {
+            super(client, sharedCache);
+        }
+
+        @Override
+        protected Logger getLogger() {
+            return LOGGER;
+        }
+
+        @Override
+        protected String getCacheName() {
+            return "test";
+        }
+
+        Map<String, Object> get(String key) throws StorageClientException {
+            return getCached("n", "cf", key);
+        }
+
+        Map<String, Map<String, Object>> get(Collection<String> keys)
+                throws StorageClientException {
+            return getCached("n", "cf", keys);
+        }
+
+        void delete(String key) {
+            markDeleted("n", "cf", key);
+        }
+
+        void put(String key, Map<String, Object> values) throws StorageClientException {
+            putCached("n", "cf", key, values, true);
+        }
+    }
+
+    @Test
+    public void testCountsAggregatedOverManagers() throws StorageClientException {
+        StorageClient client = mock(StorageClient.class);
+        when(client.get("n", "cf", "a")).thenReturn(ImmutableMap.of("k", (Object) "v"));
+        Map<String, CacheHolder> cache = new ConcurrentClockMap<String, CacheHolder>(100);
+        CacheStatistics stats = CacheStatistics.getStatistics("test", cache);
+        stats.reset();
+
+        TestCachingManager first = new TestCachingManager(client, cache);
+        first.get("a");
+        first.get("a");
+        TestCachingManager second = new TestCachingManager(client, cache);
+        second.get("a");
+        second.delete("a");
+        second.get("a");
+
+        Assert.assertEquals(2, stats.getHits());
+        Assert.assertEquals(1, stats.getMisses());
+        Assert.assertEquals(1, stats.getNegativeHits());
+        Assert.assertEquals(1, stats.getSize());
+        Assert.assertEquals(0, stats.getEvictions());
+        long loads = 0;
+        for (long l : stats.getLoadTimeHistogram()) {
+            loads += l;
+        }
+        Assert.assertEquals(1, loads);
+
+        CacheStatisticsServiceImpl service = new CacheStatisticsServiceImpl();
+        Assert.assertTrue(service.getCacheNames().contains("test"));
+        Map<String, Object> snapshot = service.getStatistics("test");
+        Assert.assertEquals(2L, snapshot.get(CacheStatisticsService.HITS));
+        service.reset();
+        Assert.assertEquals(0, stats.getHits());
+    }
+
+    @Test
+    public void testSharedMapCountedOnce() {
+        Map<String, CacheHolder> cache = new ConcurrentClockMap<String, CacheHolder>(100);
+        cache.put("a", new CacheHolder(ImmutableMap.of("k", (Object) "v")));
+        CacheStatistics first = CacheStatistics.getStatistics("shared-first", cache);
+        CacheStatistics second = CacheStatistics.getStatistics("shared-second", cache);
+        Assert.assertEquals(1, first.getSize() + second.getSize());
+        Assert.assertEquals(first.getWeight(), first.getWeight() + second.getWeight());
+        Assert.assertNull(first.getSharedWith());
+        Assert.assertEquals("shared-first", second.getSharedWith());
+        Assert.assertEquals("shared-first", second.toMap().get(CacheStatisticsService.SHARED_WITH));
+
+        // once the first uses another map, the second reports the shared one.
+        CacheStatistics.getStatistics("shared-first",
+                new ConcurrentClockMap<String, CacheHolder>(100));
+        Assert.assertEquals(0, first.getSize());
+        Assert.assertEquals(1, second.getSize());
+        Assert.assertNull(second.getSharedWith());
+    }
+
+    @Test
+    public void testAbsentRowsNotReloaded() throws StorageClientException {
+        StorageClient client = mock(StorageClient.class);
+        when(client.get("n", "cf", "missing")).thenReturn(new HashMap<String, Object>());
+        Map<String, CacheHolder> cache = new ConcurrentClockMap<String, CacheHolder>(100);
+        CacheStatistics stats = CacheStatistics.getStatistics("test", cache);
+        stats.reset();
+
+        TestCachingManager manager = new TestCachingManager(client, cache);
+        Assert.assertTrue(manager.get("missing").isEmpty());
+        Assert.assertTrue(new TestCachingManager(client, cache).get("missing").isEmpty());
+        verify(client, times(1)).get("n", "cf", "missing");
+        Assert.assertEquals(1, stats.getAbsentHits());
+        // absent rows use no space in the shared cache.
+        Assert.assertEquals(0, cache.size());
+
+        // once written the row must be read again.
+        manager.put("missing", ImmutableMap.of("k", (Object) "v"));
+        manager.get("missing");
+        verify(client, times(2)).get("n", "cf", "missing");
+    }
+
+    @Test
+    public void testMultiGetLoadsOnlyMisses() throws StorageClientException {
+        StorageClient client = mock(StorageClient.class);
+        when(client.get("n", "cf", "a")).thenReturn(ImmutableMap.of("k", (Object) "a"));
+        Map<String, Map<String, Object>> loaded = Maps.newLinkedHashMap();
+        loaded.put("b", ImmutableMap.of("k", (Object) "b"));
+        loaded.put("missing", new HashMap<String, Object>());
+        when(client.get("n", "cf", ImmutableSet.of("b", "missing"))).thenReturn(loaded);
+        Map<String, CacheHolder> cache = new ConcurrentClockMap<String, CacheHolder>(100);
+        CacheStatistics stats = CacheStatistics.getStatistics("test", cache);
+        stats.reset();
+
+        TestCachingManager manager = new TestCachingManager(client, cache);
+        manager.get("a");
+        manager.delete("deleted");
+        Map<String, Map<String, Object>> rows = manager.get(ImmutableList.of("a", "b",
+                "deleted", "missing"));
+        Assert.assertEquals(ImmutableList.of("a", "b", "deleted", "missing"),
+                Lists.newArrayList(rows.keySet()));
+        Assert.assertEquals("a", rows.get("a").get("k"));
+        Assert.assertEquals("b", rows.get("b").get("k"));
+        Assert.assertNull(rows.get("deleted"));
+        Assert.assertTrue(rows.get("missing").isEmpty());
+        verify(client, times(1)).get("n", "cf", ImmutableSet.of("b", "missing"));
+
+        // now all cached, or known to be absent.
+        manager.get(ImmutableList.of("a", "b", "missing"));
+        verify(client, times(1)).get("n", "cf", ImmutableSet.of("b", "missing"));
+        Assert.assertEquals(3, stats.getMisses());
+    }
+
+    @Test
+    public void testConcurrentMissesCoalesced() throws Exception {
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        StorageClient client = mock(StorageClient.class);
+        when(client.get("n", "cf", "hot")).thenAnswer(new Answer<Map<String, Object>>() {
+            public Map<String, Object> answer(InvocationOnMock invocation) throws Throwable {
+                loading.countDown();
+                release.await();
+                return ImmutableMap.of("k", (Object) "hot");
+            }
+        });
+        Map<String, CacheHolder> cache = new ConcurrentClockMap<String, CacheHolder>(100);
+        CacheStatistics stats = CacheStatistics.getStatistics("test", cache);
+        stats.reset();
+
+        final TestCachingManager first = new TestCachingManager(client, cache);
+        final TestCachingManager second = new TestCachingManager(client, cache);
+        final Map<String, Map<String, Object>> results = Maps.newConcurrentMap();
+        Thread firstThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    results.put("first", first.get("hot"));
+                } catch (StorageClientException e) {
+                    LOGGER.error(e.getMessage(), e);
+                }
+            }
+        });
+        Thread secondThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    results.put("second", second.get("hot"));
+                } catch (StorageClientException e) {
+                    LOGGER.error(e.getMessage(), e);
+                }
+            }
+        });
+        firstThread.start();
+        loading.await();
+        secondThread.start();
+        while (secondThread.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(5);
+        }
+        release.countDown();
+        firstThread.join();
+        secondThread.join();
+
+        verify(client, times(1)).get("n", "cf", "hot");
+        Assert.assertEquals("hot", results.get("first").get("k"));
+        Assert.assertEquals("hot", results.get("second").get("k"));
+        Assert.assertEquals(1, stats.getMisses());
+        Assert.assertEquals(1, stats.getCoalesced());
+        Assert.assertEquals(0, stats.getCoalesceTimeouts());
+    }
+}
@@ -28,6 +28,7 @@ import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Configuration;
 import org.sakaiproject.nakamura.api.lite.Repository;
@@ -51,8 +52,10 @@ import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.lite.ConfigurationImpl;
 import org.sakaiproject.nakamura.lite.LoggingStorageListener;
+import org.sakaiproject.nakamura.lite.RepositoryImpl;
 import org.sakaiproject.nakamura.lite.authorizable.AuthorizableActivator;
 import org.sakaiproject.nakamura.lite.authorizable.AuthorizableManagerImpl;
+import org.sakaiproject.nakamura.lite.storage.ConcurrentClockMap;
 import org.sakaiproject.nakamura.lite.storage.StorageClient;
 import org.sakaiproject.nakamura.lite.storage.StorageClientPool;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
@@ -143,6 +146,206 @@ public abstract class AbstractAccessControlManagerImplTest {
 
     }
 
+    @Test
+    public void testWritesFromManagersWithTheirOwnCaches() throws Exception {
+        AuthenticatorImpl authenticator = new AuthenticatorImpl(client, configuration);
+        User currentUser = authenticator.authenticate("admin", "admin");
+        String basepath = "testpath" + System.currentTimeMillis();
+        // two nodes, each with a cache of its own, writing to the same store.
+        AccessControlManagerImpl nodeA = new AccessControlManagerImpl(client, currentUser,
+                configuration, new ConcurrentClockMap<String, CacheHolder>(1000),
+                new LoggingStorageListener(), principalValidatorResolver);
+        AccessControlManagerImpl nodeB = new AccessControlManagerImpl(client, currentUser,
+                configuration, new ConcurrentClockMap<String, CacheHolder>(1000),
+                new LoggingStorageListener(), principalValidatorResolver);
+
+        nodeA.setAcl(Security.ZONE_CONTENT, basepath,
+                new AclModification[] { new AclModification(AclModification.grantKey("ian"),
+                        Permissions.CAN_READ.getPermission(), Operation.OP_REPLACE) });
+        nodeA.getAcl(Security.ZONE_CONTENT, basepath);
+        nodeB.setAcl(Security.ZONE_CONTENT, basepath,
+                new AclModification[] { new AclModification(AclModification.denyKey("bob"),
+                        Permissions.CAN_READ.getPermission(), Operation.OP_REPLACE) });
+        // node A still has the acl cached from before node B wrote to it.
+        nodeA.setAcl(Security.ZONE_CONTENT, basepath,
+                new AclModification[] { new AclModification(AclModification.grantKey("alice"),
+                        Permissions.CAN_READ.getPermission(), Operation.OP_REPLACE) });
+
+        Map<String, Object> acl = nodeB.getAcl(Security.ZONE_CONTENT, basepath);
+        Assert.assertEquals(Permissions.CAN_READ.getPermission(),
+                acl.get(AclModification.grantKey("ian")));
+        Assert.assertEquals(Permissions.CAN_READ.getPermission(),
+                acl.get(AclModification.denyKey("bob")));
+        Assert.assertEquals(Permissions.CAN_READ.getPermission(),
+                acl.get(AclModification.grantKey("alice")));
+    }
+
+    @Test
+    public void testCompiledPermissionsShared() throws Exception {
+        AuthenticatorImpl authenticator = new AuthenticatorImpl(client, configuration);
+        User currentUser = authenticator.authenticate("admin", "admin");
+        String u3 = "user3-" + System.currentTimeMillis();
+        String basepath = "testpath" + System.currentTimeMillis();
+        Map<String, CacheHolder> sharedCache = new ConcurrentClockMap<String, CacheHolder>(1000);
+
+        AccessControlManagerImpl adminAccessControlManager = new AccessControlManagerImpl(client,
+                currentUser, configuration, sharedCache, new LoggingStorageListener(),
+                principalValidatorResolver);
+        AuthorizableManagerImpl authorizableManager = new AuthorizableManagerImpl(currentUser,
+                null, client, configuration, adminAccessControlManager, null, new LoggingStorageListener());
+        authorizableManager.createUser(u3, "User 3", "test",
+                ImmutableMap.of("test", (Object) "test"));
+        adminAccessControlManager.setAcl(Security.ZONE_CONTENT, basepath,
+                new AclModification[] { new AclModification(AclModification.grantKey(u3),
+                        Permissions.CAN_WRITE.getPermission(), AclModification.Operation.OP_OR) });
+
+        User user3 = authenticator.authenticate(u3, "test");
+        AccessControlManagerImpl first = new AccessControlManagerImpl(client, user3,
+                configuration, sharedCache, new LoggingStorageListener(),
+                principalValidatorResolver);
+        first.check(Security.ZONE_CONTENT, basepath + "/a/b", Permissions.CAN_WRITE);
+        CompiledPermissionCache permissionCache = CompiledPermissionCache.getCache(sharedCache);
+        int compiled = permissionCache.size();
+        Assert.assertTrue(compiled > 0);
+
+        // a new session for the same user uses the permissions already compiled.
+        AccessControlManagerImpl second = new AccessControlManagerImpl(client, user3,
+                configuration, sharedCache, new LoggingStorageListener(),
+                principalValidatorResolver);
+        second.check(Security.ZONE_CONTENT, basepath + "/a/b", Permissions.CAN_WRITE);
+        Assert.assertEquals(compiled, permissionCache.size());
+
+        // changing the acl of an ancestor is seen by all sessions.
+        adminAccessControlManager.setAcl(Security.ZONE_CONTENT, basepath,
+                new AclModification[] { new AclModification(AclModification.denyKey(u3),
+                        Permissions.CAN_WRITE.getPermission(), AclModification.Operation.OP_OR) });
+        Assert.assertFalse(first.can(user3, Security.ZONE_CONTENT, basepath + "/a/b",
+                Permissions.CAN_WRITE));
+        try {
+            second.check(Security.ZONE_CONTENT, basepath + "/a/b", Permissions.CAN_WRITE);
+            Assert.fail("Write should have been denied");
+        } catch (AccessDeniedException e) {
+            LOGGER.info("Denied as expected {} ", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testFilterPermitted() throws Exception {
+        AuthenticatorImpl authenticator = new AuthenticatorImpl(client, configuration);
+        User currentUser = authenticator.authenticate("admin", "admin");
+        String u3 = "user3-" + System.currentTimeMillis();
+        String basepath = "testpath" + System.currentTimeMillis();
+        Map<String, CacheHolder> sharedCache = new ConcurrentClockMap<String, CacheHolder>(1000);
+
+        AccessControlManagerImpl adminAccessControlManager = new AccessControlManagerImpl(client,
+                currentUser, configuration, sharedCache, new LoggingStorageListener(),
+                principalValidatorResolver);
+        AuthorizableManagerImpl authorizableManager = new AuthorizableManagerImpl(currentUser,
+                null, client, configuration, adminAccessControlManager, null, new LoggingStorageListener());
+        authorizableManager.createUser(u3, "User 3", "test",
+                ImmutableMap.of("test", (Object) "test"));
+        adminAccessControlManager.setAcl(Security.ZONE_CONTENT, basepath,
+                new AclModification[] { new AclModification(AclModification.grantKey(u3),
+                        Permissions.CAN_WRITE.getPermission(), AclModification.Operation.OP_OR) });
+        adminAccessControlManager.setAcl(Security.ZONE_CONTENT, basepath + "/a/c",
+                new AclModification[] { new AclModification(AclModification.denyKey(u3),
+                        Permissions.CAN_WRITE.getPermission(), AclModification.Operation.OP_OR) });
+
+        String[] paths = new String[] { basepath + "/a/e", basepath + "/a/c", basepath + "/a/b",
+                basepath + "/a/c/d", basepath + "/a" };
+        Assert.assertArrayEquals(paths, adminAccessControlManager.filterPermitted(
+                Security.ZONE_CONTENT, paths, Permissions.CAN_WRITE));
+
+        User user3 = authenticator.authenticate(u3, "test");
+        AccessControlManagerImpl accessControlManager = new AccessControlManagerImpl(client,
+                user3, configuration, sharedCache, new LoggingStorageListener(),
+                principalValidatorResolver);
+        String[] permitted = accessControlManager.filterPermitted(Security.ZONE_CONTENT, paths,
+                Permissions.CAN_WRITE);
+        Assert.assertArrayEquals(new String[] { basepath + "/a/e", basepath + "/a/b",
+                basepath + "/a" }, permitted);
+        for (String path : paths) {
+            Assert.assertEquals(accessControlManager.can(user3, Security.ZONE_CONTENT, path,
+                    Permissions.CAN_WRITE), Arrays.asList(permitted).contains(path));
+        }
+
+        // the batch sees changes to the acls of ancestors.
+        adminAccessControlManager.setAcl(Security.ZONE_CONTENT, basepath + "/a",
+                new AclModification[] { new AclModification(AclModification.denyKey(u3),
+                        Permissions.CAN_WRITE.getPermission(), AclModification.Operation.OP_OR) });
+        Assert.assertEquals(0, accessControlManager.filterPermitted(Security.ZONE_CONTENT,
+                paths, Permissions.CAN_WRITE).length);
+    }
+
+    @Test
+    public void testAclParentPointer() throws Exception {
+        AuthenticatorImpl authenticator = new AuthenticatorImpl(client, configuration);
+        User currentUser = authenticator.authenticate("admin", "admin");
+        String u3 = "user3-" + System.currentTimeMillis();
+        String basepath = "testpath" + System.currentTimeMillis();
+        Map<String, CacheHolder> sharedCache = new ConcurrentClockMap<String, CacheHolder>(1000);
+
+        AccessControlManagerImpl adminAccessControlManager = new AccessControlManagerImpl(client,
+                currentUser, configuration, sharedCache, new LoggingStorageListener(),
+                principalValidatorResolver);
+        AuthorizableManagerImpl authorizableManager = new AuthorizableManagerImpl(currentUser,
+                null, client, configuration, adminAccessControlManager, null, new LoggingStorageListener());
+        authorizableManager.createUser(u3, "User 3", "test",
+                ImmutableMap.of("test", (Object) "test"));
+        adminAccessControlManager.setAcl(Security.ZONE_CONTENT, basepath,
+                new AclModification[] { new AclModification(AclModification.grantKey(u3),
+                        Permissions.CAN_WRITE.getPermission(), AclModification.Operation.OP_OR) });
+        String deepPath = basepath + "/a/b/c/d";
+        adminAccessControlManager.setAcl(Security.ZONE_CONTENT, deepPath,
+                new AclModification[] { new AclModification(AclModification.grantKey(u3),
+                        Permissions.CAN_READ_ACL.getPermission(), AclModification.Operation.OP_OR) });
+        String deepKey = Security.ZONE_CONTENT + ";" + deepPath;
+        Assert.assertEquals(basepath, client.get("n", "ac", deepKey).get(
+                AccessControlManagerImpl._PARENT));
+
+        User user3 = authenticator.authenticate(u3, "test");
+        AccessControlManagerImpl accessControlManager = new AccessControlManagerImpl(client,
+                user3, configuration, sharedCache, new LoggingStorageListener(),
+                principalValidatorResolver);
+        Assert.assertTrue(accessControlManager.can(user3, Security.ZONE_CONTENT, deepPath + "/e",
+                Permissions.CAN_WRITE.combine(Permissions.CAN_READ_ACL)));
+
+        // an ACL created between the two is not skipped.
+        adminAccessControlManager.setAcl(Security.ZONE_CONTENT, basepath + "/a/b",
+                new AclModification[] { new AclModification(AclModification.denyKey(u3),
+                        Permissions.CAN_WRITE.getPermission(), AclModification.Operation.OP_OR) });
+        Assert.assertFalse(accessControlManager.can(user3, Security.ZONE_CONTENT, deepPath + "/e",
+                Permissions.CAN_WRITE));
+        Assert.assertFalse(new AccessControlManagerImpl(client, user3, configuration,
+                new ConcurrentClockMap<String, CacheHolder>(1000), new LoggingStorageListener(),
+                principalValidatorResolver).can(user3, Security.ZONE_CONTENT, deepPath,
+                Permissions.CAN_WRITE));
+
+        // the first compile to find the pointer stale points it at the new parent.
+        Assert.assertEquals(basepath + "/a/b", client.get("n", "ac", deepKey).get(
+                AccessControlManagerImpl._PARENT));
+        Assert.assertFalse(accessControlManager.can(user3, Security.ZONE_CONTENT, deepPath + "/f",
+                Permissions.CAN_WRITE));
+        Assert.assertTrue(accessControlManager.can(user3, Security.ZONE_CONTENT, deepPath + "/f",
+                Permissions.CAN_READ_ACL));
+
+        // the migrator points the ACL at the new parent.
+        adminAccessControlManager.setAcl(Security.ZONE_CONTENT, basepath + "/a/b/c",
+                new AclModification[] { new AclModification(AclModification.grantKey(u3),
+                        Permissions.CAN_WRITE.getPermission(), AclModification.Operation.OP_OR) });
+        RepositoryImpl repository = new RepositoryImpl(configuration, clientPool,
+                new LoggingStorageListener());
+        repository.activate(ImmutableMap.of("t", (Object) "x"));
+        AclParentMigrator migrator = new AclParentMigrator(repository);
+        Map<String, Object> properties = Maps.newHashMap(client.get("n", "ac", deepKey));
+        Map<String, Object> before = ImmutableMap.copyOf(properties);
+        Assert.assertTrue(migrator.migrate(deepKey, properties));
+        Assert.assertTrue(migrator.verify(deepKey, before, properties));
+        Assert.assertEquals(basepath + "/a/b/c", properties.get(AccessControlManagerImpl._PARENT));
+        Assert.assertFalse(migrator.migrate(deepKey, properties));
+        migrator.deactivate(null);
+    }
+
     @Test
     public void testKern1515() throws Exception {
         AuthenticatorImpl authenticator = new AuthenticatorImpl(client, configuration);
@@ -531,6 +734,31 @@ public abstract class AbstractAccessControlManagerImplTest {
 
     }
 
+    @Test
+    public void testSavedTokenSignature() throws Exception {
+        Repository repository = (Repository) new BaseMemoryRepository().getRepository();
+        Session adminSession = repository.loginAdministrative();
+        ContentManager adminContentManager = adminSession.getContentManager();
+        String tokenPath = "savedtoken" + System.currentTimeMillis();
+        PrincipalTokenValidator validator = new PrincipalTokenValidator(principalValidatorResolver);
+        Content token = new Content(tokenPath, null);
+        validator.signToken(token, "secret");
+        adminContentManager.update(token);
+
+        // the result of checking the saved token is reused.
+        token = adminContentManager.get(tokenPath);
+        Assert.assertTrue(validator.validatePrincipal(token, "secret"));
+        Assert.assertTrue(validator.validatePrincipal(adminContentManager.get(tokenPath), "secret"));
+        Assert.assertFalse(validator.validatePrincipal(token, "othersecret"));
+
+        // but not once the token is updated.
+        token.setProperty(PrincipalTokenValidator._ACLTOKEN, "forged");
+        Assert.assertFalse(validator.validatePrincipal(token, "secret"));
+        adminContentManager.update(token);
+        Assert.assertFalse(validator.validatePrincipal(adminContentManager.get(tokenPath), "secret"));
+        adminSession.logout();
+    }
+
     @Test
     public void testAccessInheritance() throws Exception {
         // for KERN-2158
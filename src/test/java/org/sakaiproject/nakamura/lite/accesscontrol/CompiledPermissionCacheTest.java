@@ -0,0 +1,73 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.accesscontrol;
+
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CompiledPermissionCacheTest {
+
+    private static final int[] PERMISSIONS = new int[] { 1, 0 };
+
+    @Test
+    public void testInvalidateObjectAndDescendants() {
+        CompiledPermissionCache cache = new CompiledPermissionCache(100);
+        for (String aclKey : new String[] { "n;a", "n;a/b", "n;a/b/c", "n;ab", "n;b" }) {
+            cache.put("p1", aclKey, PERMISSIONS, cache.startCompile());
+            cache.put("p2", aclKey, PERMISSIONS, cache.startCompile());
+        }
+        cache.invalidate("n;a");
+        Assert.assertNull(cache.get("p1", "n;a"));
+        Assert.assertNull(cache.get("p2", "n;a/b"));
+        Assert.assertNull(cache.get("p1", "n;a/b/c"));
+        Assert.assertNotNull(cache.get("p1", "n;ab"));
+        Assert.assertNotNull(cache.get("p2", "n;b"));
+        Assert.assertEquals(4, cache.size());
+
+        // recompiled entries are indexed again.
+        cache.put("p1", "n;a/b", PERMISSIONS, cache.startCompile());
+        cache.invalidate("n;a/b");
+        Assert.assertNull(cache.get("p1", "n;a/b"));
+    }
+
+    @Test
+    public void testRemoteInvalidationOfCollidingKeys() {
+        CompiledPermissionCache cache = new CompiledPermissionCache(100);
+        // ACL rows whose cache keys have the same hash.
+        cache.dependsOn(42, "n;a");
+        cache.dependsOn(42, "n;b");
+        cache.put("p1", "n;a/x", PERMISSIONS, cache.startCompile());
+        cache.put("p1", "n;b/y", PERMISSIONS, cache.startCompile());
+        cache.put("p1", "n;c", PERMISSIONS, cache.startCompile());
+        cache.invalidate(ImmutableSet.of(42));
+        Assert.assertNull(cache.get("p1", "n;a/x"));
+        Assert.assertNull(cache.get("p1", "n;b/y"));
+        Assert.assertNotNull(cache.get("p1", "n;c"));
+    }
+
+    @Test
+    public void testRacingCompileNotRecorded() {
+        CompiledPermissionCache cache = new CompiledPermissionCache(100);
+        long token = cache.startCompile();
+        cache.invalidate("n;a");
+        cache.put("p1", "n;a/x", PERMISSIONS, token);
+        Assert.assertNull(cache.get("p1", "n;a/x"));
+    }
+}
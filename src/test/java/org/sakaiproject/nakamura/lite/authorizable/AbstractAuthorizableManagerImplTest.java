@@ -18,9 +18,11 @@
 package org.sakaiproject.nakamura.lite.authorizable;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
+import org.apache.commons.lang.StringUtils;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -30,12 +32,14 @@ import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Configuration;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.PrincipalValidatorResolver;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.lite.ConfigurationImpl;
@@ -44,7 +48,7 @@ import org.sakaiproject.nakamura.lite.RepositoryImpl;
 import org.sakaiproject.nakamura.lite.accesscontrol.AccessControlManagerImpl;
 import org.sakaiproject.nakamura.lite.accesscontrol.AuthenticatorImpl;
 import org.sakaiproject.nakamura.lite.accesscontrol.PrincipalValidatorResolverImpl;
-import org.sakaiproject.nakamura.lite.storage.ConcurrentLRUMap;
+import org.sakaiproject.nakamura.lite.storage.ConcurrentClockMap;
 import org.sakaiproject.nakamura.lite.storage.StorageClient;
 import org.sakaiproject.nakamura.lite.storage.StorageClientPool;
 import org.slf4j.Logger;
@@ -64,7 +68,7 @@ public abstract class AbstractAuthorizableManagerImplTest {
     private StorageClient client;
     private ConfigurationImpl configuration;
     private StorageClientPool clientPool;
-    private Map<String, CacheHolder> sharedCache = new ConcurrentLRUMap<String, CacheHolder>(1000);
+    private Map<String, CacheHolder> sharedCache = new ConcurrentClockMap<String, CacheHolder>(1000);
     private PrincipalValidatorResolver principalValidatorResolver = new PrincipalValidatorResolverImpl();
 
     @Before
@@ -361,6 +365,249 @@ public abstract class AbstractAuthorizableManagerImplTest {
 
     }
 
+    @Test
+    public void testMembershipClosure() throws StorageClientException, AccessDeniedException {
+        AuthenticatorImpl AuthenticatorImpl = new AuthenticatorImpl(client, configuration);
+        User currentUser = AuthenticatorImpl.authenticate("admin", "admin");
+
+        AccessControlManagerImpl accessControlManagerImpl = new AccessControlManagerImpl(client,
+                currentUser, configuration, sharedCache, new LoggingStorageListener(),
+                principalValidatorResolver);
+
+        AuthorizableManagerImpl authorizableManager = new AuthorizableManagerImpl(currentUser,
+                null, client, configuration, accessControlManagerImpl, sharedCache,
+                new LoggingStorageListener());
+
+        String suffix = String.valueOf(System.currentTimeMillis());
+        String user = "closureuser" + suffix;
+        String inner = "closureinner" + suffix;
+        String middle = "closuremiddle" + suffix;
+        String outer = "closureouter" + suffix;
+        Assert.assertTrue(authorizableManager.createUser(user, "Closure User", "test", null));
+        Assert.assertTrue(authorizableManager.createGroup(inner, "Inner", null));
+        Assert.assertTrue(authorizableManager.createGroup(middle, "Middle", null));
+        Assert.assertTrue(authorizableManager.createGroup(outer, "Outer", null));
+
+        Group g = (Group) authorizableManager.findAuthorizable(middle);
+        g.addMember(inner);
+        authorizableManager.updateAuthorizable(g);
+        g = (Group) authorizableManager.findAuthorizable(inner);
+        g.addMember(user);
+        authorizableManager.updateAuthorizable(g);
+        Assert.assertArrayEquals(new String[] { inner, middle },
+                authorizableManager.getMembershipClosure(authorizableManager.findAuthorizable(user)));
+
+        // a change further up is seen by members of members.
+        g = (Group) authorizableManager.findAuthorizable(outer);
+        g.addMember(middle);
+        authorizableManager.updateAuthorizable(g);
+        Assert.assertArrayEquals(new String[] { inner, middle, outer },
+                authorizableManager.getMembershipClosure(authorizableManager.findAuthorizable(user)));
+
+        g = (Group) authorizableManager.findAuthorizable(outer);
+        g.removeMember(middle);
+        authorizableManager.updateAuthorizable(g);
+        Assert.assertArrayEquals(new String[] { inner, middle },
+                authorizableManager.getMembershipClosure(authorizableManager.findAuthorizable(user)));
+
+        // the groups of a deleted group are no longer inherited.
+        g = (Group) authorizableManager.findAuthorizable(outer);
+        g.addMember(middle);
+        authorizableManager.updateAuthorizable(g);
+        authorizableManager.delete(middle);
+        Assert.assertArrayEquals(new String[] { inner },
+                authorizableManager.getMembershipClosure(authorizableManager.findAuthorizable(user)));
+
+        Assert.assertTrue(authorizableManager.rebuildMembershipClosures() > 0);
+        Assert.assertArrayEquals(new String[] { inner },
+                authorizableManager.getMembershipClosure(authorizableManager.findAuthorizable(user)));
+
+        // a change that reaches too many closures starts a new generation
+        // instead, and each closure is rebuilt when next read.
+        String big = "closurebig" + suffix;
+        String bigMember = "closurebiguser0" + suffix;
+        Assert.assertTrue(authorizableManager.createGroup(big, "Big", null));
+        g = (Group) authorizableManager.findAuthorizable(big);
+        g.addMember(user);
+        for (int i = 0; i < 100; i++) {
+            String member = "closurebiguser" + i + suffix;
+            Assert.assertTrue(authorizableManager.createUser(member, "Big " + i, "test", null));
+            g.addMember(member);
+        }
+        authorizableManager.updateAuthorizable(g);
+        Assert.assertArrayEquals(new String[] { big, inner },
+                authorizableManager.getMembershipClosure(authorizableManager.findAuthorizable(user)));
+        g = (Group) authorizableManager.findAuthorizable(outer);
+        g.addMember(big);
+        authorizableManager.updateAuthorizable(g);
+        Assert.assertArrayEquals(new String[] { big, outer }, authorizableManager
+                .getMembershipClosure(authorizableManager.findAuthorizable(bigMember)));
+        Assert.assertArrayEquals(new String[] { big, inner, outer },
+                authorizableManager.getMembershipClosure(authorizableManager.findAuthorizable(user)));
+
+        // the migrator rebuilds closures.
+        client.remove("n", "au", AuthorizableManagerImpl.CLOSURE_KEY_PREFIX + bigMember);
+        RepositoryImpl repository = new RepositoryImpl(configuration, clientPool,
+                new LoggingStorageListener());
+        repository.activate(ImmutableMap.of("t", (Object) "x"));
+        MembershipClosureMigrator migrator = new MembershipClosureMigrator(repository);
+        Assert.assertFalse(migrator.migrate(bigMember, client.get("n", "au", bigMember)));
+        migrator.deactivate(null);
+        Assert.assertEquals(big + ";" + outer, client.get("n", "au",
+                AuthorizableManagerImpl.CLOSURE_KEY_PREFIX + bigMember).get("closure"));
+    }
+
+    @Test
+    public void testGroupMemberRows() throws StorageClientException, AccessDeniedException {
+        AuthenticatorImpl AuthenticatorImpl = new AuthenticatorImpl(client, configuration);
+        User currentUser = AuthenticatorImpl.authenticate("admin", "admin");
+
+        AccessControlManagerImpl accessControlManagerImpl = new AccessControlManagerImpl(client,
+                currentUser, configuration, sharedCache, new LoggingStorageListener(),
+                principalValidatorResolver);
+
+        AuthorizableManagerImpl authorizableManager = new AuthorizableManagerImpl(currentUser,
+                null, client, configuration, accessControlManagerImpl, sharedCache,
+                new LoggingStorageListener());
+
+        String suffix = String.valueOf(System.currentTimeMillis());
+        String groupId = "membergroup" + suffix;
+        Assert.assertTrue(authorizableManager.createGroup(groupId, "Member Group", null));
+        Group group = (Group) authorizableManager.findAuthorizable(groupId);
+        List<String> expected = Lists.newArrayList();
+        for (int i = 0; i < 30; i++) {
+            String userId = "memberuser" + i + suffix;
+            Assert.assertTrue(authorizableManager.createUser(userId, "Member " + i, "test", null));
+            group.addMember(userId);
+            expected.add(userId);
+        }
+        authorizableManager.updateAuthorizable(group);
+        Collections.sort(expected);
+
+        Assert.assertEquals(expected, getAllMembers(authorizableManager, groupId, 7));
+
+        // only the changed members are written.
+        group = (Group) authorizableManager.findAuthorizable(groupId);
+        group.removeMember(expected.remove(3));
+        group.removeMember(expected.remove(20));
+        authorizableManager.updateAuthorizable(group);
+        Assert.assertEquals(expected, getAllMembers(authorizableManager, groupId, 7));
+
+        // the members are not stored in the group.
+        Assert.assertFalse(client.get("n", "au", groupId).containsKey(
+                Authorizable.MEMBERS_FIELD));
+        Assert.assertEquals(expected, Lists.newArrayList(((Group) authorizableManager
+                .findAuthorizable(groupId)).getMembers()));
+
+        // a group stored before member rows existed is indexed when listed.
+        client.remove("n", "au", AuthorizableManagerImpl.MEMBER_INDEX_KEY_PREFIX + groupId);
+        client.insert("n", "au", groupId, ImmutableMap.of(Authorizable.MEMBERS_FIELD,
+                (Object) StringUtils.join(expected, ';')), false);
+        sharedCache.clear();
+        Assert.assertEquals(expected, getAllMembers(authorizableManager, groupId, 50));
+
+        // and loses its members property when saved.
+        group = (Group) authorizableManager.findAuthorizable(groupId);
+        group.removeMember(expected.remove(0));
+        authorizableManager.updateAuthorizable(group);
+        Assert.assertFalse(client.get("n", "au", groupId).containsKey(
+                Authorizable.MEMBERS_FIELD));
+        Assert.assertEquals(expected, getAllMembers(authorizableManager, groupId, 10));
+
+        // the migrator rebuilds the rows of a group that still has a members
+        // property from it, removing rows left behind, and removes the property.
+        client.insert("n", "au", groupId, ImmutableMap.of(Authorizable.MEMBERS_FIELD,
+                (Object) StringUtils.join(expected, ';')), false);
+        client.insert("n", "au", AuthorizableManagerImpl.MEMBER_KEY_PREFIX + groupId + "/"
+                + StorageClientUtils.insecureHash("stale" + suffix),
+                ImmutableMap.of("group", (Object) groupId, "member", "stale" + suffix), true);
+        sharedCache.clear();
+        RepositoryImpl repository = new RepositoryImpl(configuration, clientPool,
+                new LoggingStorageListener());
+        repository.activate(ImmutableMap.of("t", (Object) "x"));
+        GroupMemberIndexMigrator migrator = new GroupMemberIndexMigrator(repository);
+        Map<String, Object> properties = Maps.newHashMap(client.get("n", "au", groupId));
+        Map<String, Object> before = ImmutableMap.copyOf(properties);
+        Assert.assertTrue(migrator.migrate(groupId, properties));
+        Assert.assertTrue(migrator.verify(groupId, before, properties));
+        migrator.deactivate(null);
+        client.insert("n", "au", groupId, properties, false);
+        Assert.assertFalse(client.get("n", "au", groupId).containsKey(
+                Authorizable.MEMBERS_FIELD));
+        Assert.assertEquals(expected, getAllMembers(authorizableManager, groupId, 10));
+
+        Assert.assertNull(authorizableManager.getMembers(expected.get(0), 0, 10));
+        authorizableManager.delete(groupId);
+        Assert.assertEquals(0, Iterators.size(client.listChildren("n", "au",
+                AuthorizableManagerImpl.MEMBER_KEY_PREFIX + groupId)));
+    }
+
+    private List<String> getAllMembers(AuthorizableManager authorizableManager,
+            String groupId, int items) throws StorageClientException, AccessDeniedException {
+        List<String> members = Lists.newArrayList();
+        for (int page = 0;; page++) {
+            String[] m = authorizableManager.getMembers(groupId, page, items);
+            members.addAll(Arrays.asList(m));
+            if (m.length < items) {
+                break;
+            }
+        }
+        Collections.sort(members);
+        return members;
+    }
+
+    @Test
+    public void testFindAuthorizableSkipsUnreadable() throws StorageClientException,
+            AccessDeniedException {
+        AuthenticatorImpl AuthenticatorImpl = new AuthenticatorImpl(client, configuration);
+        User currentUser = AuthenticatorImpl.authenticate("admin", "admin");
+
+        AccessControlManagerImpl accessControlManagerImpl = new AccessControlManagerImpl(client,
+                currentUser, configuration, sharedCache, new LoggingStorageListener(),
+                principalValidatorResolver);
+
+        AuthorizableManagerImpl authorizableManager = new AuthorizableManagerImpl(currentUser,
+                null, client, configuration, accessControlManagerImpl, sharedCache,
+                new LoggingStorageListener());
+
+        String suffix = String.valueOf(System.currentTimeMillis());
+        String searcher = "searcher" + suffix;
+        Assert.assertTrue(authorizableManager.createUser(searcher, "Searcher", "test", null));
+        List<String> readable = Lists.newArrayList();
+        for (int i = 0; i < 60; i++) {
+            String userId = "hiddenuser" + i + suffix;
+            Assert.assertTrue(authorizableManager.createUser(userId, "Hidden " + i, "test",
+                    ImmutableMap.of("rep:principalName", (Object) ("hidden" + suffix))));
+            if (i % 3 == 0) {
+                readable.add(userId);
+            } else {
+                accessControlManagerImpl.setAcl(Security.ZONE_AUTHORIZABLES, userId,
+                        new AclModification[] { new AclModification(AclModification.denyKey(
+                                Group.EVERYONE), Permissions.CAN_READ.getPermission(),
+                                AclModification.Operation.OP_REPLACE) });
+            }
+        }
+
+        User searcherUser = AuthenticatorImpl.authenticate(searcher, "test");
+        AccessControlManagerImpl searcherAccessControlManager = new AccessControlManagerImpl(
+                client, searcherUser, configuration, sharedCache, new LoggingStorageListener(),
+                principalValidatorResolver);
+        AuthorizableManagerImpl searcherAuthorizableManager = new AuthorizableManagerImpl(
+                searcherUser, null, client, configuration, searcherAccessControlManager,
+                sharedCache, new LoggingStorageListener());
+
+        // the readable users are spread over more than one page of rows.
+        List<String> found = Lists.newArrayList();
+        Iterator<Authorizable> results = searcherAuthorizableManager.findAuthorizable(
+                "rep:principalName", "hidden" + suffix, User.class);
+        while (results.hasNext()) {
+            found.add(results.next().getId());
+        }
+        Collections.sort(found);
+        Collections.sort(readable);
+        Assert.assertEquals(readable, found);
+    }
+
     @Test
     public void testFindAuthorizable() throws StorageClientException, AccessDeniedException {
         try {
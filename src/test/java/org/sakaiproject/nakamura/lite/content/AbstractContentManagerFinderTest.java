@@ -24,7 +24,9 @@ import static org.junit.Assert.assertTrue;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 import org.junit.After;
 import org.junit.Assert;
@@ -34,17 +36,25 @@ import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Configuration;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.StorageConstants;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.PrincipalValidatorResolver;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.lite.util.CursorIterator;
 import org.sakaiproject.nakamura.lite.ConfigurationImpl;
 import org.sakaiproject.nakamura.lite.LoggingStorageListener;
 import org.sakaiproject.nakamura.lite.accesscontrol.AccessControlManagerImpl;
 import org.sakaiproject.nakamura.lite.accesscontrol.AuthenticatorImpl;
 import org.sakaiproject.nakamura.lite.accesscontrol.PrincipalValidatorResolverImpl;
 import org.sakaiproject.nakamura.lite.authorizable.AuthorizableActivator;
+import org.sakaiproject.nakamura.lite.authorizable.AuthorizableManagerImpl;
+import org.sakaiproject.nakamura.lite.storage.DisposableIterator;
 import org.sakaiproject.nakamura.lite.storage.StorageClient;
 import org.sakaiproject.nakamura.lite.storage.StorageClientPool;
 import org.slf4j.Logger;
@@ -53,6 +63,7 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -1246,4 +1257,165 @@ public abstract class AbstractContentManagerFinderTest {
 
   }
 
+  @Test
+  public void testFindManyResolvesCurrentVersions() throws StorageClientException,
+      AccessDeniedException {
+      AuthenticatorImpl AuthenticatorImpl = new AuthenticatorImpl(client, configuration);
+      User currentUser = AuthenticatorImpl.authenticate("admin", "admin");
+
+      AccessControlManagerImpl accessControlManager = new AccessControlManagerImpl(client,
+              currentUser, configuration, null, new LoggingStorageListener(),
+              principalValidatorResolver);
+
+      ContentManagerImpl contentManager = new ContentManagerImpl(client, accessControlManager,
+              configuration, null, new LoggingStorageListener());
+      Set<String> expected = Sets.newHashSet();
+      for (int i = 0; i < 120; i++) {
+          String path = "/testFindMany/item" + i;
+          contentManager.update(new Content(path, ImmutableMap.of("sakai:marker",
+                  (Object) "testFindManyvalue1")));
+          expected.add(path);
+      }
+      // an old version still matches the search, but resolves to the current version.
+      contentManager.saveVersion("/testFindMany/item7");
+      Content versioned = contentManager.get("/testFindMany/item7");
+      versioned.setProperty("sakai:version", "current");
+      contentManager.update(versioned);
+      contentManager.delete("/testFindMany/item9");
+      expected.remove("/testFindMany/item9");
+
+      Set<String> found = Sets.newHashSet();
+      for (Content c : contentManager.find(ImmutableMap.of("sakai:marker",
+              (Object) "testFindManyvalue1", StorageConstants.ITEMS, 200))) {
+          found.add(c.getPath());
+          if ("/testFindMany/item7".equals(c.getPath())) {
+              Assert.assertEquals("current", c.getProperty("sakai:version"));
+          }
+      }
+      Assert.assertEquals(expected, found);
+  }
+
+  @Test
+  public void testFindFillsPagesWithReadableContent() throws StorageClientException,
+      AccessDeniedException {
+      AuthenticatorImpl AuthenticatorImpl = new AuthenticatorImpl(client, configuration);
+      User currentUser = AuthenticatorImpl.authenticate("admin", "admin");
+
+      AccessControlManagerImpl accessControlManager = new AccessControlManagerImpl(client,
+              currentUser, configuration, null, new LoggingStorageListener(),
+              principalValidatorResolver);
+      AuthorizableManagerImpl authorizableManager = new AuthorizableManagerImpl(currentUser,
+              null, client, configuration, accessControlManager, null,
+              new LoggingStorageListener());
+      ContentManagerImpl contentManager = new ContentManagerImpl(client, accessControlManager,
+              configuration, null, new LoggingStorageListener());
+      String userId = "testFindFilled" + System.currentTimeMillis();
+      Assert.assertTrue(authorizableManager.createUser(userId, "Find Filled", "test", null));
+      for (int i = 0; i < 40; i++) {
+          String path = "/testFindFilled/item" + i;
+          contentManager.update(new Content(path, ImmutableMap.of("sakai:marker",
+                  (Object) "testFindFilledvalue1")));
+          if (i % 2 == 1) {
+              accessControlManager.setAcl(Security.ZONE_CONTENT, path,
+                      new AclModification[] { new AclModification(AclModification.denyKey(
+                              Group.EVERYONE), Permissions.CAN_READ.getPermission(),
+                              AclModification.Operation.OP_REPLACE) });
+          }
+      }
+
+      User user = AuthenticatorImpl.authenticate(userId, "test");
+      AccessControlManagerImpl userAccessControlManager = new AccessControlManagerImpl(client,
+              user, configuration, null, new LoggingStorageListener(),
+              principalValidatorResolver);
+      ContentManagerImpl userContentManager = new ContentManagerImpl(client,
+              userAccessControlManager, configuration, null, new LoggingStorageListener());
+      List<String> found = Lists.newArrayList();
+      for (Content c : userContentManager.find(ImmutableMap.of("sakai:marker",
+              (Object) "testFindFilledvalue1", StorageConstants.ITEMS, 10))) {
+          Assert.assertEquals(0, Integer.parseInt(c.getPath().substring(
+                  "/testFindFilled/item".length())) % 2);
+          found.add(c.getPath());
+      }
+      Assert.assertEquals(10, found.size());
+
+      // the next page follows on from the results of the first, without sharing any.
+      for (Content c : userContentManager.find(ImmutableMap.of("sakai:marker",
+              (Object) "testFindFilledvalue1", StorageConstants.ITEMS, 10,
+              StorageConstants.PAGE, 1))) {
+          Assert.assertFalse(found.contains(c.getPath()));
+          found.add(c.getPath());
+      }
+      Assert.assertEquals(20, found.size());
+
+      // and so does a find continued from a cursor.
+      Set<String> continued = Sets.newHashSet();
+      String cursor = "";
+      for (int page = 0; page < 3; page++) {
+          Iterator<Content> results = userContentManager.find(ImmutableMap.of(
+                  "sakai:marker", (Object) "testFindFilledvalue1", StorageConstants.ITEMS, 10,
+                  StorageConstants.CURSOR, cursor)).iterator();
+          int size = 0;
+          while (results.hasNext()) {
+              Assert.assertTrue(continued.add(results.next().getPath()));
+              size++;
+          }
+          Assert.assertEquals(page < 2 ? 10 : 0, size);
+          cursor = ((CursorIterator<Content>) results).getCursor();
+          if (cursor == null) {
+              break;
+          }
+      }
+      Assert.assertEquals(Sets.newHashSet(found), continued);
+  }
+
+  @Test
+  public void testFindContinuesFromCursor() throws StorageClientException,
+      AccessDeniedException {
+      AuthenticatorImpl AuthenticatorImpl = new AuthenticatorImpl(client, configuration);
+      User currentUser = AuthenticatorImpl.authenticate("admin", "admin");
+
+      AccessControlManagerImpl accessControlManager = new AccessControlManagerImpl(client,
+              currentUser, configuration, null, new LoggingStorageListener(),
+              principalValidatorResolver);
+
+      ContentManagerImpl contentManager = new ContentManagerImpl(client, accessControlManager,
+              configuration, null, new LoggingStorageListener());
+      Set<String> expected = Sets.newHashSet();
+      for (int i = 0; i < 30; i++) {
+          String path = "/testFindCursor/item" + i;
+          contentManager.update(new Content(path, ImmutableMap.of("sakai:marker",
+                  (Object) "testFindCursorvalue1")));
+          expected.add(path);
+      }
+
+      // every row is found once, 7 at a time, with ties on the sort broken by the cursor.
+      for (String sort : new String[] { null, "sakai:marker", "sakai:marker desc" }) {
+          Set<String> found = Sets.newHashSet();
+          String cursor = "";
+          int pages = 0;
+          int rows = 7;
+          while (rows == 7) {
+              Map<String, Object> query = Maps.newHashMap();
+              query.put("sakai:marker", "testFindCursorvalue1");
+              query.put(StorageConstants.ITEMS, 7);
+              query.put(StorageConstants.CURSOR, cursor);
+              if (sort != null) {
+                  query.put(StorageConstants.SORT, sort);
+              }
+              DisposableIterator<Map<String, Object>> page = client.find("n", "cn", query);
+              rows = 0;
+              while (page.hasNext()) {
+                  Map<String, Object> row = page.next();
+                  Assert.assertTrue(found.add((String) row.get(InternalContent.PATH_FIELD)));
+                  rows++;
+              }
+              cursor = ((CursorIterator<?>) page).getCursor();
+              page.close();
+              pages++;
+          }
+          Assert.assertEquals(expected, found);
+          Assert.assertEquals(5, pages);
+      }
+  }
+
 }
@@ -19,18 +19,22 @@ package org.sakaiproject.nakamura.lite.jdbc;
 
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.text.MessageFormat;
 import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import junit.framework.Assert;
 
 import org.apache.commons.lang.StringUtils;
@@ -41,8 +45,12 @@ import org.mockito.Answers;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageConstants;
+import org.sakaiproject.nakamura.lite.storage.DisposableIterator;
 import org.sakaiproject.nakamura.lite.storage.jdbc.JDBCStorageClient;
 import org.sakaiproject.nakamura.lite.storage.jdbc.JDBCStorageClientPool;
+import org.sakaiproject.nakamura.lite.types.Types;
 
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
@@ -384,4 +392,281 @@ public class JDBCStorageClientTest {
     String sql = sqlCaptor.getValue();
     Assert.assertEquals(expectedSql, sql);
   }
+
+  @Test
+  public void testFindSeeksAfterCursor() throws Exception {
+
+    String keySpace = "cn";
+    String columnFamily = "conjunctions";
+    Map<String, Object> props = Maps.newLinkedHashMap();
+    props.put("key1", "val1");
+    props.put(StorageConstants.ITEMS, 10);
+    props.put(StorageConstants.CURSOR, "rid1");
+    client.find(keySpace, columnFamily, props);
+
+    ArgumentCaptor<String> sqlCaptor = ArgumentCaptor.forClass(String.class);
+    verify(conn, atLeastOnce()).prepareStatement(sqlCaptor.capture());
+    verify(ps2).setObject(1, "key1");
+    verify(ps2).setObject(2, "val1");
+    verify(ps2).setObject(3, "rid1");
+    verify(ps2).setMaxRows(10);
+
+    String sqlTemplate = (String) sqlConfig.get("block-find-cursor");
+    String[] statementParts = StringUtils.split(sqlTemplate, ';');
+
+    StringBuilder tables = new StringBuilder().append(MessageFormat.format(
+        statementParts[1], "a0"));
+    StringBuilder where = new StringBuilder().append(" (")
+        .append(MessageFormat.format(statementParts[2], "a0")).append(") AND (")
+        .append(statementParts[6]).append(") AND");
+
+    String expectedSql = MessageFormat.format(statementParts[0], tables.toString(),
+        where.toString(), statementParts[9], 10L, 0L, "");
+
+    String sql = sqlCaptor.getValue();
+    Assert.assertEquals(expectedSql, sql);
+  }
+
+  @Test
+  public void testSortedFindSeeksAfterCursor() throws Exception {
+
+    String keySpace = "cn";
+    String columnFamily = "conjunctions";
+    Map<String, Object> props = Maps.newLinkedHashMap();
+    props.put("key1", "val1");
+    props.put(StorageConstants.SORT, "key2 desc");
+    props.put(StorageConstants.CURSOR, "rid1:val2");
+    client.find(keySpace, columnFamily, props);
+
+    ArgumentCaptor<String> sqlCaptor = ArgumentCaptor.forClass(String.class);
+    verify(conn, atLeastOnce()).prepareStatement(sqlCaptor.capture());
+    verify(ps2).setObject(1, "key1");
+    verify(ps2).setObject(2, "val1");
+    verify(ps2).setObject(3, "key2");
+    verify(ps2).setObject(4, "val2");
+    verify(ps2).setObject(5, "val2");
+    verify(ps2).setObject(6, "rid1");
+
+    String sqlTemplate = (String) sqlConfig.get("block-find-cursor");
+    String[] statementParts = StringUtils.split(sqlTemplate, ';');
+
+    StringBuilder tables = new StringBuilder().append(
+        MessageFormat.format(statementParts[1], "a0")).append(
+        MessageFormat.format(statementParts[1], "a1"));
+    StringBuilder where = new StringBuilder().append(" (")
+        .append(MessageFormat.format(statementParts[2], "a0")).append(") AND")
+        .append(MessageFormat.format(statementParts[3], "a1")).append(" AND (")
+        .append(MessageFormat.format(statementParts[8], "a1")).append(") AND");
+
+    String expectedSql = MessageFormat.format(statementParts[0], tables.toString(),
+        where.toString(), MessageFormat.format(statementParts[4], "a1", "desc"), 25L, 0L,
+        MessageFormat.format(statementParts[5], "a1"));
+
+    String sql = sqlCaptor.getValue();
+    Assert.assertEquals(expectedSql, sql);
+  }
+
+  @Test(expected = StorageClientException.class)
+  public void testCursorMustMatchSort() throws Exception {
+    Map<String, Object> props = Maps.newLinkedHashMap();
+    props.put("key1", "val1");
+    props.put(StorageConstants.SORT, "key2");
+    props.put(StorageConstants.CURSOR, "rid1");
+    client.find("cn", "conjunctions", props);
+  }
+
+  @Test
+  public void testFindsOfOneShapeShareSqlAndStatement() throws Exception {
+    Map<String, Object> props = Maps.newLinkedHashMap();
+    props.put("key1", "val1");
+    props.put("key2", ImmutableList.of("val2", "val3"));
+    client.find("cn", "conjunctions", props).close();
+    ArgumentCaptor<String> sqlCaptor = ArgumentCaptor.forClass(String.class);
+    verify(conn).prepareStatement(sqlCaptor.capture());
+
+    // the same shape with other values.
+    props.put("key1", "val4");
+    props.put("key2", ImmutableList.of("val5", "val6"));
+    client.find("cn", "conjunctions", props).close();
+    verify(conn, times(1)).prepareStatement(sqlCaptor.getValue());
+    verify(ps2).setObject(2, "val4");
+    verify(ps2).setObject(6, "val6");
+    verify(ps2, times(0)).close();
+
+    // another shape.
+    props.put("key2", ImmutableList.of("val5", "val6", "val7"));
+    client.find("cn", "conjunctions", props).close();
+
+    Map<String, Long> counters = client.getCounters();
+    Assert.assertEquals(Long.valueOf(2), counters.get("findPlanShapes"));
+    Assert.assertEquals(Long.valueOf(1), counters.get("findPlanHits"));
+    Assert.assertEquals(Long.valueOf(1), counters.get("findStatementCacheHits"));
+    Assert.assertEquals(Long.valueOf(2), counters.get("findStatementCacheMisses"));
+  }
+
+  @Test
+  public void testPagesOfAFindShareSql() throws Exception {
+    Map<String, Object> pagedConfig = Maps.newHashMap(sqlConfig);
+    pagedConfig.put("block-find", ((String) sqlConfig.get("block-find")).replace("1 = 1;",
+        "1 = 1 {2} limit {3,number,#} offset {4,number,#};"));
+    client = new JDBCStorageClient(connPool, properties, pagedConfig,
+        ImmutableSet.of("conjunctions:key1"), null, null);
+    Map<String, Object> props = Maps.newLinkedHashMap();
+    props.put("key1", "val1");
+    props.put(StorageConstants.ITEMS, 10);
+    client.find("cn", "conjunctions", props).close();
+    props.put(StorageConstants.PAGE, 7);
+    client.find("cn", "conjunctions", props).close();
+
+    ArgumentCaptor<String> sqlCaptor = ArgumentCaptor.forClass(String.class);
+    verify(conn, times(1)).prepareStatement(sqlCaptor.capture());
+    Assert.assertTrue(sqlCaptor.getValue(), sqlCaptor.getValue().endsWith(" limit ? offset ?"));
+    verify(ps2, times(2)).setObject(3, 10L);
+    verify(ps2).setObject(4, 0L);
+    verify(ps2).setObject(4, 70L);
+  }
+
+  @Test
+  public void testOpenFindStatementIsNotShared() throws Exception {
+    Map<String, Object> props = Maps.newLinkedHashMap();
+    props.put("key1", "val1");
+    DisposableIterator<Map<String, Object>> open = client.find("cn", "conjunctions", props);
+    PreparedStatement ps3 = mock(PreparedStatement.class);
+    when(ps3.executeQuery()).thenReturn(rs2);
+    when(conn.prepareStatement(anyString())).thenReturn(ps3);
+    client.find("cn", "conjunctions", props).close();
+    ArgumentCaptor<String> sqlCaptor = ArgumentCaptor.forClass(String.class);
+    verify(conn, times(2)).prepareStatement(sqlCaptor.capture());
+    Assert.assertEquals(sqlCaptor.getAllValues().get(0), sqlCaptor.getAllValues().get(1));
+    // the statement prepared for the second find is not kept, the cached one is.
+    verify(ps3).close();
+    open.close();
+    verify(ps2, times(0)).close();
+  }
+
+  @Test
+  public void testInsertWithCurrentRowReadsByDefault() throws Exception {
+    when(ps2.executeUpdate()).thenReturn(1);
+    Map<String, Object> currentRow = Maps.newHashMap();
+    currentRow.put("key1", "val1");
+    client.insert("n", "cn", "deltaRow", ImmutableMap.of("key2", (Object) "val2"), false, currentRow);
+
+    // the callers row may be stale, so it is not trusted unless delta writes are on.
+    ArgumentCaptor<String> sqlCaptor = ArgumentCaptor.forClass(String.class);
+    verify(conn, atLeastOnce()).prepareStatement(sqlCaptor.capture());
+    Assert.assertTrue(sqlCaptor.getAllValues().contains(sqlConfig.get("block-select-row.n.cn")));
+  }
+
+  @Test
+  public void testInsertWithCurrentRowSkipsRead() throws Exception {
+    properties.put(JDBCStorageClientPool.DELTA_WRITES, true);
+    client = new JDBCStorageClient(connPool, properties, sqlConfig, ImmutableSet.<String> of(), null, null);
+    when(ps2.executeUpdate()).thenReturn(1);
+    Map<String, Object> currentRow = Maps.newHashMap();
+    currentRow.put("key1", "val1");
+    client.insert("n", "cn", "deltaRow", ImmutableMap.of("key2", (Object) "val2"), false, currentRow);
+
+    ArgumentCaptor<String> sqlCaptor = ArgumentCaptor.forClass(String.class);
+    verify(conn, atLeastOnce()).prepareStatement(sqlCaptor.capture());
+    Assert.assertFalse(sqlCaptor.getAllValues().contains(sqlConfig.get("block-select-row.n.cn")));
+    Assert.assertTrue(sqlCaptor.getAllValues().contains(sqlConfig.get("block-update-row.n.cn")));
+    // the callers row must not be modified.
+    Assert.assertEquals(1, currentRow.size());
+  }
+
+  @Test
+  public void testInsertWithoutCurrentRowReads() throws Exception {
+    when(ps2.executeUpdate()).thenReturn(1);
+    client.insert("n", "cn", "fullRow", ImmutableMap.of("key2", (Object) "val2"), false);
+
+    ArgumentCaptor<String> sqlCaptor = ArgumentCaptor.forClass(String.class);
+    verify(conn, atLeastOnce()).prepareStatement(sqlCaptor.capture());
+    Assert.assertTrue(sqlCaptor.getAllValues().contains(sqlConfig.get("block-select-row.n.cn")));
+  }
+
+  @Test
+  public void testStatementsCachedUntilPassivate() throws Exception {
+    String selectSql = (String) sqlConfig.get("block-select-row.n.cn");
+    client.get("n", "cn", "cachedRow");
+    client.get("n", "cn", "cachedRow");
+    verify(conn, times(1)).prepareStatement(selectSql);
+    Assert.assertEquals(Long.valueOf(1), client.getCounters().get("statementCacheHits"));
+    Assert.assertEquals(Long.valueOf(1), client.getCounters().get("statementCacheMisses"));
+
+    client.passivate();
+    verify(ps2).close();
+    client.get("n", "cn", "cachedRow");
+    verify(conn, times(2)).prepareStatement(selectSql);
+  }
+
+  @Test
+  public void testFailedRemoveClearsStatementCache() throws Exception {
+    String deleteSql = (String) sqlConfig.get("delete-string-row.n.cn");
+    when(ps2.executeUpdate()).thenThrow(new SQLException("broken")).thenReturn(1);
+    try {
+      client.remove("n", "cn", "brokenRow");
+      Assert.fail("Remove should have failed");
+    } catch (StorageClientException e) {
+      // expected
+    }
+    verify(ps2, atLeastOnce()).close();
+    client.remove("n", "cn", "brokenRow2");
+    verify(conn, times(2)).prepareStatement(deleteSql);
+  }
+
+  @Test
+  public void testMultiGetSingleQuery() throws Exception {
+    String rid = client.rowHash("n", "cn", "b");
+    when(rs2.next()).thenReturn(true, false);
+    when(rs2.getString(1)).thenReturn(rid);
+    when(rs2.getBinaryStream(2)).thenReturn(
+        Types.storeMapToStream(rid, ImmutableMap.of("key1", (Object) "val1"), "cn"));
+
+    Map<String, Map<String, Object>> rows = client.get("n", "cn", ImmutableList.of("a", "b", "c"));
+
+    // 3 keys are padded to 4 so that few distinct statements are prepared.
+    verify(conn).prepareStatement(MessageFormat.format(
+        (String) sqlConfig.get("block-select-rows.n.cn"), "?, ?, ?, ?"));
+    verify(ps2, times(1)).executeQuery();
+    verify(ps2).setString(4, client.rowHash("n", "cn", "c"));
+    Assert.assertEquals(ImmutableList.of("a", "b", "c"), Lists.newArrayList(rows.keySet()));
+    Assert.assertTrue(rows.get("a").isEmpty());
+    Assert.assertEquals("val1", rows.get("b").get("key1"));
+    Assert.assertTrue(rows.get("c").isEmpty());
+  }
+
+  @Test
+  public void testResolveSingleQuery() throws Exception {
+    String rid = client.rowHash("n", "cn", "/a/b");
+    String contentRid = client.rowHash("n", "cn", "contentb");
+    when(rs2.next()).thenReturn(true, false);
+    when(rs2.getBinaryStream(1)).thenReturn(
+        Types.storeMapToStream(rid, ImmutableMap.of("_:cid", (Object) "contentb"), "cn"));
+    when(rs2.getString(2)).thenReturn(contentRid);
+    when(rs2.getBinaryStream(3)).thenReturn(
+        Types.storeMapToStream(contentRid, ImmutableMap.of("key1", (Object) "val1"), "cn"));
+
+    Map<String, Map<String, Object>> rows = client.resolve("n", "cn", "/a/b");
+
+    verify(conn).prepareStatement((String) sqlConfig.get("block-select-resolved.n.cn"));
+    verify(ps2, times(1)).executeQuery();
+    verify(ps2).setString(1, "_:cidhash");
+    verify(ps2).setString(2, rid);
+    Assert.assertEquals("contentb", rows.get("/a/b").get("_:cid"));
+    Assert.assertEquals("val1", rows.get("contentb").get("key1"));
+  }
+
+  @Test
+  public void testResolveIgnoresStaleIndex() throws Exception {
+    String rid = client.rowHash("n", "cn", "/a/b");
+    when(rs2.next()).thenReturn(true, false);
+    when(rs2.getBinaryStream(1)).thenReturn(
+        Types.storeMapToStream(rid, ImmutableMap.of("_:cid", (Object) "contentb"), "cn"));
+    // the index still points at the content of an earlier version.
+    when(rs2.getString(2)).thenReturn(client.rowHash("n", "cn", "contenta"));
+
+    Map<String, Map<String, Object>> rows = client.resolve("n", "cn", "/a/b");
+
+    Assert.assertEquals(ImmutableSet.of("/a/b"), rows.keySet());
+  }
 }
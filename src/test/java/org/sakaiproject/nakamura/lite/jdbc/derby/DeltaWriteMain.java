@@ -0,0 +1,113 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.jdbc.derby;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Configuration;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.lite.ConfigurationImpl;
+import org.sakaiproject.nakamura.lite.storage.StorageClient;
+import org.sakaiproject.nakamura.lite.storage.jdbc.JDBCStorageClientPool;
+import org.sakaiproject.nakamura.lite.types.Types;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+/**
+ * Compares the cost of updating a few properties of a wide row with and without
+ * the current row being supplied to the storage client.
+ */
+public class DeltaWriteMain {
+
+    private StorageClient client;
+    private JDBCStorageClientPool clientPool;
+
+    public void open() throws ClassNotFoundException, IOException, ClientPoolException {
+        ConfigurationImpl configuration = new ConfigurationImpl();
+        configuration.activate(ImmutableMap.of("keyspace", (Object) "n"));
+        clientPool = new JDBCStorageClientPool();
+        clientPool.activate(ImmutableMap.of(JDBCStorageClientPool.CONNECTION_URL,
+                (Object) "jdbc:derby:memory:DeltaWriteDB;create=true",
+                JDBCStorageClientPool.JDBC_DRIVER, "org.apache.derby.jdbc.EmbeddedDriver",
+                "store-base-dir", "target/store",
+                JDBCStorageClientPool.DELTA_WRITES, true,
+                Configuration.class.getName(), configuration));
+        client = clientPool.getClient();
+    }
+
+    public void close() {
+        client.close();
+        clientPool.deactivate(ImmutableMap.of(JDBCStorageClientPool.JDBC_DRIVER,
+                (Object) "org.apache.derby.jdbc.EmbeddedDriver"));
+    }
+
+    public void testUpdate(int columns, int updates, boolean supplyCurrentRow)
+            throws StorageClientException, IOException {
+        String key = "deltaWrite" + columns + supplyCurrentRow;
+        Map<String, Object> row = Maps.newHashMap();
+        for (int i = 0; i < columns; i++) {
+            row.put("property" + i, "value of property " + i);
+        }
+        client.insert("n", "cn", key, row, true);
+        Map<String, Object> currentRow = client.get("n", "cn", key);
+        long bytesWritten = 0;
+        long bytesRead = 0;
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < updates; i++) {
+            Map<String, Object> changes = ImmutableMap.of("_bodyLastModified", (Object) System.currentTimeMillis(),
+                    "_bodyLastModifiedBy", "admin", "_length", (long) i, "_blockId", "block" + i);
+            if (supplyCurrentRow) {
+                client.insert("n", "cn", key, changes, false, currentRow);
+            } else {
+                bytesRead += size(key, currentRow);
+                client.insert("n", "cn", key, changes, false);
+            }
+            currentRow.putAll(changes);
+            bytesWritten += size(key, currentRow);
+        }
+        long t = System.currentTimeMillis() - start;
+        System.err.println("Columns " + columns + " current row supplied " + supplyCurrentRow
+                + " updates " + updates + " in " + t + "ms, " + ((double) t / updates)
+                + " ms/update, bytes read/update " + (bytesRead / updates)
+                + ", bytes written/update " + (bytesWritten / updates));
+    }
+
+    private long size(String key, Map<String, Object> row) throws IOException {
+        InputStream in = Types.storeMapToStream(key, row, "cn");
+        long size = in.available();
+        in.close();
+        return size;
+    }
+
+    public static void main(String[] argv) throws Exception {
+        DeltaWriteMain dwm = new DeltaWriteMain();
+        dwm.open();
+        for (int columns : new int[] { 10, 100, 500 }) {
+            // warm up
+            dwm.testUpdate(columns, 100, false);
+            dwm.testUpdate(columns, 100, true);
+            dwm.testUpdate(columns, 2000, false);
+            dwm.testUpdate(columns, 2000, true);
+        }
+        dwm.close();
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.jdbc.derby;
+
+import java.io.IOException;
+
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Configuration;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.lite.ConfigurationImpl;
+import org.sakaiproject.nakamura.lite.LoggingStorageListener;
+import org.sakaiproject.nakamura.lite.RepositoryImpl;
+import org.sakaiproject.nakamura.lite.authorizable.AuthorizableManagerImpl;
+import org.sakaiproject.nakamura.lite.storage.jdbc.JDBCStorageClientPool;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Measures the cost of adding and removing members of a large group, and of
+ * paging through its members, as the group grows.
+ */
+public class GroupMembershipMain {
+
+    private JDBCStorageClientPool clientPool;
+    private RepositoryImpl repository;
+    private Session session;
+    private AuthorizableManagerImpl authorizableManager;
+
+    public void open() throws ClassNotFoundException, IOException, StorageClientException,
+            AccessDeniedException {
+        ConfigurationImpl configuration = new ConfigurationImpl();
+        configuration.activate(ImmutableMap.of("keyspace", (Object) "n"));
+        clientPool = new JDBCStorageClientPool();
+        clientPool.activate(ImmutableMap.of(JDBCStorageClientPool.CONNECTION_URL,
+                (Object) "jdbc:derby:memory:GroupMembershipDB;create=true",
+                JDBCStorageClientPool.JDBC_DRIVER, "org.apache.derby.jdbc.EmbeddedDriver",
+                "store-base-dir", "target/store",
+                Configuration.class.getName(), configuration));
+        repository = new RepositoryImpl(configuration, clientPool, new LoggingStorageListener());
+        repository.activate(ImmutableMap.of("t", (Object) "x"));
+        session = repository.loginAdministrative();
+        authorizableManager = (AuthorizableManagerImpl) session.getAuthorizableManager();
+    }
+
+    public void close() throws ClientPoolException {
+        session.logout();
+        clientPool.deactivate(ImmutableMap.of(JDBCStorageClientPool.JDBC_DRIVER,
+                (Object) "org.apache.derby.jdbc.EmbeddedDriver"));
+    }
+
+    public void testChurn(int members, int changes) throws StorageClientException,
+            AccessDeniedException {
+        String groupId = "churn" + members;
+        authorizableManager.createGroup(groupId, "Churn " + members, null);
+        for (int i = 0; i < members + changes; i++) {
+            authorizableManager.createUser("churnuser" + members + "-" + i, "Churn User", "test",
+                    null);
+        }
+        Group group = (Group) authorizableManager.findAuthorizable(groupId);
+        for (int i = 0; i < members; i++) {
+            group.addMember("churnuser" + members + "-" + i);
+        }
+        authorizableManager.updateAuthorizable(group);
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < changes; i++) {
+            group = (Group) authorizableManager.findAuthorizable(groupId);
+            group.removeMember("churnuser" + members + "-" + i);
+            group.addMember("churnuser" + members + "-" + (members + i));
+            authorizableManager.updateAuthorizable(group);
+        }
+        long churn = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        int listed = 0;
+        for (int page = 0;; page++) {
+            String[] m = authorizableManager.getMembers(groupId, page, 100);
+            listed += m.length;
+            if (m.length < 100) {
+                break;
+            }
+        }
+        long paging = System.currentTimeMillis() - start;
+        System.err.println("Group of " + members + " members, " + changes + " changes in "
+                + churn + "ms, " + ((double) churn / changes) + " ms/change, paged " + listed
+                + " members in " + paging + "ms");
+    }
+
+    public static void main(String[] argv) throws Exception {
+        GroupMembershipMain gmm = new GroupMembershipMain();
+        gmm.open();
+        for (int members : new int[] { 100, 1000, 2500 }) {
+            gmm.testChurn(members, 100);
+        }
+        gmm.close();
+    }
+}
@@ -33,7 +33,7 @@ import org.sakaiproject.nakamura.lite.accesscontrol.AuthenticatorImpl;
 import org.sakaiproject.nakamura.lite.accesscontrol.PrincipalValidatorResolverImpl;
 import org.sakaiproject.nakamura.lite.authorizable.AuthorizableManagerImpl;
 import org.sakaiproject.nakamura.lite.soak.AbstractScalingClient;
-import org.sakaiproject.nakamura.lite.storage.ConcurrentLRUMap;
+import org.sakaiproject.nakamura.lite.storage.ConcurrentClockMap;
 import org.sakaiproject.nakamura.lite.storage.StorageClientPool;
 
 import java.util.Map;
@@ -41,7 +41,7 @@ import java.util.Map;
 public class CreateUsersAndGroupsClient extends AbstractScalingClient {
 
     private int nusers;
-    private Map<String, CacheHolder> sharedCache = new ConcurrentLRUMap<String, CacheHolder>(1000);
+    private Map<String, CacheHolder> sharedCache = new ConcurrentClockMap<String, CacheHolder>(1000);
     private PrincipalValidatorResolver principalValidatorResolver = new PrincipalValidatorResolverImpl();
 
     public CreateUsersAndGroupsClient(int totalUsers, StorageClientPool clientPool, Configuration configuration)
@@ -0,0 +1,193 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ConcurrentClockMapTest {
+
+    @Test
+    public void testBoundedByEntries() {
+        ConcurrentClockMap<String, String> map = new ConcurrentClockMap<String, String>(100);
+        for (int i = 0; i < 10000; i++) {
+            map.put("key" + i, "value" + i);
+            Assert.assertTrue(map.size() <= 100);
+        }
+        Assert.assertEquals("value9999", map.get("key9999"));
+        Assert.assertEquals(map.size(), map.entrySet().size());
+    }
+
+    @Test
+    public void testReferencedEntriesSurvive() {
+        ConcurrentClockMap<String, String> map = new ConcurrentClockMap<String, String>(16);
+        map.put("hot", "value");
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals("value", map.get("hot"));
+            map.put("cold" + i, "value" + i);
+        }
+        Assert.assertTrue(map.containsKey("hot"));
+    }
+
+    @Test
+    public void testBoundedByWeight() {
+        ConcurrentClockMap<String, String> map = new ConcurrentClockMap<String, String>(15,
+                100, new ConcurrentClockMap.Weigher<String>() {
+                    public int weigh(String value) {
+                        return value.length();
+                    }
+                });
+        for (int i = 0; i < 1000; i++) {
+            map.put("key" + i, "0123456789");
+            Assert.assertTrue(map.weight() <= 100);
+        }
+        Assert.assertEquals(10, map.size());
+        // too heavy to store, and replaces the previous value.
+        StringBuilder heavy = new StringBuilder();
+        for (int i = 0; i < 11; i++) {
+            heavy.append("0123456789");
+        }
+        map.put("key999", heavy.toString());
+        Assert.assertFalse(map.containsKey("key999"));
+        Assert.assertEquals(9, map.size());
+        Assert.assertEquals(90, map.weight());
+    }
+
+    @Test
+    public void testPutRemoveClear() {
+        ConcurrentClockMap<String, String> map = new ConcurrentClockMap<String, String>(10);
+        Assert.assertNull(map.put("a", "1"));
+        Assert.assertEquals("1", map.put("a", "2"));
+        Assert.assertEquals(1, map.size());
+        Assert.assertEquals("2", map.remove("a"));
+        Assert.assertNull(map.remove("a"));
+        Assert.assertTrue(map.isEmpty());
+        map.put("a", "1");
+        map.put("b", "1");
+        map.clear();
+        Assert.assertTrue(map.isEmpty());
+        Assert.assertEquals(0, map.weight());
+        map.put("c", "1");
+        Assert.assertEquals("1", map.get("c"));
+    }
+
+    @Test
+    public void testRemoveByHash() {
+        ConcurrentClockMap<String, String> map = new ConcurrentClockMap<String, String>(100);
+        // "Aa" and "BB" share a hash, as do "AaAa", "AaBB" and "BBBB".
+        Assert.assertEquals("Aa".hashCode(), "BB".hashCode());
+        map.put("Aa", "1");
+        map.put("BB", "2");
+        map.put("AaAa", "3");
+        map.put("BBBB", "4");
+        map.put("AaBB", "5");
+        map.put("other", "6");
+        Assert.assertEquals(2, map.removeByHash("Aa".hashCode()));
+        Assert.assertFalse(map.containsKey("Aa"));
+        Assert.assertFalse(map.containsKey("BB"));
+
+        // removing from the middle of a chain keeps the rest of it.
+        map.remove("BBBB");
+        Assert.assertEquals(2, map.removeByHash(ImmutableList.of("AaAa".hashCode(),
+                "missing".hashCode())));
+        Assert.assertEquals(ImmutableMap.of("other", "6"), Maps.newHashMap(map));
+        Assert.assertEquals(0, map.removeByHash("AaAa".hashCode()));
+
+        // evicted entries leave the index.
+        for (int i = 0; i < 1000; i++) {
+            map.put("key" + i, "value");
+        }
+        int keys = map.size() - (map.containsKey("other") ? 1 : 0);
+        int removed = 0;
+        for (int i = 0; i < 1000; i++) {
+            removed += map.removeByHash(("key" + i).hashCode());
+        }
+        Assert.assertEquals(keys, removed);
+        Assert.assertTrue(map.isEmpty() || map.containsKey("other"));
+    }
+
+    @Test
+    public void testConcurrentAccess() throws InterruptedException {
+        final ConcurrentClockMap<String, String> map = new ConcurrentClockMap<String, String>(1000);
+        final AtomicBoolean failed = new AtomicBoolean();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < 20000; i++) {
+                            String key = "key" + ((i * (seed + 1)) % 3000);
+                            if (i % 3 == 0) {
+                                map.put(key, key);
+                            } else if (i % 17 == 0) {
+                                map.remove(key);
+                            } else {
+                                String v = map.get(key);
+                                if (v != null && !v.equals(key)) {
+                                    failed.set(true);
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        e.printStackTrace();
+                        failed.set(true);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        Assert.assertFalse(failed.get());
+        Assert.assertTrue(map.size() <= 1000);
+        Assert.assertEquals(map.size(), map.weight());
+    }
+
+    @Test
+    public void testRowsBoundedBySize() {
+        ConcurrentClockMap<String, CacheHolder> map = new ConcurrentClockMap<String, CacheHolder>(
+                10000, 100000, 10000, new CacheHolderWeigher());
+        Map<String, Object> small = ImmutableMap.of("name", (Object) "value", "count", 1);
+        Map<String, Object> large = Maps.newHashMap();
+        for (int i = 0; i < 1000; i++) {
+            large.put("property" + i, "value" + i);
+        }
+        map.put("small", new CacheHolder(small));
+        map.put("missing", new CacheHolder(null));
+        Assert.assertTrue(map.containsKey("small"));
+        Assert.assertTrue(map.containsKey("missing"));
+        map.put("small", new CacheHolder(large));
+        Assert.assertFalse(map.containsKey("small"));
+
+        for (int i = 0; i < 10000; i++) {
+            map.put("row" + i, new CacheHolder(small));
+        }
+        Assert.assertTrue(map.weight() <= 100000);
+        Assert.assertTrue(map.size() < 10000);
+    }
+}
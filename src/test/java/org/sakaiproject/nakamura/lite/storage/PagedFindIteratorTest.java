@@ -0,0 +1,247 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage;
+
+import static org.mockito.Matchers.anyMap;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.lite.StorageConstants;
+import org.sakaiproject.nakamura.api.lite.util.CursorIterator;
+import org.sakaiproject.nakamura.api.lite.util.PreemptiveIterator;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+public class PagedFindIteratorTest {
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testFindWithoutCursorIsAnOrdinaryFind() throws Exception {
+        StorageClient client = mock(StorageClient.class);
+        when(client.find(eq("n"), eq("cn"), anyMap())).thenReturn(rows());
+        Assert.assertFalse(new PassAll(client, ImmutableMap.of("k", (Object) "v"), 10).hasNext());
+
+        ArgumentCaptor<Map> properties = ArgumentCaptor.forClass(Map.class);
+        verify(client).find(eq("n"), eq("cn"), properties.capture());
+        Assert.assertFalse(properties.getValue().containsKey(StorageConstants.CURSOR));
+        Assert.assertEquals(0L, properties.getValue().get(StorageConstants.PAGE));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testFindWithCursorPassesTheCursor() throws Exception {
+        StorageClient client = mock(StorageClient.class);
+        when(client.find(eq("n"), eq("cn"), anyMap())).thenReturn(rows());
+        Assert.assertFalse(new PassAll(client, ImmutableMap.of("k", (Object) "v",
+                StorageConstants.CURSOR, "rid1"), 10).hasNext());
+
+        ArgumentCaptor<Map> properties = ArgumentCaptor.forClass(Map.class);
+        verify(client).find(eq("n"), eq("cn"), properties.capture());
+        Assert.assertEquals("rid1", properties.getValue().get(StorageConstants.CURSOR));
+    }
+
+    @Test
+    public void testPagesCountReadableResults() throws Exception {
+        StorageClient client = rowList(20);
+        List<Object> found = Lists.newArrayList();
+        for (int page = 0; page < 3; page++) {
+            List<Object> results = Lists.newArrayList();
+            Iterators.addAll(results, Iterators.transform(new EvenRows(client, ImmutableMap.of(
+                    "k", (Object) "v", StorageConstants.ITEMS, 4, StorageConstants.PAGE, page),
+                    4), GET_ROW));
+            Assert.assertEquals(page < 2 ? 4 : 2, results.size());
+            found.addAll(results);
+        }
+        // no page shares results with another.
+        Assert.assertEquals(ImmutableList.of(0, 2, 4, 6, 8, 10, 12, 14, 16, 18), found);
+    }
+
+    @Test
+    public void testCursorContinuesAfterLastResult() throws Exception {
+        StorageClient client = rowList(20);
+        List<Object> found = Lists.newArrayList();
+        String cursor = "";
+        for (int page = 0; page < 3; page++) {
+            EvenRows results = new EvenRows(client, ImmutableMap.of("k", (Object) "v",
+                    StorageConstants.ITEMS, 4, StorageConstants.CURSOR, cursor), 4);
+            Iterators.addAll(found, Iterators.transform(results, GET_ROW));
+            cursor = results.getCursor();
+        }
+        Assert.assertEquals(ImmutableList.of(0, 2, 4, 6, 8, 10, 12, 14, 16, 18), found);
+    }
+
+    private static final Function<Map<String, Object>, Object> GET_ROW = new Function<Map<String, Object>, Object>() {
+        public Object apply(Map<String, Object> row) {
+            return row.get("row");
+        }
+    };
+
+    private static DisposableIterator<Map<String, Object>> rows(Map<String, Object>... rows) {
+        final Iterator<Map<String, Object>> iterator = Iterators.forArray(rows);
+        return new PreemptiveIterator<Map<String, Object>>() {
+
+            private Map<String, Object> row;
+
+            @Override
+            protected boolean internalHasNext() {
+                if (iterator.hasNext()) {
+                    row = iterator.next();
+                    return true;
+                }
+                return false;
+            }
+
+            @Override
+            protected Map<String, Object> internalNext() {
+                return row;
+            }
+        };
+    }
+
+    /**
+     * @return a client that finds rows numbered from 0, paged by page and items
+     *         or after a cursor that is the number of the last row read.
+     */
+    @SuppressWarnings("unchecked")
+    private static StorageClient rowList(final int size) throws Exception {
+        StorageClient client = mock(StorageClient.class);
+        when(client.find(eq("n"), eq("cn"), anyMap())).thenAnswer(
+                new Answer<DisposableIterator<Map<String, Object>>>() {
+                    public DisposableIterator<Map<String, Object>> answer(
+                            InvocationOnMock invocation) {
+                        Map<String, Object> properties = (Map<String, Object>) invocation
+                                .getArguments()[2];
+                        return findRows(size, properties);
+                    }
+                });
+        return client;
+    }
+
+    private static DisposableIterator<Map<String, Object>> findRows(int size,
+            Map<String, Object> properties) {
+        final boolean cursorOrder = properties.containsKey(StorageConstants.CURSOR);
+        String cursor = (String) properties.get(StorageConstants.CURSOR);
+        int items = ((Number) properties.get(StorageConstants.ITEMS)).intValue();
+        int start = ((Number) properties.get(StorageConstants.PAGE)).intValue() * items;
+        if (cursor != null && cursor.length() > 0) {
+            start = Integer.parseInt(cursor) + 1;
+        }
+        List<Integer> found = Lists.newArrayList();
+        for (int i = start; i < size && i < start + items; i++) {
+            found.add(i);
+        }
+        final Iterator<Integer> rows = found.iterator();
+        return new CursorRows() {
+
+            private Integer row;
+
+            public boolean hasNext() {
+                return rows.hasNext();
+            }
+
+            public Map<String, Object> next() {
+                row = rows.next();
+                return ImmutableMap.of("row", (Object) row);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            public String getCursor() {
+                return (cursorOrder && row != null) ? String.valueOf(row) : null;
+            }
+
+            public void close() {
+            }
+
+            public void setDisposer(Disposer disposer) {
+            }
+        };
+    }
+
+    private interface CursorRows extends DisposableIterator<Map<String, Object>>,
+            CursorIterator<Map<String, Object>> {
+    }
+
+    /**
+     * Returns the rows with even numbers.
+     */
+    private static class EvenRows extends PagedFindIterator<Map<String, Object>> {
+
+        public EvenRows(StorageClient client, Map<String, Object> properties, long maxResults) {
+            super(client, "n", "cn", properties, maxResults);
+        }
+
+        @Override
+        protected DisposableIterator<Map<String, Object>> getResults(
+                final DisposableIterator<Map<String, Object>> rows) {
+            return new PreemptiveIterator<Map<String, Object>>() {
+
+                private Map<String, Object> row;
+
+                @Override
+                protected boolean internalHasNext() {
+                    while (rows.hasNext()) {
+                        row = rows.next();
+                        if (((Integer) row.get("row")) % 2 == 0) {
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+
+                @Override
+                protected Map<String, Object> internalNext() {
+                    return row;
+                }
+            };
+        }
+    }
+
+    /**
+     * Returns every row found.
+     */
+    private static class PassAll extends PagedFindIterator<Map<String, Object>> {
+
+        public PassAll(StorageClient client, Map<String, Object> properties, long maxResults) {
+            super(client, "n", "cn", properties, maxResults);
+        }
+
+        @Override
+        protected DisposableIterator<Map<String, Object>> getResults(
+                DisposableIterator<Map<String, Object>> rows) {
+            return rows;
+        }
+    }
+}
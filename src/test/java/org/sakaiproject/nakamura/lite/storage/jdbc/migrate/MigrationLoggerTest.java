@@ -25,6 +25,7 @@ import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
 import org.sakaiproject.nakamura.lite.SessionImpl;
+import org.sakaiproject.nakamura.lite.content.ChildNameIndexMigrator;
 
 import java.util.Map;
 
@@ -73,4 +74,14 @@ public class MigrationLoggerTest {
         migrationLogger.write();
         Assert.assertTrue(migrationLogger.hasMigratorRun(this.migrator));
     }
+
+    @Test
+    public void testNewStoreNeedsNoReindex() throws Exception {
+        // a new store writes its rows indexed, so the reindex is recorded as run.
+        Assert.assertNotNull(session.getContentManager().get(
+                StorageClientUtils.newPath(MigrationLogger.LOG_ROOT_PATH,
+                        ChildNameIndexMigrator.class.getName())));
+        Assert.assertEquals(0, migrationLogger.filterMigrators(
+                new PropertyMigrator[] { new ChildNameIndexMigrator() }).length);
+    }
 }
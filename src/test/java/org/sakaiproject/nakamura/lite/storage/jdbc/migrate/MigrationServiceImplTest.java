@@ -106,8 +106,9 @@ public class MigrationServiceImplTest {
         Assert.assertNull(updated3.getProperty("prop1"));
         Assert.assertNull(updated3.getProperty("newprop1"));
 
-        // and check that it got logged
-        Mockito.verify(this.migrationService.migrationLogger, Mockito.times(2)).write();
+        // and check that it got logged, once the whole run is done
+        Mockito.verify(this.migrationService.migrationLogger, Mockito.times(1)).log(this.migrator);
+        Mockito.verify(this.migrationService.migrationLogger, Mockito.times(1)).write();
 
     }
 
@@ -20,10 +20,13 @@ package org.sakaiproject.nakamura.lite.types;
 import com.google.common.collect.Maps;
 
 
+import org.apache.commons.io.IOUtils;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.RemoveProperty;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigDecimal;
@@ -275,4 +278,146 @@ public class TestTypes {
 
     }
 
+    @Test
+    public void testFormatsReadSideBySide() throws IOException {
+        Map<String, Object> map = Maps.newHashMap();
+        map.put("_path", "a/b/c");
+        map.put("_lastModified", Long.MAX_VALUE);
+        map.put("_lastModifiedBy", "ieb");
+        map.put("sakai:custom", new String[] { SHORTSTRING, LONGSTRING });
+        map.put("removed", new RemoveProperty());
+        try {
+            Types.setFormatVersion(Types.FORMAT_V1);
+            byte[] v1 = IOUtils.toByteArray(Types.storeMapToStream("testkey", map, "testcf"));
+            Types.setFormatVersion(Types.FORMAT_V2);
+            byte[] v2 = IOUtils.toByteArray(Types.storeMapToStream("testkey", map, "testcf"));
+            Assert.assertTrue(v2.length < v1.length);
+
+            for (byte[] b : new byte[][] { v1, v2 }) {
+                Map<String, Object> output = Maps.newHashMap();
+                Types.loadFromStream("testkey", output, new ByteArrayInputStream(b), "testcf");
+                Assert.assertEquals(4, output.size());
+                Assert.assertEquals("a/b/c", output.get("_path"));
+                Assert.assertEquals(Long.MAX_VALUE, output.get("_lastModified"));
+                Assert.assertEquals("ieb", output.get("_lastModifiedBy"));
+                Assert.assertArrayEquals(new String[] { SHORTSTRING, LONGSTRING },
+                        (String[]) output.get("sakai:custom"));
+            }
+        } finally {
+            Types.setFormatVersion(Types.FORMAT_V2);
+        }
+    }
+
+    @Test
+    public void testFieldNamesShared() throws IOException {
+        Map<String, Object> map = Maps.newHashMap();
+        map.put(new String("_path"), "a");
+        map.put(new String("sakai:custom"), "b");
+        Map<String, Object> first = Maps.newHashMap();
+        Types.loadFromStream("testkey", first, Types.storeMapToStream("testkey", map, "testcf"), "testcf");
+        Map<String, Object> second = Maps.newHashMap();
+        Types.loadFromStream("testkey", second, Types.storeMapToStream("testkey", map, "testcf"), "testcf");
+        for (String k : first.keySet()) {
+            for (String k2 : second.keySet()) {
+                if (k.equals(k2)) {
+                    Assert.assertSame(k, k2);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testLazyRow() throws IOException {
+        Map<String, Object> map = Maps.newHashMap();
+        map.put("_path", "a/b/c");
+        map.put("D", new BigDecimal("12345.12E23"));
+        map.put("sakai:custom", new String[] { SHORTSTRING, LONGSTRING });
+        Map<String, Object> eager = Maps.newHashMap();
+        Types.loadFromStream("testkey", eager, Types.storeMapToStream("testkey", map, "testcf"), "testcf");
+        Map<String, Object> lazy = Types.loadFromStream("testkey",
+                Types.storeMapToStream("testkey", map, "testcf"), "testcf");
+        Assert.assertTrue(lazy instanceof LazyRowMap);
+        Assert.assertEquals(3, lazy.size());
+        Assert.assertTrue(lazy.containsKey("D"));
+        Assert.assertEquals("a/b/c", lazy.get("_path"));
+        Assert.assertSame(lazy.get("_path"), lazy.get("_path"));
+        Assert.assertNull(lazy.get("missing"));
+        Assert.assertTrue(Types.estimateSize(lazy) > 0);
+        Assert.assertEquals(new BigDecimal("12345.12E23"), lazy.get("D"));
+        Assert.assertArrayEquals((String[]) eager.get("sakai:custom"), (String[]) lazy.get("sakai:custom"));
+        for (Map.Entry<String, Object> e : lazy.entrySet()) {
+            if ("D".equals(e.getKey())) {
+                Map.Entry<String, Object> same = Maps.immutableEntry("D", eager.get("D"));
+                Assert.assertTrue(e.equals(same));
+                Assert.assertEquals(same.hashCode(), e.hashCode());
+                Assert.assertFalse(e.equals(Maps.immutableEntry("D", null)));
+            }
+        }
+
+        lazy.put("E", 1);
+        lazy.remove("_path");
+        Assert.assertEquals(3, lazy.size());
+        Assert.assertEquals(1, lazy.get("E"));
+        Assert.assertFalse(lazy.containsKey("_path"));
+        Assert.assertEquals(new BigDecimal("12345.12E23"), lazy.get("D"));
+
+        // format 1 rows are decoded immediately.
+        try {
+            Types.setFormatVersion(Types.FORMAT_V1);
+            Map<String, Object> v1 = Types.loadFromStream("testkey",
+                    Types.storeMapToStream("testkey", map, "testcf"), "testcf");
+            Assert.assertFalse(v1 instanceof LazyRowMap);
+            Assert.assertEquals("a/b/c", v1.get("_path"));
+        } finally {
+            Types.setFormatVersion(Types.FORMAT_V2);
+        }
+        try {
+            Types.loadFromStream("testkey", Types.storeMapToStream("testkey", map, "testcf"), "not-testcf");
+            Assert.fail();
+        } catch (IOException e) {
+            // Ok
+        }
+    }
+
+    @Test
+    public void testRowBufferReused() throws IOException {
+        RowBuffer buffer = new RowBuffer(8192);
+        Map<String, Object> map = Maps.newHashMap();
+        map.put("_path", "a/b/c");
+        Types.storeMapToStream("testkey", map, "testcf", buffer);
+        int size = buffer.size();
+        // each stream reads the same encoding.
+        for (int i = 0; i < 2; i++) {
+            Map<String, Object> output = Maps.newHashMap();
+            Types.loadFromStream("testkey", output, buffer.toInputStream(), "testcf");
+            Assert.assertEquals("a/b/c", output.get("_path"));
+        }
+
+        map.put("big", new String(new char[20000]).replace('\0', 'x'));
+        Types.storeMapToStream("testkey", map, "testcf", buffer);
+        Map<String, Object> output = Maps.newHashMap();
+        Types.loadFromStream("testkey", output, buffer.toInputStream(), "testcf");
+        Assert.assertEquals(20000, ((String) output.get("big")).length());
+
+        map.remove("big");
+        Types.storeMapToStream("testkey", map, "testcf", buffer);
+        Assert.assertEquals(size, buffer.size());
+    }
+
+    @Test
+    public void testValueLengthsAcrossVarIntSizes() throws IOException {
+        RowBuffer buffer = new RowBuffer(8192);
+        Map<String, Object> map = Maps.newLinkedHashMap();
+        // string lengths either side of the 1, 2 and 3 byte length prefixes.
+        int[] lengths = new int[] { 0, 125, 126, 16381, 16382, 20000 };
+        for (int i = 0; i < lengths.length; i++) {
+            map.put("v" + i, new String(new char[lengths[i]]).replace('\0', 'x'));
+            map.put("after" + i, (long) i);
+        }
+        Types.storeMapToStream("testkey", map, "testcf", buffer);
+        Map<String, Object> output = Maps.newHashMap();
+        Types.loadFromStream("testkey", output, buffer.toInputStream(), "testcf");
+        Assert.assertEquals(map, output);
+    }
+
 }